@@ -47,6 +47,7 @@ import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
 import uk.ac.sussex.gdsc.core.utils.MathUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 import uk.ac.sussex.gdsc.ij.foci.ObjectAnalyzer3D;
+import uk.ac.sussex.gdsc.ij.foci.ObjectIndex;
 
 /**
  * For all particles in a mask (defined by their unique pixel value), sum the pixel intensity in two
@@ -257,28 +258,18 @@ public class ParticleCorrelation_PlugIn implements PlugIn {
         new ObjectAnalyzer3D(mask, maxx, maxy, maxz, settings.eightConnected);
     oa.setMinObjectSize(settings.minSize);
     final int[] objectMask = oa.getObjectMask();
+    final ObjectIndex index = oa.getObjectIndex();
 
+    // Sum each object using the index of the object pixels
     final int[] count = new int[oa.getMaxObject()];
-    final double[] sumx = new double[count.length];
-    final double[] sumy = new double[count.length];
-    final double[] sumz = new double[count.length];
     final double[] sum1 = new double[count.length];
     final double[] sum2 = new double[count.length];
-    for (int z = 0, i = 0; z < maxz; z++) {
-      for (int y = 0; y < maxy; y++) {
-        for (int x = 0; x < maxx; x++, i++) {
-          int value = objectMask[i];
-          if (value != 0) {
-            value--;
-            sumx[value] += x;
-            sumy[value] += y;
-            sumz[value] += z;
-            sum1[value] += i1[i];
-            sum2[value] += i2[i];
-            count[value]++;
-          }
-        }
-      }
+    final double[][] moments1 = index.getIntensityMoments(i1);
+    final double[][] moments2 = index.getIntensityMoments(i2);
+    for (int i = 0; i < count.length; i++) {
+      count[i] = index.getSize(i + 1);
+      sum1[i] = moments1[i + 1][0];
+      sum2[i] = moments2[i + 1][0];
     }
 
     // Summarise results
@@ -292,12 +283,11 @@ public class ParticleCorrelation_PlugIn implements PlugIn {
       try (final BufferedTextWindow output = new BufferedTextWindow(twDataTable)) {
         final StringBuilder sb = new StringBuilder();
         for (int i = 0; i < count.length; i++) {
-          final double x = sumx[i] / count[i];
-          final double y = sumy[i] / count[i];
+          final double[] centroid = index.getCentroid(i + 1);
           // Centre on the slice
-          final double z = 1 + sumz[i] / count[i];
-          addResult(output::append, sb, title, i + 1, getValue(mask, objectMask, i + 1), x, y, z,
-              count[i], sum1[i], sum2[i]);
+          final double z = 1 + centroid[2];
+          addResult(output::append, sb, title, i + 1, mask[index.getFirstIndex(i + 1)],
+              centroid[0], centroid[1], z, count[i], sum1[i], sum2[i]);
         }
       }
     }
@@ -408,15 +398,6 @@ public class ParticleCorrelation_PlugIn implements PlugIn {
     return name;
   }
 
-  private static int getValue(int[] mask, int[] objectMask, int value) {
-    for (int i = 0; i < objectMask.length; i++) {
-      if (objectMask[i] == value) {
-        return mask[i];
-      }
-    }
-    return 0;
-  }
-
   private void addSummary(String title, double[] sum1, double[] sum2) {
     final BlockRealMatrix rm = new BlockRealMatrix(sum1.length, 2);
     rm.setColumn(0, sum1);
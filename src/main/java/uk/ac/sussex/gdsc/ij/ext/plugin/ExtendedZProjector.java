@@ -24,9 +24,11 @@
 
 package uk.ac.sussex.gdsc.ij.ext.plugin;
 
+import ij.CompositeImage;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.measure.Measurements;
@@ -36,12 +38,31 @@ import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 import java.util.function.ToDoubleFunction;
 import org.apache.commons.statistics.descriptive.Median;
+import uk.ac.sussex.gdsc.core.annotation.Nullable;
+import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
+import uk.ac.sussex.gdsc.core.logging.Ticker;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 
 /**
  * Extend the ZProjector to support mode intensity projection.
  *
+ * <p>The median and mode projections are computed in parallel over the rows of the image. The
+ * median and mode of 8-bit and 16-bit stacks use a histogram of the values rather than a sort.
+ *
+ * <p>A running projection can be computed over a window of consecutive slices to create an output
+ * stack. The projection is updated incrementally as the window moves and the input slices are read
+ * in order so a virtual stack is streamed through memory.
+ *
  * <p>Note: This class extends a copy of the default ImageJ ZProjector so that certain methods and
  * properties can be changed to protected from the private/default scope. Extending a copy allows
  * easier update when the super class changes.
@@ -56,6 +77,9 @@ public class ExtendedZProjector extends ZProjectorCopy {
   private static final String[] METHODS = {"Average Intensity", "Max Intensity", "Min Intensity",
       "Sum Slices", "Standard Deviation", "Median", "Mode", "Mode (ignore zero)"};
 
+  /** The size of the running projection window. Values below 2 disable the running projection. */
+  protected int runningWindow;
+
   /**
    * Gets the methods.
    *
@@ -65,6 +89,25 @@ public class ExtendedZProjector extends ZProjectorCopy {
     return METHODS.clone();
   }
 
+  /**
+   * Gets the size of the running projection window.
+   *
+   * @return the running window
+   */
+  public int getRunningWindow() {
+    return runningWindow;
+  }
+
+  /**
+   * Sets the size of the running projection window. Each output slice is the projection of the
+   * window of consecutive input slices. Values below 2 disable the running projection.
+   *
+   * @param runningWindow the new running window
+   */
+  public void setRunningWindow(int runningWindow) {
+    this.runningWindow = runningWindow;
+  }
+
   @Override
   public void run(String arg) {
     super.run(arg);
@@ -95,6 +138,7 @@ public class ExtendedZProjector extends ZProjectorCopy {
     gd.addNumericField("Start slice:", startSlice, 0/* digits */);
     gd.addNumericField("Stop slice:", stopSlice, 0/* digits */);
     gd.addChoice("Projection type", METHODS, METHODS[method]);
+    gd.addNumericField("Running window:", runningWindow, 0);
     if (isHyperstack && imp.getNFrames() > 1 && imp.getNSlices() > 1) {
       gd.addCheckbox("All time frames", allTimeFrames);
     }
@@ -102,6 +146,11 @@ public class ExtendedZProjector extends ZProjectorCopy {
     return gd;
   }
 
+  @Override
+  protected void readControlDialog(GenericDialog gd) {
+    runningWindow = (int) gd.getNextNumber();
+  }
+
   @Override
   protected String makeTitle() {
     final String prefix = getPrefix(method);
@@ -139,6 +188,10 @@ public class ExtendedZProjector extends ZProjectorCopy {
     for (int slice = startSlice; slice <= stopSlice; slice += increment) {
       sliceCount++;
     }
+    if (isRunningProjection(sliceCount)) {
+      projImage = doRunningProjection();
+      return;
+    }
     if (method >= MODE_METHOD) {
       projImage = doModeProjection(method == MODE_IGNORE_ZERO_METHOD);
       return;
@@ -151,12 +204,275 @@ public class ExtendedZProjector extends ZProjectorCopy {
     super.doProjection();
   }
 
+  /**
+   * Checks if a running projection is performed over the given number of slices.
+   *
+   * @param count the number of slices
+   * @return true if a running projection
+   */
+  private boolean isRunningProjection(int count) {
+    return runningWindow > 1 && runningWindow < count;
+  }
+
+  @Override
+  public void doHyperStackProjection(boolean allTimeFrames) {
+    if (!isRunningProjection(stopSlice - startSlice + 1)) {
+      super.doHyperStackProjection(allTimeFrames);
+      return;
+    }
+    if (imp.getBitDepth() == 24) {
+      IJ.error("Z Project", "Running projection does not support RGB hyperstacks");
+      return;
+    }
+    // As per the super-class but each projection creates a stack
+    final int start = startSlice;
+    final int stop = stopSlice;
+    int firstFrame = 1;
+    int lastFrame = imp.getNFrames();
+    if (!allTimeFrames) {
+      firstFrame = lastFrame = imp.getFrame();
+    }
+    final int channels = imp.getNChannels();
+    int slices = imp.getNSlices();
+    final boolean projectFrames = slices == 1;
+    if (projectFrames) {
+      slices = imp.getNFrames();
+      firstFrame = lastFrame = 1;
+    }
+    final int frames = lastFrame - firstFrame + 1;
+    increment = channels;
+    final ImageStack[][] stacks = new ImageStack[frames][channels];
+    for (int frame = firstFrame; frame <= lastFrame; frame++) {
+      for (int channel = 1; channel <= channels; channel++) {
+        startSlice = (frame - 1) * channels * slices + (start - 1) * channels + channel;
+        stopSlice = (frame - 1) * channels * slices + (stop - 1) * channels + channel;
+        doProjection();
+        if (projImage == null) {
+          return;
+        }
+        stacks[frame - firstFrame][channel - 1] = projImage.getStack();
+      }
+    }
+    // Interleave the channels
+    final int size = stacks[0][0].getSize();
+    final ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight());
+    for (int frame = 0; frame < frames; frame++) {
+      for (int n = 1; n <= size; n++) {
+        for (int channel = 0; channel < channels; channel++) {
+          final ImageStack s = stacks[frame][channel];
+          stack.addSlice(s.getSliceLabel(n), s.getProcessor(n));
+        }
+      }
+    }
+    projImage = new ImagePlus(makeTitle(), stack);
+    if (projectFrames) {
+      projImage.setDimensions(channels, 1, size);
+    } else {
+      projImage.setDimensions(channels, size, frames);
+    }
+    if (channels > 1) {
+      projImage = new CompositeImage(projImage, 0);
+      ((CompositeImage) projImage).copyLuts(imp);
+      if (method == SUM_METHOD || method == SD_METHOD) {
+        ((CompositeImage) projImage).resetDisplayRanges();
+      }
+    }
+    projImage.setOpenAsHyperStack(true);
+    IJ.showProgress(1, 1);
+  }
+
+  /**
+   * Do a running projection. Each output slice is the projection of the window of consecutive
+   * slices from the start slice to the stop slice.
+   *
+   * <p>The projection is updated incrementally as each slice enters the window: average, sum and
+   * standard deviation use running sums; max and min use a monotonic deque; median and mode use a
+   * sorted window. The slices are read in order and only those in the current window are retained
+   * so a virtual stack is not loaded into memory.
+   *
+   * @return the image plus
+   */
+  protected ImagePlus doRunningProjection() {
+    IJ.showStatus("Calculating running projection...");
+    final ImageStack stack = imp.getStack();
+    final int ptype = getPixelsType(stack);
+    if (ptype < 0) {
+      IJ.error("Z Project", "Non-RGB stack required");
+      return null;
+    }
+    final int width = imp.getWidth();
+    final int height = imp.getHeight();
+    final int size = width * height;
+    final RunningProjector projector = new RunningProjector(method, runningWindow, size);
+    final boolean floatOutput = ptype == FLOAT_TYPE || method == SUM_METHOD || method == SD_METHOD;
+
+    // Process blocks of rows in parallel
+    final int blocks = MathUtils.clip(1, height, Prefs.getThreads());
+    final int[] from = new int[blocks + 1];
+    for (int i = 1; i <= blocks; i++) {
+      from[i] = (int) ((long) i * height / blocks) * width;
+    }
+    final ExecutorService executor = blocks == 1 ? null : Executors.newFixedThreadPool(blocks);
+
+    final ImageStack output = new ImageStack(width, height);
+    final Ticker ticker = ImageJUtils.createTicker(sliceCount, 1);
+    try {
+      final int span = (runningWindow - 1) * increment;
+      for (int slice = startSlice; slice <= stopSlice; slice += increment) {
+        projector.push(toFloat(stack.getPixels(slice), ptype));
+        runBlocks(executor, blocks, block -> projector.update(from[block], from[block + 1]));
+        if (projector.isFull()) {
+          final float[] result = new float[size];
+          runBlocks(executor, blocks,
+              block -> projector.project(from[block], from[block + 1], result));
+          final ImageProcessor ip;
+          if (floatOutput) {
+            ip = new FloatProcessor(width, height, result);
+          } else {
+            ip = imp.getProcessor().createProcessor(width, height);
+            for (int i = 0; i < size; i++) {
+              ip.setf(i, result[i]);
+            }
+          }
+          output.addSlice(String.format("Slices %d-%d", slice - span, slice), ip);
+        }
+        ticker.tick();
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+    ticker.stop();
+    IJ.showProgress(1, 1);
+    return new ImagePlus(makeTitle(), output);
+  }
+
+  /**
+   * Gets the pixels type of the stack.
+   *
+   * @param stack the stack
+   * @return the pixels type (or -1 if not supported)
+   */
+  private static int getPixelsType(ImageStack stack) {
+    final ImageProcessor ip = stack.getProcessor(1);
+    if (ip instanceof ByteProcessor) {
+      return BYTE_TYPE;
+    }
+    if (ip instanceof ShortProcessor) {
+      return SHORT_TYPE;
+    }
+    if (ip instanceof FloatProcessor) {
+      return FLOAT_TYPE;
+    }
+    return -1;
+  }
+
+  /**
+   * Convert the pixels to float. Float pixels are returned unchanged.
+   *
+   * @param pixels the pixels
+   * @param ptype the pixels type
+   * @return the float pixels
+   */
+  private static float[] toFloat(Object pixels, int ptype) {
+    if (ptype == FLOAT_TYPE) {
+      return (float[]) pixels;
+    }
+    if (ptype == SHORT_TYPE) {
+      final short[] data = (short[]) pixels;
+      final float[] values = new float[data.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = data[i] & 0xffff;
+      }
+      return values;
+    }
+    final byte[] data = (byte[]) pixels;
+    final float[] values = new float[data.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = data[i] & 0xff;
+    }
+    return values;
+  }
+
+  /**
+   * Run the task for each block using the executor. If the executor is null the blocks are run
+   * sequentially.
+   *
+   * @param executor the executor
+   * @param blocks the number of blocks
+   * @param task the task
+   */
+  private static void runBlocks(@Nullable ExecutorService executor, int blocks,
+      IntConsumer task) {
+    if (executor == null || blocks == 1) {
+      for (int i = 0; i < blocks; i++) {
+        task.accept(i);
+      }
+      return;
+    }
+    final LocalList<Future<?>> futures = new LocalList<>(blocks);
+    for (int i = 0; i < blocks; i++) {
+      final int block = i;
+      futures.add(executor.submit(() -> task.accept(block)));
+    }
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+  }
+
+  /**
+   * Compute the projection of the values of a pixel.
+   */
   private interface Projector {
+    /**
+     * Compute the projection of the values.
+     *
+     * @param values the values (may be modified)
+     * @return the projection
+     */
     float value(float[] values);
   }
 
+  /**
+   * Compute the projection of the integer values of a pixel using a histogram of the values.
+   */
+  private interface HistogramProjector {
+    /**
+     * Compute the projection of the values.
+     *
+     * @param histogram the histogram of the values
+     * @param values the values
+     * @return the projection
+     */
+    float value(IntegerHistogram histogram, int[] values);
+  }
+
+  /**
+   * Compute the projection of each pixel for a row of the stack. An instance is used by a single
+   * thread.
+   */
+  private interface RowProjector {
+    /**
+     * Compute the projection of each pixel in the range.
+     *
+     * @param from the index of the first pixel (inclusive)
+     * @param to the index of the last pixel (exclusive)
+     * @param output the output
+     */
+    void project(int from, int to, float[] output);
+  }
+
+  /**
+   * Do the projection. Integer stacks use the histogram projector if provided; otherwise the
+   * double projector is used if provided, else the float projector.
+   *
+   * @param name the name
+   * @param projector the float projector
+   * @param doubleProjector the double projector
+   * @param histogramProjector the histogram projector
+   * @return the image plus
+   */
   private ImagePlus doProjection(String name, Projector projector,
-      ToDoubleFunction<double[]> doubleProjector) {
+      ToDoubleFunction<double[]> doubleProjector, HistogramProjector histogramProjector) {
     IJ.showStatus("Calculating " + name + "...");
     final ImageStack stack = imp.getStack();
     // Check not an RGB stack
@@ -171,63 +487,175 @@ public class ExtendedZProjector extends ZProjectorCopy {
       IJ.error("Z Project", "Non-RGB stack required");
       return null;
     }
-    final ImageProcessor[] slices = new ImageProcessor[sliceCount];
+    final Object[] pixels = new Object[sliceCount];
     int index = 0;
     for (int slice = startSlice; slice <= stopSlice; slice += increment) {
-      slices[index++] = stack.getProcessor(slice);
-    }
-    ImageProcessor ip2 = slices[0].duplicate();
-    ip2 = ip2.convertToFloat();
-    final int width = ip2.getWidth();
-    final int height = ip2.getHeight();
-    final int inc = Math.max(height / 30, 1);
-    if (doubleProjector != null) {
-      final double[] values = new double[sliceCount];
-      for (int y = 0, k = 0; y < height; y++) {
-        if (y % inc == 0) {
-          IJ.showProgress(y, height - 1);
-        }
-        for (int x = 0; x < width; x++, k++) {
-          for (int i = 0; i < sliceCount; i++) {
-            values[i] = slices[i].getf(k);
+      pixels[index++] = stack.getPixels(slice);
+    }
+
+    // Integer data uses a histogram if supported
+    final Supplier<RowProjector> factory;
+    if (histogramProjector != null && ptype != FLOAT_TYPE) {
+      final int bits = ptype == BYTE_TYPE ? 8 : 16;
+      factory = () -> {
+        final IntegerHistogram histogram = new IntegerHistogram(bits);
+        final int[] values = new int[sliceCount];
+        return (from, to, output) -> {
+          for (int k = from; k < to; k++) {
+            getValues(pixels, ptype, k, values);
+            histogram.add(values, values.length);
+            output[k] = histogramProjector.value(histogram, values);
+            histogram.remove(values, values.length);
           }
-          ip2.setf(k, (float) doubleProjector.applyAsDouble(values));
-        }
+        };
+      };
+    } else if (doubleProjector != null) {
+      factory = () -> {
+        final double[] values = new double[sliceCount];
+        return (from, to, output) -> {
+          for (int k = from; k < to; k++) {
+            getValues(pixels, ptype, k, values);
+            output[k] = (float) doubleProjector.applyAsDouble(values);
+          }
+        };
+      };
+    } else {
+      factory = () -> {
+        final float[] values = new float[sliceCount];
+        return (from, to, output) -> {
+          for (int k = from; k < to; k++) {
+            getValues(pixels, ptype, k, values);
+            output[k] = projector.value(values);
+          }
+        };
+      };
+    }
+
+    final int width = imp.getWidth();
+    final int height = imp.getHeight();
+    final float[] output = new float[width * height];
+    final int threadCount = MathUtils.clip(1, height, Prefs.getThreads());
+    final Ticker ticker = ImageJUtils.createTicker(height, threadCount);
+    if (threadCount == 1) {
+      final RowProjector rowProjector = factory.get();
+      for (int y = 0; y < height; y++) {
+        rowProjector.project(y * width, (y + 1) * width, output);
+        ticker.tick();
       }
     } else {
-      final float[] values = new float[sliceCount];
-      for (int y = 0, k = 0; y < height; y++) {
-        if (y % inc == 0) {
-          IJ.showProgress(y, height - 1);
-        }
-        for (int x = 0; x < width; x++, k++) {
-          for (int i = 0; i < sliceCount; i++) {
-            values[i] = slices[i].getf(k);
+      // Process rows in parallel with a projector per thread
+      final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+      final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+      final AtomicInteger nextRow = new AtomicInteger();
+      for (int i = 0; i < threadCount; i++) {
+        futures.add(executor.submit(() -> {
+          final RowProjector rowProjector = factory.get();
+          for (int y = nextRow.getAndIncrement(); y < height; y = nextRow.getAndIncrement()) {
+            rowProjector.project(y * width, (y + 1) * width, output);
+            ticker.tick();
           }
-          ip2.setf(k, projector.value(values));
-        }
+        }));
       }
+      executor.shutdown();
+      ConcurrencyUtils.waitForCompletionUnchecked(futures);
     }
-    final ImagePlus projImage = makeOutputImage(imp, (FloatProcessor) ip2, ptype);
+    final ImagePlus projImage =
+        makeOutputImage(imp, new FloatProcessor(width, height, output), ptype);
     IJ.showProgress(1, 1);
     return projImage;
   }
 
+  /**
+   * Gets the values of the pixel from each slice.
+   *
+   * @param pixels the pixels of each slice
+   * @param ptype the pixels type
+   * @param index the pixel index
+   * @param values the values
+   */
+  private static void getValues(Object[] pixels, int ptype, int index, float[] values) {
+    if (ptype == FLOAT_TYPE) {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = ((float[]) pixels[i])[index];
+      }
+    } else if (ptype == SHORT_TYPE) {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = ((short[]) pixels[i])[index] & 0xffff;
+      }
+    } else {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = ((byte[]) pixels[i])[index] & 0xff;
+      }
+    }
+  }
+
+  /**
+   * Gets the values of the pixel from each slice.
+   *
+   * @param pixels the pixels of each slice
+   * @param ptype the pixels type
+   * @param index the pixel index
+   * @param values the values
+   */
+  private static void getValues(Object[] pixels, int ptype, int index, double[] values) {
+    if (ptype == FLOAT_TYPE) {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = ((float[]) pixels[i])[index];
+      }
+    } else if (ptype == SHORT_TYPE) {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = ((short[]) pixels[i])[index] & 0xffff;
+      }
+    } else {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = ((byte[]) pixels[i])[index] & 0xff;
+      }
+    }
+  }
+
+  /**
+   * Gets the values of the pixel from each slice of an integer stack.
+   *
+   * @param pixels the pixels of each slice
+   * @param ptype the pixels type
+   * @param index the pixel index
+   * @param values the values
+   */
+  private static void getValues(Object[] pixels, int ptype, int index, int[] values) {
+    if (ptype == SHORT_TYPE) {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = ((short[]) pixels[i])[index] & 0xffff;
+      }
+    } else {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = ((byte[]) pixels[i])[index] & 0xff;
+      }
+    }
+  }
+
   /**
    * Do mode projection.
    *
+   * <p>The mode of 8-bit and 16-bit stacks is computed using a histogram of the values.
+   *
    * @param ignoreZero the ignore zero flag
    * @return the image plus
    */
   protected ImagePlus doModeProjection(final boolean ignoreZero) {
-    return doProjection("mode", values -> getMode(values, ignoreZero), null);
+    return doProjection("mode", values -> getMode(values, ignoreZero), null,
+        (histogram, values) -> histogram.mode(values, values.length, ignoreZero));
   }
 
-  /** {@inheritDoc} */
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The median of 8-bit and 16-bit stacks is computed using a histogram of the values.
+   */
   @Override
   protected ImagePlus doMedianProjection() {
-    // Override to change the method for accessing pixel values to getf()
-    return doProjection("median", null, Median.withDefaults()::evaluate);
+    // Override to change the method for accessing pixel values
+    return doProjection("median", null, Median.withDefaults()::evaluate,
+        (histogram, values) -> (float) histogram.median());
   }
 
   /**
@@ -0,0 +1,187 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.ext.plugin;
+
+/**
+ * A histogram of unsigned integer values (8-bit or 16-bit) that supports adding and removing
+ * values. Used to compute the median and mode of a set of values without sorting.
+ *
+ * <p>The counts are stored at full resolution and in coarse bins of the high bits of the value. The
+ * k-th smallest value is found by scanning the coarse bins and then the values within a single
+ * coarse bin, so the cost is proportional to the square root of the histogram size.
+ */
+final class IntegerHistogram {
+  /** The shift to convert a value to a coarse bin. */
+  private final int shift;
+  /** The count of each value. */
+  private final int[] counts;
+  /** The count of each coarse bin. */
+  private final int[] coarse;
+  /** The number of values. */
+  private int size;
+
+  /**
+   * Create an instance.
+   *
+   * @param bits the number of bits of the values
+   * @throws IllegalArgumentException if the bits are not in the range [1, 16]
+   */
+  IntegerHistogram(int bits) {
+    if (bits < 1 || bits > 16) {
+      throw new IllegalArgumentException("Unsupported bits: " + bits);
+    }
+    shift = bits / 2;
+    counts = new int[1 << bits];
+    coarse = new int[1 << (bits - shift)];
+  }
+
+  /**
+   * Add the value.
+   *
+   * @param value the value
+   */
+  void add(int value) {
+    counts[value]++;
+    coarse[value >>> shift]++;
+    size++;
+  }
+
+  /**
+   * Remove the value. The value must have been added.
+   *
+   * @param value the value
+   */
+  void remove(int value) {
+    counts[value]--;
+    coarse[value >>> shift]--;
+    size--;
+  }
+
+  /**
+   * Add the values.
+   *
+   * @param values the values
+   * @param length the number of values
+   */
+  void add(int[] values, int length) {
+    for (int i = 0; i < length; i++) {
+      add(values[i]);
+    }
+  }
+
+  /**
+   * Remove the values. The values must have been added.
+   *
+   * @param values the values
+   * @param length the number of values
+   */
+  void remove(int[] values, int length) {
+    for (int i = 0; i < length; i++) {
+      remove(values[i]);
+    }
+  }
+
+  /**
+   * Gets the number of values.
+   *
+   * @return the size
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Gets the count of the value.
+   *
+   * @param value the value
+   * @return the count
+   */
+  int getCount(int value) {
+    return counts[value];
+  }
+
+  /**
+   * Gets the k-th smallest value (0-based).
+   *
+   * @param k the rank
+   * @return the value
+   */
+  int get(int k) {
+    int bin = 0;
+    while (k >= coarse[bin]) {
+      k -= coarse[bin];
+      bin++;
+    }
+    int value = bin << shift;
+    while (k >= counts[value]) {
+      k -= counts[value];
+      value++;
+    }
+    return value;
+  }
+
+  /**
+   * Gets the median. For an even number of values this is the mean of the two middle values.
+   *
+   * @return the median (or NaN if empty)
+   */
+  double median() {
+    if (size == 0) {
+      return Double.NaN;
+    }
+    final int half = size >>> 1;
+    if ((size & 1) == 1) {
+      return get(half);
+    }
+    return ((double) get(half - 1) + get(half)) / 2;
+  }
+
+  /**
+   * Gets the mode of the values. The values must all be in the histogram; only their counts are
+   * checked so any value may be repeated. Returns the mode with the highest value in the event of a
+   * tie.
+   *
+   * @param values the values
+   * @param length the number of values
+   * @param ignoreZero set to true to ignore zero. If no values are above zero the return is zero.
+   * @return the mode
+   */
+  int mode(int[] values, int length, boolean ignoreZero) {
+    int mode = 0;
+    int modeCount = 0;
+    for (int i = 0; i < length; i++) {
+      final int value = values[i];
+      if (value == 0 && ignoreZero) {
+        continue;
+      }
+      final int count = counts[value];
+      if (modeCount < count || (modeCount == count && mode < value)) {
+        modeCount = count;
+        mode = value;
+      }
+    }
+    return mode;
+  }
+}
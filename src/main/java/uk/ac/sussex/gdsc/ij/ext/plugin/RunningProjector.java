@@ -0,0 +1,433 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.ext.plugin;
+
+import java.util.Arrays;
+
+/**
+ * Compute a projection of each pixel over a running window of slices. The projection is updated
+ * incrementally as each slice is added to the window and the oldest slice leaves the window.
+ *
+ * <ul>
+ * <li>Average and sum use a running sum.
+ * <li>Standard deviation uses running sums of the values shifted by a value from the window. The
+ * shift is updated and the sums recomputed each time the entire window has been replaced.
+ * <li>Max and min use a monotonic deque of the slices in the window.
+ * <li>Median and mode use a sorted array of the values in the window.
+ * </ul>
+ *
+ * <p>Only the slices in the current window are retained. A slice is added using
+ * {@link #push(float[])}; the pixels are then updated using {@link #update(int, int)} which may be
+ * called concurrently for disjoint ranges of pixels. When the window is full the projection can
+ * be computed using {@link #project(int, int, float[])}.
+ */
+final class RunningProjector {
+  /** The projection method. */
+  private final int method;
+  /** The window size. */
+  private final int window;
+  /** The slices in the window. The slice with sequence number n is at index n % window. */
+  private final float[][] slices;
+  /** The number of slices added. */
+  private int count;
+  /** The slice that was added. */
+  private float[] incoming;
+  /** The slice that left the window (or null). */
+  private float[] outgoing;
+
+  /** The running sum of the values (shifted for the standard deviation). */
+  private double[] sum;
+  /** The running sum of the squared shifted values. */
+  private double[] sum2;
+  /** The shift subtracted from the values for the standard deviation. */
+  private float[] shift;
+
+  /** The deque of slice sequence numbers. Each pixel has a circular buffer of size window. */
+  private int[] deque;
+  /** The head of the deque for each pixel. */
+  private int[] head;
+  /** The length of the deque for each pixel. */
+  private int[] length;
+
+  /** The sorted values. Each pixel has a sorted array of size window. */
+  private float[] sorted;
+
+  /**
+   * Create an instance.
+   *
+   * @param method the projection method
+   * @param window the window size
+   * @param size the number of pixels
+   * @throws IllegalArgumentException if the method is unknown or the window is below 1
+   */
+  RunningProjector(int method, int window, int size) {
+    if (window < 1) {
+      throw new IllegalArgumentException("Window must be strictly positive: " + window);
+    }
+    this.method = method;
+    this.window = window;
+    slices = new float[window][];
+    switch (method) {
+      case ZProjectorCopy.AVG_METHOD:
+      case ZProjectorCopy.SUM_METHOD:
+        sum = new double[size];
+        break;
+      case ZProjectorCopy.SD_METHOD:
+        sum = new double[size];
+        sum2 = new double[size];
+        shift = new float[size];
+        break;
+      case ZProjectorCopy.MAX_METHOD:
+      case ZProjectorCopy.MIN_METHOD:
+        deque = new int[size * window];
+        head = new int[size];
+        length = new int[size];
+        break;
+      case ZProjectorCopy.MEDIAN_METHOD:
+      case ExtendedZProjector.MODE_METHOD:
+      case ExtendedZProjector.MODE_IGNORE_ZERO_METHOD:
+        sorted = new float[size * window];
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown method: " + method);
+    }
+  }
+
+  /**
+   * Add the slice to the window. The values must not be modified while in the window.
+   *
+   * <p>This must be followed by a call to {@link #update(int, int)} for all the pixels.
+   *
+   * @param values the values
+   */
+  void push(float[] values) {
+    final int index = count % window;
+    outgoing = count >= window ? slices[index] : null;
+    slices[index] = values;
+    incoming = values;
+    count++;
+  }
+
+  /**
+   * Update the pixels in the range using the last slice added to the window.
+   *
+   * @param from the index of the first pixel (inclusive)
+   * @param to the index of the last pixel (exclusive)
+   */
+  void update(int from, int to) {
+    switch (method) {
+      case ZProjectorCopy.AVG_METHOD:
+      case ZProjectorCopy.SUM_METHOD:
+        updateSum(from, to);
+        break;
+      case ZProjectorCopy.SD_METHOD:
+        updateShiftedSums(from, to);
+        break;
+      case ZProjectorCopy.MAX_METHOD:
+      case ZProjectorCopy.MIN_METHOD:
+        updateDeque(from, to, method == ZProjectorCopy.MAX_METHOD);
+        break;
+      default:
+        updateSorted(from, to);
+        break;
+    }
+  }
+
+  /**
+   * Checks if the window is full.
+   *
+   * @return true if full
+   */
+  boolean isFull() {
+    return count >= window;
+  }
+
+  /**
+   * Compute the projection of the pixels in the range. The window must be full.
+   *
+   * @param from the index of the first pixel (inclusive)
+   * @param to the index of the last pixel (exclusive)
+   * @param output the output
+   */
+  void project(int from, int to, float[] output) {
+    switch (method) {
+      case ZProjectorCopy.AVG_METHOD:
+        for (int i = from; i < to; i++) {
+          output[i] = (float) (sum[i] / window);
+        }
+        break;
+      case ZProjectorCopy.SUM_METHOD:
+        for (int i = from; i < to; i++) {
+          output[i] = (float) sum[i];
+        }
+        break;
+      case ZProjectorCopy.SD_METHOD:
+        projectStandardDeviation(from, to, output);
+        break;
+      case ZProjectorCopy.MAX_METHOD:
+        projectDeque(from, to, output, -Float.MAX_VALUE);
+        break;
+      case ZProjectorCopy.MIN_METHOD:
+        projectDeque(from, to, output, Float.MAX_VALUE);
+        break;
+      case ZProjectorCopy.MEDIAN_METHOD:
+        for (int i = from; i < to; i++) {
+          output[i] = median(i * window);
+        }
+        break;
+      default:
+        final boolean ignoreBelowZero = method == ExtendedZProjector.MODE_IGNORE_ZERO_METHOD;
+        for (int i = from; i < to; i++) {
+          output[i] = mode(i * window, ignoreBelowZero);
+        }
+        break;
+    }
+  }
+
+  private void updateSum(int from, int to) {
+    final float[] in = incoming;
+    final float[] out = outgoing;
+    if (out == null) {
+      for (int i = from; i < to; i++) {
+        sum[i] += in[i];
+      }
+    } else {
+      for (int i = from; i < to; i++) {
+        sum[i] += (double) in[i] - out[i];
+      }
+    }
+  }
+
+  /**
+   * Update the sum and sum of squares of the values shifted by a value from the window. The shift
+   * avoids the loss of precision of the difference of the sum of squares and the squared sum when
+   * the variance is small relative to the mean. The sums are exact for integer data.
+   *
+   * <p>The data may drift away from the shift as the window slides so the shift is set to the
+   * incoming value and the sums are recomputed from the window each time the entire window has
+   * been replaced.
+   *
+   * @param from the index of the first pixel (inclusive)
+   * @param to the index of the last pixel (exclusive)
+   */
+  private void updateShiftedSums(int from, int to) {
+    final float[] in = incoming;
+    final float[] out = outgoing;
+    if (count == 1) {
+      // The sums are zero
+      System.arraycopy(in, from, shift, from, to - from);
+    } else if (out != null && count % window == 0) {
+      for (int i = from; i < to; i++) {
+        final double k = in[i];
+        double s1 = 0;
+        double s2 = 0;
+        for (final float[] slice : slices) {
+          final double v = slice[i] - k;
+          s1 += v;
+          s2 += v * v;
+        }
+        shift[i] = in[i];
+        sum[i] = s1;
+        sum2[i] = s2;
+      }
+    } else {
+      for (int i = from; i < to; i++) {
+        final double v = (double) in[i] - shift[i];
+        sum[i] += v;
+        sum2[i] += v * v;
+      }
+      if (out != null) {
+        for (int i = from; i < to; i++) {
+          final double v = (double) out[i] - shift[i];
+          sum[i] -= v;
+          sum2[i] -= v * v;
+        }
+      }
+    }
+  }
+
+  private void projectStandardDeviation(int from, int to, float[] output) {
+    // Sample standard deviation as the ZProjector
+    final double n = window;
+    for (int i = from; i < to; i++) {
+      if (window > 1) {
+        final double ss = sum2[i] - sum[i] * sum[i] / n;
+        output[i] = ss > 0.0 ? (float) Math.sqrt(ss / (n - 1.0)) : 0f;
+      } else {
+        output[i] = 0f;
+      }
+    }
+  }
+
+  /**
+   * Update the deque. The deque holds the sequence numbers of slices in the window with values in
+   * decreasing order for max (increasing order for min) so the front is the current extreme. NaN
+   * values are ignored.
+   *
+   * @param from the index of the first pixel (inclusive)
+   * @param to the index of the last pixel (exclusive)
+   * @param max true for the max
+   */
+  private void updateDeque(int from, int to, boolean max) {
+    final int seq = count - 1;
+    final int expired = seq - window;
+    final float[] in = incoming;
+    for (int i = from; i < to; i++) {
+      final int base = i * window;
+      int h = head[i];
+      int n = length[i];
+      // Remove the slice that has left the window
+      if (n != 0 && deque[base + h] == expired) {
+        h = next(h);
+        n--;
+      }
+      final float v = in[i];
+      if (v == v) {
+        // Remove values dominated by the new value
+        while (n != 0) {
+          final int tail = base + (h + n - 1) % window;
+          final float u = slices[deque[tail] % window][i];
+          if (max ? u > v : u < v) {
+            break;
+          }
+          n--;
+        }
+        deque[base + (h + n) % window] = seq;
+        n++;
+      }
+      head[i] = h;
+      length[i] = n;
+    }
+  }
+
+  private int next(int index) {
+    final int i = index + 1;
+    return i == window ? 0 : i;
+  }
+
+  private void projectDeque(int from, int to, float[] output, float empty) {
+    for (int i = from; i < to; i++) {
+      output[i] = length[i] == 0 ? empty : slices[deque[i * window + head[i]] % window][i];
+    }
+  }
+
+  /**
+   * Update the sorted values. The values are ordered using {@link Float#compare(float, float)} so
+   * NaN values are at the end.
+   *
+   * @param from the index of the first pixel (inclusive)
+   * @param to the index of the last pixel (exclusive)
+   */
+  private void updateSorted(int from, int to) {
+    final float[] in = incoming;
+    final float[] out = outgoing;
+    // Number of values before the update
+    final int n = Math.min(count - 1, window);
+    for (int i = from; i < to; i++) {
+      final int base = i * window;
+      int end = base + n;
+      if (out != null) {
+        // Remove the outgoing value
+        final int index = Arrays.binarySearch(sorted, base, end, out[i]);
+        end--;
+        System.arraycopy(sorted, index + 1, sorted, index, end - index);
+      }
+      // Insert the incoming value
+      final float v = in[i];
+      int index = Arrays.binarySearch(sorted, base, end, v);
+      if (index < 0) {
+        index = ~index;
+      }
+      System.arraycopy(sorted, index, sorted, index + 1, end - index);
+      sorted[index] = v;
+    }
+  }
+
+  /**
+   * Gets the median of the sorted values. This is NaN if any value is NaN.
+   *
+   * @param base the base index of the pixel values
+   * @return the median
+   */
+  private float median(int base) {
+    if (Float.isNaN(sorted[base + window - 1])) {
+      return Float.NaN;
+    }
+    final int half = window >>> 1;
+    if ((window & 1) == 1) {
+      return sorted[base + half];
+    }
+    return (float) (((double) sorted[base + half - 1] + sorted[base + half]) / 2);
+  }
+
+  /**
+   * Gets the mode of the sorted values. Return the mode with the highest value in the event of a
+   * tie. NaN values are ignored.
+   *
+   * @param base the base index of the pixel values
+   * @param ignoreBelowZero Ignore all values less than or equal to zero. If no values are above
+   *        zero the return is zero (not NaN).
+   * @return the mode
+   * @see ExtendedZProjector#mode(float[], boolean)
+   */
+  private float mode(int base, boolean ignoreBelowZero) {
+    int end = base + window;
+    while (end > base && Float.isNaN(sorted[end - 1])) {
+      end--;
+    }
+    if (end == base) {
+      return Float.NaN;
+    }
+    int index = base;
+    if (ignoreBelowZero) {
+      while (index < end && sorted[index] <= 0) {
+        index++;
+      }
+      if (index == end) {
+        return 0;
+      }
+    }
+    int modeCount = 0;
+    float mode = 0;
+    int currentCount = 1;
+    float currentValue = sorted[index];
+    while (++index < end) {
+      if (sorted[index] != currentValue) {
+        if (modeCount <= currentCount) {
+          modeCount = currentCount;
+          mode = currentValue;
+        }
+        currentCount = 1;
+      } else {
+        currentCount++;
+      }
+      currentValue = sorted[index];
+    }
+    if (modeCount <= currentCount) {
+      mode = currentValue;
+    }
+    return mode;
+  }
+}
@@ -232,6 +232,7 @@ public class ZProjectorCopy implements PlugIn {
     setStopSlice((int) gd.getNextNumber());
     method = gd.getNextChoiceIndex();
     Prefs.set(METHOD_KEY, method);
+    readControlDialog(gd);
     if (isHyperstack) {
       allTimeFrames = imp.getNFrames() > 1 && imp.getNSlices() > 1 && gd.getNextBoolean();
       doHyperStackProjection(allTimeFrames);
@@ -324,6 +325,16 @@ public class ZProjectorCopy implements PlugIn {
     return gd;
   }
 
+  /**
+   * Read additional projection parameters from the control dialog. Called after the start slice,
+   * stop slice and method have been read.
+   *
+   * @param gd the dialog
+   */
+  protected void readControlDialog(GenericDialog gd) {
+    // Nothing to read
+  }
+
   /** Performs actual projection using specified method. */
   public void doProjection() {
     if (imp == null) {
@@ -26,6 +26,7 @@ package uk.ac.sussex.gdsc.ij.ext.plugin.filter;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.plugin.ContrastEnhancer;
@@ -40,8 +41,17 @@ import java.awt.Checkbox;
 import java.awt.Rectangle;
 import java.awt.TextField;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import uk.ac.sussex.gdsc.core.annotation.Nullable;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 
 /**
  * This plug-in filter implements the Difference of Gaussians method for image enhancement. The
@@ -54,6 +64,9 @@ import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
  *
  * <p>Preview is supported and the two Gaussian filtered images are cached to avoid recomputation if
  * unchanged.
+ *
+ * <p>Static methods are provided to filter all the slices of a stack concurrently. These compute
+ * both Gaussian blurs in a single separable pass using direct convolution.
  */
 public class DifferenceOfGaussians extends GaussianBlur {
 
@@ -388,6 +401,314 @@ public class DifferenceOfGaussians extends GaussianBlur {
     differenceOfGaussians(ip, ip1, ip2);
   }
 
+  /**
+   * Perform a Difference of Gaussians (filteredImage2 - filteredImage1) on each slice of the stack.
+   * Sigma1 should be greater than sigma2. A sigma of zero disables the corresponding blur.
+   *
+   * <p>The slices are filtered concurrently. If there are more threads than slices then each slice
+   * is divided into blocks of rows. The two Gaussian blurs are computed in a shared separable pass
+   * so each row of the input is read once. The input stack is not modified. If a region is
+   * specified then pixels outside the region are the unfiltered input.
+   *
+   * @param stack the stack (8, 16 or 32-bit)
+   * @param sigma1 the sigma 1
+   * @param sigma2 the sigma 2
+   * @param roi the region to filter (can be null)
+   * @param threads the number of threads
+   * @return the filtered float stack
+   * @throws IllegalArgumentException if the stack is RGB
+   */
+  public static ImageStack run(ImageStack stack, double sigma1, double sigma2,
+      @Nullable Rectangle roi, int threads) {
+    return filterStack(stack, sigma1, sigma2, roi, threads, true);
+  }
+
+  /**
+   * Perform a Gaussian blur on each slice of the stack.
+   *
+   * <p>The slices are filtered concurrently. If there are more threads than slices then each slice
+   * is divided into blocks of rows. The input stack is not modified. If a region is specified then
+   * pixels outside the region are the unfiltered input.
+   *
+   * @param stack the stack (8, 16 or 32-bit)
+   * @param sigma the Gaussian width
+   * @param roi the region to filter (can be null)
+   * @param threads the number of threads
+   * @return the filtered float stack
+   * @throws IllegalArgumentException if the stack is RGB
+   */
+  public static ImageStack blur(ImageStack stack, double sigma, @Nullable Rectangle roi,
+      int threads) {
+    return filterStack(stack, 0, sigma, roi, threads, false);
+  }
+
+  /**
+   * Filter each slice of the stack.
+   *
+   * @param stack the stack
+   * @param sigma1 the sigma 1
+   * @param sigma2 the sigma 2
+   * @param roi the region to filter (can be null)
+   * @param threads the number of threads
+   * @param difference set to true to compute the difference (blur2 - blur1); otherwise blur2
+   * @return the filtered float stack
+   */
+  private static ImageStack filterStack(ImageStack stack, double sigma1, double sigma2,
+      @Nullable Rectangle roi, int threads, boolean difference) {
+    if (stack.getBitDepth() == 24) {
+      throw new IllegalArgumentException("RGB stacks are not supported");
+    }
+    final int width = stack.getWidth();
+    final int height = stack.getHeight();
+    final Rectangle imageBounds = new Rectangle(width, height);
+    Rectangle bounds = (roi == null) ? imageBounds : roi.intersection(imageBounds);
+    if (bounds.isEmpty()) {
+      bounds = new Rectangle();
+    }
+    // The slices are filtered as float data so use the float accuracy for all input
+    final double accuracy = 0.0002;
+    final float[] kernel1 = makeKernel(difference ? sigma1 : 0, accuracy);
+    final float[] kernel2 = makeKernel(sigma2, accuracy);
+
+    final Rectangle region = bounds;
+    final int size = stack.getSize();
+    final ImageStack result = new ImageStack(width, height, size);
+    for (int slice = 1; slice <= size; slice++) {
+      result.setPixels(new float[width * height], slice);
+    }
+    // Divide each slice into blocks of rows when there are more threads than slices
+    final int blocks = MathUtils.clip(1, Math.max(1, region.height), (threads + size - 1) / size);
+    final int tasks = size * blocks;
+    final int threadCount = MathUtils.clip(1, tasks, threads);
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+    final AtomicInteger nextTask = new AtomicInteger();
+    for (int i = 0; i < threadCount; i++) {
+      futures.add(executor.submit(() -> {
+        // Scratch buffers are allocated once per thread
+        final StackFilter filter =
+            new StackFilter(width, height, region, blocks, kernel1, kernel2, difference);
+        for (int task = nextTask.getAndIncrement(); task < tasks;
+            task = nextTask.getAndIncrement()) {
+          final int slice = task / blocks + 1;
+          final int block = task % blocks;
+          // Note: Thread-safe as each task writes a different block of rows
+          filter.filter(stack.getPixels(slice), (float[]) result.getPixels(slice), block);
+        }
+      }));
+    }
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+    return result;
+  }
+
+  /**
+   * Make a normalised Gaussian kernel. The kernel is symmetric and only the centre and the positive
+   * half are returned. The kernel is truncated when the Gaussian falls below the given accuracy
+   * relative to the peak. A sigma of zero returns the identity kernel.
+   *
+   * @param sigma the sigma
+   * @param accuracy the accuracy
+   * @return the kernel
+   */
+  @VisibleForTesting
+  static float[] makeKernel(double sigma, double accuracy) {
+    if (!(sigma > 0)) {
+      return new float[] {1};
+    }
+    final int radius = (int) Math.ceil(sigma * Math.sqrt(-2 * Math.log(accuracy)));
+    final double[] g = new double[radius + 1];
+    final double f = -0.5 / (sigma * sigma);
+    double sum = g[0] = 1;
+    for (int i = 1; i <= radius; i++) {
+      g[i] = Math.exp(f * i * i);
+      sum += 2 * g[i];
+    }
+    final float[] kernel = new float[radius + 1];
+    for (int i = 0; i <= radius; i++) {
+      kernel[i] = (float) (g[i] / sum);
+    }
+    return kernel;
+  }
+
+  /**
+   * Filter slices using a separable Gaussian convolution with two kernels. Pixels beyond the image
+   * edge are taken as the edge pixel.
+   *
+   * <p>The first kernel is only used for the difference.
+   *
+   * <p>The region is filtered in blocks of rows. Each block blurs in the x direction all the rows
+   * within the kernel radius of the block.
+   *
+   * <p>This class is not thread-safe. The scratch buffers are reused for each block.
+   */
+  private static class StackFilter {
+    final int width;
+    final int height;
+    final Rectangle bounds;
+    final boolean partial;
+    final int blocks;
+    final float[] kernel1;
+    final float[] kernel2;
+    final boolean difference;
+    final int radius;
+    final float[] row;
+    final float[] buffer1;
+    final float[] buffer2;
+    final float[] out1;
+    final float[] out2;
+    /** The first row of the current block blurred in the x direction. */
+    int ya;
+    /** The row after the last row of the current block blurred in the x direction. */
+    int yb;
+
+    StackFilter(int width, int height, Rectangle bounds, int blocks, float[] kernel1,
+        float[] kernel2, boolean difference) {
+      this.width = width;
+      this.height = height;
+      this.bounds = bounds;
+      partial = bounds.width != width || bounds.height != height;
+      this.blocks = blocks;
+      this.kernel1 = kernel1;
+      this.kernel2 = kernel2;
+      this.difference = difference;
+      // Rows outside the block are required for the y direction
+      radius = Math.max(kernel1.length, kernel2.length) - 1;
+      final int blockRows = (bounds.height + blocks - 1) / blocks;
+      row = new float[width];
+      buffer2 = new float[bounds.width * Math.min(height, blockRows + 2 * radius)];
+      // The first blur is only required for the difference
+      buffer1 = difference ? new float[buffer2.length] : null;
+      out1 = difference ? new float[bounds.width] : null;
+      out2 = new float[bounds.width];
+    }
+
+    /**
+     * Filter the block of rows of the pixels.
+     *
+     * @param pixels the pixels
+     * @param result the result
+     * @param block the block
+     */
+    void filter(Object pixels, float[] result, int block) {
+      final int y0 = bounds.y + (int) ((long) bounds.height * block / blocks);
+      final int y1 = bounds.y + (int) ((long) bounds.height * (block + 1) / blocks);
+      if (partial) {
+        // Initialise with the unfiltered input. The first and last blocks include the rows
+        // outside the region.
+        final int from = (block == 0) ? 0 : y0;
+        final int to = (block == blocks - 1) ? height : y1;
+        for (int y = from; y < to; y++) {
+          readRow(pixels, y);
+          System.arraycopy(row, 0, result, y * width, width);
+        }
+      }
+
+      // Blur rows with the kernels (each row is read once)
+      ya = Math.max(0, y0 - radius);
+      yb = Math.min(height, y1 + radius);
+      final int w = bounds.width;
+      for (int y = ya, offset = 0; y < yb; y++, offset += w) {
+        readRow(pixels, y);
+        if (difference) {
+          convolveRow(kernel1, buffer1, offset);
+        }
+        convolveRow(kernel2, buffer2, offset);
+      }
+
+      // Blur columns
+      for (int y = y0; y < y1; y++) {
+        convolveColumns(kernel2, buffer2, y, out2);
+        final int index = y * width + bounds.x;
+        if (difference) {
+          convolveColumns(kernel1, buffer1, y, out1);
+          for (int i = 0; i < w; i++) {
+            result[index + i] = out2[i] - out1[i];
+          }
+        } else {
+          System.arraycopy(out2, 0, result, index, w);
+        }
+      }
+    }
+
+    /**
+     * Read the row of pixels into the row buffer.
+     *
+     * @param pixels the pixels
+     * @param y the row
+     */
+    private void readRow(Object pixels, int y) {
+      final int index = y * width;
+      if (pixels instanceof float[]) {
+        System.arraycopy(pixels, index, row, 0, width);
+      } else if (pixels instanceof short[]) {
+        final short[] data = (short[]) pixels;
+        for (int x = 0; x < width; x++) {
+          row[x] = data[index + x] & 0xffff;
+        }
+      } else {
+        final byte[] data = (byte[]) pixels;
+        for (int x = 0; x < width; x++) {
+          row[x] = data[index + x] & 0xff;
+        }
+      }
+    }
+
+    /**
+     * Convolve the row buffer within the region bounds.
+     *
+     * @param kernel the kernel
+     * @param out the output
+     * @param offset the output offset
+     */
+    private void convolveRow(float[] kernel, float[] out, int offset) {
+      final int radius = kernel.length - 1;
+      final float k0 = kernel[0];
+      final int upper = width - 1;
+      for (int i = 0, x = bounds.x; i < bounds.width; i++, x++) {
+        float sum = k0 * row[x];
+        if (x - radius >= 0 && x + radius <= upper) {
+          for (int k = 1; k <= radius; k++) {
+            sum += kernel[k] * (row[x - k] + row[x + k]);
+          }
+        } else {
+          for (int k = 1; k <= radius; k++) {
+            sum += kernel[k] * (row[Math.max(0, x - k)] + row[Math.min(upper, x + k)]);
+          }
+        }
+        out[offset + i] = sum;
+      }
+    }
+
+    /**
+     * Convolve the columns of the row-blurred buffer to create the output row.
+     *
+     * @param kernel the kernel
+     * @param buffer the row-blurred buffer
+     * @param y the output row
+     * @param out the output
+     */
+    private void convolveColumns(float[] kernel, float[] buffer, int y, float[] out) {
+      final int w = bounds.width;
+      final int radius = kernel.length - 1;
+      final float k0 = kernel[0];
+      final int centre = (y - ya) * w;
+      for (int i = 0; i < w; i++) {
+        out[i] = k0 * buffer[centre + i];
+      }
+      for (int k = 1; k <= radius; k++) {
+        // Rows are clamped to the image edge. The buffer contains all rows within the
+        // kernel radius of the block or up to the image edge.
+        final int above = (Math.max(ya, y - k) - ya) * w;
+        final int below = (Math.min(yb - 1, y + k) - ya) * w;
+        final float kk = kernel[k];
+        for (int i = 0; i < w; i++) {
+          out[i] += kk * (buffer[above + i] + buffer[below + i]);
+        }
+      }
+    }
+  }
+
   /**
    * Subtract one image from the other (ip2 - ip1) and store in the result processor.
    *
@@ -272,31 +272,36 @@ public class MaskObjectDimensions_PlugIn implements PlugInFilter {
       max--;
     }
 
-    // For each object
-    MaskObject[] objects = new MaskObject[max - min + 1];
-    for (int object = min; object <= max; object++) {
-      // Find the Centre-of-Mass
-      double cx = 0;
-      double cy = 0;
-      double cz = 0;
-      int count = 0;
-      for (int z = 0, i = 0; z < maxz; z++) {
-        for (int y = 0; y < maxy; y++) {
-          for (int x = 0; x < maxx; x++, i++) {
-            if (image[i] == object) {
-              cx += x;
-              cy += y;
-              cz += z;
-              count++;
-            }
+    // Find the Centre-of-Mass of each object in a single pass
+    final int nObjects = max - min + 1;
+    final double[] sumx = new double[nObjects];
+    final double[] sumy = new double[nObjects];
+    final double[] sumz = new double[nObjects];
+    final int[] counts = new int[nObjects];
+    for (int z = 0, i = 0; z < maxz; z++) {
+      for (int y = 0; y < maxy; y++) {
+        for (int x = 0; x < maxx; x++, i++) {
+          final int object = image[i] - min;
+          if (object >= 0) {
+            sumx[object] += x;
+            sumy[object] += y;
+            sumz[object] += z;
+            counts[object]++;
           }
         }
       }
+    }
+
+    // For each object
+    MaskObject[] objects = new MaskObject[nObjects];
+    for (int object = min; object <= max; object++) {
+      final int j = object - min;
+      final int count = counts[j];
       // Set 0.5 as the centre of the voxel mass
-      cx = cx / count + 0.5;
-      cy = cy / count + 0.5;
-      cz = cz / count + 0.5;
-      objects[object - min] = new MaskObject(cx, cy, cz, count, object);
+      final double cx = sumx[j] / count + 0.5;
+      final double cy = sumy[j] / count + 0.5;
+      final double cz = sumz[j] / count + 0.5;
+      objects[j] = new MaskObject(cx, cy, cz, count, object);
     }
 
     // Iteratively join closest objects
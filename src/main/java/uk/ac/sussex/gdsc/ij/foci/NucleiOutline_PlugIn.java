@@ -491,7 +491,9 @@ public class NucleiOutline_PlugIn implements PlugIn {
       if (previewSettings.settings.getErosion() > 0) {
         final int[] mask = oa.getObjectMask().clone();
         final ColorProcessor cp = new ColorProcessor(oa.getWidth(), oa.getHeight(), mask);
-        new ObjectEroder(cp, true).erode(previewSettings.settings.getErosion());
+        final ObjectEroder eroder = new ObjectEroder(cp, true);
+        eroder.setThreads(Prefs.getThreads());
+        eroder.erode(previewSettings.settings.getErosion());
         // Convert non-zero pixels to a byte mask
         final ByteProcessor bp = new ByteProcessor(oa.getWidth(), oa.getHeight());
         for (int i = 0; i < mask.length; i++) {
@@ -508,6 +510,7 @@ public class NucleiOutline_PlugIn implements PlugIn {
         final int[] mask = oa.getObjectMask().clone();
         final ColorProcessor cp = new ColorProcessor(oa.getWidth(), oa.getHeight(), mask);
         final ObjectExpander expander = new ObjectExpander(cp);
+        expander.setThreads(Prefs.getThreads());
         expander.expand(previewSettings.settings.getExpansionInner());
         final int[] innerMask = mask.clone();
         expander.expand(previewSettings.settings.getExpansion());
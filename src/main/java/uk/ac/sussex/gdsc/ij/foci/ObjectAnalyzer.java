@@ -24,6 +24,7 @@
 
 package uk.ac.sussex.gdsc.ij.foci;
 
+import ij.Prefs;
 import ij.gui.Roi;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
@@ -32,31 +33,19 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import java.util.Arrays;
 import uk.ac.sussex.gdsc.core.ij.gui.ObjectOutliner;
-import uk.ac.sussex.gdsc.core.utils.MemoryUtils;
 
 /**
  * Find objects defined by contiguous pixels of the same value.
  */
 public class ObjectAnalyzer {
 
-  /** The x-direction offsets for search, arranged as 4-connected then 8-connected. */
-  private static final int[] DIR_X_OFFSET = {0, 1, 0, -1, 1, 1, -1, -1};
-  /** The y-direction offsets for search, arranged as 4-connected then 8-connected. */
-  private static final int[] DIR_Y_OFFSET = {-1, 0, 1, 0, -1, 1, 1, -1};
-
   private final ImageProcessor ip;
   private boolean eightConnected;
   private int[] objectMask;
+  private ObjectIndex objectIndex;
   private int maxObject;
   private int minObjectSize;
 
-  private int maxx;
-  private int xlimit;
-  private int ylimit;
-
-  /** The offset table using 4-connected then the remaining 8-connected directions. */
-  private int[] offset;
-
   /**
    * Define the object centre.
    */
@@ -160,6 +149,16 @@ public class ObjectAnalyzer {
     return maxObject;
   }
 
+  /**
+   * Gets the run-length encoded index of the pixels of each object.
+   *
+   * @return the object index
+   */
+  public ObjectIndex getObjectIndex() {
+    analyseObjects();
+    return objectIndex;
+  }
+
   /**
    * Analyse objects.
    */
@@ -174,152 +173,12 @@ public class ObjectAnalyzer {
     }
 
     // Perform a search for objects.
-    // Expand any non-zero pixel value into all 8-connected pixels of the same value.
+    // Label any non-zero pixel value with all connected pixels of the same value.
     objectMask = new int[maskImage.length];
-    maxObject = 0;
-
-    final int[][] ppList = new int[1][];
-    ppList[0] = new int[100];
-    initialise();
-
-    int[] sizes = new int[100];
-
-    for (int i = 0; i < maskImage.length; i++) {
-      // Look for non-zero values that are not already in an object
-      if (maskImage[i] != 0 && objectMask[i] == 0) {
-        maxObject++;
-        final int size = expandObjectXy(maskImage, objectMask, i, maxObject, ppList);
-        if (sizes.length == maxObject) {
-          sizes = Arrays.copyOf(sizes, MemoryUtils.createNewCapacity(maxObject + 1, maxObject));
-        }
-        sizes[maxObject] = size;
-      }
-    }
-
-    // Remove objects that are too small
-    if (minObjectSize > 0) {
-      final int[] map = new int[maxObject + 1];
-      maxObject = 0;
-      for (int i = 1; i < map.length; i++) {
-        if (sizes[i] >= minObjectSize) {
-          map[i] = ++maxObject;
-        }
-      }
-
-      for (int i = 0; i < objectMask.length; i++) {
-        if (objectMask[i] != 0) {
-          objectMask[i] = map[objectMask[i]];
-        }
-      }
-    }
-  }
-
-  /**
-   * Searches from the specified point to find all coordinates of the same value and assigns them to
-   * given maximum ID.
-   */
-  private int expandObjectXy(final int[] image, final int[] objectMask, final int index0,
-      final int id, int[][] ppList) {
-    objectMask[index0] = id; // mark first point
-    int listI = 0; // index of current search element in the list
-    int listLen = 1; // number of elements in the list
-    final int neighbours = (eightConnected) ? 8 : 4;
-
-    // we create a list of connected points and start the list at the current point
-    int[] pointList = ppList[0];
-    pointList[listI] = index0;
-
-    final int v0 = image[index0];
-
-    do {
-      final int index1 = pointList[listI];
-      final int x1 = index1 % maxx;
-      final int y1 = index1 / maxx;
-
-      final boolean isInnerXy = (y1 != 0 && y1 != ylimit) && (x1 != 0 && x1 != xlimit);
-
-      for (int d = neighbours; d-- > 0;) {
-        if (isInnerXy || isWithinXy(x1, y1, d)) {
-          final int index2 = index1 + offset[d];
-          if (objectMask[index2] != 0) {
-            // This has been done already, ignore this point
-            continue;
-          }
-
-          final int v2 = image[index2];
-
-          if (v2 == v0) {
-            // Add this to the search
-            pointList[listLen++] = index2;
-            objectMask[index2] = id;
-            if (pointList.length == listLen) {
-              pointList =
-                  Arrays.copyOf(pointList, MemoryUtils.createNewCapacity(listLen + 1, listLen));
-            }
-          }
-        }
-      }
-
-      listI++;
-
-    } while (listI < listLen);
-
-    ppList[0] = pointList;
-
-    return listLen;
-  }
-
-  /**
-   * Creates the direction offset tables.
-   */
-  private void initialise() {
-    maxx = ip.getWidth();
-    final int maxy = ip.getHeight();
-
-    xlimit = maxx - 1;
-    ylimit = maxy - 1;
-
-    // Create the offset table (for single array 2D neighbour comparisons)
-    offset = new int[DIR_X_OFFSET.length];
-    for (int d = offset.length; d-- > 0;) {
-      offset[d] = maxx * DIR_Y_OFFSET[d] + DIR_X_OFFSET[d];
-    }
-  }
-
-  /**
-   * Returns whether the neighbour in a given direction is within the image. This assumes the
-   * direction is from the 4-connected then 8-connected offset table.
-   *
-   * <p>NOTE: it is assumed that the pixel x,y itself is within the image! Uses class variables
-   * xlimit, ylimit: (dimensions of the image)-1
-   *
-   * @param x x-coordinate of the pixel that has a neighbour in the given direction
-   * @param y y-coordinate of the pixel that has a neighbour in the given direction
-   * @param direction the direction from the pixel towards the neighbour
-   * @return true if the neighbour is within the image (provided that x, y is within)
-   */
-  private boolean isWithinXy(int x, int y, int direction) {
-    switch (direction) {
-      // 4-connected directions
-      case 0:
-        return (y > 0);
-      case 1:
-        return (x < xlimit);
-      case 2:
-        return (y < ylimit);
-      case 3:
-        return (x > 0);
-      // Then remaining 8-connected directions
-      case 4:
-        return (y > 0 && x < xlimit);
-      case 5:
-        return (y < ylimit && x < xlimit);
-      case 6:
-        return (y < ylimit && x > 0);
-      // case 7:
-      default:
-        return (y > 0 && x > 0);
-    }
+    final ObjectLabeller labeller =
+        new ObjectLabeller(ip.getWidth(), ip.getHeight(), 1, eightConnected);
+    maxObject = labeller.label(maskImage, objectMask, minObjectSize, Prefs.getThreads());
+    objectIndex = labeller.getObjectIndex();
   }
 
   /**
@@ -347,24 +206,11 @@ public class ObjectAnalyzer {
    * @return The centre-of-mass of each object (plus the pixel count)
    */
   public ObjectCentre[] getObjectCentres() {
-    final int[] count = new int[getMaxObject() + 1];
-    final double[] sumx = new double[count.length];
-    final double[] sumy = new double[count.length];
-    final int height = getHeight();
-    final int width = getWidth();
-    for (int y = 0, i = 0; y < height; y++) {
-      for (int x = 0; x < width; x++, i++) {
-        final int value = objectMask[i];
-        if (value != 0) {
-          sumx[value] += x;
-          sumy[value] += y;
-          count[value]++;
-        }
-      }
-    }
-    final ObjectCentre[] data = new ObjectCentre[count.length];
-    for (int i = 1; i < count.length; i++) {
-      data[i] = new ObjectCentre(sumx[i] / count[i], sumy[i] / count[i], count[i]);
+    final ObjectIndex index = getObjectIndex();
+    final ObjectCentre[] data = new ObjectCentre[index.getMaxObject() + 1];
+    for (int i = 1; i < data.length; i++) {
+      final double[] centroid = index.getCentroid(i);
+      data[i] = new ObjectCentre(centroid[0], centroid[1], index.getSize(i));
     }
     return data;
   }
@@ -458,24 +304,9 @@ public class ObjectAnalyzer {
         new ObjectOutliner(new ColorProcessor(getWidth(), getHeight(), getObjectMask()));
     outliner.setEightConnected(isEightConnected());
 
-    int index = 0;
-    while (index < objectMask.length) {
-      // Scan for next object
-      while (index < objectMask.length && objectMask[index] == 0) {
-        index++;
-      }
-      if (index == objectMask.length) {
-        break;
-      }
-      final int value = objectMask[index];
-      if (outlines[value] == null) {
-        outlines[value] = outliner.outline(index);
-      }
-      // Skip this processed object
-      index++;
-      while (index < objectMask.length && objectMask[index] == value) {
-        index++;
-      }
+    // Trace from the first pixel of each object
+    for (int i = 1; i < outlines.length; i++) {
+      outlines[i] = outliner.outline(objectIndex.getFirstIndex(i));
     }
 
     return outlines;
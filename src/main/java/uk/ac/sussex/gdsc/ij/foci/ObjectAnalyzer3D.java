@@ -24,8 +24,7 @@
 
 package uk.ac.sussex.gdsc.ij.foci;
 
-import java.util.Arrays;
-import uk.ac.sussex.gdsc.core.utils.MemoryUtils;
+import ij.Prefs;
 
 /**
  * Find objects defined by contiguous pixels of the same value.
@@ -56,6 +55,7 @@ public class ObjectAnalyzer3D {
 
   private boolean eightConnected;
   private int[] objectMask;
+  private ObjectIndex objectIndex;
   private int maxObject;
   private int minObjectSize;
 
@@ -114,173 +114,28 @@ public class ObjectAnalyzer3D {
     return maxObject;
   }
 
+  /**
+   * Gets the run-length encoded index of the pixels of each object.
+   *
+   * @return the object index
+   */
+  public ObjectIndex getObjectIndex() {
+    analyseObjects();
+    return objectIndex;
+  }
+
   private void analyseObjects() {
     if (objectMask != null) {
       return;
     }
 
     // Perform a search for objects.
-    // Expand any non-zero pixel value into all 8-connected pixels of the same value.
+    // Label any non-zero pixel value with all connected pixels of the same value.
     objectMask = new int[maskImage.length];
-    maxObject = 0;
-
-    final int[][] ppList = new int[1][];
-    ppList[0] = new int[100];
+    final ObjectLabeller labeller = new ObjectLabeller(maxx, maxy, maxz, eightConnected);
+    maxObject = labeller.label(maskImage, objectMask, minObjectSize, Prefs.getThreads());
+    objectIndex = labeller.getObjectIndex();
     initialise();
-    final boolean is2D = maxz == 1;
-
-    int[] sizes = new int[100];
-
-    for (int i = 0; i < maskImage.length; i++) {
-      // Look for non-zero values that are not already in an object
-      if (maskImage[i] != 0 && objectMask[i] == 0) {
-        maxObject++;
-        int size;
-        if (is2D) {
-          size = expandObjectXy(maskImage, objectMask, i, maxObject, ppList);
-        } else {
-          size = expandObjectXyz(maskImage, objectMask, i, maxObject, ppList);
-        }
-        if (sizes.length == maxObject) {
-          sizes = Arrays.copyOf(sizes, MemoryUtils.createNewCapacity(maxObject + 1, maxObject));
-        }
-        sizes[maxObject] = size;
-      }
-    }
-
-    // Remove objects that are too small
-    if (minObjectSize > 0) {
-      final int[] map = new int[maxObject + 1];
-      maxObject = 0;
-      for (int i = 1; i < map.length; i++) {
-        if (sizes[i] >= minObjectSize) {
-          map[i] = ++maxObject;
-        }
-      }
-
-      for (int i = 0; i < objectMask.length; i++) {
-        if (objectMask[i] != 0) {
-          objectMask[i] = map[objectMask[i]];
-        }
-      }
-    }
-  }
-
-  /**
-   * Searches from the specified point to find all coordinates of the same value and assigns them to
-   * given maximum ID.
-   */
-  private int expandObjectXy(final int[] image, final int[] objectMask, final int index0,
-      final int id, int[][] ppList) {
-    objectMask[index0] = id; // mark first point
-    int listI = 0; // index of current search element in the list
-    int listLen = 1; // number of elements in the list
-    final int neighbours = (eightConnected) ? 8 : 4;
-
-    // we create a list of connected points and start the list at the current point
-    int[] pointList = ppList[0];
-    pointList[listI] = index0;
-
-    final int v0 = image[index0];
-
-    do {
-      final int index1 = pointList[listI];
-      final int x1 = index1 % maxx;
-      final int y1 = index1 / maxx;
-
-      final boolean isInnerXy = (y1 != 0 && y1 != ylimit) && (x1 != 0 && x1 != xlimit);
-
-      for (int d = neighbours; d-- > 0;) {
-        if (isInnerXy || isWithinXy(x1, y1, d)) {
-          final int index2 = index1 + offset[d];
-          if (objectMask[index2] != 0) {
-            // This has been done already, ignore this point
-            continue;
-          }
-
-          final int v2 = image[index2];
-
-          if (v2 == v0) {
-            // Add this to the search
-            pointList[listLen++] = index2;
-            objectMask[index2] = id;
-            if (pointList.length == listLen) {
-              pointList =
-                  Arrays.copyOf(pointList, MemoryUtils.createNewCapacity(listLen + 1, listLen));
-            }
-          }
-        }
-      }
-
-      listI++;
-
-    } while (listI < listLen);
-
-    ppList[0] = pointList;
-
-    return listLen;
-  }
-
-  /**
-   * Searches from the specified point to find all coordinates of the same value and assigns them to
-   * given maximum ID.
-   */
-  private int expandObjectXyz(final int[] image, final int[] objectMask, final int index0,
-      final int id, int[][] ppList) {
-    objectMask[index0] = id; // mark first point
-    int listI = 0; // index of current search element in the list
-    int listLen = 1; // number of elements in the list
-    final int neighbours = (eightConnected) ? 26 : 6;
-
-    // we create a list of connected points and start the list at the current point
-    int[] pointList = ppList[0];
-    pointList[listI] = index0;
-
-    final int v0 = image[index0];
-
-    do {
-      final int index1 = pointList[listI];
-
-      final int z1 = index1 / (maxxByMaxy);
-      final int mod = index1 % (maxxByMaxy);
-      final int y1 = mod / maxx;
-      final int x1 = mod % maxx;
-
-      // It is more likely that the z stack will be out-of-bounds.
-      // Adopt the xy limit lookup and process z lookup separately
-
-      final boolean isInnerXy = (y1 != 0 && y1 != ylimit) && (x1 != 0 && x1 != xlimit);
-      final boolean isInnerXyz = (zlimit == 0) ? isInnerXy : isInnerXy && (z1 != 0 && z1 != zlimit);
-
-      for (int d = neighbours; d-- > 0;) {
-        if (isInnerXyz || (isInnerXy && isWithinZ(z1, d)) || isWithinXyz(x1, y1, z1, d)) {
-          final int index2 = index1 + offset[d];
-          if (objectMask[index2] != 0) {
-            // This has been done already, ignore this point
-            continue;
-          }
-
-          final int v2 = image[index2];
-
-          if (v2 == v0) {
-            // Add this to the search
-            pointList[listLen++] = index2;
-            objectMask[index2] = id;
-            if (pointList.length == listLen) {
-              pointList =
-                  Arrays.copyOf(pointList, MemoryUtils.createNewCapacity(listLen + 1, listLen));
-            }
-          }
-        }
-      }
-
-      listI++;
-
-    } while (listI < listLen);
-
-    ppList[0] = pointList;
-
-    return listLen;
   }
 
   /**
@@ -478,29 +333,14 @@ public class ObjectAnalyzer3D {
    * @return The centre-of-mass of each object (plus the pixel count) [object][cx,cy,cz,n]
    */
   public double[][] getObjectCentres() {
-    final int[] count = new int[getMaxObject() + 1];
-    final double[] sumx = new double[count.length];
-    final double[] sumy = new double[count.length];
-    final double[] sumz = new double[count.length];
-    for (int z = 0, i = 0; z < maxz; z++) {
-      for (int y = 0; y < maxy; y++) {
-        for (int x = 0; x < maxx; x++, i++) {
-          final int value = objectMask[i];
-          if (value != 0) {
-            sumx[value] += x;
-            sumy[value] += y;
-            sumz[value] += z;
-            count[value]++;
-          }
-        }
-      }
-    }
-    final double[][] data = new double[count.length][4];
-    for (int i = 1; i < count.length; i++) {
-      data[i][0] = sumx[i] / count[i];
-      data[i][1] = sumy[i] / count[i];
-      data[i][2] = sumz[i] / count[i];
-      data[i][3] = count[i];
+    final ObjectIndex index = getObjectIndex();
+    final double[][] data = new double[index.getMaxObject() + 1][4];
+    for (int i = 1; i < data.length; i++) {
+      final double[] centroid = index.getCentroid(i);
+      data[i][0] = centroid[0];
+      data[i][1] = centroid[1];
+      data[i][2] = centroid[2];
+      data[i][3] = index.getSize(i);
     }
     return data;
   }
@@ -0,0 +1,569 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.foci;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
+
+/**
+ * Compute the exact Euclidean distance transform of each object in an object mask.
+ *
+ * <p>Objects are defined using contiguous pixels of the same non-zero value, e.g. the output of
+ * the {@link ObjectAnalyzer} or {@link ObjectAnalyzer3D}. The distance for each object pixel is
+ * the distance to the nearest edge pixel of the same object. An edge pixel is an object pixel that
+ * touches a pixel of a different value in the surrounding 3x3 (2D) or 3x3x3 (3D) neighbourhood, or
+ * lies on the border of the image. Edge pixels have a distance of zero. Non-object pixels have a
+ * distance of zero.
+ *
+ * <p>The distance is computed in units of the pixel width. Distances in the y and z dimension can
+ * be scaled relative to the x dimension for anisotropic pixels.
+ *
+ * <p>The transform uses the separable lower envelope of parabolas algorithm of Felzenszwalb and
+ * Huttenlocher (2012) Distance Transforms of Sampled Functions. Theory of Computing 8, 415-428.
+ * The transform is computed within the bounding box of each object. Objects are processed in
+ * parallel; the passes of the transform for a large object are split into blocks of rows or lines
+ * and processed in parallel.
+ */
+public class ObjectDistanceTransform {
+  private final int maxx;
+  private final int maxy;
+  private final int maxz;
+  /** The squared distance to the nearest edge pixel. */
+  private final double[] distances;
+  /** The index of the nearest edge pixel. */
+  private final int[] nearest;
+
+  /**
+   * Working buffers for the transform of a line.
+   */
+  private static class Workspace {
+    double[] values = new double[0];
+    int[] indices = new int[0];
+    double[] f = new double[0];
+    int[] fi = new int[0];
+    double[] d = new double[0];
+    int[] di = new int[0];
+    int[] v = new int[0];
+    double[] z = new double[0];
+
+    /**
+     * Ensure the buffers can hold the object bounding box of the specified size.
+     *
+     * @param size the size
+     */
+    void ensureSize(int size) {
+      if (values.length < size) {
+        values = new double[size];
+        indices = new int[size];
+      }
+    }
+
+    /**
+     * Ensure the line buffers can hold lines of the specified maximum length.
+     *
+     * @param length the length
+     */
+    void ensureLength(int length) {
+      if (f.length < length) {
+        f = new double[length];
+        fi = new int[length];
+        d = new double[length];
+        di = new int[length];
+        v = new int[length];
+        z = new double[length + 1];
+      }
+    }
+  }
+
+  /**
+   * Process a range of rows or lines of an object bounding box.
+   */
+  private interface RangeProcedure {
+    /**
+     * Process the range.
+     *
+     * @param from the start (inclusive)
+     * @param to the end (exclusive)
+     * @param ws the workspace
+     */
+    void run(int from, int to, Workspace ws);
+  }
+
+  /**
+   * Create a new instance.
+   *
+   * @param objectMask the object mask
+   * @param maxx the max x dimension of the mask
+   * @param maxy the max y dimension of the mask
+   * @param maxz the max z dimension of the mask
+   * @param maxObject the maximum object value in the mask
+   * @param sy the scale of the y dimension relative to the x dimension
+   * @param sz the scale of the z dimension relative to the x dimension
+   * @param threads the number of threads
+   * @throws IllegalArgumentException if the dimensions do not match the mask size
+   */
+  public ObjectDistanceTransform(int[] objectMask, int maxx, int maxy, int maxz, int maxObject,
+      double sy, double sz, int threads) {
+    if (objectMask.length != maxx * maxy * maxz) {
+      throw new IllegalArgumentException("Mask size does not match the dimensions");
+    }
+    this.maxx = maxx;
+    this.maxy = maxy;
+    this.maxz = maxz;
+    distances = new double[objectMask.length];
+    nearest = new int[objectMask.length];
+    Arrays.fill(nearest, -1);
+    if (maxObject > 0) {
+      transform(objectMask, maxObject, sy * sy, sz * sz, threads);
+    }
+  }
+
+  /**
+   * Gets the squared distance to the nearest edge pixel of the same object. The distance is in
+   * units of the pixel width. Non-object pixels have a distance of zero.
+   *
+   * <p>The array is not copied.
+   *
+   * @return the squared distances
+   */
+  public double[] getSquaredDistances() {
+    return distances;
+  }
+
+  /**
+   * Gets the index of the nearest edge pixel of the same object. Non-object pixels have an index of
+   * -1.
+   *
+   * <p>The array is not copied.
+   *
+   * @return the nearest edge pixel index
+   */
+  public int[] getNearestIndices() {
+    return nearest;
+  }
+
+  /**
+   * Compute the transform for each object.
+   *
+   * <p>Small objects are processed in parallel using one thread per object. An object with a
+   * bounding box that is a large fraction of the image would limit the parallel speed-up so the
+   * rows and lines of each pass of its transform are processed in parallel.
+   *
+   * @param objectMask the object mask
+   * @param maxObject the maximum object value in the mask
+   * @param wy the squared scale of the y dimension
+   * @param wz the squared scale of the z dimension
+   * @param threads the number of threads
+   */
+  private void transform(int[] objectMask, int maxObject, double wy, double wz, int threads) {
+    // Bounding box of each object: minx, maxx, miny, maxy, minz, maxz (inclusive)
+    final int[][] bounds = new int[maxObject + 1][];
+    for (int z = 0, index = 0; z < maxz; z++) {
+      for (int y = 0; y < maxy; y++) {
+        for (int x = 0; x < maxx; x++, index++) {
+          final int id = objectMask[index];
+          if (id != 0) {
+            final int[] b = bounds[id];
+            if (b == null) {
+              bounds[id] = new int[] {x, x, y, y, z, z};
+            } else {
+              b[0] = Math.min(b[0], x);
+              b[1] = Math.max(b[1], x);
+              b[2] = Math.min(b[2], y);
+              b[3] = Math.max(b[3], y);
+              // z is visited in order
+              b[5] = z;
+            }
+          }
+        }
+      }
+    }
+
+    // Partition into large and small objects
+    final int threadCount = Math.max(1, threads);
+    final long largeSize = threadCount == 1 ? Long.MAX_VALUE : objectMask.length / threadCount;
+    final LocalList<ObjectTransform> large = new LocalList<>();
+    final LocalList<ObjectTransform> small = new LocalList<>();
+    for (int id = 1; id <= maxObject; id++) {
+      if (bounds[id] != null) {
+        final ObjectTransform ot = new ObjectTransform(objectMask, id, bounds[id], wy, wz);
+        (ot.size >= largeSize ? large : small).add(ot);
+      }
+    }
+
+    if (threadCount == 1) {
+      final Workspace ws = new Workspace();
+      small.forEach(ot -> ot.run(ws));
+      return;
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+    final Workspace[] workspaces = new Workspace[threadCount];
+    Arrays.setAll(workspaces, i -> new Workspace());
+
+    // Large objects: split each pass into blocks of rows or lines
+    for (final ObjectTransform ot : large) {
+      ot.values = new double[ot.size];
+      ot.indices = new int[ot.size];
+      runInBlocks(executor, futures, workspaces, ot.rows, ot::initialise);
+      runInBlocks(executor, futures, workspaces, ot.rows, ot::transformX);
+      if (ot.h > 1) {
+        runInBlocks(executor, futures, workspaces, ot.w * ot.d, ot::transformY);
+      }
+      if (ot.d > 1) {
+        runInBlocks(executor, futures, workspaces, ot.wh, ot::transformZ);
+      }
+      runInBlocks(executor, futures, workspaces, ot.rows, ot::store);
+      ot.values = null;
+      ot.indices = null;
+    }
+
+    // Small objects: one object per task
+    final AtomicInteger nextObject = new AtomicInteger();
+    final int count = Math.min(threadCount, small.size());
+    for (int i = 0; i < count; i++) {
+      final Workspace ws = workspaces[i];
+      futures.add(executor.submit(() -> {
+        for (int j = nextObject.getAndIncrement(); j < small.size();
+            j = nextObject.getAndIncrement()) {
+          small.unsafeGet(j).run(ws);
+        }
+      }));
+    }
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+  }
+
+  /**
+   * Run the procedure over the range [0, size) split into contiguous blocks, one per thread.
+   * Waits for completion.
+   *
+   * @param executor the executor
+   * @param futures the futures (working storage)
+   * @param workspaces the workspace for each thread
+   * @param size the size
+   * @param procedure the procedure
+   */
+  private static void runInBlocks(ExecutorService executor, LocalList<Future<?>> futures,
+      Workspace[] workspaces, int size, RangeProcedure procedure) {
+    futures.clear();
+    final int blocks = MathUtils.clip(1, workspaces.length, size);
+    for (int i = 0; i < blocks; i++) {
+      final int from = (int) ((long) size * i / blocks);
+      final int to = (int) ((long) size * (i + 1) / blocks);
+      final Workspace ws = workspaces[i];
+      futures.add(executor.submit(() -> procedure.run(from, to, ws)));
+    }
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+    futures.clear();
+  }
+
+  /**
+   * Compute the transform for an object within its bounding box. Results are written only for the
+   * object pixels so objects can be processed concurrently.
+   *
+   * <p>The transform is computed in passes: initialise the features; transform along x, y and z;
+   * store the object pixels. Each pass operates on independent rows (initialise, x and store) or
+   * lines (y and z) of the bounding box and can be split into ranges.
+   */
+  private class ObjectTransform {
+    final int[] objectMask;
+    final int id;
+    final double wy;
+    final double wz;
+    final int ox;
+    final int oy;
+    final int oz;
+    final int w;
+    final int h;
+    final int d;
+    final int wh;
+    /** The number of rows: h * d. */
+    final int rows;
+    /** The size of the bounding box. */
+    final int size;
+    double[] values;
+    int[] indices;
+
+    /**
+     * Create an instance.
+     *
+     * @param objectMask the object mask
+     * @param id the object id
+     * @param bounds the bounds
+     * @param wy the squared scale of the y dimension
+     * @param wz the squared scale of the z dimension
+     */
+    ObjectTransform(int[] objectMask, int id, int[] bounds, double wy, double wz) {
+      this.objectMask = objectMask;
+      this.id = id;
+      this.wy = wy;
+      this.wz = wz;
+      ox = bounds[0];
+      oy = bounds[2];
+      oz = bounds[4];
+      w = bounds[1] - ox + 1;
+      h = bounds[3] - oy + 1;
+      d = bounds[5] - oz + 1;
+      wh = w * h;
+      rows = h * d;
+      size = wh * d;
+    }
+
+    /**
+     * Run all the passes of the transform using the workspace buffers.
+     *
+     * @param ws the workspace
+     */
+    void run(Workspace ws) {
+      ws.ensureSize(size);
+      values = ws.values;
+      indices = ws.indices;
+      initialise(0, rows, ws);
+      transformX(0, rows, ws);
+      if (h > 1) {
+        transformY(0, w * d, ws);
+      }
+      if (d > 1) {
+        transformZ(0, wh, ws);
+      }
+      store(0, rows, ws);
+      values = null;
+      indices = null;
+    }
+
+    /**
+     * Initialise the edge pixels as the features.
+     *
+     * @param from the first row (inclusive)
+     * @param to the last row (exclusive)
+     * @param ws the workspace (unused)
+     */
+    void initialise(int from, int to, Workspace ws) {
+      final int maxxMaxy = maxx * maxy;
+      for (int row = from; row < to; row++) {
+        final int y = row % h;
+        final int z = row / h;
+        int index = (z + oz) * maxxMaxy + (y + oy) * maxx + ox;
+        for (int x = 0, i = row * w; x < w; x++, i++, index++) {
+          if (objectMask[index] == id && isEdge(objectMask, id, x + ox, y + oy, z + oz)) {
+            values[i] = 0;
+            indices[i] = index;
+          } else {
+            values[i] = Double.POSITIVE_INFINITY;
+            indices[i] = -1;
+          }
+        }
+      }
+    }
+
+    /**
+     * Transform along the x dimension.
+     *
+     * @param from the first row (inclusive)
+     * @param to the last row (exclusive)
+     * @param ws the workspace
+     */
+    void transformX(int from, int to, Workspace ws) {
+      ws.ensureLength(w);
+      for (int row = from; row < to; row++) {
+        transform1d(values, indices, row * w, 1, w, 1, ws);
+      }
+    }
+
+    /**
+     * Transform along the y dimension.
+     *
+     * @param from the first line (inclusive); lines are indexed as z * w + x
+     * @param to the last line (exclusive)
+     * @param ws the workspace
+     */
+    void transformY(int from, int to, Workspace ws) {
+      ws.ensureLength(h);
+      for (int line = from; line < to; line++) {
+        transform1d(values, indices, (line / w) * wh + line % w, w, h, wy, ws);
+      }
+    }
+
+    /**
+     * Transform along the z dimension.
+     *
+     * @param from the first line (inclusive); lines are indexed as y * w + x
+     * @param to the last line (exclusive)
+     * @param ws the workspace
+     */
+    void transformZ(int from, int to, Workspace ws) {
+      ws.ensureLength(d);
+      for (int line = from; line < to; line++) {
+        transform1d(values, indices, line, wh, d, wz, ws);
+      }
+    }
+
+    /**
+     * Store the object pixels.
+     *
+     * @param from the first row (inclusive)
+     * @param to the last row (exclusive)
+     * @param ws the workspace (unused)
+     */
+    void store(int from, int to, Workspace ws) {
+      final int maxxMaxy = maxx * maxy;
+      for (int row = from; row < to; row++) {
+        final int y = row % h;
+        final int z = row / h;
+        int index = (z + oz) * maxxMaxy + (y + oy) * maxx + ox;
+        for (int x = 0, i = row * w; x < w; x++, i++, index++) {
+          if (objectMask[index] == id) {
+            distances[index] = values[i];
+            nearest[index] = indices[i];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks if the object pixel is an edge pixel.
+   *
+   * @param objectMask the object mask
+   * @param id the object id
+   * @param x the x
+   * @param y the y
+   * @param z the z
+   * @return true if an edge
+   */
+  private boolean isEdge(int[] objectMask, int id, int x, int y, int z) {
+    if (x == 0 || y == 0 || x == maxx - 1 || y == maxy - 1) {
+      return true;
+    }
+    if (maxz > 1 && (z == 0 || z == maxz - 1)) {
+      return true;
+    }
+    final int maxxMaxy = maxx * maxy;
+    final int z1 = Math.max(0, z - 1);
+    final int z2 = Math.min(maxz - 1, z + 1);
+    for (int zz = z1; zz <= z2; zz++) {
+      for (int yy = y - 1; yy <= y + 1; yy++) {
+        final int index = zz * maxxMaxy + yy * maxx + x;
+        if (objectMask[index - 1] != id || objectMask[index] != id
+            || objectMask[index + 1] != id) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compute the one dimensional squared distance transform of the sampled function along a line
+   * of the data. Infinite values are not features.
+   *
+   * @param values the values
+   * @param indices the indices of the nearest feature for each value
+   * @param from the index of the start of the line
+   * @param stride the stride between line elements
+   * @param n the length of the line
+   * @param weight the squared scale of the dimension
+   * @param ws the workspace
+   */
+  private static void transform1d(double[] values, int[] indices, int from, int stride, int n,
+      double weight, Workspace ws) {
+    final double[] f = ws.f;
+    final int[] fi = ws.fi;
+    for (int q = 0, i = from; q < n; q++, i += stride) {
+      f[q] = values[i];
+      fi[q] = indices[i];
+    }
+
+    // Compute the lower envelope of the parabolas rooted at each finite value
+    final int[] v = ws.v;
+    final double[] z = ws.z;
+    int k = -1;
+    for (int q = 0; q < n; q++) {
+      if (f[q] == Double.POSITIVE_INFINITY) {
+        continue;
+      }
+      if (k < 0) {
+        k = 0;
+        v[0] = q;
+        z[0] = Double.NEGATIVE_INFINITY;
+        z[1] = Double.POSITIVE_INFINITY;
+        continue;
+      }
+      final double fq = f[q] + weight * q * q;
+      double s = intersection(f, v[k], fq, q, weight);
+      while (s <= z[k]) {
+        k--;
+        s = intersection(f, v[k], fq, q, weight);
+      }
+      k++;
+      v[k] = q;
+      z[k] = s;
+      z[k + 1] = Double.POSITIVE_INFINITY;
+    }
+    if (k < 0) {
+      // No features
+      return;
+    }
+
+    final double[] d = ws.d;
+    final int[] di = ws.di;
+    k = 0;
+    for (int q = 0; q < n; q++) {
+      while (z[k + 1] < q) {
+        k++;
+      }
+      final int p = v[k];
+      final double dq = q - p;
+      d[q] = weight * dq * dq + f[p];
+      di[q] = fi[p];
+    }
+    for (int q = 0, i = from; q < n; q++, i += stride) {
+      values[i] = d[q];
+      indices[i] = di[q];
+    }
+  }
+
+  /**
+   * Compute the intersection of the parabola rooted at p with the parabola rooted at q.
+   *
+   * @param f the function values
+   * @param p the root of the first parabola
+   * @param fq the value of {@code f[q] + weight * q * q}
+   * @param q the root of the second parabola
+   * @param weight the squared scale of the dimension
+   * @return the intersection
+   */
+  private static double intersection(double[] f, int p, double fq, int q, double weight) {
+    return (fq - (f[p] + weight * p * p)) / (2 * weight * (q - p));
+  }
+}
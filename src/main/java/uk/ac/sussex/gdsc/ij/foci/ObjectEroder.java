@@ -25,18 +25,40 @@
 package uk.ac.sussex.gdsc.ij.foci;
 
 import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import uk.ac.sussex.gdsc.core.annotation.Nullable;
 import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 
 /**
  * Erode objects defined by non-zero pixels.
+ *
+ * <p>Multiple iterations are performed using the chessboard distance from each object pixel to
+ * the nearest pixel of a different value: a pixel remains after n iterations if all pixels within
+ * the (2n+1)x(2n+1) region have the same value. The region is tested using the lengths of the
+ * runs of equal pixels in each row and then in each column. The run time is independent of the
+ * number of iterations and large images are processed in parallel over rows and columns.
  */
 public class ObjectEroder {
+  /** The default minimum number of pixels per thread. */
+  private static final int MIN_PIXELS_PER_THREAD = 1 << 16;
+
   /** The image. */
   private final ImageProcessor ip;
   /** A buffer for the output image. */
-  private final ImageProcessor buffer;
+  private ImageProcessor buffer;
   /** Flag indicating pixels are extended outside the image. */
   private final boolean extendOutside;
+  /** The number of threads. */
+  private int threads = 1;
+  /** The minimum number of pixels per thread. */
+  private int minPixelsPerThread = MIN_PIXELS_PER_THREAD;
 
   /**
    * Create a new instance.
@@ -46,19 +68,51 @@ public class ObjectEroder {
    */
   public ObjectEroder(ImageProcessor ip, boolean extendOutside) {
     this.ip = ip;
-    this.buffer = ip.duplicate();
     this.extendOutside = extendOutside;
   }
 
+  /**
+   * Gets the number of threads used when performing multiple iterations.
+   *
+   * @return the threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Sets the number of threads used when performing multiple iterations.
+   *
+   * @param threads the new threads
+   */
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Sets the minimum number of pixels to process per thread.
+   *
+   * @param minPixelsPerThread the new minimum pixels per thread
+   */
+  @VisibleForTesting
+  void setMinPixelsPerThread(int minPixelsPerThread) {
+    this.minPixelsPerThread = Math.max(1, minPixelsPerThread);
+  }
+
   /**
    * Perform several iterations of an object erosion. Any non-zero pixel touching a pixel of a
    * different value will be set to zero.
    *
+   * <p>Multiple iterations are computed using the distance to the nearest pixel of a different
+   * value.
+   *
    * @param iterations the iterations
    */
   public void erode(int iterations) {
-    for (int i = 0; i < iterations; i++) {
+    if (iterations == 1) {
       erode();
+    } else if (iterations > 1) {
+      erodeByDistance(iterations);
     }
   }
 
@@ -87,6 +141,7 @@ public class ObjectEroder {
     // | 7 | 8 | 9 |
     // +---+---+---+
     // @formatter:on
+    final ImageProcessor buffer = getBuffer();
     final int lastX = width - 1;
     final int lastY = height - 1;
     for (int y = 1; y < lastY; y++) {
@@ -148,6 +203,7 @@ public class ObjectEroder {
    * @param yinc the y increment
    */
   private void erode(int width, int height, int length, int x, int y, int xinc, int yinc) {
+    final ImageProcessor buffer = getBuffer();
     for (int i = 0; i < length; i++) {
       final int p5 = ip.get(x + y * width);
       if (p5 != 0) {
@@ -222,6 +278,7 @@ public class ObjectEroder {
    * @param length the length
    */
   private void erase(int length, int index, int increment) {
+    final ImageProcessor buffer = getBuffer();
     for (int i = 0; i < length; i++) {
       buffer.set(index + i * increment, 0);
     }
@@ -246,6 +303,7 @@ public class ObjectEroder {
       // | 1 | 2 | 3 |
       // +---+---+---+
       // @formatter:on
+      final ImageProcessor buffer = getBuffer();
       int p3 = ip.get(0);
       int p2 = p3;
       // Process all but the last index
@@ -275,6 +333,148 @@ public class ObjectEroder {
     updatePixels();
   }
 
+  /**
+   * Perform an object erosion of the given distance. Any non-zero pixel within the chessboard
+   * distance of a pixel of a different value will be set to zero.
+   *
+   * @param distance the distance
+   */
+  private void erodeByDistance(int distance) {
+    final int width = ip.getWidth();
+    final int height = ip.getHeight();
+    final int size = width * height;
+    if (size == 0) {
+      return;
+    }
+    final int[] values = new int[size];
+    for (int i = 0; i < size; i++) {
+      values[i] = ip.get(i);
+    }
+
+    // The value of each pixel where the row is uniform within the distance; otherwise zero
+    final int[] rows = new int[size];
+    // The number of following equal pixels in the row or column
+    final int[] counts = new int[size];
+    final int threadCount =
+        MathUtils.clip(1, height, Math.min(threads, size / minPixelsPerThread));
+    final ExecutorService executor =
+        threadCount == 1 ? null : Executors.newFixedThreadPool(threadCount);
+    try {
+      runBlocks(executor, threadCount, block -> {
+        final int y0 = (int) ((long) height * block / threadCount);
+        final int y1 = (int) ((long) height * (block + 1) / threadCount);
+        for (int y = y0; y < y1; y++) {
+          final int offset = y * width;
+          final int end = offset + width - 1;
+          for (int i = end - 1; i >= offset; i--) {
+            counts[i] = values[i] == values[i + 1] ? counts[i + 1] + 1 : 0;
+          }
+          int before = 0;
+          for (int x = 0, i = offset; x < width; x++, i++) {
+            if (x != 0) {
+              before = values[i] == values[i - 1] ? before + 1 : 0;
+            }
+            final int value = values[i];
+            if (value != 0 && isUniform(before, counts[i], x, width - 1 - x, distance)) {
+              rows[i] = value;
+            }
+          }
+        }
+      });
+
+      // Rows are scanned within a block of columns for efficient memory access.
+      final int columnBlocks = Math.min(threadCount, width);
+      runBlocks(executor, columnBlocks, block -> {
+        final int x0 = (int) ((long) width * block / columnBlocks);
+        final int x1 = (int) ((long) width * (block + 1) / columnBlocks);
+        final int lastRow = (height - 1) * width;
+        Arrays.fill(counts, lastRow + x0, lastRow + x1, 0);
+        for (int index = lastRow - width; index >= 0; index -= width) {
+          for (int i = index + x0; i < index + x1; i++) {
+            counts[i] = rows[i] == rows[i + width] ? counts[i + width] + 1 : 0;
+          }
+        }
+        final int[] before = new int[x1 - x0];
+        for (int y = 0, index = 0; y < height; y++, index += width) {
+          for (int x = x0, i = index + x0; x < x1; x++, i++) {
+            if (y != 0) {
+              before[x - x0] = rows[i] == rows[i - width] ? before[x - x0] + 1 : 0;
+            }
+            if (rows[i] == 0
+                || !isUniform(before[x - x0], counts[i], y, height - 1 - y, distance)) {
+              values[i] = 0;
+            }
+          }
+        }
+      });
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+
+    for (int i = 0; i < size; i++) {
+      if (values[i] != ip.get(i)) {
+        ip.set(i, values[i]);
+      }
+    }
+    // Any buffer is out-of-date
+    buffer = null;
+  }
+
+  /**
+   * Checks if the pixels within the distance along a line are equal.
+   *
+   * @param before the number of equal pixels before the position
+   * @param after the number of equal pixels after the position
+   * @param toStart the number of pixels before the position
+   * @param toEnd the number of pixels after the position
+   * @param distance the distance
+   * @return true if uniform
+   */
+  private boolean isUniform(int before, int after, int toStart, int toEnd, int distance) {
+    // If extended then a run to the edge of the image continues outside
+    return (before >= distance || (extendOutside && before == toStart))
+        && (after >= distance || (extendOutside && after == toEnd));
+  }
+
+  /**
+   * Run the task for each block. Blocks are processed in parallel if an executor is provided.
+   *
+   * @param executor the executor (can be null)
+   * @param blocks the number of blocks
+   * @param task the task
+   */
+  private static void runBlocks(@Nullable ExecutorService executor, int blocks,
+      IntConsumer task) {
+    if (executor == null || blocks == 1) {
+      for (int i = 0; i < blocks; i++) {
+        task.accept(i);
+      }
+      return;
+    }
+    final LocalList<Future<?>> futures = new LocalList<>(blocks);
+    for (int i = 0; i < blocks; i++) {
+      final int block = i;
+      futures.add(executor.submit(() -> task.accept(block)));
+    }
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+  }
+
+  /**
+   * Gets the buffer for the output image.
+   *
+   * @return the buffer
+   */
+  private ImageProcessor getBuffer() {
+    ImageProcessor result = buffer;
+    if (result == null) {
+      result = ip.duplicate();
+      buffer = result;
+    }
+    return result;
+  }
+
   /**
    * Update the pixels from the buffer to the image.
    */
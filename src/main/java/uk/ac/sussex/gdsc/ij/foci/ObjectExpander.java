@@ -25,8 +25,16 @@
 package uk.ac.sussex.gdsc.ij.foci;
 
 import ij.process.ImageProcessor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
 import org.apache.commons.lang3.ArrayUtils;
+import uk.ac.sussex.gdsc.core.annotation.Nullable;
 import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 
 /**
  * Expand objects defined by non-zero pixels.
@@ -37,16 +45,32 @@ import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
  * and assigns the pixel to the value from the most contacts. The effect is expansion of object
  * (non-zero) pixels into zero valued space.
  *
+ * <p>Multiple iterations are performed using the chessboard distance from each zero pixel to the
+ * nearest non-zero pixel; the pixels within the expansion distance are those filled by the
+ * iterative expansion. In the default exact mode the pixels are assigned in order of distance
+ * using the same selection rule as the iterative expansion, and the result is identical. Otherwise
+ * each pixel is assigned the value of the nearest non-zero pixel. The run time is independent of
+ * the number of iterations and large images are processed in parallel over rows.
+ *
  * @see <a href="https://en.wikipedia.org/wiki/Dilation_(morphology)#Grayscale_dilation">Greyscale
  *      dilation</a>
  */
 public class ObjectExpander {
+  /** The default minimum number of pixels per thread. */
+  private static final int MIN_PIXELS_PER_THREAD = 1 << 16;
+
   /** The image. */
   private final ImageProcessor ip;
   /** A buffer for the output image. */
-  private final ImageProcessor buffer;
+  private ImageProcessor buffer;
   /** The selecter. */
   private final ValueSelecter selecter = new FrequencySelecter();
+  /** Set to true to use the selection rule for each pixel when performing multiple iterations. */
+  private boolean exact = true;
+  /** The number of threads. */
+  private int threads = 1;
+  /** The minimum number of pixels per thread. */
+  private int minPixelsPerThread = MIN_PIXELS_PER_THREAD;
 
   /**
    * Define the method for selecting the value for the central pixel of a 3x3 region.
@@ -269,19 +293,72 @@ public class ObjectExpander {
    */
   public ObjectExpander(ImageProcessor ip) {
     this.ip = ip;
-    this.buffer = ip.duplicate();
+  }
+
+  /**
+   * Checks if multiple iterations use the selection rule of a single expansion for each pixel. The
+   * default is true.
+   *
+   * @return true if exact
+   */
+  public boolean isExact() {
+    return exact;
+  }
+
+  /**
+   * Set to true to use the selection rule of a single expansion for each pixel when performing
+   * multiple iterations. The result is identical to repeating the single expansion. If false each
+   * pixel is assigned the value of the nearest non-zero pixel.
+   *
+   * @param exact the new exact flag
+   */
+  public void setExact(boolean exact) {
+    this.exact = exact;
+  }
+
+  /**
+   * Gets the number of threads used when performing multiple iterations.
+   *
+   * @return the threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Sets the number of threads used when performing multiple iterations.
+   *
+   * @param threads the new threads
+   */
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Sets the minimum number of pixels to process per thread.
+   *
+   * @param minPixelsPerThread the new minimum pixels per thread
+   */
+  @VisibleForTesting
+  void setMinPixelsPerThread(int minPixelsPerThread) {
+    this.minPixelsPerThread = Math.max(1, minPixelsPerThread);
   }
 
   /**
    * Perform several iterations of an object expansion. Any zero pixel touching a non-zero pixel
    * will be set to a non-zero value.
    *
+   * <p>Multiple iterations are computed using the distance to the nearest non-zero pixel.
+   *
    * @param iterations the iterations
    * @see #expand()
+   * @see #setExact(boolean)
    */
   public void expand(int iterations) {
-    for (int i = 0; i < iterations; i++) {
+    if (iterations == 1 && exact) {
       expand();
+    } else if (iterations > 0) {
+      expandByDistance(iterations);
     }
   }
 
@@ -313,6 +390,7 @@ public class ObjectExpander {
     // | 7 | 8 | 9 |
     // +---+---+---+
     // @formatter:on
+    final ImageProcessor buffer = getBuffer();
     final int lastX = width - 1;
     final int lastY = height - 1;
     for (int y = 1; y < lastY; y++) {
@@ -363,6 +441,7 @@ public class ObjectExpander {
    * @param yinc the y increment
    */
   private void expand(int width, int height, int length, int x, int y, int xinc, int yinc) {
+    final ImageProcessor buffer = getBuffer();
     for (int i = 0; i < length; i++) {
       final int p5 = getEdgePixel(width, height, x, y);
       if (p5 == 0) {
@@ -425,6 +504,7 @@ public class ObjectExpander {
     // | 1 | 2 | 3 |
     // +---+---+---+
     // @formatter:on
+    final ImageProcessor buffer = getBuffer();
     int p3 = ip.get(0);
     int p2 = p3;
     // Process all but the last index
@@ -514,6 +594,329 @@ public class ObjectExpander {
     return minNonZero(min1234, min5678);
   }
 
+  /**
+   * Perform an object expansion of the given distance. Any zero pixel within the chessboard
+   * distance of a non-zero pixel will be set to a non-zero value.
+   *
+   * @param distance the distance
+   */
+  private void expandByDistance(int distance) {
+    final int width = ip.getWidth();
+    final int height = ip.getHeight();
+    final int size = width * height;
+    final int[] values = new int[size];
+    boolean objects = false;
+    for (int i = 0; i < size; i++) {
+      values[i] = ip.get(i);
+      objects |= values[i] != 0;
+    }
+    if (!objects) {
+      return;
+    }
+
+    final int threadCount =
+        MathUtils.clip(1, height, Math.min(threads, size / minPixelsPerThread));
+    final ExecutorService executor =
+        threadCount == 1 ? null : Executors.newFixedThreadPool(threadCount);
+    try {
+      final int[] nearest = exact ? null : new int[size];
+      final int[] distances =
+          distanceTransform(values, width, height, nearest, executor, threadCount);
+      if (exact) {
+        propagate(values, distances, width, height, distance, executor);
+      } else {
+        // Only zero pixels are updated so the nearest non-zero value is unchanged
+        for (int i = 0; i < size; i++) {
+          if (values[i] == 0 && distances[i] <= distance) {
+            values[i] = values[nearest[i]];
+          }
+        }
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+
+    for (int i = 0; i < size; i++) {
+      if (values[i] != ip.get(i)) {
+        ip.set(i, values[i]);
+      }
+    }
+    // Any buffer is out-of-date
+    buffer = null;
+  }
+
+  /**
+   * Compute the chessboard distance from each pixel to the nearest non-zero pixel.
+   *
+   * <p>Uses the separable algorithm of Meijster, Roerdink and Hesselink (2000) A General Algorithm
+   * for Computing Distance Transforms in Linear Time. The vertical distance is computed in blocks
+   * of columns and the horizontal pass in blocks of rows. The image must contain a non-zero pixel.
+   *
+   * @param values the values
+   * @param width the width
+   * @param height the height
+   * @param nearest the index of the nearest non-zero pixel (can be null)
+   * @param executor the executor (can be null)
+   * @param blocks the number of blocks to process in parallel
+   * @return the distances
+   */
+  private static int[] distanceTransform(int[] values, int width, int height,
+      @Nullable int[] nearest, @Nullable ExecutorService executor, int blocks) {
+    final int[] g = new int[values.length];
+    // Larger than any distance in the image
+    final int infinity = width + height;
+
+    // Distance to the nearest non-zero pixel in the column.
+    // Rows are scanned within a block of columns for efficient memory access.
+    final int columnBlocks = Math.min(blocks, width);
+    runBlocks(executor, columnBlocks, block -> {
+      final int x0 = (int) ((long) width * block / columnBlocks);
+      final int x1 = (int) ((long) width * (block + 1) / columnBlocks);
+      for (int y = 0, index = 0; y < height; y++, index += width) {
+        for (int i = index + x0; i < index + x1; i++) {
+          if (values[i] != 0) {
+            g[i] = 0;
+            if (nearest != null) {
+              nearest[i] = i;
+            }
+          } else if (y == 0) {
+            g[i] = infinity;
+          } else {
+            g[i] = g[i - width] + 1;
+            if (nearest != null) {
+              nearest[i] = nearest[i - width];
+            }
+          }
+        }
+      }
+      for (int index = (height - 2) * width; index >= 0; index -= width) {
+        for (int i = index + x0; i < index + x1; i++) {
+          final int below = g[i + width] + 1;
+          if (below < g[i]) {
+            g[i] = below;
+            if (nearest != null) {
+              nearest[i] = nearest[i + width];
+            }
+          }
+        }
+      }
+    });
+
+    // Minimum over the row of max(|x - i|, g(i)) using the lower envelope of the functions
+    runBlocks(executor, blocks, block -> {
+      final int y0 = (int) ((long) height * block / blocks);
+      final int y1 = (int) ((long) height * (block + 1) / blocks);
+      final int[] s = new int[width];
+      final int[] t = new int[width];
+      final int[] row = new int[width];
+      final int[] rowNearest = nearest == null ? null : new int[width];
+      for (int y = y0; y < y1; y++) {
+        final int offset = y * width;
+        int q = 0;
+        s[0] = 0;
+        t[0] = 0;
+        for (int u = 1; u < width; u++) {
+          while (q >= 0 && f(g, offset, t[q], s[q]) > f(g, offset, t[q], u)) {
+            q--;
+          }
+          if (q < 0) {
+            q = 0;
+            s[0] = u;
+          } else {
+            final int w = 1 + sep(g, offset, s[q], u);
+            if (w < width) {
+              q++;
+              s[q] = u;
+              t[q] = w;
+            }
+          }
+        }
+        for (int u = width - 1; u >= 0; u--) {
+          row[u] = f(g, offset, u, s[q]);
+          if (rowNearest != null) {
+            rowNearest[u] = nearest[offset + s[q]];
+          }
+          if (u == t[q]) {
+            q--;
+          }
+        }
+        System.arraycopy(row, 0, g, offset, width);
+        if (rowNearest != null) {
+          System.arraycopy(rowNearest, 0, nearest, offset, width);
+        }
+      }
+    });
+    return g;
+  }
+
+  /**
+   * Compute the chessboard distance to position x in the row using the column distance at
+   * position i.
+   *
+   * @param g the column distances
+   * @param offset the offset of the row
+   * @param x the position
+   * @param i the column
+   * @return the distance
+   */
+  private static int f(int[] g, int offset, int x, int i) {
+    return Math.max(Math.abs(x - i), g[offset + i]);
+  }
+
+  /**
+   * Compute the position after which the distance from column u is not greater than the distance
+   * from column i (with {@code i < u}).
+   *
+   * @param g the column distances
+   * @param offset the offset of the row
+   * @param i the first column
+   * @param u the second column
+   * @return the separation position
+   */
+  private static int sep(int[] g, int offset, int i, int u) {
+    final int gi = g[offset + i];
+    final int gu = g[offset + u];
+    final int mid = (i + u) / 2;
+    if (gi <= gu) {
+      return Math.max(i + gu, mid);
+    }
+    return Math.min(u - gi, mid);
+  }
+
+  /**
+   * Assign the zero pixels within the distance in order of their distance to the nearest non-zero
+   * pixel. Pixels at the same distance only touch pixels with a lower distance that have been
+   * assigned, or zero pixels, and are selected using the same rule as a single expansion. The
+   * result is identical to repeated single expansions.
+   *
+   * @param values the values
+   * @param distances the distances
+   * @param width the width
+   * @param height the height
+   * @param distance the distance
+   * @param executor the executor (can be null)
+   */
+  private void propagate(int[] values, int[] distances, int width, int height, int distance,
+      @Nullable ExecutorService executor) {
+    int maxLevel = 0;
+    for (final int d : distances) {
+      if (d <= distance && maxLevel < d) {
+        maxLevel = d;
+      }
+    }
+
+    // Sort the pixels by distance; each level is in raster order.
+    final int[] start = new int[maxLevel + 2];
+    for (final int d : distances) {
+      if (d != 0 && d <= maxLevel) {
+        start[d + 1]++;
+      }
+    }
+    int maxSize = 0;
+    for (int level = 1; level <= maxLevel; level++) {
+      maxSize = Math.max(maxSize, start[level + 1]);
+      start[level + 1] += start[level];
+    }
+    final int[] order = new int[start[maxLevel + 1]];
+    final int[] position = start.clone();
+    for (int i = 0; i < distances.length; i++) {
+      final int d = distances[i];
+      if (d != 0 && d <= maxLevel) {
+        order[position[d]++] = i;
+      }
+    }
+
+    final int[] results = new int[maxSize];
+    for (int level = 1; level <= maxLevel; level++) {
+      final int from = start[level];
+      final int size = start[level + 1] - from;
+      final int blocks =
+          executor == null ? 1 : MathUtils.clip(1, threads, size / minPixelsPerThread);
+      runBlocks(executor, blocks, block -> {
+        final ValueSelecter blockSelecter = blocks == 1 ? selecter : new FrequencySelecter();
+        final int j0 = (int) ((long) size * block / blocks);
+        final int j1 = (int) ((long) size * (block + 1) / blocks);
+        for (int j = j0; j < j1; j++) {
+          results[j] = select(blockSelecter, values, width, height, order[from + j]);
+        }
+      });
+      for (int j = 0; j < size; j++) {
+        values[order[from + j]] = results[j];
+      }
+    }
+  }
+
+  /**
+   * Select the value for the pixel from the 3x3 region. Pixels outside the image are extended
+   * from the edge.
+   *
+   * @param selecter the selecter
+   * @param values the values
+   * @param width the width
+   * @param height the height
+   * @param index the index
+   * @return the value
+   */
+  private static int select(ValueSelecter selecter, int[] values, int width, int height,
+      int index) {
+    final int y = index / width;
+    final int x = index - y * width;
+    if (x > 0 && y > 0 && x < width - 1 && y < height - 1) {
+      final int above = index - width;
+      final int below = index + width;
+      return selecter.select(values[above - 1], values[above], values[above + 1],
+          values[index - 1], values[index], values[index + 1], values[below - 1], values[below],
+          values[below + 1]);
+    }
+    final int x1 = Math.max(0, x - 1);
+    final int x2 = Math.min(width - 1, x + 1);
+    final int above = Math.max(0, y - 1) * width;
+    final int row = y * width;
+    final int below = Math.min(height - 1, y + 1) * width;
+    return selecter.select(values[above + x1], values[above + x], values[above + x2],
+        values[row + x1], values[index], values[row + x2], values[below + x1], values[below + x],
+        values[below + x2]);
+  }
+
+  /**
+   * Run the task for each block. Blocks are processed in parallel if an executor is provided.
+   *
+   * @param executor the executor (can be null)
+   * @param blocks the number of blocks
+   * @param task the task
+   */
+  private static void runBlocks(@Nullable ExecutorService executor, int blocks,
+      IntConsumer task) {
+    if (executor == null || blocks == 1) {
+      for (int i = 0; i < blocks; i++) {
+        task.accept(i);
+      }
+      return;
+    }
+    final LocalList<Future<?>> futures = new LocalList<>(blocks);
+    for (int i = 0; i < blocks; i++) {
+      final int block = i;
+      futures.add(executor.submit(() -> task.accept(block)));
+    }
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+  }
+
+  /**
+   * Gets the buffer for the output image.
+   *
+   * @return the buffer
+   */
+  private ImageProcessor getBuffer() {
+    ImageProcessor result = buffer;
+    if (result == null) {
+      result = ip.duplicate();
+      buffer = result;
+    }
+    return result;
+  }
+
   /**
    * Update the pixels from the buffer to the image.
    */
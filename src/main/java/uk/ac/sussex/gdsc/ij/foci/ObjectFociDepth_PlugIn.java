@@ -32,6 +32,7 @@ import customnode.CustomPointMesh;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GUI;
 import ij.gui.GenericDialog;
@@ -65,6 +66,7 @@ import org.jogamp.java3d.View;
 import org.jogamp.vecmath.Color3f;
 import org.jogamp.vecmath.Point3f;
 import uk.ac.sussex.gdsc.core.annotation.Nullable;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
 import uk.ac.sussex.gdsc.core.ij.BufferedTextWindow;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
 import uk.ac.sussex.gdsc.core.match.Coordinate;
@@ -116,6 +118,8 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
     boolean eightConnected;
     boolean showObjects;
     boolean useHull;
+    boolean useDistanceTransform;
+    boolean showDistanceMap;
     boolean showLines;
     String sourceImage;
     boolean showHull3d;
@@ -131,6 +135,8 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
       eightConnected = source.eightConnected;
       showObjects = source.showObjects;
       useHull = source.useHull;
+      useDistanceTransform = source.useDistanceTransform;
+      showDistanceMap = source.showDistanceMap;
       showLines = source.showLines;
       showHull3d = source.showHull3d;
     }
@@ -159,7 +165,8 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
   /**
    * Store the distance to the edge of the object.
    */
-  private static class Distance {
+  @VisibleForTesting
+  static class Distance {
     final AssignedPoint point;
     final int id;
     final double dx;
@@ -181,7 +188,8 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
   /**
    * Define a 2D distance function.
    */
-  private interface Distance2D {
+  @VisibleForTesting
+  interface Distance2D {
     /**
      * Get the distance.
      *
@@ -195,7 +203,8 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
   /**
    * Define a 3D distance function.
    */
-  private interface Distance3D {
+  @VisibleForTesting
+  interface Distance3D {
     /**
      * Get the distance.
      *
@@ -259,6 +268,8 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
       final ObjectAnalyzer3D oa =
           new ObjectAnalyzer3D(image, maxx, maxy, maxz, settings.eightConnected);
       final int[] objectMask = oa.getObjectMask();
+      final ObjectDistanceTransform edt =
+          createDistanceTransform(objectMask, maxx, maxy, maxz, oa.getMaxObject(), cal);
 
       if (settings.useHull) {
         // Function to convert the index to XYZ coordinates
@@ -303,31 +314,40 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
         final double syz = cal.pixelHeight * cal.pixelDepth;
         size0 = toDouble(oa.getSurfaceCount(), c -> c[0] * sxy + c[1] * sxz + c[2] * syz);
 
-        Distance3D df;
-        if (cal.pixelWidth == cal.pixelHeight) {
-          // No XY scaling
-          if (cal.pixelDepth == cal.pixelWidth) {
-            // No scaling
-            df = (dx, dy, dz) -> (double) dx * dx + (double) dy * dy + (double) dz * dz;
+        if (edt != null && settings.useDistanceTransform) {
+          // Look-up the depth in the distance transform
+          results.stream().map(r -> lookup(r, r.getZint() - 1, objectMask, maxx, maxy, edt))
+              .filter(d -> d != null).sequential().forEach(distances::add);
+        } else {
+          Distance3D df;
+          if (cal.pixelWidth == cal.pixelHeight) {
+            // No XY scaling
+            if (cal.pixelDepth == cal.pixelWidth) {
+              // No scaling
+              df = (dx, dy, dz) -> (double) dx * dx + (double) dy * dy + (double) dz * dz;
+            } else {
+              // Z scaling
+              final double sz = MathUtils.pow2(cal.pixelDepth / cal.pixelWidth);
+              df = (dx, dy, dz) -> (double) dx * dx + (double) dy * dy + (double) dz * dz * sz;
+            }
           } else {
-            // Z scaling
+            // YZ scaling
+            final double sy = MathUtils.pow2(cal.pixelHeight / cal.pixelWidth);
             final double sz = MathUtils.pow2(cal.pixelDepth / cal.pixelWidth);
-            df = (dx, dy, dz) -> (double) dx * dx + (double) dy * dy + (double) dz * dz * sz;
+            df = (dx, dy, dz) -> (double) dx * dx + (double) dy * dy * sy + (double) dz * dz * sz;
           }
-        } else {
-          // YZ scaling
-          final double sy = MathUtils.pow2(cal.pixelHeight / cal.pixelWidth);
-          final double sz = MathUtils.pow2(cal.pixelDepth / cal.pixelWidth);
-          df = (dx, dy, dz) -> (double) dx * dx + (double) dy * dy * sy + (double) dz * dz * sz;
-        }
 
-        results.stream().map(r -> search3d(r, objectMask, maxx, maxy, maxz, df))
-            .filter(d -> d != null).sequential().forEach(distances::add);
+          results.stream().map(r -> search3d(r, objectMask, maxx, maxy, maxz, df))
+              .filter(d -> d != null).sequential().forEach(distances::add);
+        }
       }
+      showDistanceMap(edt, maxx, maxy, maxz, cal);
     } else {
       // 2D analysis with the current image processor
       final ObjectAnalyzer oa = new ObjectAnalyzer(ip, settings.eightConnected);
       final int[] objectMask = oa.getObjectMask();
+      final ObjectDistanceTransform edt =
+          createDistanceTransform(objectMask, maxx, maxy, 1, oa.getMaxObject(), cal);
 
       if (settings.useHull) {
         // Function to convert the index to XYZ coordinates
@@ -359,19 +379,26 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
         // Perimeter
         size0 = toDouble(oa.getObjectOutlines(), c -> c.getLength() * cal.pixelWidth);
 
-        Distance2D df;
-        if (cal.pixelWidth == cal.pixelHeight) {
-          // No scaling
-          df = (dx, dy) -> (double) dx * dx + (double) dy * dy;
+        if (edt != null && settings.useDistanceTransform) {
+          // Look-up the depth in the distance transform
+          results.stream().map(r -> lookup(r, 0, objectMask, maxx, maxy, edt))
+              .filter(d -> d != null).sequential().forEach(distances::add);
         } else {
-          // Y scaling
-          final double sy = MathUtils.pow2(cal.pixelHeight / cal.pixelWidth);
-          df = (dx, dy) -> (double) dx * dx + (double) dy * dy * sy;
-        }
+          Distance2D df;
+          if (cal.pixelWidth == cal.pixelHeight) {
+            // No scaling
+            df = (dx, dy) -> (double) dx * dx + (double) dy * dy;
+          } else {
+            // Y scaling
+            final double sy = MathUtils.pow2(cal.pixelHeight / cal.pixelWidth);
+            df = (dx, dy) -> (double) dx * dx + (double) dy * dy * sy;
+          }
 
-        results.stream().map(r -> search2d(r, objectMask, maxx, maxy, df)).filter(d -> d != null)
-            .sequential().forEach(distances::add);
+          results.stream().map(r -> search2d(r, objectMask, maxx, maxy, df))
+              .filter(d -> d != null).sequential().forEach(distances::add);
+        }
       }
+      showDistanceMap(edt, maxx, maxy, 1, cal);
     }
 
     final TextWindow window = createWindow(distancesWindowRef, "Distances",
@@ -426,6 +453,60 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
     }
   }
 
+  /**
+   * Creates the distance transform of each mask object if required for the depth measurement or
+   * the distance map output.
+   *
+   * @param objectMask the object mask
+   * @param maxx the max x dimension of the mask
+   * @param maxy the max y dimension of the mask
+   * @param maxz the max z dimension of the mask
+   * @param maxObject the maximum object value in the mask
+   * @param cal the calibration
+   * @return the distance transform (or null)
+   */
+  @Nullable
+  private ObjectDistanceTransform createDistanceTransform(int[] objectMask, int maxx, int maxy,
+      int maxz, int maxObject, Calibration cal) {
+    if (settings.showDistanceMap || (settings.useDistanceTransform && !settings.useHull)) {
+      return new ObjectDistanceTransform(objectMask, maxx, maxy, maxz, maxObject,
+          cal.pixelHeight / cal.pixelWidth, cal.pixelDepth / cal.pixelWidth, Prefs.getThreads());
+    }
+    return null;
+  }
+
+  /**
+   * Show the distance map of each mask object. The distance is calibrated.
+   *
+   * @param edt the distance transform (can be null)
+   * @param maxx the max x dimension of the mask
+   * @param maxy the max y dimension of the mask
+   * @param maxz the max z dimension of the mask
+   * @param cal the calibration
+   */
+  private void showDistanceMap(ObjectDistanceTransform edt, int maxx, int maxy, int maxz,
+      Calibration cal) {
+    if (edt == null || !settings.showDistanceMap) {
+      return;
+    }
+    final double[] d2 = edt.getSquaredDistances();
+    final ImageStack stack = new ImageStack(maxx, maxy);
+    final int maxx_maxy = maxx * maxy;
+    float max = 0;
+    for (int sl = 0, index = 0; sl < maxz; sl++) {
+      final float[] pixels = new float[maxx_maxy];
+      for (int i = 0; i < maxx_maxy; i++) {
+        pixels[i] = (float) (Math.sqrt(d2[index++]) * cal.pixelWidth);
+        max = Math.max(max, pixels[i]);
+      }
+      stack.addSlice(null, pixels);
+    }
+    final ImagePlus imp =
+        ImageJUtils.display(TITLE + " Distance Map", stack, ImageJUtils.NO_TO_FRONT);
+    imp.setDisplayRange(0, max);
+    imp.setCalibration(cal);
+  }
+
   /**
    * Creates the 3D hull for each mask object.
    *
@@ -548,6 +629,43 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
     return d;
   }
 
+  /**
+   * Look-up the distance from the result to the edge of the containing object in the distance
+   * transform.
+   *
+   * @param point the point
+   * @param z the z index of the point in the mask
+   * @param objectMask the object mask
+   * @param maxx the max x dimension of the mask
+   * @param maxy the max y dimension of the mask
+   * @param edt the distance transform
+   * @return the distance (or null)
+   */
+  @VisibleForTesting
+  static Distance lookup(AssignedPoint point, int z, int[] objectMask, int maxx, int maxy,
+      ObjectDistanceTransform edt) {
+    final int x = point.getXint();
+    final int y = point.getYint();
+    // Check within the image
+    if (x < 0 || x >= maxx || y < 0 || y >= maxy) {
+      return null;
+    }
+
+    final int maxx_maxy = maxx * maxy;
+    final int index = z * maxx_maxy + y * maxx + x;
+    final int objectId = objectMask[index];
+    if (objectId == 0) {
+      // Not within an object
+      return null;
+    }
+
+    // Offset to the nearest edge pixel
+    final int edge = edt.getNearestIndices()[index];
+    final int mod = edge % maxx_maxy;
+    return new Distance(point, objectId, mod % maxx - x, mod / maxx - y, edge / maxx_maxy - z,
+        edt.getSquaredDistances()[index]);
+  }
+
   /**
    * Search from the result to the edge of the containing object in 2D.
    *
@@ -558,7 +676,8 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
    * @param df the distance function
    * @return the distance (or null)
    */
-  private static Distance search2d(AssignedPoint point, int[] objectMask, int maxx, int maxy,
+  @VisibleForTesting
+  static Distance search2d(AssignedPoint point, int[] objectMask, int maxx, int maxy,
       Distance2D df) {
     final int x = point.getXint();
     final int y = point.getYint();
@@ -723,7 +842,8 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
    * @param df the distance function
    * @return the distance (or null)
    */
-  private static Distance search3d(AssignedPoint point, int[] objectMask, int maxx, int maxy,
+  @VisibleForTesting
+  static Distance search3d(AssignedPoint point, int[] objectMask, int maxx, int maxy,
       int maxz, Distance3D df) {
     final int x = point.getXint();
     final int y = point.getYint();
@@ -1059,8 +1179,10 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
       gd.addCheckbox("3D", settings.is3d);
     }
     gd.addCheckbox("Use_convex_hull", settings.useHull);
+    gd.addCheckbox("Use_distance_transform", settings.useDistanceTransform);
     gd.addCheckbox("Eight_connected", settings.eightConnected);
     gd.addCheckbox("Show_objects", settings.showObjects);
+    gd.addCheckbox("Show_distance_map", settings.showDistanceMap);
     gd.addCheckbox("Show_lines", settings.showLines);
     gd.addMessage("Requires ImageJ 3D Viewer:");
     gd.addCheckbox("Show_hull_3d", settings.showHull3d);
@@ -1078,8 +1200,10 @@ public class ObjectFociDepth_PlugIn implements PlugInFilter {
       settings.is3d = gd.getNextBoolean();
     }
     settings.useHull = gd.getNextBoolean();
+    settings.useDistanceTransform = gd.getNextBoolean();
     settings.eightConnected = gd.getNextBoolean();
     settings.showObjects = gd.getNextBoolean();
+    settings.showDistanceMap = gd.getNextBoolean();
     settings.showLines = gd.getNextBoolean();
     settings.showHull3d = gd.getNextBoolean();
     settings.save();
@@ -0,0 +1,245 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.foci;
+
+import java.util.function.IntConsumer;
+
+/**
+ * A run-length encoded index of the pixels of each object in an object mask.
+ *
+ * <p>The index is created once when the objects are labelled. Each object is stored as a list of
+ * runs of consecutive pixels within an image row, in raster-scan order. The size, bounding box and
+ * centroid of each object are computed when the index is created. Per-object queries cost
+ * O(object pixels) rather than a scan of the entire image.
+ *
+ * <p>Objects are numbered from 1 to the maximum object number. Pixel positions are the index in
+ * the image data: {@code z * maxx * maxy + y * maxx + x}.
+ */
+public final class ObjectIndex {
+  private final int maxx;
+  private final int maxy;
+  private final int maxObject;
+
+  /** The index of the first run of each object (the end is the start of the next object). */
+  private final int[] objectOffset;
+  /** The pixel index of the start of each run. */
+  private final int[] runIndex;
+  /** The length of each run. */
+  private final int[] runLength;
+
+  private final int[] sizes;
+  /** The bounds of each object packed as [minx, miny, minz, maxx, maxy, maxz]. */
+  private final int[] bounds;
+  private final long[] sumx;
+  private final long[] sumy;
+  private final long[] sumz;
+
+  /**
+   * Create a new instance from the labelled runs of each row. The runs in each row must be in
+   * ascending order.
+   *
+   * @param maxx the maxx
+   * @param maxy the maxy
+   * @param maxObject the max object
+   * @param rowOffset the index of the first run of each row (length = rows + 1)
+   * @param runStart the start x of each run
+   * @param runEnd the end x of each run (inclusive)
+   * @param runLabel the object label of each run (zero is ignored)
+   */
+  ObjectIndex(int maxx, int maxy, int maxObject, int[] rowOffset, int[] runStart, int[] runEnd,
+      int[] runLabel) {
+    this.maxx = maxx;
+    this.maxy = maxy;
+    this.maxObject = maxObject;
+
+    // Count the runs of each object
+    objectOffset = new int[maxObject + 2];
+    for (final int label : runLabel) {
+      if (label != 0) {
+        objectOffset[label + 1]++;
+      }
+    }
+    for (int i = 1; i < objectOffset.length; i++) {
+      objectOffset[i] += objectOffset[i - 1];
+    }
+    final int total = objectOffset[maxObject + 1];
+    runIndex = new int[total];
+    runLength = new int[total];
+
+    sizes = new int[maxObject + 1];
+    bounds = new int[6 * (maxObject + 1)];
+    for (int i = 0; i < bounds.length; i += 6) {
+      bounds[i] = bounds[i + 1] = bounds[i + 2] = Integer.MAX_VALUE;
+    }
+    sumx = new long[maxObject + 1];
+    sumy = new long[maxObject + 1];
+    sumz = new long[maxObject + 1];
+
+    // Sort the runs by object. Processing rows in order maintains raster order.
+    final int[] next = objectOffset.clone();
+    final int rows = rowOffset.length - 1;
+    for (int row = 0; row < rows; row++) {
+      final int y = row % maxy;
+      final int z = row / maxy;
+      final int offset = row * maxx;
+      for (int i = rowOffset[row]; i < rowOffset[row + 1]; i++) {
+        final int label = runLabel[i];
+        if (label == 0) {
+          continue;
+        }
+        final int start = runStart[i];
+        final int end = runEnd[i];
+        final int length = end - start + 1;
+        final int k = next[label]++;
+        runIndex[k] = offset + start;
+        runLength[k] = length;
+
+        sizes[label] += length;
+        sumx[label] += (long) (start + end) * length / 2;
+        sumy[label] += (long) y * length;
+        sumz[label] += (long) z * length;
+        final int j = 6 * label;
+        bounds[j] = Math.min(bounds[j], start);
+        bounds[j + 1] = Math.min(bounds[j + 1], y);
+        bounds[j + 2] = Math.min(bounds[j + 2], z);
+        bounds[j + 3] = Math.max(bounds[j + 3], end);
+        bounds[j + 4] = Math.max(bounds[j + 4], y);
+        bounds[j + 5] = Math.max(bounds[j + 5], z);
+      }
+    }
+  }
+
+  /**
+   * Gets the max object number.
+   *
+   * @return the max object
+   */
+  public int getMaxObject() {
+    return maxObject;
+  }
+
+  /**
+   * Gets the number of pixels in the object.
+   *
+   * @param object the object
+   * @return the size
+   */
+  public int getSize(int object) {
+    return sizes[object];
+  }
+
+  /**
+   * Gets the bounds of the object. The bounds are inclusive.
+   *
+   * @param object the object
+   * @return the bounds [minx, miny, minz, maxx, maxy, maxz]
+   */
+  public int[] getBounds(int object) {
+    final int[] result = new int[6];
+    System.arraycopy(bounds, 6 * object, result, 0, 6);
+    return result;
+  }
+
+  /**
+   * Gets the centroid of the object (the mean of the pixel coordinates).
+   *
+   * @param object the object
+   * @return the centroid [cx, cy, cz]
+   */
+  public double[] getCentroid(int object) {
+    final double n = sizes[object];
+    return new double[] {sumx[object] / n, sumy[object] / n, sumz[object] / n};
+  }
+
+  /**
+   * Gets the pixel index of the first pixel of the object in raster-scan order.
+   *
+   * @param object the object
+   * @return the first index
+   */
+  public int getFirstIndex(int object) {
+    return runIndex[objectOffset[object]];
+  }
+
+  /**
+   * Perform the action for each pixel index of the object in raster-scan order.
+   *
+   * @param object the object
+   * @param action the action
+   */
+  public void forEachIndex(int object, IntConsumer action) {
+    for (int i = objectOffset[object]; i < objectOffset[object + 1]; i++) {
+      for (int index = runIndex[i], end = index + runLength[i]; index < end; index++) {
+        action.accept(index);
+      }
+    }
+  }
+
+  /**
+   * Compute the intensity moments of each object in a single pass over the object pixels. Data is
+   * stored indexed by the object value so processing of results should start from 1.
+   *
+   * <p>The moments are the sum of the intensity, the sum of the squared intensity and the intensity
+   * weighted centroid. The pixels of each object are summed in raster-scan order.
+   *
+   * @param image the image
+   * @return the moments [object][sum, sumSq, cx, cy, cz]
+   */
+  public double[][] getIntensityMoments(float[] image) {
+    final int maxxByMaxy = maxx * maxy;
+    final double[][] moments = new double[maxObject + 1][5];
+    for (int object = 1; object <= maxObject; object++) {
+      double sum = 0;
+      double sumSq = 0;
+      double sx = 0;
+      double sy = 0;
+      double sz = 0;
+      for (int i = objectOffset[object]; i < objectOffset[object + 1]; i++) {
+        final int start = runIndex[i];
+        final int z = start / maxxByMaxy;
+        final int mod = start % maxxByMaxy;
+        final int y = mod / maxx;
+        final int x0 = mod % maxx;
+        double rowSum = 0;
+        for (int j = 0; j < runLength[i]; j++) {
+          final double v = image[start + j];
+          sum += v;
+          sumSq += v * v;
+          rowSum += v;
+          sx += v * (x0 + j);
+        }
+        sy += rowSum * y;
+        sz += rowSum * z;
+      }
+      final double[] m = moments[object];
+      m[0] = sum;
+      m[1] = sumSq;
+      m[2] = sx / sum;
+      m[3] = sy / sum;
+      m[4] = sz / sum;
+    }
+    return moments;
+  }
+}
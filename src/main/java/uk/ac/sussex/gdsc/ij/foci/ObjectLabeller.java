@@ -0,0 +1,379 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.foci;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
+
+/**
+ * Label objects defined by contiguous pixels of the same value.
+ *
+ * <p>Each image row is encoded as runs of pixels with the same non-zero value. Runs in adjacent
+ * rows are joined using a union-find structure. The image is divided into blocks of rows (2D) or
+ * slabs of planes (3D) which are processed in parallel; the joins across block boundaries are then
+ * performed sequentially.
+ *
+ * <p>Objects are numbered in the raster-scan order of their first pixel. This is the same
+ * numbering as a flood fill started from each unlabelled pixel in raster-scan order. The runs are
+ * used to create an {@link ObjectIndex} of the pixels of each object.
+ */
+final class ObjectLabeller {
+  /** The default minimum number of pixels per thread. */
+  private static final int MIN_PIXELS_PER_THREAD = 1 << 16;
+
+  private final int maxx;
+  private final int maxy;
+  private final int maxz;
+  private final boolean eightConnected;
+  private int minPixelsPerThread = MIN_PIXELS_PER_THREAD;
+
+  /** The index of the first run for each row (length = rows + 1). */
+  private int[] rowOffset;
+  /** The start x of each run. */
+  private int[] runStart;
+  /** The end x of each run (inclusive). */
+  private int[] runEnd;
+  /** The pixel value of each run. */
+  private int[] runValue;
+  /** The union-find parent of each run. */
+  private int[] parent;
+  /** The object label of each run. */
+  private int[] runLabel;
+  /** The index of the runs of each object. */
+  private ObjectIndex objectIndex;
+
+  /**
+   * Create a new instance.
+   *
+   * @param maxx the maxx
+   * @param maxy the maxy
+   * @param maxz the maxz
+   * @param eightConnected set to true to use 8-connected pixels (26-connected in 3D); the default
+   *        is 4-connected (6-connected in 3D)
+   */
+  ObjectLabeller(int maxx, int maxy, int maxz, boolean eightConnected) {
+    this.maxx = maxx;
+    this.maxy = maxy;
+    this.maxz = maxz;
+    this.eightConnected = eightConnected;
+  }
+
+  /**
+   * Sets the minimum number of pixels to process per thread.
+   *
+   * @param minPixelsPerThread the new minimum pixels per thread
+   */
+  void setMinPixelsPerThread(int minPixelsPerThread) {
+    this.minPixelsPerThread = Math.max(1, minPixelsPerThread);
+  }
+
+  /**
+   * Label the objects in the image. Objects below the minimum size are removed and the remaining
+   * objects are renumbered consecutively.
+   *
+   * @param image the image
+   * @param objectMask the object mask (must be zero filled)
+   * @param minObjectSize the minimum object size
+   * @param threads the number of threads
+   * @return the maximum object number
+   */
+  int label(int[] image, int[] objectMask, int minObjectSize, int threads) {
+    final int rows = maxy * maxz;
+    // The unit of parallel work is a row in 2D or a plane in 3D
+    final int unit = (maxz == 1) ? 1 : maxy;
+    final int units = rows / unit;
+    final int threadCount = MathUtils.clip(1, Math.max(1, units),
+        Math.min(threads, image.length / minPixelsPerThread));
+    final int[] blockStart = new int[threadCount + 1];
+    for (int i = 1; i <= threadCount; i++) {
+      blockStart[i] = (int) ((long) units * i / threadCount) * unit;
+    }
+
+    // Count the runs in each row
+    final int[] rowCount = new int[rows];
+    runBlocks(threadCount, block -> {
+      for (int row = blockStart[block]; row < blockStart[block + 1]; row++) {
+        rowCount[row] = countRuns(image, row * maxx);
+      }
+    });
+    rowOffset = new int[rows + 1];
+    for (int row = 0; row < rows; row++) {
+      rowOffset[row + 1] = rowOffset[row] + rowCount[row];
+    }
+    final int size = rowOffset[rows];
+    runStart = new int[size];
+    runEnd = new int[size];
+    runValue = new int[size];
+    parent = new int[size];
+
+    // Create the runs and join the rows within each block
+    runBlocks(threadCount, block -> {
+      final int start = blockStart[block];
+      for (int row = start; row < blockStart[block + 1]; row++) {
+        createRuns(image, row);
+        joinRow(row, start, row);
+      }
+    });
+
+    // Join across the block boundaries.
+    // Rows in the first unit of a block may join rows in the previous block.
+    for (int block = 1; block < threadCount; block++) {
+      final int start = blockStart[block];
+      for (int row = start; row < start + unit; row++) {
+        joinRow(row, 0, start);
+      }
+    }
+
+    // Assign labels in raster order. The root of each object is its first run.
+    runLabel = new int[size];
+    int maxObject = 0;
+    int[] sizes = new int[16];
+    for (int i = 0; i < size; i++) {
+      final int root = find(i);
+      if (root == i) {
+        runLabel[i] = ++maxObject;
+        if (sizes.length == maxObject) {
+          sizes = Arrays.copyOf(sizes, maxObject * 2);
+        }
+      } else {
+        runLabel[i] = runLabel[root];
+      }
+      sizes[runLabel[i]] += runEnd[i] - runStart[i] + 1;
+    }
+
+    // Remove objects that are too small
+    if (minObjectSize > 0) {
+      final int[] map = new int[maxObject + 1];
+      maxObject = 0;
+      for (int i = 1; i < map.length; i++) {
+        if (sizes[i] >= minObjectSize) {
+          map[i] = ++maxObject;
+        }
+      }
+      for (int i = 0; i < size; i++) {
+        runLabel[i] = map[runLabel[i]];
+      }
+    }
+
+    objectIndex = new ObjectIndex(maxx, maxy, maxObject, rowOffset, runStart, runEnd, runLabel);
+
+    // Write the mask
+    runBlocks(threadCount, block -> {
+      for (int row = blockStart[block]; row < blockStart[block + 1]; row++) {
+        final int offset = row * maxx;
+        for (int i = rowOffset[row]; i < rowOffset[row + 1]; i++) {
+          if (runLabel[i] != 0) {
+            Arrays.fill(objectMask, offset + runStart[i], offset + runEnd[i] + 1, runLabel[i]);
+          }
+        }
+      }
+    });
+
+    // Release the working data
+    rowOffset = runStart = runEnd = runValue = parent = runLabel = null;
+    return maxObject;
+  }
+
+  /**
+   * Gets the run-length encoded index of the objects created by the last call to
+   * {@link #label(int[], int[], int, int)}.
+   *
+   * @return the object index
+   */
+  ObjectIndex getObjectIndex() {
+    return objectIndex;
+  }
+
+  /**
+   * Run the task for each block. Blocks are processed in parallel if there is more than one.
+   *
+   * @param blocks the number of blocks
+   * @param task the task
+   */
+  private static void runBlocks(int blocks, IntConsumer task) {
+    if (blocks == 1) {
+      task.accept(0);
+      return;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(blocks);
+    final LocalList<Future<?>> futures = new LocalList<>(blocks);
+    for (int i = 0; i < blocks; i++) {
+      final int block = i;
+      futures.add(executor.submit(() -> task.accept(block)));
+    }
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+  }
+
+  /**
+   * Count the runs of non-zero pixels with the same value in the row.
+   *
+   * @param image the image
+   * @param offset the offset of the row
+   * @return the count
+   */
+  private int countRuns(int[] image, int offset) {
+    int count = 0;
+    int last = 0;
+    for (int x = 0; x < maxx; x++) {
+      final int value = image[offset + x];
+      if (value != last && value != 0) {
+        count++;
+      }
+      last = value;
+    }
+    return count;
+  }
+
+  /**
+   * Create the runs of non-zero pixels with the same value in the row. Each run is initialised as
+   * its own union-find set.
+   *
+   * @param image the image
+   * @param row the row
+   */
+  private void createRuns(int[] image, int row) {
+    final int offset = row * maxx;
+    int i = rowOffset[row];
+    int last = 0;
+    for (int x = 0; x < maxx; x++) {
+      final int value = image[offset + x];
+      if (value != last) {
+        if (last != 0) {
+          runEnd[i++] = x - 1;
+        }
+        if (value != 0) {
+          runStart[i] = x;
+          runValue[i] = value;
+          parent[i] = i;
+        }
+        last = value;
+      }
+    }
+    if (last != 0) {
+      runEnd[i] = maxx - 1;
+    }
+  }
+
+  /**
+   * Join the runs in the row to the runs in the connected neighbour rows that are within the
+   * range {@code [lower, upper)}. Neighbour rows are the previous row in the same plane and, in
+   * 3D, the rows in the previous plane.
+   *
+   * @param row the row
+   * @param lower the lower limit of the neighbour rows (inclusive)
+   * @param upper the upper limit of the neighbour rows (exclusive)
+   */
+  private void joinRow(int row, int lower, int upper) {
+    final int y = row % maxy;
+    final int z = row / maxy;
+    // Previous row in the same plane
+    if (y > 0) {
+      joinRows(row, row - 1, lower, upper, eightConnected);
+    }
+    if (z > 0) {
+      // Previous plane
+      final int previous = row - maxy;
+      joinRows(row, previous, lower, upper, eightConnected);
+      if (eightConnected) {
+        if (y > 0) {
+          joinRows(row, previous - 1, lower, upper, true);
+        }
+        if (y < maxy - 1) {
+          joinRows(row, previous + 1, lower, upper, true);
+        }
+      }
+    }
+  }
+
+  /**
+   * Join the runs in the two rows if they overlap and have the same value.
+   *
+   * @param row the row
+   * @param other the other row
+   * @param lower the lower limit of the other row (inclusive)
+   * @param upper the upper limit of the other row (exclusive)
+   * @param diagonal set to true to join runs that are diagonally connected
+   */
+  private void joinRows(int row, int other, int lower, int upper, boolean diagonal) {
+    if (other < lower || other >= upper) {
+      return;
+    }
+    final int d = diagonal ? 1 : 0;
+    int j = rowOffset[other];
+    final int jEnd = rowOffset[other + 1];
+    for (int i = rowOffset[row], iEnd = rowOffset[row + 1]; i < iEnd && j < jEnd; i++) {
+      final int lo = runStart[i] - d;
+      final int hi = runEnd[i] + d;
+      // Skip runs that end before this run
+      while (j < jEnd && runEnd[j] < lo) {
+        j++;
+      }
+      for (int k = j; k < jEnd && runStart[k] <= hi; k++) {
+        if (runValue[k] == runValue[i]) {
+          union(i, k);
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the root of the set containing the run. Uses path halving.
+   *
+   * @param index the run index
+   * @return the root
+   */
+  private int find(int index) {
+    int i = index;
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  /**
+   * Join the sets containing the two runs. The root is the run with the lowest index, i.e. the
+   * first run of the object in raster-scan order.
+   *
+   * @param index1 the first run index
+   * @param index2 the second run index
+   */
+  private void union(int index1, int index2) {
+    final int root1 = find(index1);
+    final int root2 = find(index2);
+    if (root1 < root2) {
+      parent[root2] = root1;
+    } else if (root2 < root1) {
+      parent[root1] = root2;
+    }
+  }
+}
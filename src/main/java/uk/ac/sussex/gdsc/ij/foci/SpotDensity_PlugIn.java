@@ -26,6 +26,7 @@ package uk.ac.sussex.gdsc.ij.foci;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.gui.Plot;
@@ -46,10 +47,22 @@ import java.awt.event.MouseEvent;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ObjDoubleConsumer;
 import uk.ac.sussex.gdsc.core.annotation.Nullable;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
+import uk.ac.sussex.gdsc.core.trees.DoubleDistanceFunction;
+import uk.ac.sussex.gdsc.core.trees.DoubleDistanceFunctions;
+import uk.ac.sussex.gdsc.core.trees.KdTrees;
+import uk.ac.sussex.gdsc.core.trees.ObjDoubleKdTree;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
 import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 
 /**
@@ -62,6 +75,8 @@ import uk.ac.sussex.gdsc.ij.UsageTracker;
  */
 public class SpotDensity_PlugIn implements PlugIn {
   private static final String TITLE = "Spot Density";
+  /** The number of foci processed as a block by each worker thread. */
+  private static final int FOCI_BLOCK_SIZE = 256;
   private static AtomicReference<TextWindow> resultsWindowRef = new AtomicReference<>();
 
   /** The results of analysis. This can be updated by running the plugin. */
@@ -139,7 +154,8 @@ public class SpotDensity_PlugIn implements PlugIn {
     }
   }
 
-  private static class Foci {
+  @VisibleForTesting
+  static class Foci {
     final int id;
     final int x;
     final int y;
@@ -157,6 +173,67 @@ public class SpotDensity_PlugIn implements PlugIn {
     }
   }
 
+  /**
+   * Histograms of the distances from set 1 foci to set 2 foci.
+   */
+  @VisibleForTesting
+  static class DistanceHistograms {
+    /** The number of set 1 foci analysed. */
+    int n1;
+    /** The histogram of the distances to set 2 foci within the analysis distance. */
+    final int[] h1;
+    /** The histogram of the minimum distance to set 2 foci. */
+    final int[] h2;
+    /** The minimum distance to set 2 foci. Only the first {@link #count} values are used. */
+    final double[] distances;
+    /** The count of minimum distances. */
+    int count;
+
+    DistanceHistograms(int nbins, int size) {
+      h1 = new int[nbins];
+      h2 = new int[nbins];
+      distances = new double[size];
+    }
+  }
+
+  /**
+   * Count the distance to neighbour foci and record the minimum distance.
+   */
+  private static class FociCounter implements ObjDoubleConsumer<Foci> {
+    /** The histogram of the distances within the analysis distance. */
+    final int[] h1;
+    final double maxDistance2;
+    final double interval;
+    /** The id of the foci to ignore. */
+    int ignore;
+    /** The minimum squared distance. */
+    double min;
+
+    FociCounter(int nbins, double maxDistance2, double interval) {
+      h1 = new int[nbins];
+      this.maxDistance2 = maxDistance2;
+      this.interval = interval;
+    }
+
+    void reset(int ignore) {
+      this.ignore = ignore;
+      min = Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public void accept(Foci foci, double d2) {
+      if (foci.id == ignore) {
+        return;
+      }
+      if (d2 < maxDistance2) {
+        h1[(int) (Math.sqrt(d2) / interval)]++;
+      }
+      if (d2 < min) {
+        min = d2;
+      }
+    }
+  }
+
   @Override
   public void run(String arg) {
     UsageTracker.recordPlugin(this.getClass(), arg);
@@ -305,12 +382,6 @@ public class SpotDensity_PlugIn implements PlugIn {
    */
   private void analyse(Foci[] foci1, Foci[] foci2, boolean identical, FloatProcessor map) {
     final int nbins = (int) (settings.distance / settings.interval) + 1;
-    final double maxDistance2 = settings.distance * settings.distance;
-    final int[] h1 = new int[nbins];
-    final int[] h2 = new int[nbins];
-
-    final double[] distances = new double[foci1.length];
-    int count = 0;
 
     // Update the second set to foci inside the mask (analysis region)
     int n2 = 0;
@@ -321,40 +392,13 @@ public class SpotDensity_PlugIn implements PlugIn {
       }
     }
 
-    int n1 = 0;
-    for (int i = foci1.length; i-- > 0;) {
-      final Foci m = foci1[i];
-      // Ignore molecules that are near the edge of the analysis region
-      if (map.getPixelValue(m.x, m.y) < settings.distance) {
-        continue;
-      }
-      n1++;
-
-      double min = Double.POSITIVE_INFINITY;
-      for (int j = n2; j-- > 0;) {
-        final Foci m2 = foci2[j];
-
-        if (identical && m.id == m2.id) {
-          continue;
-        }
-
-        final double d2 = m.distance2(m2);
-        if (d2 < maxDistance2) {
-          h1[(int) (Math.sqrt(d2) / settings.interval)]++;
-        }
-        if (d2 < min) {
-          min = d2;
-        }
-      }
-
-      if (min != Double.POSITIVE_INFINITY) {
-        min = Math.sqrt(min);
-        if (min < settings.distance) {
-          h2[(int) (min / settings.interval)]++;
-        }
-        distances[count++] = min;
-      }
-    }
+    final DistanceHistograms histograms = computeHistograms(foci1, foci2, n2, identical, map,
+        settings.distance, settings.interval, Prefs.getThreads());
+    final int n1 = histograms.n1;
+    final int[] h1 = histograms.h1;
+    final int[] h2 = histograms.h2;
+    final double[] distances = histograms.distances;
+    final int count = histograms.count;
 
     double[] radii = new double[nbins + 1];
     for (int i = 0; i <= nbins; i++) {
@@ -448,6 +492,116 @@ public class SpotDensity_PlugIn implements PlugIn {
     createResultsWindow().append(sb.toString());
   }
 
+  /**
+   * For all foci in set 1, compare to set 2 and compute a histogram of the distance to set 2 foci
+   * within the analysis distance and a histogram of the minimum distance to another foci.
+   *
+   * <p>Set 2 foci are indexed using a KD-tree. The set 1 foci are processed in parallel using a
+   * range search bounded by the analysis distance; the nearest neighbour is only searched for
+   * explicitly when no set 2 foci are within range. The results are identical to comparing all
+   * pairs of foci.
+   *
+   * <p>Foci too close to the edge of the analysis region are ignored from set 1.
+   *
+   * @param foci1 the foci 1
+   * @param foci2 the foci 2
+   * @param n2 the number of foci to use from set 2
+   * @param identical True if the two sets are the same foci (self comparisons will be ignored)
+   * @param map the map containing the distance to the edge of the mask (analysis) region
+   * @param distance the analysis distance
+   * @param interval the histogram interval
+   * @param threads the number of threads
+   * @return the histograms
+   */
+  @VisibleForTesting
+  static DistanceHistograms computeHistograms(Foci[] foci1, Foci[] foci2, int n2,
+      boolean identical, FloatProcessor map, double distance, double interval, int threads) {
+    final int nbins = (int) (distance / interval) + 1;
+    final double maxDistance2 = distance * distance;
+
+    final ObjDoubleKdTree<Foci> tree = KdTrees.newObjDoubleKdTree(2);
+    for (int j = 0; j < n2; j++) {
+      final Foci m2 = foci2[j];
+      tree.add(new double[] {m2.x, m2.y}, m2);
+    }
+
+    final DistanceHistograms histograms = new DistanceHistograms(nbins, foci1.length);
+    final int[] h1 = histograms.h1;
+
+    // The squared distance to the nearest neighbour of each set 1 foci.
+    // This is NaN if the foci is excluded and infinite if there is no neighbour.
+    final double[] nearest = new double[foci1.length];
+
+    // Process blocks of set 1 in parallel with a private density histogram for each thread
+    final int blocks = (foci1.length + FOCI_BLOCK_SIZE - 1) / FOCI_BLOCK_SIZE;
+    final int threadCount = MathUtils.clip(1, Math.max(1, blocks), threads);
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+    final AtomicInteger nextBlock = new AtomicInteger();
+    for (int i = 0; i < threadCount; i++) {
+      futures.add(executor.submit(() -> {
+        final FociCounter counter = new FociCounter(nbins, maxDistance2, interval);
+        final double[] location = new double[2];
+        final DoubleDistanceFunction df = DoubleDistanceFunctions.SQUARED_EUCLIDEAN_2D;
+        for (int block = nextBlock.getAndIncrement(); block < blocks;
+            block = nextBlock.getAndIncrement()) {
+          final int from = block * FOCI_BLOCK_SIZE;
+          final int to = Math.min(foci1.length, from + FOCI_BLOCK_SIZE);
+          for (int index = from; index < to; index++) {
+            final Foci m = foci1[index];
+            // Ignore molecules that are near the edge of the analysis region
+            if (map.getPixelValue(m.x, m.y) < distance) {
+              nearest[index] = Double.NaN;
+              continue;
+            }
+            location[0] = m.x;
+            location[1] = m.y;
+            counter.reset(identical ? m.id : -1);
+            tree.findNeighbours(location, maxDistance2, df, counter);
+            if (counter.min == Double.POSITIVE_INFINITY) {
+              // Nothing in range. The minimum distance is outside the analysis distance.
+              final int ignore = counter.ignore;
+              tree.nearestNeighbour(location, df, f -> f.id != ignore,
+                  (f, d2) -> counter.min = d2);
+            }
+            nearest[index] = counter.min;
+          }
+        }
+        // Merge the thread histogram
+        synchronized (h1) {
+          for (int k = 0; k < nbins; k++) {
+            h1[k] += counter.h1[k];
+          }
+        }
+      }));
+    }
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+
+    // Collate the nearest neighbour distances in the same order as the pairwise comparison
+    final int[] h2 = histograms.h2;
+    final double[] distances = histograms.distances;
+    int n1 = 0;
+    int count = 0;
+    for (int i = foci1.length; i-- > 0;) {
+      double min = nearest[i];
+      if (Double.isNaN(min)) {
+        continue;
+      }
+      n1++;
+      if (min != Double.POSITIVE_INFINITY) {
+        min = Math.sqrt(min);
+        if (min < distance) {
+          h2[(int) (min / interval)]++;
+        }
+        distances[count++] = min;
+      }
+    }
+    histograms.n1 = n1;
+    histograms.count = count;
+    return histograms;
+  }
+
   private static PlotWindow showPairCorrelation(PairCorrelation pc) {
     final double avDensity = (double) pc.numberOfPoints / pc.area;
     final String title = "Pair Correlation";
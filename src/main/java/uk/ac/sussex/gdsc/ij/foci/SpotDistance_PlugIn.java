@@ -27,6 +27,7 @@ package uk.ac.sussex.gdsc.ij.foci;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.gui.Overlay;
@@ -42,19 +43,25 @@ import ij.text.TextWindow;
 import java.awt.Color;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import uk.ac.sussex.gdsc.core.annotation.Nullable;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
 import uk.ac.sussex.gdsc.core.match.MatchCalculator;
 import uk.ac.sussex.gdsc.core.match.PointPair;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
 import uk.ac.sussex.gdsc.core.utils.MathUtils;
 import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 import uk.ac.sussex.gdsc.ij.ext.plugin.filter.DifferenceOfGaussians;
-import uk.ac.sussex.gdsc.ij.foci.FindFociOptions.OutputOption;
 import uk.ac.sussex.gdsc.ij.foci.FindFociProcessorOptions.AlgorithmOption;
 import uk.ac.sussex.gdsc.ij.foci.FindFociProcessorOptions.BackgroundMethod;
 import uk.ac.sussex.gdsc.ij.foci.FindFociProcessorOptions.CentreMethod;
@@ -111,12 +118,6 @@ public class SpotDistance_PlugIn implements PlugIn {
   private Calibration cal;
   private double maxDistance2;
 
-  // Used to cache the mask region
-  private int[] regions;
-  private ImagePlus regionImp;
-  private Rectangle bounds = new Rectangle();
-  private Rectangle cachedBlurBounds;
-
   // Store the last frame results to allow primitive tracking
   private ArrayList<DistanceResult> prevResultsArray;
   private ArrayList<DistanceResult> prevResultsArray2;
@@ -272,6 +273,58 @@ public class SpotDistance_PlugIn implements PlugIn {
     }
   }
 
+  /**
+   * The mask regions for a frame. Each region has a mask image cropped to the region bounds.
+   */
+  private static class FrameMask {
+    /** The region values. */
+    final int[] regions;
+    /** The mask for each region cropped to the region bounds. */
+    final ImagePlus[] regionImps;
+    /** The bounds of each region. */
+    final Rectangle[] regionBounds;
+    /** The bounds of all the regions (used for filtering). */
+    final Rectangle blurBounds;
+
+    FrameMask(int[] regions, ImagePlus[] regionImps, Rectangle[] regionBounds,
+        Rectangle blurBounds) {
+      this.regions = regions;
+      this.regionImps = regionImps;
+      this.regionBounds = regionBounds;
+      this.blurBounds = blurBounds;
+    }
+  }
+
+  /**
+   * The output of the analysis of a mask region. This is written to the results in region order.
+   */
+  private static class RegionOutput {
+    final LocalList<String> results = new LocalList<>();
+    final LocalList<String> summary = new LocalList<>();
+    final LocalList<String> distances = new LocalList<>();
+    final LocalList<Roi> rois = new LocalList<>();
+    final LocalList<Roi> rois2 = new LocalList<>();
+  }
+
+  /**
+   * The analysis of a frame.
+   */
+  private static class FrameJob {
+    final int frame;
+    /** The output for each region. */
+    final RegionOutput[] outputs;
+    /** Set to true if using the second channel overlay. */
+    final boolean hasOverlay2;
+    /** The futures for the region analysis. */
+    final LocalList<Future<?>> futures = new LocalList<>();
+
+    FrameJob(int frame, int regions, boolean hasOverlay2) {
+      this.frame = frame;
+      this.outputs = new RegionOutput[regions];
+      this.hasOverlay2 = hasOverlay2;
+    }
+  }
+
   @Override
   public void run(String arg) {
     UsageTracker.recordPlugin(this.getClass(), arg);
@@ -437,62 +490,81 @@ public class SpotDistance_PlugIn implements PlugIn {
 
     // Cache the mask image. Only recreate the mask if using multiple frames
     ImageStack s2 = null;
+    FrameMask frameMask = null;
 
     final int[] frames = buildFrameList();
 
     createProjection(frames, doDualChannel);
 
-    for (int i = 0; i < frames.length; i++) {
-      final int frame = frames[i];
-
-      // Build an image and mask for the frame
-      final ImageStack s1 = new ImageStack(imp.getWidth(), imp.getHeight(), imp.getNSlices());
-      final ImageStack s1b =
-          (doDualChannel) ? new ImageStack(imp.getWidth(), imp.getHeight(), imp.getNSlices())
-              : null;
-
-      for (int slice = 1; slice <= imp.getNSlices(); slice++) {
-        int stackIndex = imp.getStackIndex(channel, slice, frame);
-        ImageProcessor ip = imageStack.getProcessor(stackIndex);
-        s1.setPixels(ip.getPixels(), slice);
-        if (doDualChannel) {
-          stackIndex = imp.getStackIndex(settings.c2, slice, frame);
-          ip = imageStack.getProcessor(stackIndex);
-          s1b.setPixels(ip.getPixels(), slice);
+    // Frames are filtered and analysed concurrently. The number of frames in progress is limited
+    // to bound the memory used for the filtered images. Output is written in frame order.
+    final int threadCount = Prefs.getThreads();
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final ArrayDeque<FrameJob> jobs = new ArrayDeque<>();
+    int done = 0;
+    try {
+      for (final int frame : frames) {
+        // Build an image and mask for the frame
+        final ImageStack s1 = new ImageStack(imp.getWidth(), imp.getHeight(), imp.getNSlices());
+        final ImageStack s1b =
+            (doDualChannel) ? new ImageStack(imp.getWidth(), imp.getHeight(), imp.getNSlices())
+                : null;
+
+        for (int slice = 1; slice <= imp.getNSlices(); slice++) {
+          int stackIndex = imp.getStackIndex(channel, slice, frame);
+          ImageProcessor ip = imageStack.getProcessor(stackIndex);
+          s1.setPixels(ip.getPixels(), slice);
+          if (doDualChannel) {
+            stackIndex = imp.getStackIndex(settings.c2, slice, frame);
+            ip = imageStack.getProcessor(stackIndex);
+            s1b.setPixels(ip.getPixels(), slice);
+          }
         }
-      }
 
-      if (s2 == null) {
-        s2 = new ImageStack(imp.getWidth(), imp.getHeight(), maskImp.getNSlices());
+        if (s2 == null) {
+          s2 = new ImageStack(imp.getWidth(), imp.getHeight(), maskImp.getNSlices());
 
-        // Only create a mask with 1 slice if necessary
-        for (int slice = 1; slice <= maskImp.getNSlices(); slice++) {
-          final int maskChannel = (maskImp.getNChannels() > 1) ? channel : 1;
-          final int maskFrame = (maskImp.getNFrames() > 1) ? frame : 1;
-          final int maskSlice = (maskImp.getNSlices() > 1) ? slice : 1;
+          // Only create a mask with 1 slice if necessary
+          for (int slice = 1; slice <= maskImp.getNSlices(); slice++) {
+            final int maskChannel = (maskImp.getNChannels() > 1) ? channel : 1;
+            final int maskFrame = (maskImp.getNFrames() > 1) ? frame : 1;
+            final int maskSlice = (maskImp.getNSlices() > 1) ? slice : 1;
 
-          final int maskStackIndex = maskImp.getStackIndex(maskChannel, maskSlice, maskFrame);
-          final ImageProcessor maskIp = maskStack.getProcessor(maskStackIndex);
+            final int maskStackIndex = maskImp.getStackIndex(maskChannel, maskSlice, maskFrame);
+            final ImageProcessor maskIp = maskStack.getProcessor(maskStackIndex);
 
-          s2.setPixels(maskIp.getPixels(), slice);
+            s2.setPixels(maskIp.getPixels(), slice);
+          }
+          frameMask = createFrameMask(s2);
         }
-      }
 
-      if (ImageJUtils.isInterrupted()) {
-        return;
-      }
+        if (ImageJUtils.isInterrupted()) {
+          return;
+        }
 
-      exec(frame, channel, s1, s1b, s2);
-      IJ.showProgress(i + 1, frames.length);
+        jobs.add(exec(executor, frame, channel, s1, s1b, frameMask));
 
-      if (ImageJUtils.isInterrupted()) {
-        return;
-      }
+        // Limit the frames in progress
+        while (jobs.size() > threadCount) {
+          if (!finish(jobs.poll())) {
+            return;
+          }
+          IJ.showProgress(++done, frames.length);
+        }
 
-      // Recreate the mask if using multiple frames
-      if (maskImp.getNFrames() > 1) {
-        s2 = null;
+        // Recreate the mask if using multiple frames
+        if (maskImp.getNFrames() > 1) {
+          s2 = null;
+        }
       }
+      while (!jobs.isEmpty()) {
+        if (!finish(jobs.poll())) {
+          return;
+        }
+        IJ.showProgress(++done, frames.length);
+      }
+    } finally {
+      executor.shutdownNow();
     }
     resultsWindow.append("");
 
@@ -563,9 +635,6 @@ public class SpotDistance_PlugIn implements PlugIn {
   }
 
   private void initialise() {
-    regions = null;
-    regionImp = null;
-    bounds = new Rectangle();
     allowUndo.set(false);
     maxDistance2 = settings.maxDistance * settings.maxDistance;
     if (settings.showOverlay > 0) {
@@ -811,29 +880,49 @@ public class SpotDistance_PlugIn implements PlugIn {
     return sb.toString();
   }
 
-  private void exec(int frame, int channel, ImageStack s1, ImageStack s1b, ImageStack s2) {
-    // Check the mask we are using.
-    // We can use a ROI bounds for the Gaussian blur to increase speed.
-    Rectangle blurBounds = cachedBlurBounds;
-    if (regions == null) {
-      regions = findRegions(s2);
-    }
-    if (regions.length == 0) {
-      return; // Q. Should anything be reported?
+  /**
+   * Create the mask regions for the frame.
+   *
+   * @param s2 the mask stack
+   * @return the frame mask
+   */
+  private FrameMask createFrameMask(ImageStack s2) {
+    final int[] regions = findRegions(s2);
+    final ImagePlus[] regionImps = new ImagePlus[regions.length];
+    final Rectangle[] regionBounds = new Rectangle[regions.length];
+    for (int i = 0; i < regions.length; i++) {
+      regionBounds[i] = new Rectangle();
+      regionImps[i] = crop(extractRegion(s2, regions[i], regionBounds[i]), regionBounds[i]);
     }
-
+    // We can use a ROI bounds for the Gaussian blur to increase speed.
+    Rectangle blurBounds = null;
     if (regions.length == 1) {
-      if (regionImp == null) {
-        regionImp = extractRegion(s2, regions[0], bounds);
-        regionImp = crop(regionImp, bounds);
-      }
-      blurBounds = bounds;
-    } else if (blurBounds == null) {
+      blurBounds = regionBounds[0];
+    } else if (regions.length != 0) {
       // Create the bounds using the min and max of all the regions
       blurBounds = findBounds(s2);
     }
+    return new FrameMask(regions, regionImps, regionBounds, blurBounds);
+  }
 
-    cachedBlurBounds = blurBounds;
+  /**
+   * Filter the frame and analyse each mask region. Regions are analysed concurrently unless
+   * tracking objects.
+   *
+   * @param executor the executor
+   * @param frame the frame
+   * @param channel the channel
+   * @param s1 the image stack
+   * @param s1b the image stack for the second channel (can be null)
+   * @param frameMask the frame mask
+   * @return the frame job
+   */
+  private FrameJob exec(ExecutorService executor, int frame, int channel, ImageStack s1,
+      ImageStack s1b, FrameMask frameMask) {
+    final FrameJob job = new FrameJob(frame, frameMask.regions.length, s1b != null);
+    if (frameMask.regions.length == 0) {
+      return job; // Q. Should anything be reported?
+    }
 
     if (settings.showProjection) {
       // Do Z-projection into the current image processor of the stack
@@ -843,31 +932,119 @@ public class SpotDistance_PlugIn implements PlugIn {
       }
     }
 
-    // Perform Difference of Gaussians to enhance the spot features if two radii are provided
-    if (settings.featureSize > 0) {
-      s1 = runDifferenceOfGaussians(s1, blurBounds);
-      if (s1b != null) {
-        s1b = runDifferenceOfGaussians(s1b, blurBounds);
+    // Perform Difference of Gaussians to enhance the spot features if two radii are provided.
+    // Filter all the slices of both channels concurrently.
+    final Rectangle blurBounds = frameMask.blurBounds;
+    final ImageStack[] filtered = filterStacks(blurBounds, s1, s1b);
+    final ImageStack spots = filtered[0];
+    final ImageStack spots2 = filtered[1];
+
+    // Process each region with FindFoci
+    for (int i = 0; i < frameMask.regions.length; i++) {
+      final int index = i;
+      if (settings.trackObjects || settings.debug) {
+        // Tracking uses the previous results so must be sequential.
+        // Debug mode shows the region images.
+        job.outputs[index] =
+            analyseRegion(frame, channel, frameMask, index, spots, spots2, job.hasOverlay2);
+      } else {
+        job.futures.add(executor.submit(() -> {
+          job.outputs[index] =
+              analyseRegion(frame, channel, frameMask, index, spots, spots2, job.hasOverlay2);
+        }));
       }
-    } else if (settings.smoothingSize > 0) {
-      // Just perform image smoothing
-      s1 = runGaussianBlur(s1, blurBounds);
-      if (s1b != null) {
-        s1b = runGaussianBlur(s1b, blurBounds);
+    }
+    return job;
+  }
+
+  /**
+   * Finish the frame job. The output of each region is written to the results in region order and
+   * the overlays are updated.
+   *
+   * @param job the job
+   * @return true if successful; false if interrupted
+   */
+  private boolean finish(FrameJob job) {
+    ConcurrencyUtils.waitForCompletionUnchecked(job.futures);
+    if (job.outputs.length == 0) {
+      return true;
+    }
+
+    Overlay overlay = null;
+    Overlay overlay2 = null;
+    if (settings.showOverlay > 0) {
+      overlay = new Overlay();
+      if (job.hasOverlay2) {
+        overlay2 = new Overlay();
       }
     }
 
-    final ImagePlus spotImp = new ImagePlus(null, s1);
-    final ImagePlus spotImp2 = (s1b != null) ? new ImagePlus(null, s1b) : null;
+    for (final RegionOutput output : job.outputs) {
+      if (output == null) {
+        // Interrupted
+        return false;
+      }
+      output.results.forEach(resultsWindow::append);
+      output.summary.forEach(summaryWindow::append);
+      if (distancesWindow != null) {
+        output.distances.forEach(distancesWindow::append);
+      }
+      allowUndo.set(true);
+      if (overlay != null) {
+        output.rois.forEach(overlay::add);
+        if (overlay2 != null) {
+          output.rois2.forEach(overlay2::add);
+        }
+      }
+    }
 
-    // Process each region with FindFoci
+    final int frame = job.frame;
 
+    // Append to image overlay
+    if (settings.showOverlay > 0) {
+      Overlay impOverlay = imp.getOverlay();
+      if (impOverlay == null) {
+        impOverlay = new Overlay();
+      }
+      addToOverlay(impOverlay, overlay, Color.magenta);
+      if (overlay2 != null) {
+        addToOverlay(impOverlay, overlay2, Color.yellow);
+      }
+      imp.setOverlay(impOverlay);
+      imp.updateAndDraw();
+    }
+
+    if (settings.showProjection) {
+      // Add all the ROIs of the overlay to the slice
+      Overlay projOverlay = projectionImp.getOverlay();
+      if (projOverlay == null) {
+        projOverlay = new Overlay();
+      }
+
+      addToProjectionOverlay(projOverlay, overlay, frame, 1);
+      if (overlay2 != null) {
+        addToProjectionOverlay(projOverlay, overlay2, frame, 2);
+      }
+
+      final int index = projectionImp.getStackIndex(1, 1, frame);
+      projectionImp.setSlice(index);
+      projectionImp.setOverlay(projOverlay);
+      projectionImp.updateAndDraw();
+    }
+    return true;
+  }
+
+  /**
+   * Creates the processor options for FindFoci.
+   *
+   * @return the processor options
+   */
+  private FindFociProcessorOptions createProcessorOptions() {
     // TODO - Optimise these settings
     // - Maybe need a global thresholding on the whole DoG image
     // - Try Float IP for the DoG image
     // - Bigger feature size for DoG?
 
-    final FindFoci_PlugIn ff = new FindFoci_PlugIn();
     final FindFociProcessorOptions processorOptions = new FindFociProcessorOptions();
     processorOptions.setBackgroundMethod(settings.autoThreshold ? BackgroundMethod.AUTO_THRESHOLD
         : BackgroundMethod.STD_DEV_ABOVE_MEAN);
@@ -884,278 +1061,240 @@ public class SpotDistance_PlugIn implements PlugIn {
     processorOptions.setGaussianBlur(0);
     processorOptions.setCentreMethod(CentreMethod.CENTRE_OF_MASS_ORIGINAL);
     processorOptions.setCentreParameter(2);
+    return processorOptions;
+  }
 
-    final FindFociOptions options = new FindFociOptions();
-    options.getOptions().clear();
-    options.setOption(OutputOption.RESULTS_TABLE, true);
-
-    Overlay overlay = null;
-    Overlay overlay2 = null;
-    if (settings.showOverlay > 0) {
-      overlay = new Overlay();
-      if (s1b != null) {
-        overlay2 = new Overlay();
-      }
-    }
+  /**
+   * Identify the spots in the mask region and compute the distances between spots.
+   *
+   * <p>This method is thread-safe if not tracking objects.
+   *
+   * @param frame the frame
+   * @param channel the channel
+   * @param frameMask the frame mask
+   * @param index the index of the region in the frame mask
+   * @param s1 the spot image stack
+   * @param s1b the spot image stack for the second channel (can be null)
+   * @param dualChannel true if using dual channel analysis
+   * @return the region output (or null if interrupted)
+   */
+  @Nullable
+  private RegionOutput analyseRegion(int frame, int channel, FrameMask frameMask, int index,
+      ImageStack s1, ImageStack s1b, boolean dualChannel) {
+    final RegionOutput out = new RegionOutput();
+    final int region = frameMask.regions[index];
+    final ImagePlus regionImp = frameMask.regionImps[index];
+    final Rectangle bounds = frameMask.regionBounds[index];
 
-    for (final int region : regions) {
-      // Cache the cropped mask if it has only one region
-      if (regions.length != 1) {
-        regionImp = null;
-      }
+    final FindFoci_PlugIn ff = new FindFoci_PlugIn();
+    final FindFociProcessorOptions processorOptions = createProcessorOptions();
 
-      if (regionImp == null) {
-        regionImp = extractRegion(s2, region, bounds);
-        regionImp = crop(regionImp, bounds);
-      }
+    final ImagePlus croppedImp = crop(s1, bounds);
+    ImagePlus croppedImp2 = null;
+    final ImageStack stack = croppedImp.getImageStack();
+    final float scale = scaleImage(stack);
+    croppedImp.setStack(stack); // Updates the image bit depth
+    processorOptions.setPeakParameter(Math.round(settings.minPeakHeight * scale));
+    double peakParameter2 = 0;
 
-      final ImagePlus croppedImp = crop(spotImp, bounds);
-      ImagePlus croppedImp2 = null;
-      final ImageStack stack = croppedImp.getImageStack();
-      final float scale = scaleImage(stack);
-      croppedImp.setStack(stack); // Updates the image bit depth
-      processorOptions.setPeakParameter(Math.round(settings.minPeakHeight * scale));
-      double peakParameter2 = 0;
+    if (dualChannel) {
+      croppedImp2 = crop(s1b, bounds);
+      final ImageStack stack2 = croppedImp2.getImageStack();
+      final float scale2 = scaleImage(stack2);
+      croppedImp2.setStack(stack2); // Updates the image bit depth
+      peakParameter2 = Math.round(settings.minPeakHeight * scale2);
+    }
 
-      if (s1b != null) {
-        croppedImp2 = crop(spotImp2, bounds);
-        final ImageStack stack2 = croppedImp2.getImageStack();
-        final float scale2 = scaleImage(stack2);
-        croppedImp2.setStack(stack2); // Updates the image bit depth
-        peakParameter2 = Math.round(settings.minPeakHeight * scale2);
-      }
+    if (settings.debug) {
+      showSpotImage(croppedImp, croppedImp2, regionImp, cal);
+    }
 
-      if (settings.debug) {
-        showSpotImage(croppedImp, croppedImp2, regionImp, cal);
-      }
+    FindFociBaseProcessor ffp = ff.createFindFociProcessor(croppedImp);
+    final FindFociResults ffResult = ffp.findMaxima(croppedImp, regionImp, processorOptions);
 
-      FindFociBaseProcessor ffp = ff.createFindFociProcessor(croppedImp);
-      final FindFociResults ffResult = ffp.findMaxima(croppedImp, regionImp, processorOptions);
+    if (ImageJUtils.isInterrupted()) {
+      return null;
+    }
 
-      if (ImageJUtils.isInterrupted()) {
-        return;
-      }
+    final ArrayList<DistanceResult> resultsArray = analyseResults(prevResultsArray, croppedImp,
+        ffp, ffResult, frame, channel, bounds, out.rois);
+    for (final DistanceResult result : resultsArray) {
+      addResult(out, frame, channel, region, result);
+    }
 
-      final ArrayList<DistanceResult> resultsArray =
-          analyseResults(prevResultsArray, croppedImp, ffp, ffResult, frame, channel, overlay);
-      for (final DistanceResult result : resultsArray) {
-        addResult(frame, channel, region, result);
-      }
+    if (settings.trackObjects) {
+      prevResultsArray = resultsArray;
+    }
 
+    if (!dualChannel) {
       if (settings.trackObjects) {
-        prevResultsArray = resultsArray;
-      }
-
-      if (s1b == null) {
-        if (settings.trackObjects) {
-          prevResultsArray2 = null;
-        }
-
-        // Single channel analysis
-        final String ch = Integer.toString(channel);
+        prevResultsArray2 = null;
+      }
+
+      // Single channel analysis
+      final String ch = Integer.toString(channel);
+
+      if (resultsArray.size() < 2) {
+        // No comparisons possible
+        addSummaryResult(out, frame, ch, region, resultsArray.size());
+        return out;
+      }
+
+      double minD = Double.POSITIVE_INFINITY;
+      double minD2 = Double.POSITIVE_INFINITY;
+      double maxD = 0;
+      double maxD2 = 0;
+      double sumD = 0;
+      double sumD2 = 0;
+      int count = 0;
+      for (int i = 0; i < resultsArray.size(); i++) {
+        final DistanceResult r1 = resultsArray.get(i);
+        for (int j = i + 1; j < resultsArray.size(); j++) {
+          final DistanceResult r2 = resultsArray.get(j);
+          final double[] diff = new double[] {(r1.x - r2.x), (r1.y - r2.y), (r1.z - r2.z)};
+
+          // Ignore distances above the maximum
+          double diff2 = -1;
+          if (maxDistance2 != 0) {
+            diff2 = diff[0] * diff[0] + diff[1] * diff[1] + diff[2] * diff[2];
+            if (diff2 > maxDistance2) {
+              continue;
+            }
+          }
 
-        if (resultsArray.size() < 2) {
-          // No comparisons possible
-          addSummaryResult(frame, ch, region, resultsArray.size());
-          continue;
-        }
+          count++;
 
-        double minD = Double.POSITIVE_INFINITY;
-        double minD2 = Double.POSITIVE_INFINITY;
-        double maxD = 0;
-        double maxD2 = 0;
-        double sumD = 0;
-        double sumD2 = 0;
-        int count = 0;
-        for (int i = 0; i < resultsArray.size(); i++) {
-          final DistanceResult r1 = resultsArray.get(i);
-          for (int j = i + 1; j < resultsArray.size(); j++) {
-            final DistanceResult r2 = resultsArray.get(j);
-            final double[] diff = new double[] {(r1.x - r2.x), (r1.y - r2.y), (r1.z - r2.z)};
-
-            // Ignore distances above the maximum
-            double diff2 = -1;
-            if (maxDistance2 != 0) {
+          double distance = 0;
+          double calibratedDistance = 0;
+          if (settings.pixelDistances) {
+            if (diff2 == -1) {
               diff2 = diff[0] * diff[0] + diff[1] * diff[1] + diff[2] * diff[2];
-              if (diff2 > maxDistance2) {
-                continue;
-              }
             }
-
-            count++;
-
-            double distance = 0;
-            double calibratedDistance = 0;
-            if (settings.pixelDistances) {
-              if (diff2 == -1) {
-                diff2 = diff[0] * diff[0] + diff[1] * diff[1] + diff[2] * diff[2];
-              }
-              distance = Math.sqrt(diff2);
-              if (distance < minD) {
-                minD = distance;
-              }
-              if (distance > maxD) {
-                maxD = distance;
-              }
-              sumD += distance;
+            distance = Math.sqrt(diff2);
+            if (distance < minD) {
+              minD = distance;
             }
-
-            if (settings.calibratedDistances) {
-              diff[0] *= cal.pixelWidth;
-              diff[1] *= cal.pixelHeight;
-              diff[2] *= cal.pixelDepth;
-              // TODO - This will not be valid if the units are not the same for all dimensions
-              calibratedDistance =
-                  Math.sqrt(diff[0] * diff[0] + diff[1] * diff[1] + diff[2] * diff[2]);
-              if (calibratedDistance < minD2) {
-                minD2 = calibratedDistance;
-              }
-              if (calibratedDistance > maxD2) {
-                maxD2 = calibratedDistance;
-              }
-              sumD2 += calibratedDistance;
+            if (distance > maxD) {
+              maxD = distance;
             }
+            sumD += distance;
+          }
 
-            if (settings.showDistances) {
-              addDistanceResult(frame, ch, region, r1, r2, distance, calibratedDistance);
+          if (settings.calibratedDistances) {
+            diff[0] *= cal.pixelWidth;
+            diff[1] *= cal.pixelHeight;
+            diff[2] *= cal.pixelDepth;
+            // TODO - This will not be valid if the units are not the same for all dimensions
+            calibratedDistance =
+                Math.sqrt(diff[0] * diff[0] + diff[1] * diff[1] + diff[2] * diff[2]);
+            if (calibratedDistance < minD2) {
+              minD2 = calibratedDistance;
             }
+            if (calibratedDistance > maxD2) {
+              maxD2 = calibratedDistance;
+            }
+            sumD2 += calibratedDistance;
           }
-        }
-
-        addSummaryResult(frame, ch, region, resultsArray.size(), minD, maxD, sumD / count, minD2,
-            maxD2, sumD2 / count);
-      } else {
-        // Dual channel analysis.
-        // Analyse the second channel
-        processorOptions.setPeakParameter(peakParameter2);
-        ffp = ff.createFindFociProcessor(croppedImp2);
-        final FindFociResults results2 = ffp.findMaxima(croppedImp2, regionImp, processorOptions);
 
-        if (ImageJUtils.isInterrupted()) {
-          return;
+          if (settings.showDistances) {
+            addDistanceResult(out, frame, ch, region, r1, r2, distance, calibratedDistance);
+          }
         }
+      }
+      addSummaryResult(out, frame, ch, region, resultsArray.size(), minD, maxD, sumD / count,
+          minD2, maxD2, sumD2 / count);
+    } else {
+      // Dual channel analysis.
+      // Analyse the second channel
+      processorOptions.setPeakParameter(peakParameter2);
+      ffp = ff.createFindFociProcessor(croppedImp2);
+      final FindFociResults results2 = ffp.findMaxima(croppedImp2, regionImp, processorOptions);
 
-        final ArrayList<DistanceResult> resultsArray2 = analyseResults(prevResultsArray2,
-            croppedImp2, ffp, results2, frame, settings.c2, overlay2);
-        for (final DistanceResult result : resultsArray2) {
-          addResult(frame, settings.c2, region, result);
-        }
+      if (ImageJUtils.isInterrupted()) {
+        return null;
+      }
 
-        if (settings.trackObjects) {
-          prevResultsArray2 = resultsArray2;
-        }
+      final ArrayList<DistanceResult> resultsArray2 = analyseResults(prevResultsArray2,
+          croppedImp2, ffp, results2, frame, settings.c2, bounds, out.rois2);
+      for (final DistanceResult result : resultsArray2) {
+        addResult(out, frame, settings.c2, region, result);
+      }
 
-        final String ch = channel + " + " + settings.c2;
+      if (settings.trackObjects) {
+        prevResultsArray2 = resultsArray2;
+      }
+
+      final String ch = channel + " + " + settings.c2;
+
+      if (resultsArray.isEmpty() || resultsArray2.isEmpty()) {
+        // No comparisons possible
+        addSummaryResult(out, frame, ch, region, resultsArray.size() + resultsArray2.size());
+        return out;
+      }
+
+      double minD = Double.POSITIVE_INFINITY;
+      double minD2 = Double.POSITIVE_INFINITY;
+      double maxD = 0;
+      double maxD2 = 0;
+      double sumD = 0;
+      double sumD2 = 0;
+      int count = 0;
+      for (final DistanceResult r1 : resultsArray) {
+        for (final DistanceResult r2 : resultsArray2) {
+          final double[] diff = new double[] {(r1.x - r2.x), (r1.y - r2.y), (r1.z - r2.z)};
+
+          // Ignore distances above the maximum
+          double diff2 = -1;
+          if (maxDistance2 != 0) {
+            diff2 = diff[0] * diff[0] + diff[1] * diff[1] + diff[2] * diff[2];
+            if (diff2 > maxDistance2) {
+              continue;
+            }
+          }
 
-        if (resultsArray.isEmpty() || resultsArray2.isEmpty()) {
-          // No comparisons possible
-          addSummaryResult(frame, ch, region, resultsArray.size() + resultsArray2.size());
-          continue;
-        }
+          count++;
 
-        double minD = Double.POSITIVE_INFINITY;
-        double minD2 = Double.POSITIVE_INFINITY;
-        double maxD = 0;
-        double maxD2 = 0;
-        double sumD = 0;
-        double sumD2 = 0;
-        int count = 0;
-        for (final DistanceResult r1 : resultsArray) {
-          for (final DistanceResult r2 : resultsArray2) {
-            final double[] diff = new double[] {(r1.x - r2.x), (r1.y - r2.y), (r1.z - r2.z)};
-
-            // Ignore distances above the maximum
-            double diff2 = -1;
-            if (maxDistance2 != 0) {
+          double distance = 0;
+          double calibratedDistance = 0;
+          if (settings.pixelDistances) {
+            if (diff2 == -1) {
               diff2 = diff[0] * diff[0] + diff[1] * diff[1] + diff[2] * diff[2];
-              if (diff2 > maxDistance2) {
-                continue;
-              }
             }
-
-            count++;
-
-            double distance = 0;
-            double calibratedDistance = 0;
-            if (settings.pixelDistances) {
-              if (diff2 == -1) {
-                diff2 = diff[0] * diff[0] + diff[1] * diff[1] + diff[2] * diff[2];
-              }
-              distance = Math.sqrt(diff2);
-              if (distance < minD) {
-                minD = distance;
-              }
-              if (distance > maxD) {
-                maxD = distance;
-              }
-              sumD += distance;
+            distance = Math.sqrt(diff2);
+            if (distance < minD) {
+              minD = distance;
             }
-
-            if (settings.calibratedDistances) {
-              diff[0] *= cal.pixelWidth;
-              diff[1] *= cal.pixelHeight;
-              diff[2] *= cal.pixelDepth;
-              // TODO - This will not be valid if the units are not the same for all dimensions
-              calibratedDistance =
-                  Math.sqrt(diff[0] * diff[0] + diff[1] * diff[1] + diff[2] * diff[2]);
-              if (calibratedDistance < minD2) {
-                minD2 = calibratedDistance;
-              }
-              if (calibratedDistance > maxD2) {
-                maxD2 = calibratedDistance;
-              }
-              sumD2 += calibratedDistance;
+            if (distance > maxD) {
+              maxD = distance;
             }
+            sumD += distance;
+          }
 
-            if (settings.showDistances) {
-              addDistanceResult(frame, ch, region, r1, r2, distance, calibratedDistance);
+          if (settings.calibratedDistances) {
+            diff[0] *= cal.pixelWidth;
+            diff[1] *= cal.pixelHeight;
+            diff[2] *= cal.pixelDepth;
+            // TODO - This will not be valid if the units are not the same for all dimensions
+            calibratedDistance =
+                Math.sqrt(diff[0] * diff[0] + diff[1] * diff[1] + diff[2] * diff[2]);
+            if (calibratedDistance < minD2) {
+              minD2 = calibratedDistance;
             }
+            if (calibratedDistance > maxD2) {
+              maxD2 = calibratedDistance;
+            }
+            sumD2 += calibratedDistance;
           }
-        }
-
-        addSummaryResult(frame, ch, region, resultsArray.size() + resultsArray2.size(), minD, maxD,
-            MathUtils.div0(sumD, count), minD2, maxD2, MathUtils.div0(sumD2, count));
-      }
-    }
 
-    // Append to image overlay
-    if (settings.showOverlay > 0) {
-      Overlay impOverlay = imp.getOverlay();
-      if (impOverlay == null) {
-        impOverlay = new Overlay();
-      }
-      addToOverlay(impOverlay, overlay, Color.magenta);
-      if (overlay2 != null) {
-        addToOverlay(impOverlay, overlay2, Color.yellow);
-      }
-      imp.setOverlay(impOverlay);
-      imp.updateAndDraw();
-    }
-
-    if (settings.showProjection) {
-      // Add all the ROIs of the overlay to the slice
-      Overlay projOverlay = projectionImp.getOverlay();
-      if (projOverlay == null) {
-        projOverlay = new Overlay();
-      }
-
-      addToProjectionOverlay(projOverlay, overlay, frame, 1);
-      if (overlay2 != null) {
-        addToProjectionOverlay(projOverlay, overlay2, frame, 2);
+          if (settings.showDistances) {
+            addDistanceResult(out, frame, ch, region, r1, r2, distance, calibratedDistance);
+          }
+        }
       }
-
-      final int index = projectionImp.getStackIndex(1, 1, frame);
-      projectionImp.setSlice(index);
-      projectionImp.setOverlay(projOverlay);
-      projectionImp.updateAndDraw();
-    }
-
-    // Cache the mask only if it has one frame
-    if (maskImp.getNFrames() > 1) {
-      regions = null;
-      regionImp = null;
-      cachedBlurBounds = null;
+      addSummaryResult(out, frame, ch, region, resultsArray.size() + resultsArray2.size(), minD,
+          maxD, MathUtils.div0(sumD, count), minD2, maxD2, MathUtils.div0(sumD2, count));
     }
+    return out;
   }
 
   private void runZProjection(int frame, int channel, ImageStack s1) {
@@ -1173,35 +1312,65 @@ public class SpotDistance_PlugIn implements PlugIn {
     }
   }
 
-  private ImageStack runDifferenceOfGaussians(ImageStack s1, Rectangle blurBounds) {
-    final ImageStack newS1 = new ImageStack(s1.getWidth(), s1.getHeight(), s1.getSize());
-    for (int slice = 1; slice <= s1.getSize(); slice++) {
-      final ImageProcessor ip = s1.getProcessor(slice).toFloat(0, null);
-      if (blurBounds != null) {
-        ip.setRoi(blurBounds);
-      }
-      DifferenceOfGaussians.run(ip, settings.featureSize, settings.smoothingSize);
-      newS1.setPixels(ip.getPixels(), slice);
+  /**
+   * Filter the stacks to enhance the spot features. The slices of all the stacks are filtered
+   * concurrently.
+   *
+   * @param blurBounds the bounds for the filter (can be null)
+   * @param stacks the stacks (entries can be null)
+   * @return the filtered stacks
+   */
+  private ImageStack[] filterStacks(Rectangle blurBounds, ImageStack... stacks) {
+    if (settings.featureSize > 0) {
+      // Difference of Gaussians
+      return filterStacks(settings.featureSize, settings.smoothingSize, blurBounds,
+          Prefs.getThreads(), stacks);
     }
-    s1 = newS1;
-    return s1;
+    if (settings.smoothingSize > 0) {
+      // Just perform image smoothing
+      return filterStacks(0, settings.smoothingSize, blurBounds, Prefs.getThreads(), stacks);
+    }
+    return stacks;
   }
 
-  private ImageStack runGaussianBlur(ImageStack s1, Rectangle blurBounds) {
-    final DifferenceOfGaussians filter = new DifferenceOfGaussians();
-    filter.setNoProgress(true);
-    final ImageStack newS1 = new ImageStack(s1.getWidth(), s1.getHeight(), s1.getSize());
-    for (int slice = 1; slice <= s1.getSize(); slice++) {
-      final ImageProcessor ip = s1.getProcessor(slice).toFloat(0, null);
-      if (blurBounds != null) {
-        ip.setRoi(blurBounds);
-        ip.snapshot(); // Needed to reset region outside ROI
+  /**
+   * Filter the stacks to enhance the spot features. The slices of all the stacks are collected
+   * into a single stack and filtered concurrently. If sigma1 is zero the slices are blurred using
+   * sigma2; otherwise the difference of Gaussians is computed.
+   *
+   * @param sigma1 the sigma 1 (can be zero)
+   * @param sigma2 the sigma 2
+   * @param blurBounds the bounds for the filter (can be null)
+   * @param threads the number of threads
+   * @param stacks the stacks (entries can be null)
+   * @return the filtered stacks
+   */
+  @VisibleForTesting
+  static ImageStack[] filterStacks(double sigma1, double sigma2, Rectangle blurBounds,
+      int threads, ImageStack... stacks) {
+    final ImageStack[] newStacks = new ImageStack[stacks.length];
+    final ImageStack source = new ImageStack(stacks[0].getWidth(), stacks[0].getHeight());
+    for (final ImageStack stack : stacks) {
+      if (stack != null) {
+        for (int slice = 1; slice <= stack.getSize(); slice++) {
+          source.addSlice(null, stack.getPixels(slice));
+        }
+      }
+    }
+    final ImageStack filtered = (sigma1 > 0)
+        ? DifferenceOfGaussians.run(source, sigma1, sigma2, blurBounds, threads)
+        : DifferenceOfGaussians.blur(source, sigma2, blurBounds, threads);
+    int index = 0;
+    for (int i = 0; i < stacks.length; i++) {
+      final ImageStack stack = stacks[i];
+      if (stack != null) {
+        newStacks[i] = new ImageStack(stack.getWidth(), stack.getHeight(), stack.getSize());
+        for (int slice = 1; slice <= stack.getSize(); slice++) {
+          newStacks[i].setPixels(filtered.getPixels(++index), slice);
+        }
       }
-      filter.blurGaussian(ip, settings.smoothingSize);
-      newS1.setPixels(ip.getPixels(), slice);
     }
-    s1 = newS1;
-    return s1;
+    return newStacks;
   }
 
   private static void addToOverlay(Overlay mainOverlay, Overlay overlay, Color color) {
@@ -1423,6 +1592,18 @@ public class SpotDistance_PlugIn implements PlugIn {
     return imp.duplicate();
   }
 
+  /**
+   * Crop the stack within the bounds. This does not modify the stack and is thread-safe.
+   *
+   * @param stack the stack
+   * @param bounds the bounds
+   * @return the image plus
+   */
+  private static ImagePlus crop(ImageStack stack, Rectangle bounds) {
+    return new ImagePlus(null,
+        stack.crop(bounds.x, bounds.y, 0, bounds.width, bounds.height, stack.getSize()));
+  }
+
   /**
    * Check the peak circularity. Add an overlay of the spots if requested.
    *
@@ -1432,12 +1613,13 @@ public class SpotDistance_PlugIn implements PlugIn {
    * @param ffResult the ff result
    * @param frame the frame
    * @param channel the channel
-   * @param overlay the overlay
+   * @param bounds the bounds of the cropped image
+   * @param rois the list to receive the spot ROIs
    * @return the results
    */
   private ArrayList<DistanceResult> analyseResults(ArrayList<DistanceResult> prev,
       ImagePlus croppedImp, FindFociBaseProcessor ffp, FindFociResults ffResult, int frame,
-      int channel, Overlay overlay) {
+      int channel, Rectangle bounds, List<Roi> rois) {
     if (ffResult == null) {
       return new ArrayList<>(0);
     }
@@ -1470,7 +1652,7 @@ public class SpotDistance_PlugIn implements PlugIn {
 
       final int peakId = result.id;
       final int maskId = resultsArray.size() - peakId + 1;
-      final Roi roi = extractSelection(maskIp, maskId, channel, z + 1, frame);
+      final Roi roi = extractSelection(maskIp, maskId, channel, z + 1, frame, bounds);
       final double perimeter = roi.getLength();
       final double area = getArea(maskIp, maskId);
 
@@ -1483,8 +1665,8 @@ public class SpotDistance_PlugIn implements PlugIn {
         continue;
       }
 
-      if (overlay != null) {
-        overlay.add(roi);
+      if (settings.showOverlay > 0) {
+        rois.add(roi);
       }
 
       newResultsArray.add(new DistanceResult(x, y, z, circularity));
@@ -1525,7 +1707,7 @@ public class SpotDistance_PlugIn implements PlugIn {
   }
 
   private Roi extractSelection(ImageProcessor maskIp, int maskId, int channel, int slice,
-      int frame) {
+      int frame, Rectangle bounds) {
     maskIp.setThreshold(maskId, maskId, ImageProcessor.NO_LUT_UPDATE);
     final ThresholdToSelection ts = new ThresholdToSelection();
     final Roi roi = ts.convert(maskIp);
@@ -1546,19 +1728,6 @@ public class SpotDistance_PlugIn implements PlugIn {
     return roi;
   }
 
-  @SuppressWarnings("unused")
-  private double getPerimeter(ImageProcessor maskIp, int maskId, Overlay overlay, int z) {
-    maskIp.setThreshold(maskId, maskId, ImageProcessor.NO_LUT_UPDATE);
-    final ThresholdToSelection ts = new ThresholdToSelection();
-    final Roi roi = ts.convert(maskIp);
-    if (overlay != null) {
-      roi.setPosition(z);
-      roi.setLocation(bounds.x, bounds.y);
-      overlay.add(roi);
-    }
-    return roi.getLength();
-  }
-
   private static double getArea(ImageProcessor maskIp, int maskId) {
     int area = 0;
     for (int i = 0; i < maskIp.getPixelCount(); i++) {
@@ -1569,7 +1738,8 @@ public class SpotDistance_PlugIn implements PlugIn {
     return area;
   }
 
-  private void addResult(int frame, int channel, int region, DistanceResult result) {
+  private void addResult(RegionOutput out, int frame, int channel, int region,
+      DistanceResult result) {
     final StringBuilder sb = new StringBuilder();
     sb.append(resultEntry);
     sb.append(frame).append('\t');
@@ -1582,11 +1752,11 @@ public class SpotDistance_PlugIn implements PlugIn {
       sb.append(result.getCalXyz()).append('\t');
     }
     sb.append(MathUtils.rounded(result.circularity));
-    resultsWindow.append(sb.toString());
-    allowUndo.set(true);
+    out.results.add(sb.toString());
   }
 
-  private void addSummaryResult(int frame, String channel, int region, int size) {
+  private void addSummaryResult(RegionOutput out, int frame, String channel, int region,
+      int size) {
     final StringBuilder sb = new StringBuilder();
     sb.append(resultEntry);
     sb.append(frame).append('\t');
@@ -1598,12 +1768,11 @@ public class SpotDistance_PlugIn implements PlugIn {
     if (settings.calibratedDistances) {
       sb.append("\t0\t0\t0");
     }
-    summaryWindow.append(sb.toString());
-    allowUndo.set(true);
+    out.summary.add(sb.toString());
   }
 
-  private void addSummaryResult(int frame, String channel, int region, int size, double minD,
-      double maxD, double averageD, double minD2, double maxD2, double averageD2) {
+  private void addSummaryResult(RegionOutput out, int frame, String channel, int region, int size,
+      double minD, double maxD, double averageD, double minD2, double maxD2, double averageD2) {
     final StringBuilder sb = new StringBuilder();
     sb.append(resultEntry);
     sb.append(frame).append('\t');
@@ -1619,12 +1788,11 @@ public class SpotDistance_PlugIn implements PlugIn {
       sb.append('\t').append(MathUtils.rounded(maxD2));
       sb.append('\t').append(MathUtils.rounded(averageD2));
     }
-    summaryWindow.append(sb.toString());
-    allowUndo.set(true);
+    out.summary.add(sb.toString());
   }
 
-  private void addDistanceResult(int frame, String channel, int region, DistanceResult r1,
-      DistanceResult r2, double distance, double calibratedDistance) {
+  private void addDistanceResult(RegionOutput out, int frame, String channel, int region,
+      DistanceResult r1, DistanceResult r2, double distance, double calibratedDistance) {
     final StringBuilder sb = new StringBuilder();
     sb.append(resultEntry);
     sb.append(frame).append('\t');
@@ -1640,8 +1808,7 @@ public class SpotDistance_PlugIn implements PlugIn {
       sb.append('\t').append(r2.getCalXyz());
       sb.append('\t').append(MathUtils.rounded(calibratedDistance));
     }
-    distancesWindow.append(sb.toString());
-    allowUndo.set(true);
+    out.distances.add(sb.toString());
   }
 
   /**
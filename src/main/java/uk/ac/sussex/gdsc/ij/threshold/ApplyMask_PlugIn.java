@@ -27,6 +27,7 @@ package uk.ac.sussex.gdsc.ij.threshold;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.plugin.filter.PlugInFilter;
@@ -191,6 +192,7 @@ public class ApplyMask_PlugIn implements PlugInFilter {
     mc.setChannel(selectedChannel);
     mc.setSlice(selectedSlice);
     mc.setFrame(selectedFrame);
+    mc.setThreads(Prefs.getThreads());
     maskImp = mc.createMask();
 
     // Check the mask has the correct dimensions
@@ -36,17 +36,16 @@ import ij.measure.Measurements;
 import ij.plugin.filter.ExtendedPlugInFilter;
 import ij.plugin.filter.GaussianBlur;
 import ij.plugin.filter.PlugInFilterRunner;
+import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.FloodFiller;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import imagescience.feature.Edges;
-import imagescience.feature.Laplacian;
 import imagescience.image.Aspects;
 import imagescience.image.FloatImage;
 import imagescience.image.Image;
 import imagescience.segment.Thresholder;
-import imagescience.segment.ZeroCrosser;
 import java.awt.AWTEvent;
 import java.awt.Rectangle;
 import java.util.Arrays;
@@ -58,6 +57,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 import uk.ac.sussex.gdsc.core.threshold.AutoThreshold;
 import uk.ac.sussex.gdsc.core.threshold.AutoThreshold.Method;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
 import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 import uk.ac.sussex.gdsc.ij.utils.ImageScienceUtils;
@@ -69,8 +69,9 @@ import uk.ac.sussex.gdsc.ij.utils.ImageScienceUtils;
  * Optionally allows: the edge lines to be pruned to leave only closed loops; and filling of loops
  * to create a mask.
  *
- * <p>Requires the ImageScience library that supports the Laplacian plugin of FeatureJ. The
- * imagescience.jar must be installed in the ImageJ plugins folder.
+ * <p>The Laplacian zero crossings are computed natively. The gradient edge methods require the
+ * ImageScience library that supports the Edges plugin of FeatureJ. The imagescience.jar must be
+ * installed in the ImageJ plugins folder.
  *
  * @see <a href=
  *      "http://www.imagescience.org/meijering/software/featurej">http://www.imagescience.org/meijering/software/featurej/</a>
@@ -102,6 +103,9 @@ public class EdgeMask_PlugIn implements ExtendedPlugInFilter, DialogListener {
   private int ylimit;
   private int[] offset;
 
+  /** The number of threads used to compute the Laplacian of each image. */
+  private int threads = 1;
+
   /** The current settings for the plugin instance. */
   private Settings settings;
 
@@ -188,13 +192,9 @@ public class EdgeMask_PlugIn implements ExtendedPlugInFilter, DialogListener {
       return DONE;
     }
 
-    if (!ImageScienceUtils.hasImageScience()) {
-      ImageScienceUtils.showError();
-      return DONE;
-    }
-
     settings = Settings.load();
     settings.save();
+    threads = Prefs.getThreads();
 
     return FLAGS;
   }
@@ -228,10 +228,13 @@ public class EdgeMask_PlugIn implements ExtendedPlugInFilter, DialogListener {
       }
 
       final Roi roi = imp.getRoi();
-      // Multi-thread for speed
-      final ExecutorService threadPool = Executors.newCachedThreadPool();
-      final List<Future<?>> futures = new LinkedList<>();
       final ImageStack stack = imp.getImageStack();
+      // Multi-thread for speed. Share the threads between the slices and the rows of each slice.
+      final int totalThreads = Prefs.getThreads();
+      final int sliceThreads = MathUtils.clip(1, stack.getSize(), totalThreads);
+      threads = Math.max(1, totalThreads / sliceThreads);
+      final ExecutorService threadPool = Executors.newFixedThreadPool(sliceThreads);
+      final List<Future<?>> futures = new LinkedList<>();
       final ImageStack newStack =
           new ImageStack(stack.getWidth(), stack.getHeight(), stack.getSize());
       IJ.showStatus("Processing stack ...");
@@ -326,6 +329,10 @@ public class EdgeMask_PlugIn implements ExtendedPlugInFilter, DialogListener {
 
     final boolean cancelled = gd.wasCanceled() || !dialogItemChanged(gd, null);
     if (cancelled) {
+      if (!gd.wasCanceled() && isGradientMethod(settings.method)
+          && !ImageScienceUtils.hasImageScience()) {
+        ImageScienceUtils.showError();
+      }
       return DONE;
     }
 
@@ -390,7 +397,18 @@ public class EdgeMask_PlugIn implements ExtendedPlugInFilter, DialogListener {
     settings.prune = gd.getNextBoolean();
     settings.fill = gd.getNextBoolean();
     settings.replaceImage = gd.getNextBoolean();
-    return true;
+    // The gradient methods cannot be previewed without the ImageScience library
+    return !isGradientMethod(settings.method) || ImageScienceUtils.hasImageScience();
+  }
+
+  /**
+   * Checks if the method uses the image gradient. This requires the ImageScience library.
+   *
+   * @param method the method
+   * @return true if a gradient method
+   */
+  private static boolean isGradientMethod(int method) {
+    return method == 2 || method == 3;
   }
 
   /** {@inheritDoc} */
@@ -418,46 +436,9 @@ public class EdgeMask_PlugIn implements ExtendedPlugInFilter, DialogListener {
       gb.blurGaussian(smoothIp, settings.smooth, settings.smooth, 0.0002);
     }
 
-    if (settings.method == 2 || settings.method == 3) {
+    if (isGradientMethod(settings.method)) {
       // Compute the gradient image using the ImageScience library
-      final Image img = Image.wrap(new ImagePlus(null, ip.duplicate()));
-      Image newimg = new FloatImage(img);
-
-      // Compute the Gradient image
-      final Aspects aspects = newimg.aspects();
-      final Edges edges = new Edges();
-      final boolean nonmaxsup = settings.method == 3;
-      newimg = edges.run(newimg, (settings.smooth > 0) ? settings.smooth : 1, nonmaxsup);
-      newimg.aspects(aspects);
-
-      FloatProcessor gradientIp = (FloatProcessor) newimg.imageplus().getProcessor();
-
-      // Keep all gradients above the configured percentile
-      final boolean lowthres = settings.lowerPercentile > 0;
-      final boolean highthres = settings.upperPercentile > 0;
-      final int thresholdMode = (lowthres ? 10 : 0) + (highthres ? 1 : 0);
-      if (thresholdMode > 0) {
-        float[] data = (float[]) gradientIp.getPixels();
-        data = Arrays.copyOf(data, data.length);
-        Arrays.sort(data);
-        final double highval = getLimit(data, settings.upperPercentile);
-        final double lowval = getLimit(data, settings.lowerPercentile);
-
-        final Thresholder thres = new Thresholder();
-        switch (thresholdMode) {
-          case 1:
-            thres.hard(newimg, highval);
-            break;
-          case 10:
-            thres.hard(newimg, lowval);
-            break;
-          default:
-            thres.hysteresis(newimg, lowval, highval);
-            break;
-        }
-
-        gradientIp = (FloatProcessor) newimg.imageplus().getProcessor();
-      }
+      final FloatProcessor gradientIp = GradientEdges.run(ip, settings);
 
       // Get the mask
       final ImageProcessor maskIp = gradientIp.convertToByte(false);
@@ -476,27 +457,18 @@ public class EdgeMask_PlugIn implements ExtendedPlugInFilter, DialogListener {
         ip.set(i, (maskIp.get(i) > 0) ? 255 : 0);
       }
     } else if (settings.method == 1) {
-      // Compute the Laplacian zero-crossing image using the ImageScience library
-      final Image img = Image.wrap(new ImagePlus(null, ip.duplicate()));
-      Image newimg = new FloatImage(img);
-
-      // Compute the Laplacian image
-      final Aspects aspects = newimg.aspects();
-      final Laplacian laplace = new Laplacian();
-      newimg = laplace.run(newimg, (settings.smooth > 0) ? settings.smooth : 1);
-      newimg.aspects(aspects);
-
-      ImageProcessor laplacianIp = null;
-      if (settings.fill) {
-        laplacianIp = newimg.imageplus().getProcessor().duplicate();
-      }
-
-      // Find the zero crossings
-      final ZeroCrosser zc = new ZeroCrosser();
-      zc.run(newimg);
+      // Compute the Laplacian image and find the zero crossings
+      final int width = ip.getWidth();
+      final int height = ip.getHeight();
+      final byte[] edges = new byte[width * height];
+      final float[] laplacian = (settings.fill) ? new float[edges.length] : null;
+      new LaplacianZeroCrossing(width, height, (settings.smooth > 0) ? settings.smooth : 1)
+          .run(ip.getPixels(), edges, laplacian, threads);
+      final ImageProcessor laplacianIp =
+          (laplacian == null) ? null : new FloatProcessor(width, height, laplacian);
 
       // Get the mask
-      final ImageProcessor maskIp = newimg.imageplus().getProcessor().convertToByte(false);
+      final ImageProcessor maskIp = new ByteProcessor(width, height, edges);
 
       // Keep objects above a threshold value
       final int threshold = (int) settings.background;
@@ -772,6 +744,62 @@ public class EdgeMask_PlugIn implements ExtendedPlugInFilter, DialogListener {
     }
   }
 
+  /**
+   * Compute gradient edges using the ImageScience library. This is a separate class so the library
+   * is only required when the gradient methods are used.
+   */
+  private static class GradientEdges {
+    /**
+     * Compute the gradient image and threshold it using the configured percentiles.
+     *
+     * @param ip the image
+     * @param settings the settings
+     * @return the gradient edges
+     */
+    static FloatProcessor run(ImageProcessor ip, Settings settings) {
+      // Compute the gradient image using the ImageScience library
+      final Image img = Image.wrap(new ImagePlus(null, ip.duplicate()));
+      Image newimg = new FloatImage(img);
+
+      // Compute the Gradient image
+      final Aspects aspects = newimg.aspects();
+      final Edges edges = new Edges();
+      final boolean nonmaxsup = settings.method == 3;
+      newimg = edges.run(newimg, (settings.smooth > 0) ? settings.smooth : 1, nonmaxsup);
+      newimg.aspects(aspects);
+
+      final FloatProcessor gradientIp = (FloatProcessor) newimg.imageplus().getProcessor();
+
+      // Keep all gradients above the configured percentile
+      final boolean lowthres = settings.lowerPercentile > 0;
+      final boolean highthres = settings.upperPercentile > 0;
+      final int thresholdMode = (lowthres ? 10 : 0) + (highthres ? 1 : 0);
+      if (thresholdMode > 0) {
+        float[] data = (float[]) gradientIp.getPixels();
+        data = Arrays.copyOf(data, data.length);
+        Arrays.sort(data);
+        final double highval = getLimit(data, settings.upperPercentile);
+        final double lowval = getLimit(data, settings.lowerPercentile);
+
+        final Thresholder thres = new Thresholder();
+        switch (thresholdMode) {
+          case 1:
+            thres.hard(newimg, highval);
+            break;
+          case 10:
+            thres.hard(newimg, lowval);
+            break;
+          default:
+            thres.hysteresis(newimg, lowval, highval);
+            break;
+        }
+
+        return (FloatProcessor) newimg.imageplus().getProcessor();
+      }
+      return gradientIp;
+    }
+  }
+
   /**
    * Use a runnable for the image generation to allow multi-threaded operation.
    */
@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package uk.ac.sussex.gdsc.ij.threshold;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+import uk.ac.sussex.gdsc.core.annotation.Nullable;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
+
+/**
+ * Compute the Laplacian zero crossings of an image.
+ *
+ * <p>The Laplacian is computed at a given scale using Gaussian derivative kernels. The second
+ * derivatives are separable: Lxx uses the second derivative of the Gaussian (g'') in x and the
+ * Gaussian (g) in y; Lyy uses g in x and g'' in y. The rows are convolved with both kernels. The
+ * columns are then convolved and summed in bands of rows, and the zero crossings of each band are
+ * marked in the same pass. Pixels beyond the image edge are taken as the edge pixel.
+ *
+ * <p>A zero crossing is a pixel with a negative Laplacian that has a positive 4-connected
+ * neighbour, or a pixel with a zero Laplacian that has both a positive and a negative 4-connected
+ * neighbour.
+ */
+class LaplacianZeroCrossing {
+  /** The number of rows processed by each task. */
+  private static final int ROWS_PER_BLOCK = 64;
+  /** The output value for a zero crossing. */
+  private static final byte EDGE = (byte) 255;
+
+  private final int width;
+  private final int height;
+  /** The Gaussian kernel (centre and positive half). */
+  private final float[] kernel;
+  /** The Gaussian second derivative kernel (centre and positive half). */
+  private final float[] kernel2;
+
+  /**
+   * Create an instance.
+   *
+   * @param width the width
+   * @param height the height
+   * @param sigma the Gaussian scale
+   * @throws IllegalArgumentException if sigma is not strictly positive
+   */
+  LaplacianZeroCrossing(int width, int height, double sigma) {
+    if (!(sigma > 0)) {
+      throw new IllegalArgumentException("Sigma must be strictly positive: " + sigma);
+    }
+    this.width = width;
+    this.height = height;
+    final float[][] kernels = makeKernels(sigma);
+    kernel = kernels[0];
+    kernel2 = kernels[1];
+  }
+
+  /**
+   * Make the normalised Gaussian kernel and the Gaussian second derivative kernel. The kernels are
+   * symmetric and only the centre and the positive half are returned.
+   *
+   * <p>The second derivative kernel is corrected for truncation to have a sum of zero and a second
+   * moment of 2 so that the second derivative of a quadratic is exact.
+   *
+   * @param sigma the sigma
+   * @return the kernels [g, g'']
+   */
+  @VisibleForTesting
+  static float[][] makeKernels(double sigma) {
+    final int radius = Math.max(1, (int) Math.ceil(5 * sigma));
+    final double[] g = new double[radius + 1];
+    final double f = -0.5 / (sigma * sigma);
+    double sum = g[0] = 1;
+    for (int i = 1; i <= radius; i++) {
+      g[i] = Math.exp(f * i * i);
+      sum += 2 * g[i];
+    }
+    final double s2 = sigma * sigma;
+    final double[] d2 = new double[radius + 1];
+    double sum2 = 0;
+    for (int i = 0; i <= radius; i++) {
+      g[i] /= sum;
+      d2[i] = (i * i / s2 - 1) / s2 * g[i];
+      sum2 += (i == 0) ? d2[i] : 2 * d2[i];
+    }
+    // Zero sum
+    double moment = 0;
+    for (int i = 0; i <= radius; i++) {
+      d2[i] -= sum2 * g[i];
+      moment += (double) i * i * d2[i];
+    }
+    final float[] kernel = new float[radius + 1];
+    final float[] kernel2 = new float[radius + 1];
+    for (int i = 0; i <= radius; i++) {
+      kernel[i] = (float) g[i];
+      kernel2[i] = (float) (d2[i] / moment);
+    }
+    return new float[][] {kernel, kernel2};
+  }
+
+  /**
+   * Compute the Laplacian and mark the zero crossings.
+   *
+   * @param pixels the pixels (byte, short or float)
+   * @param edges the output zero crossings (set to 255)
+   * @param laplacian the output Laplacian (can be null)
+   * @param threads the number of threads
+   */
+  void run(Object pixels, byte[] edges, @Nullable float[] laplacian, int threads) {
+    final int size = width * height;
+    final float[] gx = new float[size];
+    final float[] d2x = new float[size];
+
+    final int blocks = (height + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+    final int threadCount = MathUtils.clip(1, blocks, threads);
+    final ExecutorService executor =
+        (threadCount == 1) ? null : Executors.newFixedThreadPool(threadCount);
+    try {
+      // Convolve the rows with both kernels
+      forEachBlock(executor, threadCount, blocks, () -> new float[width], (row, block) -> {
+        final int end = Math.min(height, (block + 1) * ROWS_PER_BLOCK);
+        for (int y = block * ROWS_PER_BLOCK; y < end; y++) {
+          readRow(pixels, y, row);
+          convolveRow(kernel, row, gx, y * width);
+          convolveRow(kernel2, row, d2x, y * width);
+        }
+      });
+
+      // Convolve the columns and find the zero crossings.
+      // Each band includes the rows above and below for the zero crossings.
+      forEachBlock(executor, threadCount, blocks,
+          () -> new float[(ROWS_PER_BLOCK + 2) * width], (band, block) -> {
+            final int y0 = block * ROWS_PER_BLOCK;
+            final int y1 = Math.min(height, y0 + ROWS_PER_BLOCK);
+            final int ya = Math.max(0, y0 - 1);
+            final int yb = Math.min(height, y1 + 1);
+            for (int y = ya; y < yb; y++) {
+              convolveColumns(gx, d2x, y, band, (y - ya) * width);
+            }
+            for (int y = y0; y < y1; y++) {
+              findZeroCrossings(band, y, ya, yb, edges);
+            }
+            if (laplacian != null) {
+              System.arraycopy(band, (y0 - ya) * width, laplacian, y0 * width,
+                  (y1 - y0) * width);
+            }
+          });
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Run the task for each block. Each thread uses its own workspace.
+   *
+   * @param <T> the workspace type
+   * @param executor the executor (null for a single thread)
+   * @param threadCount the number of threads
+   * @param blocks the number of blocks
+   * @param workspace the workspace supplier
+   * @param task the task
+   */
+  private static <T> void forEachBlock(@Nullable ExecutorService executor, int threadCount,
+      int blocks, Supplier<T> workspace, ObjIntConsumer<T> task) {
+    if (executor == null) {
+      final T local = workspace.get();
+      for (int block = 0; block < blocks; block++) {
+        task.accept(local, block);
+      }
+      return;
+    }
+    final AtomicInteger next = new AtomicInteger();
+    final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      futures.add(executor.submit(() -> {
+        final T local = workspace.get();
+        for (int block = next.getAndIncrement(); block < blocks; block = next.getAndIncrement()) {
+          task.accept(local, block);
+        }
+      }));
+    }
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+  }
+
+  /**
+   * Read the row of pixels into the row buffer.
+   *
+   * @param pixels the pixels
+   * @param y the row
+   * @param row the row buffer
+   */
+  private void readRow(Object pixels, int y, float[] row) {
+    final int index = y * width;
+    if (pixels instanceof float[]) {
+      System.arraycopy(pixels, index, row, 0, width);
+    } else if (pixels instanceof short[]) {
+      final short[] data = (short[]) pixels;
+      for (int x = 0; x < width; x++) {
+        row[x] = data[index + x] & 0xffff;
+      }
+    } else {
+      final byte[] data = (byte[]) pixels;
+      for (int x = 0; x < width; x++) {
+        row[x] = data[index + x] & 0xff;
+      }
+    }
+  }
+
+  /**
+   * Convolve the row.
+   *
+   * @param kernel the kernel
+   * @param row the row
+   * @param out the output
+   * @param offset the output offset
+   */
+  private void convolveRow(float[] kernel, float[] row, float[] out, int offset) {
+    final int radius = kernel.length - 1;
+    final float k0 = kernel[0];
+    final int upper = width - 1;
+    for (int x = 0; x < width; x++) {
+      float sum = k0 * row[x];
+      if (x - radius >= 0 && x + radius <= upper) {
+        for (int k = 1; k <= radius; k++) {
+          sum += kernel[k] * (row[x - k] + row[x + k]);
+        }
+      } else {
+        for (int k = 1; k <= radius; k++) {
+          sum += kernel[k] * (row[Math.max(0, x - k)] + row[Math.min(upper, x + k)]);
+        }
+      }
+      out[offset + x] = sum;
+    }
+  }
+
+  /**
+   * Convolve the columns of the row-convolved images to create a row of the Laplacian: the Gaussian
+   * row-convolved image with g'' plus the g'' row-convolved image with g.
+   *
+   * @param gx the rows convolved with the Gaussian
+   * @param d2x the rows convolved with the Gaussian second derivative
+   * @param y the row
+   * @param out the output
+   * @param offset the output offset
+   */
+  private void convolveColumns(float[] gx, float[] d2x, int y, float[] out, int offset) {
+    final int radius = kernel.length - 1;
+    final float k0 = kernel[0];
+    final float k20 = kernel2[0];
+    final int centre = y * width;
+    for (int x = 0; x < width; x++) {
+      out[offset + x] = k0 * d2x[centre + x] + k20 * gx[centre + x];
+    }
+    for (int k = 1; k <= radius; k++) {
+      // Rows are clamped to the image edge
+      final int above = Math.max(0, y - k) * width;
+      final int below = Math.min(height - 1, y + k) * width;
+      final float kk = kernel[k];
+      final float kk2 = kernel2[k];
+      for (int x = 0; x < width; x++) {
+        out[offset + x] += kk * (d2x[above + x] + d2x[below + x])
+            + kk2 * (gx[above + x] + gx[below + x]);
+      }
+    }
+  }
+
+  /**
+   * Find the zero crossings in the row.
+   *
+   * @param band the Laplacian for rows [ya, yb)
+   * @param y the row
+   * @param ya the first row of the band
+   * @param yb the end row of the band (exclusive)
+   * @param edges the output zero crossings
+   */
+  private void findZeroCrossings(float[] band, int y, int ya, int yb, byte[] edges) {
+    final int index = (y - ya) * width;
+    final int above = (y > ya) ? index - width : -1;
+    final int below = (y + 1 < yb) ? index + width : -1;
+    final int upper = width - 1;
+    for (int x = 0, i = index, j = y * width; x < width; x++, i++, j++) {
+      final float value = band[i];
+      if (value > 0) {
+        continue;
+      }
+      // Find the maximum and minimum of the 4-connected neighbours
+      float max = Float.NEGATIVE_INFINITY;
+      float min = Float.POSITIVE_INFINITY;
+      if (x > 0) {
+        max = Math.max(max, band[i - 1]);
+        min = Math.min(min, band[i - 1]);
+      }
+      if (x < upper) {
+        max = Math.max(max, band[i + 1]);
+        min = Math.min(min, band[i + 1]);
+      }
+      if (above >= 0) {
+        max = Math.max(max, band[above + x]);
+        min = Math.min(min, band[above + x]);
+      }
+      if (below >= 0) {
+        max = Math.max(max, band[below + x]);
+        min = Math.min(min, band[below + x]);
+      }
+      if (max > 0 && (value < 0 || min < 0)) {
+        edges[j] = EDGE;
+      }
+    }
+  }
+}
@@ -27,6 +27,7 @@ package uk.ac.sussex.gdsc.ij.threshold;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.gui.Roi;
@@ -38,16 +39,26 @@ import ij.process.ShortProcessor;
 import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
 import uk.ac.sussex.gdsc.core.threshold.AutoThreshold;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
 import uk.ac.sussex.gdsc.core.utils.SimpleArrayUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 import uk.ac.sussex.gdsc.ij.foci.ObjectAnalyzer;
 import uk.ac.sussex.gdsc.ij.foci.ObjectAnalyzer3D;
 
 /**
  * Create a mask from an image.
+ *
+ * <p>The thresholds and masks of each channel+frame combination can be computed in parallel. The
+ * result is the same as a serial computation.
  */
 public class MaskCreater_PlugIn implements PlugIn {
   private static final String TITLE = "Mask Creator";
@@ -105,6 +116,7 @@ public class MaskCreater_PlugIn implements PlugIn {
   private boolean stackHistogram = true;
   private boolean assignObjects;
   private boolean eightConnected;
+  private int threads = 1;
 
   /**
    * Gets the options.
@@ -190,6 +202,7 @@ public class MaskCreater_PlugIn implements PlugIn {
     maskCreater.setStackHistogram(selectedStackHistogram);
     maskCreater.setAssignObjects(selectedAssignObjects);
     maskCreater.setEightConnected(selectedEightConnected);
+    maskCreater.setThreads(Prefs.getThreads());
 
     return true;
   }
@@ -250,10 +263,8 @@ public class MaskCreater_PlugIn implements PlugIn {
     final int nSlices = slices.length;
     final int nFrames = frames.length;
 
-    double[] thresholds = null;
-    if (option == OPTION_THRESHOLD) {
-      thresholds = getThresholds(imp, channels, slices, frames);
-    }
+    final double[] thresholds =
+        option == OPTION_THRESHOLD ? getThresholds(imp, channels, slices, frames) : null;
 
     // Find the global min and max XY values and create a bounding rectangle
     final int w = imp.getWidth();
@@ -270,68 +281,21 @@ public class MaskCreater_PlugIn implements PlugIn {
       // - all pixels above the minimum display value
       result = new ImageStack(imp.getWidth(), imp.getHeight(), nChannels * nSlices * nFrames);
 
-      Consumer<ImageProcessor> clearOutsideRoiAction = bp -> {};
-      if (clearOutside) {
-        // Use the ROI from the ROI image
-        final Roi roi = imp.getRoi();
-        if (roi != null) {
-          clearOutsideRoiAction = bp -> {
-            bp.setValue(0);
-            bp.fillOutside(roi);
-          };
-        }
-      }
+      final Consumer<ImageProcessor> clearOutsideRoiAction = createClearOutsideRoiAction();
+
+      // Create the mask for each channel of each frame
+      final ImageStack[][] channelStacks = new ImageStack[nFrames][nChannels];
+      forEach(nFrames * nChannels, index -> {
+        final int frIndex = index / nChannels;
+        final int chIndex = index % nChannels;
+        channelStacks[frIndex][chIndex] = createChannelStack(inputStack, channels[chIndex],
+            slices, frames[frIndex], thresholds, clearOutsideRoiAction);
+      });
 
       for (int frIndex = 0; frIndex < frames.length; frIndex++) {
-        final int fr = frames[frIndex];
         for (int chIndex = 0; chIndex < channels.length; chIndex++) {
-          final int ch = channels[chIndex];
-
-          ImageStack channelStack = new ImageStack(imp.getWidth(), imp.getHeight());
-
-          for (final int sl : slices) {
-            final int stackIndex = imp.getStackIndex(ch, sl, fr);
-            final ImageProcessor roiIp = inputStack.getProcessor(stackIndex);
-
-            ip = new ByteProcessor(w, h);
-            if (option == OPTION_MASK) {
-              for (int i = roiIp.getPixelCount(); i-- > 0;) {
-                if (roiIp.getf(i) != 0) {
-                  ip.set(i, 255);
-                }
-              }
-            } else {
-              final double min;
-              if (option == OPTION_MIN_VALUE) {
-                min = getDisplayRangeMin(imp, ch);
-                for (int i = roiIp.getPixelCount(); i-- > 0;) {
-                  // Only display pixels equal to or above the
-                  // min display threshold
-                  if (roiIp.getf(i) >= min) {
-                    ip.set(i, 255);
-                  }
-                }
-              } else {
-                assert thresholds != null : "Not the threshold option";
-                min = thresholds[stackIndex - 1];
-                for (int i = roiIp.getPixelCount(); i-- > 0;) {
-                  // When thresholding it is typical to only
-                  // display pixels above the threshold. The IJ
-                  // plugins compute the threshold for integer histograms
-                  // then call ImageProcessor.setThreshold(t+1, [upper limit]).
-                  if (roiIp.getf(i) > min) {
-                    ip.set(i, 255);
-                  }
-                }
-              }
-            }
-
-            clearOutsideRoiAction.accept(ip);
-            channelStack.addSlice(null, ip);
-          }
-
-          // Post process the entire z-stack to find objects in 3D
-          channelStack = postProcess(channelStack);
+          final ImageStack channelStack = channelStacks[frIndex][chIndex];
+          channelStacks[frIndex][chIndex] = null;
 
           for (int sl = 1; sl <= channelStack.getSize(); sl++) {
             ip = channelStack.getProcessor(sl);
@@ -460,6 +424,123 @@ public class MaskCreater_PlugIn implements PlugIn {
     return maskImp;
   }
 
+  /**
+   * Creates the action to clear the mask outside the ROI of the image. The region outside the ROI
+   * is computed once so the action can be used concurrently.
+   *
+   * @return the action
+   */
+  private Consumer<ImageProcessor> createClearOutsideRoiAction() {
+    if (clearOutside) {
+      // Use the ROI from the ROI image
+      final Roi roi = imp.getRoi();
+      if (roi != null) {
+        final ImageProcessor inside = new ByteProcessor(imp.getWidth(), imp.getHeight());
+        inside.setValue(255);
+        inside.fill();
+        inside.setValue(0);
+        inside.fillOutside(roi);
+        final byte[] insidePixels = (byte[]) inside.getPixels();
+        return bp -> {
+          for (int i = insidePixels.length; i-- > 0;) {
+            if (insidePixels[i] == 0) {
+              bp.set(i, 0);
+            }
+          }
+        };
+      }
+    }
+    return bp -> {};
+  }
+
+  /**
+   * Creates the mask for the z-stack of the channel and frame. The mask is post-processed to find
+   * objects in 3D.
+   *
+   * @param inputStack the input stack
+   * @param ch the channel
+   * @param slices the slices
+   * @param fr the frame
+   * @param thresholds the thresholds (for the threshold option)
+   * @param clearOutsideRoiAction the action to clear outside the ROI
+   * @return the mask stack
+   */
+  private ImageStack createChannelStack(ImageStack inputStack, int ch, int[] slices, int fr,
+      double[] thresholds, Consumer<ImageProcessor> clearOutsideRoiAction) {
+    final int w = imp.getWidth();
+    final int h = imp.getHeight();
+    final ImageStack channelStack = new ImageStack(w, h);
+
+    for (final int sl : slices) {
+      final int stackIndex = imp.getStackIndex(ch, sl, fr);
+      final ImageProcessor roiIp = inputStack.getProcessor(stackIndex);
+
+      final ImageProcessor ip = new ByteProcessor(w, h);
+      if (option == OPTION_MASK) {
+        for (int i = roiIp.getPixelCount(); i-- > 0;) {
+          if (roiIp.getf(i) != 0) {
+            ip.set(i, 255);
+          }
+        }
+      } else {
+        final double min;
+        if (option == OPTION_MIN_VALUE) {
+          min = getDisplayRangeMin(imp, ch);
+          for (int i = roiIp.getPixelCount(); i-- > 0;) {
+            // Only display pixels equal to or above the
+            // min display threshold
+            if (roiIp.getf(i) >= min) {
+              ip.set(i, 255);
+            }
+          }
+        } else {
+          assert thresholds != null : "Not the threshold option";
+          min = thresholds[stackIndex - 1];
+          for (int i = roiIp.getPixelCount(); i-- > 0;) {
+            // When thresholding it is typical to only
+            // display pixels above the threshold. The IJ
+            // plugins compute the threshold for integer histograms
+            // then call ImageProcessor.setThreshold(t+1, [upper limit]).
+            if (roiIp.getf(i) > min) {
+              ip.set(i, 255);
+            }
+          }
+        }
+      }
+
+      clearOutsideRoiAction.accept(ip);
+      channelStack.addSlice(null, ip);
+    }
+
+    // Post process the entire z-stack to find objects in 3D
+    return postProcess(channelStack);
+  }
+
+  /**
+   * Run the task for each index. The tasks are run in parallel if the number of threads is above
+   * 1.
+   *
+   * @param size the number of tasks
+   * @param task the task
+   */
+  private void forEach(int size, IntConsumer task) {
+    final int threadCount = MathUtils.clip(1, size, threads);
+    if (threadCount == 1) {
+      for (int i = 0; i < size; i++) {
+        task.accept(i);
+      }
+      return;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final LocalList<Future<?>> futures = new LocalList<>(size);
+    for (int i = 0; i < size; i++) {
+      final int index = i;
+      futures.add(executor.submit(() -> task.accept(index)));
+    }
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+  }
+
   private static int getDisplayRangeMin(ImagePlus imp, int channel) {
     // Composite images can have a display range for each color channel
     final LUT[] luts = imp.getLuts();
@@ -471,106 +552,76 @@ public class MaskCreater_PlugIn implements PlugIn {
 
   private double[] getThresholds(ImagePlus imp, int[] channels, int[] slices, int[] frames) {
     final double[] thresholds = new double[imp.getStackSize()];
-    ImageStack inputStack = imp.getImageStack();
-
-    // 32-bit images have no histogram.
-    // We convert to 16-bit using the min-max from each channel
-    final float[][] min = new float[channels.length][frames.length];
-    final float[][] max = new float[channels.length][frames.length];
-    if (imp.getBitDepth() == 32) {
-      // Convert the image to 16-bit
-
-      // Find the min and max per channel
-      for (int i = 0; i < channels.length; i++) {
-        Arrays.fill(min[i], Float.POSITIVE_INFINITY);
-        Arrays.fill(max[i], Float.NEGATIVE_INFINITY);
+    final ImageStack inputStack = imp.getImageStack();
+    final boolean is32bit = imp.getBitDepth() == 32;
+
+    // Each channel and frame is independent
+    forEach(channels.length * frames.length, index -> {
+      final int channel = channels[index / frames.length];
+      final int frame = frames[index % frames.length];
+      final int[] stackIndices = new int[slices.length];
+      final ImageProcessor[] processors = new ImageProcessor[slices.length];
+      for (int k = 0; k < slices.length; k++) {
+        stackIndices[k] = imp.getStackIndex(channel, slices[k], frame);
+        processors[k] = inputStack.getProcessor(stackIndices[k]);
       }
 
-      for (int i = 0; i < channels.length; i++) {
-        for (int j = 0; j < frames.length; j++) {
-          // Find the min and max per channel across the z-stack
-          for (int k = 0; k < slices.length; k++) {
-            final int stackIndex = imp.getStackIndex(channels[i], slices[k], frames[j]);
-            final float[] data = (float[]) inputStack.getProcessor(stackIndex).getPixels();
-            float cmin = data[0];
-            float cmax = data[0];
-            for (final float f : data) {
-              if (f < cmin) {
-                cmin = f;
-              } else if (f > cmax) {
-                cmax = f;
-              }
-            }
-            if (cmin < min[i][j]) {
-              min[i][j] = cmin;
+      // 32-bit images have no histogram.
+      // We convert to 16-bit using the min-max from each channel across the z-stack
+      float cmin = Float.POSITIVE_INFINITY;
+      float cmax = Float.NEGATIVE_INFINITY;
+      if (is32bit) {
+        // Find the min and max per channel across the z-stack
+        for (final ImageProcessor ip : processors) {
+          final float[] data = (float[]) ip.getPixels();
+          for (final float f : data) {
+            if (f < cmin) {
+              cmin = f;
             }
-            if (cmax > max[i][j]) {
-              max[i][j] = cmax;
+            if (f > cmax) {
+              cmax = f;
             }
           }
         }
-      }
-
-      // Convert
-      final ImageStack newStack =
-          new ImageStack(imp.getWidth(), imp.getHeight(), imp.getStackSize());
-      for (int i = 0; i < channels.length; i++) {
-        for (int j = 0; j < frames.length; j++) {
-          final float cmin = min[i][j];
-          final float cmax = max[i][j];
-          for (int k = 0; k < slices.length; k++) {
-            final int stackIndex = imp.getStackIndex(channels[i], slices[k], frames[j]);
-            newStack.setPixels(convertToShort(inputStack.getProcessor(stackIndex), cmin, cmax),
-                stackIndex);
-          }
+        // Convert
+        for (int k = 0; k < processors.length; k++) {
+          processors[k] = new ShortProcessor(imp.getWidth(), imp.getHeight(),
+              convertToShort(processors[k], cmin, cmax), null);
         }
       }
-      inputStack = newStack;
-    }
 
-    for (int i = 0; i < channels.length; i++) {
-      for (int j = 0; j < frames.length; j++) {
-        final float cmin = min[i][j];
-        final float cmax = max[i][j];
-
-        if (stackHistogram) {
-          // Threshold the z-stack together
-          int stackIndex = imp.getStackIndex(channels[i], slices[0], frames[j]);
-          final int[] data = inputStack.getProcessor(stackIndex).getHistogram();
-          for (int k = 1; k < slices.length; k++) {
-            stackIndex = imp.getStackIndex(channels[i], slices[k], frames[j]);
-            final int[] tmp = inputStack.getProcessor(stackIndex).getHistogram();
-            for (int ii = tmp.length; ii-- > 0;) {
-              data[ii] += tmp[ii];
-            }
+      if (stackHistogram) {
+        // Threshold the z-stack together
+        final int[] data = processors[0].getHistogram();
+        for (int k = 1; k < processors.length; k++) {
+          final int[] tmp = processors[k].getHistogram();
+          for (int ii = tmp.length; ii-- > 0;) {
+            data[ii] += tmp[ii];
           }
+        }
+        double threshold = getThreshold(thresholdMethod, data);
+        if (is32bit) {
+          // Convert the 16-bit threshold back to the original 32-bit range
+          final float scale = getScale(cmin, cmax);
+          threshold = (threshold / scale) + cmin;
+        }
+        for (final int stackIndex : stackIndices) {
+          thresholds[stackIndex - 1] = threshold;
+        }
+      } else {
+        // Threshold each slice
+        for (int k = 0; k < processors.length; k++) {
+          final int[] data = processors[k].getHistogram();
           double threshold = getThreshold(thresholdMethod, data);
-          if (imp.getBitDepth() == 32) {
+          if (is32bit) {
             // Convert the 16-bit threshold back to the original 32-bit range
             final float scale = getScale(cmin, cmax);
             threshold = (threshold / scale) + cmin;
           }
-
-          for (int k = 0; k < slices.length; k++) {
-            stackIndex = imp.getStackIndex(channels[i], slices[k], frames[j]);
-            thresholds[stackIndex - 1] = threshold;
-          }
-        } else {
-          // Threshold each slice
-          for (int k = 0; k < slices.length; k++) {
-            final int stackIndex = imp.getStackIndex(channels[i], slices[k], frames[j]);
-            final int[] data = inputStack.getProcessor(stackIndex).getHistogram();
-            double threshold = getThreshold(thresholdMethod, data);
-            if (imp.getBitDepth() == 32) {
-              // Convert the 16-bit threshold back to the original 32-bit range
-              final float scale = getScale(cmin, cmax);
-              threshold = (threshold / scale) + cmin;
-            }
-            thresholds[stackIndex - 1] = threshold;
-          }
+          thresholds[stackIndices[k] - 1] = threshold;
         }
       }
-    }
+    });
 
     return thresholds;
   }
@@ -842,6 +893,24 @@ public class MaskCreater_PlugIn implements PlugIn {
     this.stackHistogram = stackHistogram;
   }
 
+  /**
+   * Gets the number of threads used to compute the thresholds and masks.
+   *
+   * @return the threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Sets the number of threads used to compute the thresholds and masks of each channel and frame.
+   *
+   * @param threads the threads
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   private ImageProcessor postProcess(ImageProcessor ip) {
     if (!removeEdgeParticles && minParticleSize == 0 && !assignObjects) {
       return ip;
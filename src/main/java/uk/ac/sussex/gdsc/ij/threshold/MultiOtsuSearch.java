@@ -0,0 +1,412 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.threshold;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
+
+/**
+ * Search for the multi-level Otsu thresholds that maximise the between class variance using
+ * dynamic programming.
+ *
+ * <p>The between class significance of each class is computed on demand from prefix sums of the
+ * histogram moments so only O(N) memory is required for a histogram of length N. The optimal
+ * thresholds for k classes are found in O(k N<sup>2</sup>) time. The optimum for each threshold
+ * position within a class is independent and can be computed in parallel.
+ *
+ * <p>The result matches the exhaustive search of
+ * {@link MultiOtsuThreshold_PlugIn#findMaxSigma(int, float[][], int[])}: the class significance is
+ * computed using the same single-precision arithmetic and summed in the same order; the classes
+ * start from histogram bin 1; and in the event of equal maximum significance the thresholds are
+ * the average of all the optimal thresholds. Since different partial sums can round to the same
+ * total, each threshold position retains all partial sums within a small tolerance of the maximum
+ * so the set of equal optimal thresholds is the same as the exhaustive search. The number of
+ * retained partial sums is not limited; it is typically small but can be large when the histogram
+ * has long runs of empty bins.
+ */
+final class MultiOtsuSearch {
+  /** The minimum number of threshold positions processed by each task. */
+  private static final int MIN_THRESHOLDS_PER_TASK = 64;
+  /** The initial capacity for the partial sums retained for each threshold position. */
+  private static final int INITIAL_ENTRIES = 4;
+
+  /** The histogram. */
+  private final float[] histogram;
+  /** The cumulative sum of the histogram from bin 1. */
+  private final float[] p;
+  /** The cumulative sum of the histogram values (count * value) from bin 1. */
+  private final float[] s;
+  /** An upper bound for the total significance. */
+  private final double upperBound;
+  /** The number of threads. */
+  private int threads = 1;
+  /** The number of optimal threshold combinations from the last search. */
+  private long count;
+
+  // Working data for the search.
+  // For each threshold position t: the partial sums of the significance of the classes up to t
+  // in descending order; the number of combinations of thresholds with each partial sum;
+  // and the sum of each threshold over the combinations. The entries for each position are
+  // stored in separate arrays that grow as required; the sums of entry e are at index e * m.
+
+  private float tolerance;
+  private int[] size;
+  private float[][] value;
+  private long[][] counts;
+  private long[][] sums;
+  private int[] nextSize;
+  private float[][] nextValue;
+  private long[][] nextCounts;
+  private long[][] nextSums;
+  // The threshold positions with more than one partial sum
+  private int[] multiple;
+  private int multipleCount;
+
+  /**
+   * Create an instance.
+   *
+   * @param histogram the normalised histogram
+   */
+  MultiOtsuSearch(float[] histogram) {
+    this.histogram = histogram;
+    final int greyLevels = histogram.length;
+    p = new float[greyLevels];
+    s = new float[greyLevels];
+    if (greyLevels > 1) {
+      p[1] = histogram[1];
+      s[1] = histogram[1];
+      for (int i = 1; i < greyLevels - 1; ++i) {
+        p[i + 1] = p[i] + histogram[i + 1];
+        s[i + 1] = s[i] + (i + 1) * histogram[i + 1];
+      }
+    }
+    // The significance of a class is bounded by the second moment of the class
+    double sum = 0;
+    for (int i = 1; i < greyLevels; i++) {
+      sum += (double) i * i * histogram[i];
+    }
+    upperBound = sum;
+  }
+
+  /**
+   * Gets the between class significance for the class of histogram bins [i, j].
+   *
+   * @param i the first bin (must be above 0)
+   * @param j the last bin
+   * @return the significance
+   */
+  float getSignificance(int i, int j) {
+    if (i == j) {
+      // As per the lookup table the diagonal is the sum of the values
+      return i * histogram[i];
+    }
+    final float w1;
+    final float w2;
+    if (i == 1) {
+      w1 = p[j];
+      w2 = s[j];
+    } else {
+      w1 = p[j] - p[i - 1];
+      w2 = s[j] - s[i - 1];
+    }
+    return w1 != 0 ? (w2 * w2) / w1 : 0;
+  }
+
+  /**
+   * Find the thresholds that maximise the between class variance.
+   *
+   * <p>Threshold 0 is always zero. Thresholds 1 to mlevel-1 are the upper bin of each class
+   * (except the last).
+   *
+   * @param mlevel The number of classes
+   * @param thresholds The thresholds (output)
+   * @return The max between class significance (or -1 if there are too few histogram bins)
+   * @throws IllegalArgumentException if the number of classes is below 2
+   */
+  float findMaxSigma(int mlevel, int[] thresholds) {
+    if (mlevel < 2) {
+      throw new IllegalArgumentException("Unsupported level: " + mlevel);
+    }
+    Arrays.fill(thresholds, 0);
+    count = 0;
+
+    // Number of thresholds
+    final int m = mlevel - 1;
+    final int greyLevels = histogram.length;
+    // The final class has at least 2 bins
+    final int last = greyLevels - 3;
+    if (last < m) {
+      return -1;
+    }
+
+    // A partial sum can be part of an optimal total if it is within 1 ULP of the total of the
+    // maximum partial sum at each subsequent threshold
+    tolerance = 2 * mlevel * Math.ulp((float) (2 * upperBound));
+    size = new int[greyLevels];
+    value = new float[greyLevels][];
+    counts = new long[greyLevels][];
+    sums = new long[greyLevels][];
+    nextSize = new int[greyLevels];
+    nextValue = new float[greyLevels][];
+    nextCounts = new long[greyLevels][];
+    nextSums = new long[greyLevels][];
+    multiple = new int[greyLevels];
+    multipleCount = 0;
+
+    // First class [1, t]
+    for (int t = 1; t <= last - m + 1; t++) {
+      size[t] = 1;
+      value[t] = new float[] {getSignificance(1, t)};
+      counts[t] = new long[] {1};
+      sums[t] = new long[m];
+      sums[t][0] = t;
+    }
+
+    // Add classes [u+1, t] for the thresholds a = 2 to m
+    final int threadCount = MathUtils.clip(1, threads, (last - m + 1) / MIN_THRESHOLDS_PER_TASK);
+    final ExecutorService executor =
+        m > 1 && threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+    try {
+      for (int a = 2; a <= m; a++) {
+        final int from = a;
+        final int to = last - m + a + 1;
+        if (executor == null) {
+          updateThresholds(a, m, from, to);
+        } else {
+          // Chunks of thresholds. The cost of each threshold increases with t.
+          final int layer = a;
+          final AtomicInteger next = new AtomicInteger(from);
+          final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+          for (int i = 0; i < threadCount; i++) {
+            futures.add(executor.submit(() -> {
+              for (int t = next.getAndAdd(MIN_THRESHOLDS_PER_TASK); t < to;
+                  t = next.getAndAdd(MIN_THRESHOLDS_PER_TASK)) {
+                updateThresholds(layer, m, t, Math.min(to, t + MIN_THRESHOLDS_PER_TASK));
+              }
+            }));
+          }
+          ConcurrencyUtils.waitForCompletionUnchecked(futures);
+        }
+        int[] tmpSize = size;
+        size = nextSize;
+        nextSize = tmpSize;
+        float[][] tmpValue = value;
+        value = nextValue;
+        nextValue = tmpValue;
+        long[][] tmp = counts;
+        counts = nextCounts;
+        nextCounts = tmp;
+        tmp = sums;
+        sums = nextSums;
+        nextSums = tmp;
+        multipleCount = 0;
+        for (int t = from; t < to; t++) {
+          if (size[t] > 1) {
+            multiple[multipleCount++] = t;
+          }
+        }
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+
+    // Add the final class [t+1, greyLevels-1]
+    float maxSig = -1;
+    final long[] optimum = new long[m];
+    for (int t = m; t <= last; t++) {
+      final float sq0 = getSignificance(t + 1, greyLevels - 1);
+      final float[] v = value[t];
+      final long[] c = counts[t];
+      final long[] ts = sums[t];
+      for (int e = 0; e < size[t]; e++) {
+        final float sq = v[e] + sq0;
+        if (maxSig < sq) {
+          maxSig = sq;
+          count = c[e];
+          System.arraycopy(ts, e * m, optimum, 0, m);
+        } else if (maxSig == sq) {
+          count += c[e];
+          for (int b = 0; b < m; b++) {
+            optimum[b] += ts[e * m + b];
+          }
+        }
+      }
+    }
+
+    // In case of equality use the average for the threshold
+    for (int b = 0; b < m; b++) {
+      thresholds[b + 1] = (int) (optimum[b] / count);
+    }
+    size = nextSize = null;
+    value = nextValue = null;
+    counts = nextCounts = null;
+    sums = nextSums = null;
+    multiple = null;
+    return maxSig;
+  }
+
+  /**
+   * Compute the partial sums for threshold a in the range [from, to) using the partial sums for
+   * threshold a-1.
+   *
+   * @param a the threshold (at least 2)
+   * @param m the number of thresholds
+   * @param from the first threshold position (inclusive)
+   * @param to the last threshold position (exclusive)
+   */
+  private void updateThresholds(int a, int m, int from, int to) {
+    final float[] partialSums = new float[to - 1];
+    for (int t = from; t < to; t++) {
+      // Find the maximum using the maximum partial sum for each position
+      float max = Float.NEGATIVE_INFINITY;
+      for (int u = a - 1; u < t; u++) {
+        final float sq = value[u][0] + getSignificance(u + 1, t);
+        partialSums[u] = sq;
+        if (max < sq) {
+          max = sq;
+        }
+      }
+      // Retain all partial sums within the tolerance of the maximum
+      final float limit = max - tolerance;
+      int n = 0;
+      for (int u = a - 1; u < t; u++) {
+        if (partialSums[u] >= limit) {
+          n = insert(t, n, partialSums[u], u, 0, a - 1, m);
+        }
+      }
+      // Other partial sums are retained for few positions
+      for (int k = 0; k < multipleCount && multiple[k] < t; k++) {
+        final int u = multiple[k];
+        final float sq0 = getSignificance(u + 1, t);
+        final float[] v = value[u];
+        for (int e = 1; e < size[u]; e++) {
+          final float sq = v[e] + sq0;
+          if (sq >= limit) {
+            n = insert(t, n, sq, u, e, a - 1, m);
+          }
+        }
+      }
+      nextSize[t] = n;
+      final long[] c = nextCounts[t];
+      final long[] ts = nextSums[t];
+      for (int e = 0; e < n; e++) {
+        ts[e * m + a - 1] = c[e] * t;
+      }
+    }
+  }
+
+  /**
+   * Insert the partial sum into the entries for threshold position t. The entries are kept in
+   * descending order of the partial sum; equal partial sums are merged.
+   *
+   * @param t the threshold position
+   * @param n the current number of entries
+   * @param sq the partial sum
+   * @param u the threshold position of the source entry
+   * @param source the index of the source entry
+   * @param length the number of thresholds in the source entry
+   * @param m the number of thresholds
+   * @return the new number of entries
+   */
+  private int insert(int t, int n, float sq, int u, int source, int length, int m) {
+    float[] v = nextValue[t];
+    int i = 0;
+    while (i < n && v[i] > sq) {
+      i++;
+    }
+    final long[] sourceSums = sums[u];
+    if (i < n && v[i] == sq) {
+      // Equal partial sum
+      nextCounts[t][i] += counts[u][source];
+      final long[] ts = nextSums[t];
+      for (int b = 0; b < length; b++) {
+        ts[i * m + b] += sourceSums[source * m + b];
+      }
+      return n;
+    }
+    if (v == null || n == v.length) {
+      v = grow(t, n, m);
+    }
+    final long[] c = nextCounts[t];
+    final long[] ts = nextSums[t];
+    // Shift smaller entries down
+    System.arraycopy(v, i, v, i + 1, n - i);
+    System.arraycopy(c, i, c, i + 1, n - i);
+    System.arraycopy(ts, i * m, ts, (i + 1) * m, (n - i) * m);
+    v[i] = sq;
+    c[i] = counts[u][source];
+    System.arraycopy(sourceSums, source * m, ts, i * m, length);
+    return n + 1;
+  }
+
+  /**
+   * Increase the capacity of the entries for threshold position t.
+   *
+   * @param t the threshold position
+   * @param n the current number of entries
+   * @param m the number of thresholds
+   * @return the new partial sums
+   */
+  private float[] grow(int t, int n, int m) {
+    final int capacity = Math.max(INITIAL_ENTRIES, n * 2);
+    if (nextValue[t] == null) {
+      nextValue[t] = new float[capacity];
+      nextCounts[t] = new long[capacity];
+      nextSums[t] = new long[capacity * m];
+    } else {
+      nextValue[t] = Arrays.copyOf(nextValue[t], capacity);
+      nextCounts[t] = Arrays.copyOf(nextCounts[t], capacity);
+      nextSums[t] = Arrays.copyOf(nextSums[t], capacity * m);
+    }
+    return nextValue[t];
+  }
+
+  /**
+   * Sets the number of threads.
+   *
+   * @param threads the new threads
+   */
+  void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * Gets the number of optimal threshold combinations from the last search. If above 1 the
+   * thresholds are the average of the combinations.
+   *
+   * @return the count
+   */
+  long getCount() {
+    return count;
+  }
+}
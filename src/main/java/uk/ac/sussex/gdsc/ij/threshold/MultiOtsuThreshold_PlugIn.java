@@ -27,6 +27,7 @@ package uk.ac.sussex.gdsc.ij.threshold;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.gui.NewImage;
 import ij.gui.Plot;
@@ -48,6 +49,10 @@ import uk.ac.sussex.gdsc.ij.UsageTracker;
  *
  * <p>Adapted to allow 8/16 bit stack images and used a clipped histogram to increase speed. Added
  * output options.
+ *
+ * <p>The thresholds are found using a dynamic programming search of the histogram that requires
+ * O(N) memory and O(k N<sup>2</sup>) time for k levels and N histogram bins. This supports full
+ * 16-bit histograms. The exhaustive search using lookup tables is retained in the public API.
  */
 public class MultiOtsuThreshold_PlugIn implements PlugInFilter {
   private static final String TITLE = "Multi Otsu Threshold";
@@ -57,6 +62,9 @@ public class MultiOtsuThreshold_PlugIn implements PlugInFilter {
   /** The current settings for the plugin instance. */
   private Settings settings;
 
+  /** The number of threads used to search for the thresholds. */
+  private int threads = 1;
+
   /**
    * Contains the settings that are the re-usable state of the plugin.
    */
@@ -161,6 +169,7 @@ public class MultiOtsuThreshold_PlugIn implements PlugInFilter {
   @Override
   public void run(ImageProcessor ip) {
     settings = Settings.load();
+    threads = Prefs.getThreads();
 
     final GenericDialog gd = new GenericDialog(TITLE);
     gd.addMessage("Multi-level Otsu thresholding on image stack");
@@ -304,20 +313,18 @@ public class MultiOtsuThreshold_PlugIn implements PlugInFilter {
   }
 
   private int[] getThresholds(int levels, float[] maxSig, int[] offset, float[] histogram) {
-
-    /////////////////////////////////////////////
-    // Build lookup tables from histogram
-    ////////////////////////////////////////////
-    final float[][] lookupTable = buildLookupTables(histogram);
-
-    ////////////////////////////////////////////////////////
-    // now M level loop levels dependent term
-    ////////////////////////////////////////////////////////
+    createSettingsIfAbsent();
     if (maxSig == null || maxSig.length < 1) {
       maxSig = new float[1];
     }
     final int[] threshold = new int[levels];
-    maxSig[0] = findMaxSigma(levels, lookupTable, threshold);
+    final MultiOtsuSearch search = new MultiOtsuSearch(histogram);
+    search.setThreads(threads);
+    final float sig = search.findMaxSigma(levels, threshold);
+    maxSig[0] = (sig > 0) ? sig : 0;
+    if (search.getCount() > 1 && settings.logMessages) {
+      IJ.log("Multiple optimal thresholds");
+    }
 
     applyOffset(threshold, offset);
 
@@ -798,4 +805,22 @@ public class MultiOtsuThreshold_PlugIn implements PlugInFilter {
       region[i].show();
     }
   }
+
+  /**
+   * Gets the number of threads used to search for the thresholds.
+   *
+   * @return the threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Sets the number of threads used to search for the thresholds.
+   *
+   * @param threads the threads
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
 }
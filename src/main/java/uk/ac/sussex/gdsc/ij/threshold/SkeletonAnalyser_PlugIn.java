@@ -36,6 +36,7 @@ import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 import ij.text.TextWindow;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -44,11 +45,22 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 import uk.ac.sussex.gdsc.core.annotation.Nullable;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 
 /**
@@ -90,6 +102,9 @@ public class SkeletonAnalyser_PlugIn implements PlugInFilter {
   private static final byte[] PROCESSED_DIRECTIONS = new byte[] {(byte) 1, (byte) 2, (byte) 4,
       (byte) 8, (byte) 16, (byte) 32, (byte) 64, (byte) 128};
 
+  /** The number of pixels processed by each task when scanning the map. */
+  private static final int PIXELS_PER_BLOCK = 1 << 16;
+
   /** The foreground value. Set using the ImageJ system preferences. */
   private int foreground;
   private ImagePlus imp;
@@ -106,6 +121,9 @@ public class SkeletonAnalyser_PlugIn implements PlugInFilter {
   private String unit = "px";
   private double unitConversion = 1;
 
+  /** The number of threads. */
+  private int threads = 1;
+
   /** The current settings for the plugin instance. */
   private Settings settings;
 
@@ -209,55 +227,6 @@ public class SkeletonAnalyser_PlugIn implements PlugInFilter {
     }
   }
 
-  private static class Result {
-    float[] line;
-    ChainCode code;
-
-    Result(float[] line, ChainCode code) {
-      this.line = line;
-      this.code = code;
-    }
-
-    /**
-     * Compare the two objects.
-     *
-     * <p>Uses greatest distance then the coordinates.
-     *
-     * @param o1 the first object
-     * @param o2 the second object
-     * @return a negative integer, zero, or a positive integer if object 1 is less than, equal to,
-     *         or greater than object 2.
-     */
-    static int compare(Result o1, Result o2) {
-      final int[] result = new int[1];
-
-      // Distance first
-      if (compare(o1.line[4], o2.line[4], result) != 0) {
-        return -result[0];
-      }
-
-      // Then coordinates
-      for (int i = 0; i < 4; i++) {
-        if (compare(o1.line[i], o2.line[i], result) != 0) {
-          return result[0];
-        }
-      }
-
-      return 0;
-    }
-
-    private static int compare(float value1, float value2, int[] result) {
-      if (value1 < value2) {
-        result[0] = -1;
-      } else if (value1 > value2) {
-        result[0] = 1;
-      } else {
-        result[0] = 0;
-      }
-      return result[0];
-    }
-  }
-
   /** {@inheritDoc} */
   @Override
   public int setup(String arg, ImagePlus imp) {
@@ -312,6 +281,7 @@ public class SkeletonAnalyser_PlugIn implements PlugInFilter {
   /** {@inheritDoc} */
   @Override
   public void run(ImageProcessor ip) {
+    threads = Prefs.getThreads();
     final ByteProcessor bp = (ByteProcessor) ip.convertToByte(false);
 
     final int width = bp.getWidth();
@@ -391,30 +361,7 @@ public class SkeletonAnalyser_PlugIn implements PlugInFilter {
       initialise(ip.getWidth(), ip.getHeight());
     }
 
-    final byte[] skeleton = (byte[]) ip.getPixels();
-    final byte[] map = new byte[ip.getPixelCount()];
-
-    for (int index = map.length; index-- > 0;) {
-      if (skeleton[index] == foregroundValue) {
-        // Process the neighbours
-        final int count = countRadii(skeleton, index);
-
-        switch (count) {
-          case 0:
-          case 1:
-            map[index] = TERMINUS;
-            break;
-          case 2:
-            map[index] = EDGE;
-            break;
-          default:
-            map[index] = JUNCTION;
-            break;
-        }
-      }
-    }
-
-    return map;
+    return findNodes((byte[]) ip.getPixels(), foregroundValue);
   }
 
   /**
@@ -425,32 +372,80 @@ public class SkeletonAnalyser_PlugIn implements PlugInFilter {
    * @return The skeleton node map (or null if not a binary processor)
    */
   private byte[] findNodes(byte[] skeleton) {
-    final byte localForeground = (byte) this.foreground;
-    final byte[] map = new byte[skeleton.length];
+    return findNodes(skeleton, (byte) this.foreground);
+  }
 
-    for (int index = map.length; index-- > 0;) {
-      if (skeleton[index] == localForeground) {
-        // Process the neighbours
-        final int count = countRadii(skeleton, index);
-
-        switch (count) {
-          case 0:
-          case 1:
-            map[index] = TERMINUS;
-            break;
-          case 2:
-            map[index] = EDGE;
-            break;
-          default:
-            map[index] = JUNCTION;
-            break;
+  /**
+   * Search the skeleton and create a node map of the skeleton points. Points can be either:
+   * TERMINUS, EDGE or JUNCTION. Points not on the skeleton are set to zero.
+   *
+   * <p>Blocks of the skeleton are processed in parallel.
+   *
+   * @param skeleton the skeleton
+   * @param foregroundValue the foreground value
+   * @return The skeleton node map
+   */
+  private byte[] findNodes(byte[] skeleton, byte foregroundValue) {
+    final byte[] map = new byte[skeleton.length];
+    final int blocks = (map.length + PIXELS_PER_BLOCK - 1) / PIXELS_PER_BLOCK;
+    forEachBlock(blocks, () -> null, (workspace, block) -> {
+      final int end = Math.min(map.length, (block + 1) * PIXELS_PER_BLOCK);
+      for (int index = block * PIXELS_PER_BLOCK; index < end; index++) {
+        if (skeleton[index] == foregroundValue) {
+          // Process the neighbours
+          final int count = countRadii(skeleton, index);
+
+          switch (count) {
+            case 0:
+            case 1:
+              map[index] = TERMINUS;
+              break;
+            case 2:
+              map[index] = EDGE;
+              break;
+            default:
+              map[index] = JUNCTION;
+              break;
+          }
         }
       }
-    }
-
+    });
     return map;
   }
 
+  /**
+   * Run the task for each block. The blocks are processed in parallel if the number of threads is
+   * above 1. Each thread uses its own workspace.
+   *
+   * @param <T> the workspace type
+   * @param blocks the number of blocks
+   * @param workspace the workspace supplier
+   * @param task the task
+   */
+  private <T> void forEachBlock(int blocks, Supplier<T> workspace, ObjIntConsumer<T> task) {
+    final int threadCount = MathUtils.clip(1, blocks, threads);
+    if (threadCount == 1) {
+      final T local = workspace.get();
+      for (int block = 0; block < blocks; block++) {
+        task.accept(local, block);
+      }
+      return;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final AtomicInteger next = new AtomicInteger();
+    final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      futures.add(executor.submit(() -> {
+        final T local = workspace.get();
+        for (int block = next.getAndIncrement(); block < blocks; block = next.getAndIncrement()) {
+          task.accept(local, block);
+        }
+      }));
+    }
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+  }
+
   /**
    * Prune the shortest line from junctions that end in a terminus, until all junctions are
    * eliminated.
@@ -689,197 +684,461 @@ public class SkeletonAnalyser_PlugIn implements PlugInFilter {
    * @return List of line data. Each entry is: startX, startY, endX, endY, length
    */
   public List<float[]> extractLines(byte[] map, List<ChainCode> chainCodes) {
-    final LinkedList<float[]> lines = new LinkedList<>();
-    final LinkedList<ChainCode> myChainCodes = (chainCodes != null) ? new LinkedList<>() : null;
-    final int[] xy = new int[2];
-    ChainCode code = null;
+    final SkeletonLines lines = extractSkeletonLines(map);
+    if (chainCodes != null) {
+      chainCodes.clear();
+      chainCodes.addAll(lines.getChainCodes());
+    }
+    return lines.getLines();
+  }
 
-    // Reset
-    for (int index = 0; index < map.length; index++) {
-      map[index] &= ~PROCESSED;
+  /**
+   * Extract the lines between nodes (TERMINUS or JUNCTION) by following EDGE pixels. Also extracts
+   * closed loops of continuous edges.
+   *
+   * <p>This should be called with a map created in the {@link #findNodes(ByteProcessor) } method.
+   * The map is not modified.
+   *
+   * <p>Each connected skeleton is traced by a single thread. Blocks of the map are scanned in
+   * parallel and the first thread to find a skeleton claims all of its pixels. The lines of each
+   * skeleton are traced from the termini, then the junctions, then any closed loops, in ascending
+   * index order. The result is independent of the number of threads.
+   *
+   * @param map The skeleton node map
+   * @return the lines (sorted by length descending, then start and end coordinates ascending)
+   */
+  public SkeletonLines extractSkeletonLines(byte[] map) {
+    // Each pixel is claimed using the index of the skeleton seed pixel plus 1
+    final AtomicIntegerArray claims = new AtomicIntegerArray(map.length);
+    final int blocks = (map.length + PIXELS_PER_BLOCK - 1) / PIXELS_PER_BLOCK;
+    final Skeleton[][] skeletons = new Skeleton[blocks][];
+    forEachBlock(blocks, () -> new SkeletonTracer(map, claims), (tracer, block) -> {
+      final LocalList<Skeleton> list = new LocalList<>();
+      final int end = Math.min(map.length, (block + 1) * PIXELS_PER_BLOCK);
+      for (int index = block * PIXELS_PER_BLOCK; index < end; index++) {
+        if ((map[index] & SKELETON) != 0 && claims.get(index) == 0) {
+          final Skeleton skeleton = tracer.traceLines(index);
+          if (skeleton != null) {
+            list.add(skeleton);
+          }
+        }
+      }
+      skeletons[block] = list.toArray(new Skeleton[0]);
+    });
+
+    // Collect the lines from skeletons that were not claimed by another thread
+    final SkeletonLines.Builder lines = new SkeletonLines.Builder();
+    for (final Skeleton[] list : skeletons) {
+      for (final Skeleton skeleton : list) {
+        if (claims.get(skeleton.seed) == skeleton.seed + 1) {
+          for (int i = 0; i < skeleton.lines.size(); i++) {
+            lines.add(skeleton.lines, i);
+          }
+        }
+      }
     }
 
-    // Process TERMINALs
-    for (int index = 0; index < map.length; index++) {
-      if ((map[index] & TERMINUS) != 0 && (map[index] & PROCESSED) != PROCESSED) {
-        getXy(index, xy);
-        final int x = xy[0];
-        final int y = xy[1];
+    // Sort by length. The sort is stable and lines with the same coordinates must be from the
+    // same skeleton so the order is the same as a single threaded trace.
+    final Integer[] order = new Integer[lines.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (i1, i2) -> compareLines(lines, i1, i2));
+    final SkeletonLines.Builder sortedLines = new SkeletonLines.Builder();
+    for (final Integer i : order) {
+      sortedLines.add(lines, i);
+    }
+    return sortedLines.build();
+  }
 
-        if (myChainCodes != null) {
-          code = new ChainCode(x, y);
-          myChainCodes.add(code);
-        }
-        lines.add(extend(map, index, code));
+  /**
+   * Compare the two lines. Uses greatest distance then the coordinates.
+   *
+   * @param lines the lines
+   * @param i1 the first line
+   * @param i2 the second line
+   * @return a negative integer, zero, or a positive integer if line 1 is less than, equal to, or
+   *         greater than line 2.
+   */
+  private static int compareLines(SkeletonLines.Builder lines, int i1, int i2) {
+    final int[] result = new int[1];
+
+    // Distance first
+    if (compare(lines.get(i1, 4), lines.get(i2, 4), result) != 0) {
+      return -result[0];
+    }
 
-        // Mark as processed
-        map[index] |= PROCESSED;
+    // Then coordinates
+    for (int i = 0; i < 4; i++) {
+      if (compare(lines.get(i1, i), lines.get(i2, i), result) != 0) {
+        return result[0];
       }
     }
 
-    // Process JUNCTIONS
-    for (int index = 0; index < map.length; index++) {
-      if ((map[index] & JUNCTION) != 0 && (map[index] & PROCESSED) != PROCESSED) {
-        getXy(index, xy);
-        final int x = xy[0];
-        final int y = xy[1];
+    return 0;
+  }
 
-        if (myChainCodes != null) {
-          code = new ChainCode(x, y);
-        }
-        final byte[] processedDirections = new byte[1];
-        float[] line = extend(map, index, code, processedDirections);
+  private static int compare(float value1, float value2, int[] result) {
+    if (value1 < value2) {
+      result[0] = -1;
+    } else if (value1 > value2) {
+      result[0] = 1;
+    } else {
+      result[0] = 0;
+    }
+    return result[0];
+  }
 
-        // Need to extend junctions multiple times
-        while (line[4] > 0) {
-          // Only add the junction as a start point if a new line was created
-          lines.add(line);
+  /**
+   * The lines of a connected skeleton.
+   */
+  private static class Skeleton {
+    /** The index of the seed pixel used to claim the skeleton. */
+    final int seed;
+    final SkeletonLines.Builder lines;
+
+    Skeleton(int seed, SkeletonLines.Builder lines) {
+      this.seed = seed;
+      this.lines = lines;
+    }
+  }
+
+  /**
+   * Claim a connected skeleton and trace the lines. Each instance must be used by a single thread.
+   *
+   * <p>Pixels are claimed using the index of the seed pixel plus 1. If two threads claim the same
+   * skeleton concurrently then the lowest seed overwrites the claims of the other; the other
+   * thread stops when it finds a claim from a lower seed. Any skeleton traced by a thread that does
+   * not own the final claim on the seed pixel must be ignored.
+   */
+  private class SkeletonTracer {
+    final byte[] map;
+    final AtomicIntegerArray claims;
+    /** The processed flags. These are reset after each skeleton. */
+    final byte[] flags;
+    final LineTracer tracer;
+    final IntArrayList pixels = new IntArrayList();
+    final IntArrayList codes = new IntArrayList();
+    final IntConsumer codeConsumer = codes::add;
+    final byte[] processedDirections = new byte[1];
+    final int[] xy = new int[2];
+    /** The end index of the last traced line. */
+    int end;
+
+    /**
+     * Create an instance.
+     *
+     * @param map the skeleton node map
+     * @param claims the pixel claims
+     */
+    SkeletonTracer(byte[] map, AtomicIntegerArray claims) {
+      this.map = map;
+      this.claims = claims;
+      flags = new byte[map.length];
+      tracer = new LineTracer(map, flags);
+    }
 
-          if (myChainCodes != null) {
-            myChainCodes.add(code);
-            code = new ChainCode(x, y);
+    /**
+     * Claim the skeleton connected to the seed pixel and trace the lines.
+     *
+     * @param seed the seed index
+     * @return the skeleton (or null if claimed by another thread)
+     */
+    @Nullable
+    Skeleton traceLines(int seed) {
+      if (!claimSkeleton(seed)) {
+        return null;
+      }
+
+      // Process the pixels in the same order as a trace of the entire map
+      final int[] indices = pixels.elements();
+      final int size = pixels.size();
+      Arrays.sort(indices, 0, size);
+      final SkeletonLines.Builder lines = new SkeletonLines.Builder();
+
+      // Process TERMINALs
+      for (int i = 0; i < size; i++) {
+        final int index = indices[i];
+        if ((map[index] & TERMINUS) != 0 && !tracer.isProcessed(index)) {
+          processedDirections[0] = 0;
+          traceLine(index, lines);
+          tracer.mark(index);
+        }
+      }
+
+      // Process JUNCTIONS
+      for (int i = 0; i < size; i++) {
+        final int index = indices[i];
+        if ((map[index] & JUNCTION) != 0 && !tracer.isProcessed(index)) {
+          processedDirections[0] = 0;
+          // Need to extend junctions multiple times.
+          // Only add the junction as a start point if a new line was created.
+          while (traceLine(index, null) > 0) {
+            addLine(lines, index);
           }
-          line = extend(map, index, code, processedDirections);
+          tracer.mark(index);
         }
+      }
+
+      // Process EDGEs - These should be the closed loops with no junctions/terminals
+      for (int i = 0; i < size; i++) {
+        final int index = indices[i];
+        if ((map[index] & EDGE) == EDGE && !tracer.isProcessed(index)) {
+          processedDirections[0] = 0;
+          traceLine(index, lines);
+        }
+      }
 
-        // Mark as processed
-        map[index] |= PROCESSED;
+      // Reset
+      for (int i = 0; i < size; i++) {
+        flags[indices[i]] = 0;
       }
+
+      return new Skeleton(seed, lines);
     }
 
-    // Process EDGEs - These should be the closed loops with no junctions/terminals
-    for (int index = 0; index < map.length; index++) {
-      if ((map[index] & EDGE) == EDGE && (map[index] & PROCESSED) != PROCESSED) {
+    /**
+     * Claim all the pixels of the skeleton connected to the seed pixel. The pixels are stored in
+     * the {@link #pixels} list.
+     *
+     * @param seed the seed index
+     * @return true if successful; false if the skeleton is claimed from a lower seed
+     */
+    private boolean claimSkeleton(int seed) {
+      final int id = seed + 1;
+      pixels.clear();
+      if (!claim(seed, id)) {
+        return false;
+      }
+      // Flood fill the 8-connected skeleton. The pixels list is used as the queue.
+      for (int next = 0; next < pixels.size(); next++) {
+        final int index = pixels.getInt(next);
         getXy(index, xy);
         final int x = xy[0];
         final int y = xy[1];
-
-        if (myChainCodes != null) {
-          code = new ChainCode(x, y);
-          myChainCodes.add(code);
+        final boolean isInner = (y != 0 && y != maxy - 1) && (x != 0 && x != maxx - 1);
+        for (int d = 0; d < 8; d++) {
+          if ((isInner || isWithinXy(x, y, d)) && (map[index + offset[d]] & SKELETON) != 0
+              && !claim(index + offset[d], id)) {
+            return false;
+          }
         }
-        lines.add(extend(map, index, code));
       }
+      return true;
     }
 
-    // Sort by length
-    final ArrayList<Result> results = new ArrayList<>(lines.size());
-    for (final float[] line : lines) {
-      results.add(new Result(line, null));
-    }
-    if (myChainCodes != null) {
-      int index = 0;
-      for (final ChainCode c : myChainCodes) {
-        results.get(index++).code = c;
+    /**
+     * Claim the pixel. Newly claimed pixels are added to the {@link #pixels} list.
+     *
+     * @param index the index
+     * @param id the claim id
+     * @return true if the pixel is claimed; false if claimed from a lower seed
+     */
+    private boolean claim(int index, int id) {
+      for (;;) {
+        final int current = claims.get(index);
+        if (current == id) {
+          return true;
+        }
+        if (current != 0 && current < id) {
+          return false;
+        }
+        if (claims.compareAndSet(index, current, id)) {
+          pixels.add(index);
+          return true;
+        }
       }
     }
 
-    Collections.sort(results, Result::compare);
-
-    final ArrayList<float[]> sortedLines = new ArrayList<>(lines.size());
-    for (final Result result : results) {
-      sortedLines.add(result.line);
-    }
-    if (chainCodes != null) {
-      chainCodes.clear();
-      for (final Result result : results) {
-        chainCodes.add(result.code);
+    /**
+     * Trace a line from the start index. If the lines are not null then the line is added.
+     *
+     * @param startIndex the start index
+     * @param lines the lines (can be null)
+     * @return the length
+     */
+    private float traceLine(int startIndex, @Nullable SkeletonLines.Builder lines) {
+      codes.clear();
+      end = tracer.trace(startIndex, codeConsumer, processedDirections);
+      if (lines != null) {
+        addLine(lines, startIndex);
       }
+      return tracer.length;
     }
 
-    return sortedLines;
+    /**
+     * Adds the last traced line.
+     *
+     * @param lines the lines
+     * @param startIndex the start index
+     */
+    private void addLine(SkeletonLines.Builder lines, int startIndex) {
+      getXy(startIndex, xy);
+      final int startX = xy[0];
+      final int startY = xy[1];
+      getXy(end, xy);
+      lines.add(startX, startY, xy[0], xy[1], tracer.length, codes.elements(), codes.size());
+    }
   }
 
   /**
-   * Searches from the start index, following an edge until a node is reached. Edge/terminus points
-   * are marked as processed.
-   *
-   * @param map the map
-   * @param startIndex the start index
-   * @param code the code
-   * @return The line data: startX, startY, endX, endY, length
+   * Follows edges from a start point until a node is reached. Edge/terminus points are marked as
+   * processed using a separate array of flags.
    */
-  private float[] extend(byte[] map, int startIndex, ChainCode code) {
-    final byte[] processedDirections = new byte[1];
-    return extend(map, startIndex, code, processedDirections);
-  }
+  private class LineTracer {
+    final byte[] map;
+    final byte[] flags;
+    /** The length of the last traced line. */
+    float length;
 
-  /**
-   * Searches from the start index, following an edge until a node is reached. Edge/terminus points
-   * are marked as processed.
-   *
-   * <p>Will not start in any direction that has previously been used.
-   *
-   * @param map the map
-   * @param startIndex the start index
-   * @param code the code
-   * @param processedDirections Single byte flag containing previously used directions
-   * @return The line data: startX, startY, endX, endY, length
-   */
-  private float[] extend(byte[] map, int startIndex, ChainCode code, byte[] processedDirections) {
-    float length = 0;
-    int currentIndex = startIndex;
+    /**
+     * Create an instance.
+     *
+     * @param map the skeleton node map
+     * @param flags the processed flags
+     */
+    LineTracer(byte[] map, byte[] flags) {
+      this.map = map;
+      this.flags = flags;
+    }
 
-    int nextDirection = findStartDirection(map, currentIndex, processedDirections);
+    /**
+     * Checks if the index is processed.
+     *
+     * @param index the index
+     * @return true if processed
+     */
+    boolean isProcessed(int index) {
+      return flags[index] != 0;
+    }
 
-    while (nextDirection >= 0) {
-      currentIndex += offset[nextDirection];
-      length += ChainCode.getDirectionLength(nextDirection);
+    /**
+     * Mark the index as processed.
+     *
+     * @param index the index
+     */
+    void mark(int index) {
+      flags[index] = 1;
+    }
 
-      if (code != null) {
-        code.add(nextDirection);
-      }
+    /**
+     * Searches from the start index, following an edge until a node is reached. Edge/terminus
+     * points are marked as processed. The length of the line is stored in {@link #length}.
+     *
+     * <p>Will not start in any direction that has previously been used.
+     *
+     * @param startIndex the start index
+     * @param code if not null this will be passed each direction of the line
+     * @param processedDirections Single byte flag containing previously used directions
+     * @return The end index
+     */
+    int trace(int startIndex, @Nullable IntConsumer code, byte[] processedDirections) {
+      float len = 0;
+      int currentIndex = startIndex;
 
-      // Mark terminals / edges as processed
-      if ((map[currentIndex] & LINE) != 0) {
-        map[currentIndex] |= PROCESSED;
-      }
+      int nextDirection = findStartDirection(currentIndex, processedDirections);
 
-      // End if back to the start point or we have reached a node
-      if (currentIndex == startIndex || (map[currentIndex] & NODE) != 0) {
-        break;
+      while (nextDirection >= 0) {
+        currentIndex += offset[nextDirection];
+        len += ChainCode.getDirectionLength(nextDirection);
+
+        if (code != null) {
+          code.accept(nextDirection);
+        }
+
+        // Mark terminals / edges as processed
+        if ((map[currentIndex] & LINE) != 0) {
+          mark(currentIndex);
+        }
+
+        // End if back to the start point or we have reached a node
+        if (currentIndex == startIndex || (map[currentIndex] & NODE) != 0) {
+          break;
+        }
+
+        nextDirection = findNext(currentIndex, nextDirection);
       }
 
-      nextDirection = findNext(map, currentIndex, nextDirection);
+      length = len;
+      return currentIndex;
     }
 
-    final int[] xyStart = new int[2];
-    final int[] xyEnd = new int[2];
-    getXy(startIndex, xyStart);
-    getXy(currentIndex, xyEnd);
+    private int findStartDirection(int index, byte[] processedDirections) {
+      final int[] xyz = new int[3];
+      getXy(index, xyz);
+      final int x = xyz[0];
+      final int y = xyz[1];
 
-    return new float[] {xyStart[0], xyStart[1], xyEnd[0], xyEnd[1], length};
-  }
+      final boolean isInner = (y != 0 && y != maxy - 1) && (x != 0 && x != maxx - 1);
 
-  private int findStartDirection(byte[] map, int index, byte[] processedDirections) {
-    final int[] xyz = new int[3];
-    getXy(index, xyz);
-    final int x = xyz[0];
-    final int y = xyz[1];
+      // Sweep one way until a background pixel is found
+      int dir = 8;
+      while (dir > 0) {
+        dir--;
+        if ((isInner || isWithinXy(x, y, dir)) && (map[index + offset[dir]] == 0)) {
+          break;
+        }
+      }
 
-    final boolean isInner = (y != 0 && y != maxy - 1) && (x != 0 && x != maxx - 1);
+      // Sweep the other way until a skeleton pixel is found that has not been used.
+      // This sweep direction must match that used in findNext(...)
+      for (int i = 1; i <= 8; i++) {
+        final int d = (dir + i) % 8;
+        if ((isInner || isWithinXy(x, y, d)) && ((map[index + offset[d]] & SKELETON) != 0
+            && !isProcessed(index + offset[d])
+            && (processedDirections[0] & PROCESSED_DIRECTIONS[d]) == 0)) {
+          return addDirection(d, processedDirections);
+        }
+      }
 
-    // Sweep one way until a background pixel is found
-    int dir = 8;
-    while (dir > 0) {
-      dir--;
-      if ((isInner || isWithinXy(x, y, dir)) && (map[index + offset[dir]] == 0)) {
-        break;
+      return -1;
+    }
+
+    private int findNext(int index, int nextDirection) {
+      final int[] xyz = new int[3];
+      getXy(index, xyz);
+      final int x = xyz[0];
+      final int y = xyz[1];
+
+      final boolean isInner = (y != 0 && y != maxy - 1) && (x != 0 && x != maxx - 1);
+
+      // Set the search direction for the next point to search all points except the direction
+      // that was taken.
+      // Need to ignore moving to a pixel that is connected to the previous pixel. Thus use +6
+      // offset instead of +7.
+      // This ignores the first pixel in a clockwise sweep starting from the previous pixel. Note
+      // that since we sweep
+      // clockwise that pixel would have been identified already except if this the first pixel
+      // after a start point:
+      // 3 2
+      // 4 1
+      // 5 0 +
+      // +
+      // This avoids moving from 1 back to 5 and allows the algorithm to process 2 3 4.
+      int searchDirection;
+
+      // Do a sweep for NODEs first
+      searchDirection = (nextDirection + 6) % 8;
+      for (int i = 0; i < 6; i++) {
+        final int d = (searchDirection + i) % 8;
+        if ((isInner || isWithinXy(x, y, d)) && (map[index + offset[d]] & NODE) != 0) {
+          return d;
+        }
       }
-    }
 
-    // Sweep the other way until a skeleton pixel is found that has not been used.
-    // This sweep direction must match that used in findNext(...)
-    for (int i = 1; i <= 8; i++) {
-      final int d = (dir + i) % 8;
-      if ((isInner || isWithinXy(x, y, d)) && ((map[index + offset[d]] & SKELETON) != 0
-          && (map[index + offset[d]] & PROCESSED) != PROCESSED
-          && (processedDirections[0] & PROCESSED_DIRECTIONS[d]) == 0)) {
-        return addDirection(d, processedDirections);
+      // Now do a sweep for EDGEs
+      searchDirection = (nextDirection + 6) % 8;
+      for (int i = 0; i < 6; i++) {
+        final int d = (searchDirection + i) % 8;
+        if ((isInner || isWithinXy(x, y, d)) && (map[index + offset[d]] & EDGE) == EDGE
+            && !isProcessed(index + offset[d])) {
+          return d;
+        }
       }
-    }
 
-    return -1;
+      return -1;
+    }
   }
 
   /**
@@ -894,51 +1153,6 @@ public class SkeletonAnalyser_PlugIn implements PlugInFilter {
     return direction;
   }
 
-  private int findNext(byte[] map, int index, int nextDirection) {
-    final int[] xyz = new int[3];
-    getXy(index, xyz);
-    final int x = xyz[0];
-    final int y = xyz[1];
-
-    final boolean isInner = (y != 0 && y != maxy - 1) && (x != 0 && x != maxx - 1);
-
-    // Set the search direction for the next point to search all points except the direction
-    // that was taken.
-    // Need to ignore moving to a pixel that is connected to the previous pixel. Thus use +6 offset
-    // instead of +7.
-    // This ignores the first pixel in a clockwise sweep starting from the previous pixel. Note that
-    // since we sweep
-    // clockwise that pixel would have been identified already except if this the first pixel after
-    // a start point:
-    // 3 2
-    // 4 1
-    // 5 0 +
-    // +
-    // This avoids moving from 1 back to 5 and allows the algorithm to process 2 3 4.
-    int searchDirection;
-
-    // Do a sweep for NODEs first
-    searchDirection = (nextDirection + 6) % 8;
-    for (int i = 0; i < 6; i++) {
-      final int d = (searchDirection + i) % 8;
-      if ((isInner || isWithinXy(x, y, d)) && (map[index + offset[d]] & NODE) != 0) {
-        return d;
-      }
-    }
-
-    // Now do a sweep for EDGEs
-    searchDirection = (nextDirection + 6) % 8;
-    for (int i = 0; i < 6; i++) {
-      final int d = (searchDirection + i) % 8;
-      if ((isInner || isWithinXy(x, y, d)) && (map[index + offset[d]] & EDGE) == EDGE
-          && (map[index + offset[d]] & PROCESSED) != PROCESSED) {
-        return d;
-      }
-    }
-
-    return -1;
-  }
-
   private void showResults(List<float[]> lines) {
     if (lines.size() > 1000) {
       final YesNoCancelDialog d = new YesNoCancelDialog(IJ.getInstance(), TITLE,
@@ -1194,6 +1408,24 @@ public class SkeletonAnalyser_PlugIn implements PlugInFilter {
     }
   }
 
+  /**
+   * Gets the number of threads used to find nodes and extract lines.
+   *
+   * @return the threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Sets the number of threads used to find nodes and extract lines.
+   *
+   * @param threads the threads
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   /**
    * Return the single index associated with the x,y coordinates.
    *
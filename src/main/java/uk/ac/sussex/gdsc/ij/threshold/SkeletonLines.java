@@ -0,0 +1,255 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.threshold;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Contains lines extracted from a skeleton. The line data and the chain code directions of each
+ * line are stored in primitive buffers.
+ *
+ * <p>The line data is: startX, startY, endX, endY, length.
+ */
+public class SkeletonLines {
+  /** The number of values for the line data. */
+  private static final int LINE_SIZE = 5;
+
+  private final int size;
+  private final float[] lines;
+  /** The offset of the directions for each line. Line i is [offsets[i], offsets[i+1]). */
+  private final int[] offsets;
+  private final byte[] directions;
+
+  /**
+   * Create an instance.
+   *
+   * @param size the number of lines
+   * @param lines the line data
+   * @param offsets the offset of the directions for each line
+   * @param directions the chain code directions
+   */
+  private SkeletonLines(int size, float[] lines, int[] offsets, byte[] directions) {
+    this.size = size;
+    this.lines = lines;
+    this.offsets = offsets;
+    this.directions = directions;
+  }
+
+  /**
+   * Build the skeleton lines.
+   */
+  static class Builder {
+    private int size;
+    private float[] lines = new float[LINE_SIZE * 16];
+    private int[] offsets = new int[17];
+    private byte[] directions = new byte[256];
+
+    /**
+     * Adds the line.
+     *
+     * @param startX the start X
+     * @param startY the start Y
+     * @param endX the end X
+     * @param endY the end Y
+     * @param length the length
+     * @param codes the chain code directions
+     * @param count the number of chain code directions
+     */
+    void add(int startX, int startY, int endX, int endY, float length, int[] codes, int count) {
+      ensureCapacity(count);
+      final int i = size * LINE_SIZE;
+      lines[i] = startX;
+      lines[i + 1] = startY;
+      lines[i + 2] = endX;
+      lines[i + 3] = endY;
+      lines[i + 4] = length;
+      final int start = offsets[size];
+      for (int j = 0; j < count; j++) {
+        directions[start + j] = (byte) codes[j];
+      }
+      size++;
+      offsets[size] = start + count;
+    }
+
+    /**
+     * Adds the line from the source.
+     *
+     * @param source the source
+     * @param index the line index
+     */
+    void add(Builder source, int index) {
+      final int from = source.offsets[index];
+      final int count = source.offsets[index + 1] - from;
+      ensureCapacity(count);
+      System.arraycopy(source.lines, index * LINE_SIZE, lines, size * LINE_SIZE, LINE_SIZE);
+      final int start = offsets[size];
+      System.arraycopy(source.directions, from, directions, start, count);
+      size++;
+      offsets[size] = start + count;
+    }
+
+    /**
+     * Ensure there is capacity for another line.
+     *
+     * @param count the number of chain code directions
+     */
+    private void ensureCapacity(int count) {
+      if (lines.length == size * LINE_SIZE) {
+        lines = Arrays.copyOf(lines, lines.length * 2);
+        offsets = Arrays.copyOf(offsets, size * 2 + 1);
+      }
+      final int required = offsets[size] + count;
+      if (directions.length < required) {
+        directions = Arrays.copyOf(directions, Math.max(directions.length * 2, required));
+      }
+    }
+
+    /**
+     * Gets the number of chain code directions for the line.
+     *
+     * @param index the line index
+     * @return the count
+     */
+    int getDirectionCount(int index) {
+      return offsets[index + 1] - offsets[index];
+    }
+
+    /**
+     * Gets the chain code direction for the line.
+     *
+     * @param index the line index
+     * @param step the step along the chain code
+     * @return the direction
+     */
+    int getDirection(int index, int step) {
+      return directions[offsets[index] + step];
+    }
+
+    /**
+     * Gets the line data value.
+     *
+     * @param index the line index
+     * @param value the value index (startX, startY, endX, endY, length)
+     * @return the value
+     */
+    float get(int index, int value) {
+      return lines[index * LINE_SIZE + value];
+    }
+
+    /**
+     * Gets the number of lines.
+     *
+     * @return the size
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * Builds the skeleton lines.
+     *
+     * @return the skeleton lines
+     */
+    SkeletonLines build() {
+      return new SkeletonLines(size, Arrays.copyOf(lines, size * LINE_SIZE),
+          Arrays.copyOf(offsets, size + 1), Arrays.copyOf(directions, offsets[size]));
+    }
+  }
+
+  /**
+   * Gets the number of lines.
+   *
+   * @return the size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the line data: startX, startY, endX, endY, length.
+   *
+   * @param index the line index
+   * @return the line data
+   */
+  public float[] getLine(int index) {
+    final int i = index * LINE_SIZE;
+    return Arrays.copyOfRange(lines, i, i + LINE_SIZE);
+  }
+
+  /**
+   * Gets the line length.
+   *
+   * @param index the line index
+   * @return the length
+   */
+  public float getLength(int index) {
+    return lines[index * LINE_SIZE + 4];
+  }
+
+  /**
+   * Gets the chain code for the line.
+   *
+   * @param index the line index
+   * @return the chain code
+   */
+  public ChainCode getChainCode(int index) {
+    final int i = index * LINE_SIZE;
+    final ChainCode code = new ChainCode((int) lines[i], (int) lines[i + 1]);
+    for (int j = offsets[index]; j < offsets[index + 1]; j++) {
+      code.add(directions[j]);
+    }
+    return code;
+  }
+
+  /**
+   * Gets the line data for all the lines.
+   *
+   * @return the lines
+   * @see #getLine(int)
+   */
+  public List<float[]> getLines() {
+    final ArrayList<float[]> list = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      list.add(getLine(i));
+    }
+    return list;
+  }
+
+  /**
+   * Gets the chain codes for all the lines.
+   *
+   * @return the chain codes
+   * @see #getChainCode(int)
+   */
+  public List<ChainCode> getChainCodes() {
+    final ArrayList<ChainCode> list = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      list.add(getChainCode(i));
+    }
+    return list;
+  }
+}
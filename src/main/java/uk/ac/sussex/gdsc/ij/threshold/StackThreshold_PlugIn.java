@@ -27,19 +27,31 @@ package uk.ac.sussex.gdsc.ij.threshold;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
 import uk.ac.sussex.gdsc.core.ij.ThresholdUtils;
 import uk.ac.sussex.gdsc.core.threshold.AutoThreshold;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 import uk.ac.sussex.gdsc.ij.utils.SliceCollection;
 
 /**
  * Processes an image stack and applies thresholding to create a mask for each channel+frame
  * combination.
+ *
+ * <p>The histogram, threshold and mask of each channel+frame combination are computed in parallel.
+ * The masks are written to the output stack in order so the result is the same as a serial
+ * computation.
  */
 public class StackThreshold_PlugIn implements PlugInFilter {
   // Store a reference to the current working image
@@ -129,24 +141,30 @@ public class StackThreshold_PlugIn implements PlugInFilter {
       final ImageStack maskStack =
           new ImageStack(imp.getWidth(), imp.getHeight(), imp.getStackSize());
 
-      // Process each frame
+      // Extract the channels of each frame
+      final ArrayList<AnalysisSliceCollection> sliceCollections = new ArrayList<>();
       for (int t = 1; t <= dimensions[T]; t++) {
-        final ArrayList<AnalysisSliceCollection> sliceCollections = new ArrayList<>();
-
-        // Extract the channels
         for (int c = 1; c <= dimensions[C]; c++) {
           // Process all slices together
-          final AnalysisSliceCollection sliceCollection = new AnalysisSliceCollection(c);
+          final AnalysisSliceCollection sliceCollection = new AnalysisSliceCollection(c, t);
           for (int z = 1; z <= dimensions[Z]; z++) {
             sliceCollection.add(imp.getStackIndex(c, z, t));
           }
           sliceCollections.add(sliceCollection);
         }
+      }
 
-        // Create masks
-        for (final AnalysisSliceCollection s : sliceCollections) {
-          createMask(method, maskStack, t, s);
-        }
+      // Create masks in parallel
+      final int threadCount = MathUtils.clip(1, sliceCollections.size(), Prefs.getThreads());
+      forEach(threadCount, sliceCollections.size(), i -> {
+        final AnalysisSliceCollection sliceCollection = sliceCollections.get(i);
+        sliceCollection.createStack(imp);
+        sliceCollection.createMask(method);
+      });
+
+      // Write masks in order
+      for (final AnalysisSliceCollection s : sliceCollections) {
+        addMask(method, maskStack, s);
       }
 
       if (settings.newImage) {
@@ -173,12 +191,34 @@ public class StackThreshold_PlugIn implements PlugInFilter {
     imp.setSlice(currentSlice);
   }
 
-  private void createMask(String method, ImageStack maskStack, int frame,
+  /**
+   * Run the task for each index. The tasks are run in parallel if the thread count is above 1.
+   *
+   * @param threadCount the thread count
+   * @param size the number of tasks
+   * @param task the task
+   */
+  private static void forEach(int threadCount, int size, IntConsumer task) {
+    if (threadCount <= 1) {
+      for (int i = 0; i < size; i++) {
+        task.accept(i);
+      }
+      return;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final LocalList<Future<?>> futures = new LocalList<>(size);
+    for (int i = 0; i < size; i++) {
+      final int index = i;
+      futures.add(executor.submit(() -> task.accept(index)));
+    }
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+  }
+
+  private void addMask(String method, ImageStack maskStack,
       AnalysisSliceCollection sliceCollection) {
-    sliceCollection.createStack(imp);
-    sliceCollection.createMask(method);
     if (settings.logThresholds) {
-      IJ.log("t" + frame + sliceCollection.getSliceName() + " threshold = "
+      IJ.log("t" + sliceCollection.frame + sliceCollection.getSliceName() + " threshold = "
           + sliceCollection.threshold);
     }
 
@@ -282,6 +322,7 @@ public class StackThreshold_PlugIn implements PlugInFilter {
    * Provides functionality to process a collection of slices from an Image.
    */
   private static class AnalysisSliceCollection extends SliceCollection {
+    final int frame;
     ImageStack imageStack;
     ImageStack maskStack;
     int threshold;
@@ -290,9 +331,11 @@ public class StackThreshold_PlugIn implements PlugInFilter {
      * Instantiates a new analysis slice collection.
      *
      * @param indexC The channel index
+     * @param frame The frame
      */
-    AnalysisSliceCollection(int indexC) {
+    AnalysisSliceCollection(int indexC, int frame) {
       super(indexC, 0, 0);
+      this.frame = frame;
     }
 
     /**
@@ -328,6 +371,8 @@ public class StackThreshold_PlugIn implements PlugInFilter {
         }
         maskStack.addSlice(null, bp);
       }
+      // The image is no longer required
+      imageStack = null;
     }
   }
 }
@@ -42,21 +42,41 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ij.text.TextWindow;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import org.apache.commons.lang3.concurrent.ConcurrentRuntimeException;
+import uk.ac.sussex.gdsc.core.annotation.Nullable;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
+import uk.ac.sussex.gdsc.core.ij.gui.ExtendedGenericDialog;
+import uk.ac.sussex.gdsc.core.logging.Ticker;
 import uk.ac.sussex.gdsc.core.threshold.AutoThreshold;
 import uk.ac.sussex.gdsc.core.utils.FileUtils;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.TextUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
+import uk.ac.sussex.gdsc.ij.foci.FindFoci_PlugIn;
 
 /**
  * Analyses an image using a given mask.
@@ -89,11 +109,95 @@ public class ThreadAnalyser_PlugIn implements PlugIn {
   private static boolean showObjectImage;
   private static boolean labelThreads;
 
+  /** The name of the batch results file. */
+  private static final String BATCH_RESULTS_FILE = "threads.xls";
+  /**
+   * The name of the batch checkpoint file. The first line is the analysis settings. Each following
+   * line is the image name and results file length.
+   */
+  private static final String BATCH_CHECKPOINT_FILE = "threads.checkpoint";
+  /** The prefix for the settings line of the batch checkpoint file. */
+  private static final String BATCH_CHECKPOINT_SETTINGS = "# ";
+
+  private static String batchInputDirectory = "";
+  private static String batchMaskDirectory = "";
+  private static String batchOutputDirectory = "";
+  private static boolean batchResume = true;
+
+  /**
+   * Contains the analysis of a thread.
+   */
+  private static class ThreadResult {
+    final int[] x;
+    final int[] y;
+    /** The distance along the thread for each point. */
+    final float[] distances;
+    final float[] imageIntensity;
+    final float[] edmIntensity;
+    /** The objects on the thread for each point (or null). */
+    @Nullable
+    float[] objects;
+    final int[] maxima = new int[2];
+    final int[] objectMaxima = new int[2];
+    float[] imageMaximaDistances;
+    @Nullable
+    float[] objectMaximaDistances;
+    /** The line data: startX, startY, endX, endY, length. */
+    float[] line;
+    double[] imageStats;
+    double[] edmStats;
+
+    /**
+     * Create an instance.
+     *
+     * @param size the number of points
+     */
+    ThreadResult(int size) {
+      x = new int[size];
+      y = new int[size];
+      distances = new float[size];
+      imageIntensity = new float[size];
+      edmIntensity = new float[size];
+    }
+  }
+
+  /**
+   * Contains the analysis of an image in batch mode.
+   */
+  private static class BatchResult {
+    final int id;
+    final String name;
+    /** The thread results (or null if the image could not be analysed). */
+    @Nullable
+    final List<ThreadResult> threads;
+    @Nullable
+    final String error;
+
+    BatchResult(int id, String name, List<ThreadResult> threads) {
+      this.id = id;
+      this.name = name;
+      this.threads = threads;
+      this.error = null;
+    }
+
+    BatchResult(int id, String name, String error) {
+      this.id = id;
+      this.name = name;
+      this.threads = null;
+      this.error = error;
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public void run(String arg) {
     UsageTracker.recordPlugin(this.getClass(), arg);
 
+    if ("batch".equals(arg)) {
+      runBatchMode();
+      return;
+    }
+
     if (!showDialog()) {
       return;
     }
@@ -117,6 +221,7 @@ public class ThreadAnalyser_PlugIn implements PlugIn {
 
     // Create Skeleton
     final SkeletonAnalyser_PlugIn sa = new SkeletonAnalyser_PlugIn();
+    sa.setThreads(Prefs.getThreads());
 
     sa.skeletonise(maskIp, true);
 
@@ -207,7 +312,10 @@ public class ThreadAnalyser_PlugIn implements PlugIn {
   }
 
   private static ImageProcessor getImage(String title, int channel) {
-    final ImagePlus imp = WindowManager.getImage(title);
+    return getImage(WindowManager.getImage(title), channel);
+  }
+
+  private static ImageProcessor getImage(ImagePlus imp, int channel) {
     if (imp == null) {
       return null;
     }
@@ -304,6 +412,361 @@ public class ThreadAnalyser_PlugIn implements PlugIn {
     return true;
   }
 
+  /**
+   * Analyse a directory of image and mask pairs. The images are analysed in parallel and the
+   * results are written in input order to a single results file in the output directory. Each
+   * completed image is recorded in a checkpoint file so that a repeat run can skip it.
+   */
+  private static void runBatchMode() {
+    if (!showBatchDialog()) {
+      return;
+    }
+    final String[] imageList = FindFoci_PlugIn.getBatchImages(batchInputDirectory);
+    if (imageList == null || imageList.length == 0) {
+      IJ.error(TITLE, "No input images in folder: " + batchInputDirectory);
+      return;
+    }
+
+    final Path resultsPath = Paths.get(batchOutputDirectory, BATCH_RESULTS_FILE);
+    final Path checkpointPath = Paths.get(batchOutputDirectory, BATCH_CHECKPOINT_FILE);
+    final String settings = createBatchSettings();
+    final List<String> names = batchResume
+        ? readCheckpoint(resultsPath, checkpointPath, settings)
+        : Collections.emptyList();
+    if (names == null) {
+      IJ.error(TITLE, "The settings do not match the checkpoint of the previous batch run.\n"
+          + "Use the same settings or disable resume to start a new batch.");
+      return;
+    }
+    final Set<String> completed = new HashSet<>(names);
+
+    final long startTime = System.nanoTime();
+    final int threadCount = MathUtils.clip(1, imageList.length, Prefs.getThreads());
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    int ok = 0;
+    int error = 0;
+    int skipped = 0;
+    final boolean append = !completed.isEmpty();
+    try (BufferedWriter out = openBatchFile(resultsPath, append);
+        BufferedWriter checkpoint = openBatchFile(checkpointPath, append)) {
+      if (!append) {
+        writeLine(out, "Image ID\tImage\t" + createResultsHeader());
+        writeLine(checkpoint, BATCH_CHECKPOINT_SETTINGS + settings);
+      }
+
+      final Ticker ticker = ImageJUtils.createTicker(imageList.length, 1);
+      final ArrayDeque<Future<BatchResult>> pending = new ArrayDeque<>();
+      final StringBuilder sb = new StringBuilder();
+      int next = 0;
+      while (next < imageList.length || !pending.isEmpty()) {
+        // Limit the results waiting for the writer
+        while (next < imageList.length && pending.size() < 2 * threadCount
+            && !ImageJUtils.isInterrupted()) {
+          final int id = next + 1;
+          final String name = imageList[next++];
+          if (completed.contains(name)) {
+            skipped++;
+            ticker.tick();
+          } else {
+            pending.add(executor.submit(() -> analyseBatchImage(id, name)));
+          }
+        }
+        if (pending.isEmpty()) {
+          break;
+        }
+
+        final BatchResult result = getResult(pending.poll());
+        if (result.threads == null) {
+          error++;
+          ImageJUtils.log("%s Batch: %s: %s", TITLE, result.name, result.error);
+        } else {
+          // The checkpoint is recorded after the results are written
+          writeBatchResult(out, sb, result);
+          out.flush();
+          writeLine(checkpoint, result.name + "\t" + Files.size(resultsPath));
+          checkpoint.flush();
+          ok++;
+        }
+        ticker.tick();
+      }
+      ticker.stop();
+    } catch (final IOException ex) {
+      IJ.error(TITLE, "Failed to write the batch results: " + ex.getMessage());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    final long runTime = System.nanoTime() - startTime;
+    IJ.log(String.format("%s Batch time = %s. %s. Processed %d. Skipped %d. %s.", TITLE,
+        TextUtils.nanosToString(runTime), TextUtils.pleural(imageList.length, "file"), ok,
+        skipped, TextUtils.pleural(error, "file error")));
+
+    if (ImageJUtils.isInterrupted()) {
+      IJ.showStatus("Cancelled");
+      IJ.log(TITLE + " Batch Cancelled");
+    }
+  }
+
+  private static boolean showBatchDialog() {
+    final ExtendedGenericDialog gd = new ExtendedGenericDialog(TITLE);
+    gd.addMessage("Run " + TITLE + " on a set of images.\n \n"
+        + "Mask images in the input directory should be named:\n"
+        + "[image_name].mask.[ext]\nor placed in the mask directory with the same name "
+        + "as the parent image.\n \nResults are saved to " + BATCH_RESULTS_FILE
+        + " in the output directory.\nResume will skip images completed by a previous run.");
+    final int columns = 50;
+    gd.addDirectoryField("Input_directory", batchInputDirectory, columns);
+    gd.addDirectoryField("Mask_directory", batchMaskDirectory, columns);
+    gd.addDirectoryField("Output_directory", batchOutputDirectory, columns);
+    gd.addNumericField("Image_channel", imageChannel + 1, 0);
+    gd.addNumericField("Mask_channel", maskChannel + 1, 0);
+    gd.addChoice("Threshold_method", AutoThreshold.getMethods(true), method);
+    gd.addNumericField("Min_length", minLength, 0);
+    gd.addCheckbox("Resume", batchResume);
+    gd.addHelp(uk.ac.sussex.gdsc.ij.help.Urls.UTILITY);
+
+    gd.showDialog();
+    if (gd.wasCanceled()) {
+      return false;
+    }
+    batchInputDirectory = gd.getNextString();
+    batchMaskDirectory = gd.getNextString();
+    batchOutputDirectory = gd.getNextString();
+    imageChannel = Math.max(0, (int) gd.getNextNumber() - 1);
+    maskChannel = Math.max(0, (int) gd.getNextNumber() - 1);
+    method = gd.getNextChoice();
+    minLength = (int) gd.getNextNumber();
+    batchResume = gd.getNextBoolean();
+
+    // Validation
+    if (!new File(batchInputDirectory).isDirectory()) {
+      IJ.error(TITLE, "Input directory is not a valid directory: " + batchInputDirectory);
+      return false;
+    }
+    if (TextUtils.isNotEmpty(batchMaskDirectory) && !new File(batchMaskDirectory).isDirectory()) {
+      IJ.error(TITLE, "Mask directory is not a valid directory: " + batchMaskDirectory);
+      return false;
+    }
+    if (!new File(batchOutputDirectory).isDirectory()) {
+      IJ.error(TITLE, "Output directory is not a valid directory: " + batchOutputDirectory);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Creates the batch settings. These are the settings that change the batch results.
+   *
+   * @return the settings
+   */
+  private static String createBatchSettings() {
+    return String.format("Image_channel=%d; Mask_channel=%d; Method=%s; Min_length=%d",
+        imageChannel + 1, maskChannel + 1, method, minLength);
+  }
+
+  /**
+   * Read the checkpoint of a previous batch run. The results file is truncated to the length
+   * recorded for the last completed image to remove any partial results.
+   *
+   * <p>The first line of the checkpoint file is the batch settings. Each following line is the
+   * image name and the length of the results file after the image results were written. A final
+   * line without a line separator is incomplete and is removed.
+   *
+   * <p>The batch cannot be resumed if the settings do not match. In this case the files are not
+   * modified.
+   *
+   * @param resultsPath the results path
+   * @param checkpointPath the checkpoint path
+   * @param settings the batch settings
+   * @return the completed image names (or an empty list to start a new batch; or null if the
+   *         settings do not match)
+   */
+  @VisibleForTesting
+  @Nullable
+  static List<String> readCheckpoint(Path resultsPath, Path checkpointPath, String settings) {
+    if (!Files.exists(resultsPath) || !Files.exists(checkpointPath)) {
+      return Collections.emptyList();
+    }
+    try {
+      final String content =
+          new String(Files.readAllBytes(checkpointPath), StandardCharsets.UTF_8);
+      final String header = BATCH_CHECKPOINT_SETTINGS + settings + System.lineSeparator();
+      if (!content.startsWith(header)) {
+        if (header.startsWith(content)) {
+          // Incomplete settings: no images were completed
+          return Collections.emptyList();
+        }
+        final int end = content.indexOf('\n');
+        ImageJUtils.log("%s Batch: Checkpoint settings do not match: %s", TITLE,
+            (end < 0 ? content : content.substring(0, end)).trim());
+        return null;
+      }
+      final LocalList<String> names = new LocalList<>();
+      long length = 0;
+      int start = header.length();
+      for (int end = content.indexOf('\n', start); end >= 0; end = content.indexOf('\n', start)) {
+        final String line = content.substring(start, end);
+        final int index = line.lastIndexOf('\t');
+        if (index <= 0) {
+          break;
+        }
+        final long size = Long.parseLong(line.substring(index + 1).trim());
+        if (size < length) {
+          break;
+        }
+        length = size;
+        names.add(line.substring(0, index));
+        start = end + 1;
+      }
+      if (names.isEmpty()) {
+        return Collections.emptyList();
+      }
+      if (length > Files.size(resultsPath)) {
+        ImageJUtils.log("%s Batch: Ignoring invalid checkpoint file: %s", TITLE, checkpointPath);
+        return Collections.emptyList();
+      }
+      // Remove partial results
+      truncate(resultsPath, length);
+      truncate(checkpointPath, content.substring(0, start).getBytes(StandardCharsets.UTF_8).length);
+      ImageJUtils.log("%s Batch: Resuming after %s", TITLE,
+          TextUtils.pleural(names.size(), "completed image"));
+      return names;
+    } catch (final IOException | NumberFormatException ex) {
+      ImageJUtils.log("%s Batch: Failed to read checkpoint file: %s", TITLE, ex.getMessage());
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Truncate the file to the given length.
+   *
+   * @param path the path
+   * @param length the length
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @VisibleForTesting
+  static void truncate(Path path, long length) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(length);
+    }
+  }
+
+  /**
+   * Open the batch file.
+   *
+   * @param path the path
+   * @param append set to true to append to an existing file
+   * @return the writer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static BufferedWriter openBatchFile(Path path, boolean append) throws IOException {
+    if (append) {
+      return Files.newBufferedWriter(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+    return Files.newBufferedWriter(path);
+  }
+
+  /**
+   * Write the results for the image to the batch results file.
+   *
+   * @param out the output
+   * @param sb the working string builder
+   * @param result the result
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void writeBatchResult(BufferedWriter out, StringBuilder sb, BatchResult result)
+      throws IOException {
+    final String prefix = result.id + "\t" + result.name + "\t";
+    int id = 1;
+    for (final ThreadResult thread : result.threads) {
+      out.write(prefix);
+      writeLine(out, addResult(sb, id++, thread));
+    }
+  }
+
+  /**
+   * Analyse the image in the batch input directory using the paired mask image. This is thread
+   * safe.
+   *
+   * <p>Any exception is returned as an error result so the batch can continue with the next
+   * image.
+   *
+   * @param id the image id
+   * @param name the image name
+   * @return the result
+   */
+  private static BatchResult analyseBatchImage(int id, String name) {
+    try {
+      return analyseImage(id, name);
+    } catch (final RuntimeException ex) {
+      return new BatchResult(id, name, "Failed to analyse image: " + ex);
+    }
+  }
+
+  /**
+   * Analyse the image in the batch input directory using the paired mask image.
+   *
+   * @param id the image id
+   * @param name the image name
+   * @return the result
+   */
+  private static BatchResult analyseImage(int id, String name) {
+    final ImageProcessor ip =
+        getImage(FindFoci_PlugIn.openImage(batchInputDirectory, name), imageChannel);
+    if (ip == null || ip.getBitDepth() == 24 || ip.getBitDepth() == 32) {
+      return new BatchResult(id, name, "Require an 8 or 16 bit image");
+    }
+    final String[] mask =
+        FindFoci_PlugIn.getMaskImage(batchInputDirectory, batchMaskDirectory, name);
+    final ByteProcessor maskIp =
+        getMask(getImage(FindFoci_PlugIn.openImage(mask[0], mask[1]), maskChannel));
+    if (maskIp == null) {
+      return new BatchResult(id, name, "No mask image");
+    }
+    if (ip.getWidth() != maskIp.getWidth() || ip.getHeight() != maskIp.getHeight()) {
+      return new BatchResult(id, name, "Image and mask must have the same X,Y dimensions");
+    }
+
+    final FloatProcessor floatEdm = createEdm(maskIp);
+
+    // Images are processed in parallel so use a single thread for the skeleton
+    final SkeletonAnalyser_PlugIn sa = new SkeletonAnalyser_PlugIn();
+    sa.skeletonise(maskIp, true);
+    final byte[] map = sa.findNodes(maskIp);
+    if (map == null) {
+      return new BatchResult(id, name, "Mask is not binary");
+    }
+    final ArrayList<ChainCode> chainCodes = new ArrayList<>();
+    sa.extractLines(map, chainCodes);
+    lengthFilter(chainCodes, minLength);
+    Collections.sort(chainCodes, ChainCode::compare);
+
+    final FloatProcessor floatImage = ip.toFloat(1, null);
+    final LocalList<ThreadResult> threads = new LocalList<>(chainCodes.size());
+    for (final ChainCode code : chainCodes) {
+      threads.add(analyseThread(code, floatImage, floatEdm, null));
+    }
+    return new BatchResult(id, name, threads);
+  }
+
+  /**
+   * Gets the result from the future.
+   *
+   * @param future the future
+   * @return the result
+   */
+  private static BatchResult getResult(Future<BatchResult> future) {
+    try {
+      return future.get();
+    } catch (final InterruptedException ex) {
+      // Restore interrupted state...
+      Thread.currentThread().interrupt();
+      throw new ConcurrentRuntimeException(ex);
+    } catch (final ExecutionException ex) {
+      throw new ConcurrentRuntimeException(ex.getCause());
+    }
+  }
+
   private static int getChannels(String title) {
     final ImagePlus imp = WindowManager.getImage(title);
     if (imp != null) {
@@ -486,7 +949,6 @@ public class ThreadAnalyser_PlugIn implements PlugIn {
 
     final FloatProcessor floatImage = ip.toFloat(1, null);
     final FloatProcessor floatObjectImage = (objectIp == null) ? null : objectIp.toFloat(1, null);
-    float[] objectMaximaDistances = null;
 
     Collections.sort(chainCodes, ChainCode::compare);
 
@@ -496,56 +958,29 @@ public class ThreadAnalyser_PlugIn implements PlugIn {
     final StringBuilder sb = new StringBuilder();
 
     int id = 1;
-    final int[] maxima = new int[2];
-    final int[] objectMaxima = new int[2];
     for (final ChainCode code : chainCodes) {
-      // Extract line coordinates
-      final int[] x = new int[code.getSize()];
-      final int[] y = new int[code.getSize()];
-      final float[] d = new float[code.getSize()];
-      getPoints(code, x, y, d);
-
-      final float[] line = {x[0], y[0], x[x.length - 1], y[x.length - 1], code.getLength()};
+      final ThreadResult result = analyseThread(code, floatImage, floatEdm, floatObjectImage);
 
-      out = saveResult(out, id, line);
-      out = saveResult(out, "Distance", d);
+      out = saveResult(out, id, result.line);
+      out = saveResult(out, "Distance", result.distances);
 
       if (skeletonMap != null) {
-        for (int i = x.length; i-- > 0;) {
-          skeletonMap.set(x[i], y[i], id);
+        for (int i = result.x.length; i-- > 0;) {
+          skeletonMap.set(result.x[i], result.y[i], id);
         }
       }
 
-      // calculate average/sd height for each line from original image
-      final float[] data = new float[x.length];
-      final double[] imageStats = extractStatistics(x, y, floatImage, data);
-      out = saveResult(out, "Image Intensity", data);
-
-      // Count maxima along the line.
-      // Note that the spacing between points is not equal.
-      // Use a weighted sum for each point using the distance to neighbour
-      // points within a distance window.
-      final float[] imageMaximaDistances = countMaxima(d, data, maxima);
-
-      // calculate average/sd height for each line from EDM
-      final double[] edmStats = extractStatistics(x, y, floatEdm, data);
-      out = saveResult(out, "EDM Intensity", data);
-
-      if (floatObjectImage != null) {
-        // If using a 2nd mask image then count the number of foreground objects
-        // on the thread.
-        extractStatistics(x, y, floatObjectImage, data);
-        convertObjects(data);
-        out = saveResult(out, "Objects", data);
-        objectMaximaDistances = countMaxima(d, data, objectMaxima);
+      out = saveResult(out, "Image Intensity", result.imageIntensity);
+      out = saveResult(out, "EDM Intensity", result.edmIntensity);
+      if (result.objects != null) {
+        out = saveResult(out, "Objects", result.objects);
       }
-
-      out = saveResult(out, "Image Maxima", imageMaximaDistances);
-      if (floatObjectImage != null) {
-        out = saveResult(out, "Object Maxima", objectMaximaDistances);
+      out = saveResult(out, "Image Maxima", result.imageMaximaDistances);
+      if (result.objects != null) {
+        out = saveResult(out, "Object Maxima", result.objectMaximaDistances);
       }
 
-      addResult(output, sb, id, line, maxima, objectMaxima, imageStats, edmStats);
+      output.accept(addResult(sb, id, result));
 
       id++;
     }
@@ -559,6 +994,49 @@ public class ThreadAnalyser_PlugIn implements PlugIn {
     }
   }
 
+  /**
+   * Analyse the thread.
+   *
+   * @param code the chain code of the thread
+   * @param floatImage the image
+   * @param floatEdm the EDM
+   * @param floatObjectImage the object mask (can be null)
+   * @return the result
+   */
+  private static ThreadResult analyseThread(ChainCode code, FloatProcessor floatImage,
+      FloatProcessor floatEdm, @Nullable FloatProcessor floatObjectImage) {
+    final ThreadResult result = new ThreadResult(code.getSize());
+    final int[] x = result.x;
+    final int[] y = result.y;
+    final float[] d = result.distances;
+    getPoints(code, x, y, d);
+
+    result.line = new float[] {x[0], y[0], x[x.length - 1], y[x.length - 1], code.getLength()};
+
+    // calculate average/sd height for each line from original image
+    result.imageStats = extractStatistics(x, y, floatImage, result.imageIntensity);
+
+    // Count maxima along the line.
+    // Note that the spacing between points is not equal.
+    // Use a weighted sum for each point using the distance to neighbour
+    // points within a distance window.
+    result.imageMaximaDistances = countMaxima(d, result.imageIntensity, result.maxima);
+
+    // calculate average/sd height for each line from EDM
+    result.edmStats = extractStatistics(x, y, floatEdm, result.edmIntensity);
+
+    if (floatObjectImage != null) {
+      // If using a 2nd mask image then count the number of foreground objects
+      // on the thread.
+      final float[] data = new float[x.length];
+      extractStatistics(x, y, floatObjectImage, data);
+      convertObjects(data);
+      result.objects = data;
+      result.objectMaximaDistances = countMaxima(d, data, result.objectMaxima);
+    }
+    return result;
+  }
+
   private static BufferedWriter createResultsFile() {
     if (resultDirectory == null || resultDirectory.equals("")) {
       return null;
@@ -818,8 +1296,8 @@ public class ThreadAnalyser_PlugIn implements PlugIn {
     return sb.toString();
   }
 
-  private static void addResult(Consumer<String> output, StringBuilder sb, int id, float[] line,
-      int[] maxima, int[] objectMaxima, double[] imageStats, double[] edmStats) {
+  private static String addResult(StringBuilder sb, int id, ThreadResult result) {
+    final float[] line = result.line;
     sb.setLength(0);
     sb.append(id).append('\t');
     for (int i = 0; i < 4; i++) {
@@ -827,17 +1305,17 @@ public class ThreadAnalyser_PlugIn implements PlugIn {
     }
     sb.append(IJ.d2s(line[4], 2)).append('\t');
     for (int i = 0; i < 2; i++) {
-      sb.append(maxima[i]).append('\t');
+      sb.append(result.maxima[i]).append('\t');
     }
     for (int i = 0; i < 2; i++) {
-      sb.append(objectMaxima[i]).append('\t');
+      sb.append(result.objectMaxima[i]).append('\t');
     }
     for (int i = 0; i < 4; i++) {
-      sb.append(IJ.d2s(imageStats[i], 2)).append('\t');
+      sb.append(IJ.d2s(result.imageStats[i], 2)).append('\t');
     }
     for (int i = 0; i < 4; i++) {
-      sb.append(IJ.d2s(edmStats[i], 2)).append('\t');
+      sb.append(IJ.d2s(result.edmStats[i], 2)).append('\t');
     }
-    output.accept(sb.toString());
+    return sb.toString();
   }
 }
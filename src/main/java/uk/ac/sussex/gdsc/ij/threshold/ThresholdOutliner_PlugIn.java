@@ -50,11 +50,15 @@ import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.IntConsumer;
 import java.util.function.Predicate;
 import org.apache.commons.lang3.ArrayUtils;
+import uk.ac.sussex.gdsc.core.annotation.Nullable;
 import uk.ac.sussex.gdsc.core.clustering.optics.LoOp;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
 import uk.ac.sussex.gdsc.core.ij.ImageAdapter;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
 import uk.ac.sussex.gdsc.core.ij.gui.NonBlockingExtendedGenericDialog;
@@ -82,8 +86,8 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
   private ImagePlus imp;
   private int flags2;
 
-  private int lastIndex = -1;
-  private int[][] lastObjects = null;
+  /** The objects identified in the last mask image slice. This is cached for the preview. */
+  private final AtomicReference<MaskObjects> lastObjects = new AtomicReference<>();
 
   private ExecutorService es;
   private boolean isPreview;
@@ -97,6 +101,7 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
   private static class Settings {
     /** The hull methods. */
     static final String[] HULL_METHODS = {"Convex", "Digging concave", "Knn concave"};
+    static final int HULL_CONVEX = 0;
     static final int HULL_DIGGING = 1;
     static final int HULL_CONCAVE = 2;
 
@@ -175,6 +180,27 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
     }
   }
 
+  /**
+   * Contains the objects identified in a mask image slice.
+   */
+  private static class MaskObjects {
+    /** The stack index of the mask image slice. */
+    final int index;
+    /** The objects: {objectIds, indices}. */
+    final int[][] objects;
+
+    /**
+     * Create an instance.
+     *
+     * @param index the stack index
+     * @param objects the objects
+     */
+    MaskObjects(int index, int[][] objects) {
+      this.index = index;
+      this.objects = objects;
+    }
+  }
+
   /**
    * Provide lazy loading of the methods.
    */
@@ -217,6 +243,26 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
         {Color.RED, Color.GREEN, Color.BLUE, Color.CYAN, Color.MAGENTA, Color.YELLOW};
   }
 
+  /**
+   * Create an instance.
+   */
+  public ThresholdOutliner_PlugIn() {
+    // The settings are loaded in setup
+  }
+
+  /**
+   * Create an instance with the default settings and the specified hull method. Outlier removal is
+   * disabled.
+   *
+   * @param hullMethod the hull method (0=convex; 1=digging concave; 2=knn concave)
+   */
+  @VisibleForTesting
+  ThresholdOutliner_PlugIn(int hullMethod) {
+    settings = new Settings();
+    settings.hullMethod = hullMethod;
+    settings.outlierThreshold = 1;
+  }
+
   /**
    * Compute the threshold using the given percentile of the histogram data. The threshold is the
    * closest point in the histogram that covers the specified percentile of the data:
@@ -282,7 +328,7 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
 
   /**
    * Final processing on the image. This outlines objects on each slice, fills the ROI to create a
-   * mask and builds a mask image.
+   * mask and builds a mask image. Slices are processed in parallel.
    *
    * @param imp the image
    */
@@ -303,14 +349,13 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
     final Overlay overlay = new Overlay();
     final Color color = ColorHolder.COLORS[settings.colour];
 
-    final ImageStack impStack = imp.getImageStack();
     final ImageStack mask = new ImageStack(imp.getWidth(), imp.getHeight());
+
+    final List<List<Roi>> outlines =
+        outlineSlices(imp, maskImp, channel, frame, start, end, Prefs.getThreads());
+
     for (int slice = start; slice <= end; slice++) {
-      final int[][] objects = identifyObjects(maskImp, channel, slice, frame);
-      final List<Roi> list =
-          outlineObjects(impStack.getProcessor(imp.getStackIndex(channel, slice, frame)),
-              objects[0], objects[1], i -> {
-                /* no-op */ });
+      final List<Roi> list = outlines.get(slice - start);
       // Fill the outlines to create a new mask.
       final ByteProcessor bp = new ByteProcessor(imp.getWidth(), imp.getHeight());
       bp.setValue(255);
@@ -329,6 +374,63 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
     ImageJUtils.display(imp.getTitle() + " Mask", mask);
   }
 
+  /**
+   * Outline the objects on each slice. Slices are processed in parallel. The threads are divided
+   * between the slices and the objects in each slice.
+   *
+   * @param imp the image
+   * @param maskImp the mask image
+   * @param channel the channel
+   * @param frame the frame
+   * @param start the first slice
+   * @param end the last slice (inclusive)
+   * @param threads the number of threads
+   * @return the outlines for each slice
+   */
+  @VisibleForTesting
+  List<List<Roi>> outlineSlices(ImagePlus imp, ImagePlus maskImp, int channel, int frame,
+      int start, int end, int threads) {
+    final ImageStack impStack = imp.getImageStack();
+    final int sliceThreads = MathUtils.clip(1, end - start + 1, threads);
+    final int objectThreads = Math.max(1, threads / sliceThreads);
+    final ExecutorService executor = Executors.newFixedThreadPool(sliceThreads);
+    final LocalList<Future<List<Roi>>> futures = new LocalList<>(end - start + 1);
+    for (int slice = start; slice <= end; slice++) {
+      final int z = slice;
+      futures.add(executor.submit(() -> {
+        final int[][] objects = identifyObjects(maskImp, channel, z, frame);
+        return outlineObjects(impStack.getProcessor(imp.getStackIndex(channel, z, frame)),
+            objects[0], objects[1], i -> {
+              /* no-op */ }, objectThreads);
+      }));
+    }
+    executor.shutdown();
+
+    final LocalList<List<Roi>> outlines = new LocalList<>(end - start + 1);
+    for (int slice = start; slice <= end; slice++) {
+      outlines.add(getOutlines(futures.unsafeGet(slice - start)));
+    }
+    return outlines;
+  }
+
+  /**
+   * Gets the outlines from the future.
+   *
+   * @param future the future
+   * @return the outlines
+   */
+  private static List<Roi> getOutlines(Future<List<Roi>> future) {
+    try {
+      return future.get();
+    } catch (final InterruptedException ex) {
+      // Restore interrupted state...
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted outlining objects", ex);
+    } catch (final ExecutionException ex) {
+      throw new RuntimeException("Failed to outline objects", ex);
+    }
+  }
+
   @Override
   public void run(ImageProcessor ip) {
     if (!isPreview) {
@@ -346,7 +448,8 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
     final Color color = ColorHolder.COLORS[settings.colour];
     final int value = color.getRGB();
 
-    final List<Roi> list = outlineObjects(ip, objects[0], objects[1], i -> cp.set(i, value));
+    final List<Roi> list =
+        outlineObjects(ip, objects[0], objects[1], i -> cp.set(i, value), Prefs.getThreads());
 
     if (Thread.currentThread().isInterrupted()) {
       // The preview was interrupted
@@ -369,17 +472,20 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
   /**
    * Identify objects in the mask image. The returned object Ids are sorted in ascending order.
    *
+   * <p>This method is thread-safe. The result for the last slice is cached.
+   *
    * @param maskImp the mask image
    * @param cc the channel
    * @param zz the slice
    * @param tt the frame
    * @return {objectIds, indices}
    */
-  private synchronized int[][] identifyObjects(ImagePlus maskImp, int cc, int zz, int tt) {
+  private int[][] identifyObjects(ImagePlus maskImp, int cc, int zz, int tt) {
     final int index = maskImp.getStackIndex(cc, zz, tt);
     // Cache the analysis for the preview mode
-    if (index == lastIndex) {
-      return lastObjects;
+    final MaskObjects last = lastObjects.get();
+    if (last != null && last.index == index) {
+      return last.objects;
     }
 
     final ObjectAnalyzer oa = new ObjectAnalyzer(maskImp.getImageStack().getProcessor(index));
@@ -401,54 +507,135 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
     indices = Arrays.copyOf(indices, count);
     SortUtils.sortData(indices, objects, true, false);
     final int[][] result = {objects, indices};
-    lastIndex = index;
-    lastObjects = result;
+    lastObjects.set(new MaskObjects(index, result));
     return result;
   }
 
   /**
-   * Run on the input image.
+   * Run on the input image. Objects are outlined in parallel if the number of threads is above 1.
+   *
+   * <p>If the current thread is interrupted (e.g. the preview settings changed) an empty list is
+   * returned and the thread remains interrupted.
    *
    * @param ip the image
    * @param objects the object Ids (sorted ascending)
    * @param indices the indices for each object Id
-   * @param foreground will be called with the index of each foreground pixel
+   * @param foreground will be called with the index of each foreground pixel (must be thread-safe
+   *        when using multiple threads; the index of each call is unique)
+   * @param threads the number of threads
    * @return the list
    */
-  private List<Roi> outlineObjects(ImageProcessor ip, int[] objects, int[] indices,
-      IntConsumer foreground) {
+  @VisibleForTesting
+  List<Roi> outlineObjects(ImageProcessor ip, int[] objects, int[] indices,
+      IntConsumer foreground, int threads) {
     if (objects.length == 0) {
       return Collections.emptyList();
     }
     final int maxObject = objects[objects.length - 1];
-    final LocalList<Roi> list = new LocalList<>(maxObject);
-
-    // For each object:
-    final int[] h = new int[ip.getBitDepth() == 8 ? 256 : 65536];
-    final int maxx = ip.getWidth();
-    Hull.Builder hb;
-    if (settings.hullMethod == Settings.HULL_DIGGING) {
-      hb = DiggingConcaveHull2d.newBuilder().setThreshold(settings.diggingThreshold);
-    } else if (settings.hullMethod == Settings.HULL_CONCAVE) {
-      hb = KnnConcaveHull2d.newBuilder().setK(settings.neighbours);
-    } else {
-      hb = ConvexHull2d.newBuilder();
-    }
-
-    final IntArrayList pixels = new IntArrayList(100);
 
+    // Find the start and end of each object: [starts[object], starts[object + 1])
+    final int[] starts = new int[maxObject + 2];
     int end = 0;
     for (int object = 1; object <= maxObject; object++) {
-      // The preview can be interrupted
-      if (Thread.currentThread().isInterrupted()) {
+      starts[object] = end;
+      while (end < objects.length && object == objects[end]) {
+        end++;
+      }
+    }
+    starts[maxObject + 1] = end;
+
+    final Roi[] rois = new Roi[maxObject + 1];
+    final int threadCount = MathUtils.clip(1, maxObject, threads);
+    if (threadCount == 1) {
+      final ObjectOutliner outliner = new ObjectOutliner(ip, foreground);
+      for (int object = 1; object <= maxObject; object++) {
+        // The preview can be interrupted
+        if (Thread.currentThread().isInterrupted()) {
+          return Collections.emptyList();
+        }
+        rois[object] = outliner.outline(indices, starts[object], starts[object + 1]);
+      }
+    } else {
+      final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+      final AtomicInteger next = new AtomicInteger(1);
+      final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+      for (int i = 0; i < threadCount; i++) {
+        futures.add(executor.submit(() -> {
+          final ObjectOutliner outliner = new ObjectOutliner(ip, foreground);
+          for (int object = next.getAndIncrement(); object <= maxObject
+              && !Thread.currentThread().isInterrupted(); object = next.getAndIncrement()) {
+            rois[object] = outliner.outline(indices, starts[object], starts[object + 1]);
+          }
+        }));
+      }
+      executor.shutdown();
+      try {
+        for (final Future<?> future : futures) {
+          future.get();
+        }
+      } catch (final InterruptedException ex) {
+        // The preview can be interrupted
+        Thread.currentThread().interrupt();
+        executor.shutdownNow();
         return Collections.emptyList();
+      } catch (final ExecutionException ex) {
+        throw new RuntimeException("Failed to outline objects", ex);
       }
+    }
 
-      // Find the start and end of the object
-      final int start = end;
-      while (end < objects.length && object == objects[end]) {
-        end++;
+    final LocalList<Roi> list = new LocalList<>(maxObject);
+    for (final Roi roi : rois) {
+      if (roi != null) {
+        list.add(roi);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Outline a single object. Each instance has working memory for the object analysis and must be
+   * used by a single thread.
+   */
+  private class ObjectOutliner {
+    private final ImageProcessor ip;
+    private final IntConsumer foreground;
+    private final int width;
+    private final int[] h;
+    private final Hull.Builder hb;
+    private final IntArrayList pixels = new IntArrayList(100);
+    /** Working space to mark the foreground pixels within the object bounds. */
+    private byte[] box = new byte[0];
+
+    /**
+     * Create an instance.
+     *
+     * @param ip the image
+     * @param foreground will be called with the index of each foreground pixel
+     */
+    ObjectOutliner(ImageProcessor ip, IntConsumer foreground) {
+      this.ip = ip;
+      this.foreground = foreground;
+      width = ip.getWidth();
+      h = new int[ip.getBitDepth() == 8 ? 256 : 65536];
+      if (settings.hullMethod == Settings.HULL_DIGGING) {
+        hb = DiggingConcaveHull2d.newBuilder().setThreshold(settings.diggingThreshold);
+      } else if (settings.hullMethod == Settings.HULL_CONCAVE) {
+        hb = KnnConcaveHull2d.newBuilder().setK(settings.neighbours);
+      } else {
+        hb = ConvexHull2d.newBuilder();
       }
+    }
+
+    /**
+     * Outline the object.
+     *
+     * @param indices the indices for each object Id
+     * @param start the start of the object indices (inclusive)
+     * @param end the end of the object indices (exclusive)
+     * @return the outline (or null)
+     */
+    @Nullable
+    Roi outline(int[] indices, int start, int end) {
       // - Extract pixels from the object image into a histogram.
       Arrays.fill(h, 0);
       for (int i = start; i < end; i++) {
@@ -476,26 +663,50 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
       double[] scores;
       // Run if threshold in (0, 1)
       if (Math.abs(settings.outlierThreshold - 0.5) < 0.5) {
-        scores = runLoop(pixels, maxx);
+        scores = runLoop(pixels, width);
       } else {
         scores = null;
       }
 
-      // Build hull
-      hb.clear();
+      // Remove outliers
+      int size = 0;
       final int[] e = pixels.elements();
+      int minx = Integer.MAX_VALUE;
+      int miny = Integer.MAX_VALUE;
+      int maxx = -1;
+      int maxy = -1;
       for (int i = 0; i < pixels.size(); i++) {
         final int index = e[i];
         // Test if an outlier
         if (scores == null || scores[i] <= settings.outlierThreshold) {
           foreground.accept(index);
-          hb.add(index % maxx, index / maxx);
+          e[size++] = index;
+          final int x = index % width;
+          final int y = index / width;
+          minx = Math.min(minx, x);
+          maxx = Math.max(maxx, x);
+          miny = Math.min(miny, y);
+          maxy = Math.max(maxy, y);
+        }
+      }
+      if (size == 0) {
+        return null;
+      }
+
+      hb.clear();
+      if (settings.hullMethod == Settings.HULL_CONVEX) {
+        addBoundary(e, size, minx, miny, maxx, maxy);
+      } else {
+        // A concave hull depends on the interior points
+        for (int i = 0; i < size; i++) {
+          final int index = e[i];
+          hb.add(index % width, index / width);
         }
       }
       // - Create hull
       final Hull2d hull = (Hull2d) hb.build();
       if (hull == null) {
-        continue;
+        return null;
       }
 
       // - Show polygon ROI
@@ -508,10 +719,43 @@ public class ThresholdOutliner_PlugIn implements ExtendedPlugInFilter, DialogLis
         y[i] = (float) v[i][1];
       }
 
-      list.add(new PolygonRoi(x, y, Roi.POLYGON));
+      return new PolygonRoi(x, y, Roi.POLYGON);
     }
 
-    return list;
+    /**
+     * Add the boundary pixels to the hull builder. These are the pixels with a 4-connected
+     * neighbour outside the pixel set. Interior pixels cannot be on the outline of a convex hull.
+     *
+     * @param e the pixel indices
+     * @param size the number of pixels
+     * @param minx the min x of the pixels
+     * @param miny the min y of the pixels
+     * @param maxx the max x of the pixels
+     * @param maxy the max y of the pixels
+     */
+    private void addBoundary(int[] e, int size, int minx, int miny, int maxx, int maxy) {
+      // Mark the pixels within the bounds with a 1 pixel border.
+      final int bw = maxx - minx + 3;
+      final int bh = maxy - miny + 3;
+      if (box.length < bw * bh) {
+        box = new byte[bw * bh];
+      } else {
+        Arrays.fill(box, 0, bw * bh, (byte) 0);
+      }
+      for (int i = 0; i < size; i++) {
+        final int index = e[i];
+        box[(index / width - miny + 1) * bw + index % width - minx + 1] = 1;
+      }
+      for (int i = 0; i < size; i++) {
+        final int index = e[i];
+        final int x = index % width;
+        final int y = index / width;
+        final int j = (y - miny + 1) * bw + x - minx + 1;
+        if ((box[j - 1] & box[j + 1] & box[j - bw] & box[j + bw]) == 0) {
+          hb.add(x, y);
+        }
+      }
+    }
   }
 
   private double[] runLoop(IntArrayList pixels, int maxx) {
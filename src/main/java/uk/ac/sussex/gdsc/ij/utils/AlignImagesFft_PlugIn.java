@@ -26,18 +26,29 @@ package uk.ac.sussex.gdsc.ij.utils;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
 import uk.ac.sussex.gdsc.core.ij.AlignImagesFft;
 import uk.ac.sussex.gdsc.core.ij.AlignImagesFft.SubPixelMethod;
 import uk.ac.sussex.gdsc.core.ij.ImageJTrackProgress;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
 import uk.ac.sussex.gdsc.core.ij.gui.ExtendedGenericDialog;
+import uk.ac.sussex.gdsc.core.logging.Ticker;
 import uk.ac.sussex.gdsc.core.utils.ImageWindow.WindowMethod;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 
 /**
@@ -56,6 +67,10 @@ import uk.ac.sussex.gdsc.ij.UsageTracker;
  * within the larger image (half-max translation). This can be altered by providing a translation
  * bounds. Note that when using normalised correlation all scores are set to zero outside the
  * half-max translation due to potential floating-point summation error during normalisation.
+ *
+ * <p>Large translation ranges can be searched using a Gaussian pyramid. The correlation is computed
+ * in the frequency domain on the most downsampled level. The shift is then refined in a small
+ * window at each finer level using the spatial domain correlation.
  */
 // This code is based on the Fast Normalised Cross-Correlation algorithm by J.P.Lewis
 // http://scribblethink.org/Work/nvisionInterface/nip.pdf
@@ -84,6 +99,7 @@ public class AlignImagesFft_PlugIn implements PlugIn {
   private static boolean showCorrelationImage;
   private static boolean showNormalisedImage;
   private static boolean clipOutput;
+  private static boolean pyramid;
 
   static {
     final WindowMethod[] m = WindowMethod.values();
@@ -153,12 +169,24 @@ public class AlignImagesFft_PlugIn implements PlugIn {
     Consumer<ImagePlus> correlationImageAction = createAction(showCorrelationImage);
     Consumer<ImagePlus> normalisedImageAction = createAction(showNormalisedImage);
 
-    final AlignImagesFft align = new AlignImagesFft();
-    align.setProgress(new ImageJTrackProgress());
-    final ImagePlus alignedImp =
-        align.align(refImp, targetImp, WindowMethod.values()[myWindowFunction], bounds,
-            SubPixelMethod.values()[subPixelMethod], interpolationMethod, normalised,
-            correlationImageAction, normalisedImageAction, normalisedImageAction, clipOutput);
+    if (pyramid && (correlationImageAction != null || normalisedImageAction != null)) {
+      IJ.log(TITLE + ": The correlation images are not available with the pyramid search");
+    }
+
+    final ImagePlus alignedImp;
+    if (pyramid || (correlationImageAction == null && normalisedImageAction == null)) {
+      // No intermediate images so the slices can be processed independently.
+      // Note the pyramid search does not compute the full correlation images.
+      alignedImp = alignStack(refImp, targetImp, WindowMethod.values()[myWindowFunction], bounds,
+          SubPixelMethod.values()[subPixelMethod], interpolationMethod, normalised, clipOutput,
+          pyramid);
+    } else {
+      final AlignImagesFft align = new AlignImagesFft();
+      align.setProgress(new ImageJTrackProgress());
+      alignedImp = align.align(refImp, targetImp, WindowMethod.values()[myWindowFunction], bounds,
+          SubPixelMethod.values()[subPixelMethod], interpolationMethod, normalised,
+          correlationImageAction, normalisedImageAction, normalisedImageAction, clipOutput);
+    }
 
     if (alignedImp != null) {
       // Do the same action
@@ -166,6 +194,141 @@ public class AlignImagesFft_PlugIn implements PlugIn {
     }
   }
 
+  /**
+   * Align the target stack to the current slice of the reference image.
+   *
+   * <p>The target slices are aligned and translated in parallel. Each worker thread owns an aligner
+   * that is initialised once with the windowed reference so the reference transform is not
+   * recomputed for each target slice.
+   *
+   * <p>If using a pyramid search the frequency domain correlation is performed on the most
+   * downsampled level and the shift refined at each finer level. The refinement uses the spatial
+   * domain Pearson correlation.
+   *
+   * @param refImp the reference image
+   * @param targetImp the target image (if null the reference stack is aligned to its current slice)
+   * @param windowMethod the window method
+   * @param bounds the translation bounds (can be null)
+   * @param subPixelMethod the sub pixel method
+   * @param interpolationMethod the interpolation method
+   * @param normalised Set to true to use normalised correlation
+   * @param clipOutput Set to true to ensure the output image has the same max as the input.
+   *        Applies to bicubic interpolation
+   * @param pyramid Set to true to use a coarse-to-fine pyramid search
+   * @return the aligned image
+   */
+  public static ImagePlus alignStack(ImagePlus refImp, ImagePlus targetImp,
+      WindowMethod windowMethod, Rectangle bounds, SubPixelMethod subPixelMethod,
+      int interpolationMethod, boolean normalised, boolean clipOutput, boolean pyramid) {
+    if (refImp == null) {
+      return null;
+    }
+    if (targetImp == null) {
+      targetImp = refImp;
+    }
+
+    final ImageProcessor refIp = refImp.getProcessor();
+    final ImageStack stack = targetImp.getImageStack();
+    final int size = stack.getSize();
+    final ImageProcessor[] aligned = new ImageProcessor[size];
+
+    // The pyramid is created once and shared
+    final PyramidRegistration registration;
+    final Rectangle searchBounds;
+    if (pyramid) {
+      searchBounds = bounds != null ? bounds
+          : PyramidRegistration.getDefaultBounds(refIp, stack.getProcessor(1));
+      registration = new PyramidRegistration(refIp, null,
+          PyramidRegistration.getLevels(refIp.getWidth(), refIp.getHeight(), searchBounds));
+    } else {
+      searchBounds = bounds;
+      registration = null;
+    }
+    final int pyramidSubPixelMethod = getPyramidSubPixelMethod(subPixelMethod);
+
+    final int threadCount = MathUtils.min(Prefs.getThreads(), size);
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+    final Ticker ticker = ImageJUtils.createTicker(size, threadCount);
+    final AtomicInteger nextSlice = new AtomicInteger();
+
+    for (int i = 0; i < threadCount; i++) {
+      futures.add(executor.submit(() -> {
+        final AlignImagesFft align = new AlignImagesFft();
+        PyramidRegistration.CoarseSearch coarseSearch = null;
+        if (registration == null) {
+          align.initialiseReference(refIp, windowMethod, normalised);
+        } else {
+          align.initialiseReference(registration.getReference(registration.getLevels()),
+              windowMethod, normalised);
+          coarseSearch = createCoarseSearch(align, windowMethod);
+        }
+        for (int index = nextSlice.getAndIncrement(); index < size;
+            index = nextSlice.getAndIncrement()) {
+          if (ImageJUtils.isInterrupted()) {
+            return;
+          }
+          final ImageProcessor ip = stack.getProcessor(index + 1);
+          final double[] offset = registration == null
+              ? align.align(ip, windowMethod, searchBounds, subPixelMethod)
+              : registration.align(ip, searchBounds, pyramidSubPixelMethod, coarseSearch, null);
+          aligned[index] = AlignImages_PlugIn.translate(interpolationMethod, ip, offset[0],
+              offset[1], clipOutput);
+          ticker.tick();
+        }
+      }));
+    }
+
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+    ImageJUtils.finished();
+
+    if (ImageJUtils.isInterrupted()) {
+      return null;
+    }
+
+    final ImageStack outStack = new ImageStack(stack.getWidth(), stack.getHeight(), size);
+    for (int i = 0; i < size; i++) {
+      outStack.setPixels(aligned[i].getPixels(), i + 1);
+      outStack.setSliceLabel(stack.getSliceLabel(i + 1), i + 1);
+    }
+    return new ImagePlus(targetImp.getTitle() + " Aligned", outStack);
+  }
+
+  /**
+   * Creates the coarse search for the pyramid using the frequency domain correlation. The shift is
+   * the integer translation of the target to the reference.
+   *
+   * @param align the aligner (initialised with the reference at the coarse pyramid level)
+   * @param windowMethod the window method
+   * @return the coarse search
+   */
+  @VisibleForTesting
+  static PyramidRegistration.CoarseSearch createCoarseSearch(AlignImagesFft align,
+      WindowMethod windowMethod) {
+    return (level, target, levelBounds) -> {
+      final double[] offset = align.align(target, windowMethod, levelBounds, SubPixelMethod.NONE);
+      return new int[] {(int) Math.round(offset[0]), (int) Math.round(offset[1])};
+    };
+  }
+
+  /**
+   * Gets the sub-pixel method for the pyramid search: 0 for none; 1 for cubic; or 2 for Gaussian.
+   *
+   * @param subPixelMethod the sub pixel method
+   * @return the pyramid sub pixel method
+   */
+  static int getPyramidSubPixelMethod(SubPixelMethod subPixelMethod) {
+    switch (subPixelMethod) {
+      case CUBIC:
+        return 1;
+      case GAUSSIAN:
+        return 2;
+      default:
+        return 0;
+    }
+  }
+
   private static String[] getImagesList() {
     // Find the currently open images
     final ArrayList<String> newImageList = new ArrayList<>();
@@ -231,6 +394,7 @@ public class AlignImagesFft_PlugIn implements PlugIn {
     gd.addCheckbox("Show_correlation_image", showCorrelationImage);
     gd.addCheckbox("Show_normalised_image", showNormalisedImage);
     gd.addCheckbox("Clip_output", clipOutput);
+    gd.addCheckbox("Pyramid_search", pyramid);
     gd.addHelp(uk.ac.sussex.gdsc.ij.help.Urls.UTILITY);
 
     gd.showDialog();
@@ -253,6 +417,7 @@ public class AlignImagesFft_PlugIn implements PlugIn {
     showCorrelationImage = gd.getNextBoolean();
     showNormalisedImage = gd.getNextBoolean();
     clipOutput = gd.getNextBoolean();
+    pyramid = gd.getNextBoolean();
 
     return true;
   }
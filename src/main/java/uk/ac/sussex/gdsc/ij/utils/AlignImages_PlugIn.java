@@ -37,6 +37,7 @@ import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Arrays;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 
@@ -64,6 +65,9 @@ import uk.ac.sussex.gdsc.ij.UsageTracker;
  * </ul>
  *
  * <p>Output new stack with the best alignment with optional sub-pixel accuracy.
+ *
+ * <p>Large translation ranges can be searched using a Gaussian pyramid. The shift is estimated on
+ * downsampled images and refined in a small window at each finer level.
  */
 //@formatter:on
 public class AlignImages_PlugIn implements PlugIn {
@@ -83,6 +87,7 @@ public class AlignImages_PlugIn implements PlugIn {
   private static String target = "";
   private static boolean showCorrelationImage;
   private static boolean clipOutput;
+  private static boolean pyramid;
 
   /** Ask for parameters and then execute. */
   @Override
@@ -106,7 +111,7 @@ public class AlignImages_PlugIn implements PlugIn {
 
     final ImagePlus alignedImp =
         exec(refImp, maskIp, targetImp, myminXShift, mymaxXShift, myminYShift, mymaxYShift,
-            subPixelMethod, interpolationMethod, showCorrelationImage, clipOutput);
+            subPixelMethod, interpolationMethod, showCorrelationImage, clipOutput, pyramid);
 
     if (alignedImp != null) {
       ImageJUtils.display(alignedImp.getTitle() + " Correlation", alignedImp.getImageStack());
@@ -173,6 +178,7 @@ public class AlignImages_PlugIn implements PlugIn {
     gd.addChoice("Interpolation", methods, methods[interpolationMethod]);
     gd.addCheckbox("Show_correlation_image", showCorrelationImage);
     gd.addCheckbox("Clip_output", clipOutput);
+    gd.addCheckbox("Pyramid_search", pyramid);
     gd.addHelp(uk.ac.sussex.gdsc.ij.help.Urls.UTILITY);
 
     gd.showDialog();
@@ -192,6 +198,7 @@ public class AlignImages_PlugIn implements PlugIn {
     interpolationMethod = gd.getNextChoiceIndex();
     showCorrelationImage = gd.getNextBoolean();
     clipOutput = gd.getNextBoolean();
+    pyramid = gd.getNextBoolean();
 
     return true;
   }
@@ -224,6 +231,33 @@ public class AlignImages_PlugIn implements PlugIn {
   public ImagePlus exec(ImagePlus refImp, ImageProcessor maskIp, ImagePlus targetImp, int minXShift,
       int maxXShift, int minYShift, int maxYShift, int subPixelMethod, int interpolationMethod,
       boolean showCorrelationImage, boolean clipOutput) {
+    return exec(refImp, maskIp, targetImp, minXShift, maxXShift, minYShift, maxYShift,
+        subPixelMethod, interpolationMethod, showCorrelationImage, clipOutput, false);
+  }
+
+  /**
+   * Execute the plugin.
+   *
+   * <p>If using a pyramid search the correlation image only contains the scores computed in the
+   * final search window at full resolution; other translations are NaN.
+   *
+   * @param refImp the reference image
+   * @param maskIp the mask image
+   * @param targetImp the target image
+   * @param minXShift the min X shift
+   * @param maxXShift the max X shift
+   * @param minYShift the min Y shift
+   * @param maxYShift the max Y shift
+   * @param subPixelMethod the sub pixel method
+   * @param interpolationMethod the interpolation method
+   * @param showCorrelationImage the show correlation image flag
+   * @param clipOutput the clip output flag
+   * @param pyramid Set to true to use a coarse-to-fine pyramid search
+   * @return the aligned image plus
+   */
+  public ImagePlus exec(ImagePlus refImp, ImageProcessor maskIp, ImagePlus targetImp, int minXShift,
+      int maxXShift, int minYShift, int maxYShift, int subPixelMethod, int interpolationMethod,
+      boolean showCorrelationImage, boolean clipOutput, boolean pyramid) {
     final ImageProcessor refIp = refImp.getProcessor();
     if (targetImp == null) {
       targetImp = refImp;
@@ -250,11 +284,24 @@ public class AlignImages_PlugIn implements PlugIn {
       correlationStack = new ImageStack(maxXShift - minXShift + 1, maxYShift - minYShift + 1);
     }
 
+    PyramidRegistration registration = null;
+    Rectangle bounds = null;
+    if (pyramid) {
+      bounds = AlignImagesFft_PlugIn.createBounds(minXShift, maxXShift, minYShift, maxYShift);
+      registration = new PyramidRegistration(refIp, maskIp,
+          PyramidRegistration.getLevels(refIp.getWidth(), refIp.getHeight(), bounds));
+    }
+
     final ImageStack stack = targetImp.getStack();
     for (int slice = 1; slice <= stack.getSize(); slice++) {
       final ImageProcessor targetIp = stack.getProcessor(slice);
-      outStack.addSlice(null, alignImages(refIp, maskIp, targetIp, slice, minXShift, maxXShift,
-          minYShift, maxYShift, fp, subPixelMethod, interpolationMethod, clipOutput));
+      if (registration != null) {
+        outStack.addSlice(null, alignImages(registration, targetIp, slice, bounds, fp,
+            subPixelMethod, interpolationMethod, clipOutput));
+      } else {
+        outStack.addSlice(null, alignImages(refIp, maskIp, targetIp, slice, minXShift, maxXShift,
+            minYShift, maxYShift, fp, subPixelMethod, interpolationMethod, clipOutput));
+      }
       if (correlationStack != null) {
         correlationStack.addSlice(null, fp.duplicate());
       }
@@ -337,6 +384,29 @@ public class AlignImages_PlugIn implements PlugIn {
     return translate(interpolationMethod, targetIp, xoffset, yoffset, clipOutput);
   }
 
+  private static ImageProcessor alignImages(PyramidRegistration registration,
+      ImageProcessor targetIp, int slice, Rectangle bounds, FloatProcessor fp, int subPixelMethod,
+      int interpolationMethod, boolean clipOutput) {
+    final FloatProcessor[] surface = new FloatProcessor[1];
+    final double[] result = registration.align(targetIp, bounds, subPixelMethod, null, surface);
+    final double xoffset = result[0];
+    final double yoffset = result[1];
+
+    // Copy the final search window to the correlation image
+    Arrays.fill((float[]) fp.getPixels(), Float.NaN);
+    fp.insert(surface[0], (int) result[3] - bounds.x, (int) result[4] - bounds.y);
+
+    String warning = "";
+    if (xoffset == bounds.x || xoffset == bounds.x + bounds.width || yoffset == bounds.y
+        || yoffset == bounds.y + bounds.height) {
+      warning = "***";
+    }
+    IJ.log(String.format("Best Slice%s %d  x %g  y %g = %g (pyramid levels %d)", warning, slice,
+        xoffset, yoffset, result[2], registration.getLevels()));
+
+    return translate(interpolationMethod, targetIp, xoffset, yoffset, clipOutput);
+  }
+
   /**
    * Duplicate and translate the image processor.
    *
@@ -517,7 +587,18 @@ public class AlignImages_PlugIn implements PlugIn {
     return (coord);
   }
 
-  private static double calculateScore(ImageProcessor refIp, ImageProcessor maskIp,
+  /**
+   * Calculate the Pearson correlation between the reference and the target shifted by the given
+   * translation. Clipped values and pixels outside the mask are ignored.
+   *
+   * @param refIp the reference image
+   * @param maskIp the reference image mask (can be null)
+   * @param targetIp the target image
+   * @param xshift the x shift
+   * @param yshift the y shift
+   * @return the correlation (NaN if there is no overlap)
+   */
+  static double calculateScore(ImageProcessor refIp, ImageProcessor maskIp,
       ImageProcessor targetIp, int xshift, int yshift) {
     // Same dimensions at current
     double sumX = 0;
@@ -27,22 +27,41 @@ package uk.ac.sussex.gdsc.ij.utils;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
+import ij.measure.Measurements;
 import ij.plugin.HyperStackReducer;
 import ij.plugin.PlugIn;
 import ij.plugin.ZProjector;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.SingularMatrixException;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
 import uk.ac.sussex.gdsc.core.ij.AlignImagesFft;
 import uk.ac.sussex.gdsc.core.ij.AlignImagesFft.SubPixelMethod;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
+import uk.ac.sussex.gdsc.core.logging.Ticker;
 import uk.ac.sussex.gdsc.core.threshold.AutoThreshold;
 import uk.ac.sussex.gdsc.core.threshold.AutoThreshold.Method;
 import uk.ac.sussex.gdsc.core.utils.ImageWindow.WindowMethod;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 
 /**
@@ -55,10 +74,20 @@ import uk.ac.sussex.gdsc.ij.UsageTracker;
  * performed per channel. The channels are tiled to a composite image. The composite is then aligned
  * using the maximum correlation between the images. The translation is applied to the entire stack
  * for that timepoint.
+ *
+ * <p>Optionally the drift can be estimated locally on a grid of overlapping tiles. A smooth
+ * polynomial displacement field is fit to the tile shifts and used to warp each frame. Tiles with
+ * little content or a low correlation score are excluded from the fit. Frames are processed one at
+ * a time so memory use is bounded by a single frame.
  */
 public class AlignStacks_PlugIn implements PlugIn {
   private static final String TITLE = "Align Stacks";
   private static final String SELF_ALIGN = "selfAlign";
+  /**
+   * The minimum variance of a tile relative to the variance of the frame. Tiles below this are
+   * considered blank.
+   */
+  private static final double MIN_TILE_VARIANCE = 0.05;
 
   private static String reference = "";
   private static boolean selfAlign;
@@ -76,6 +105,13 @@ public class AlignStacks_PlugIn implements PlugIn {
   private static int interpolationMethod = ImageProcessor.NONE;
   private static boolean clipOutput;
   private static final String[] windowFunctions = AlignImagesFft_PlugIn.getWindowFunctions();
+  private static boolean tiled;
+  private static int tilesX = 4;
+  private static int tilesY = 4;
+  private static double tileOverlap = 0.5;
+  private static double minTileScore = 0.3;
+  private static final String[] fieldModels = {"Linear", "Quadratic"};
+  private static int fieldModel = 1;
 
   @Override
   public void run(String arg) {
@@ -170,6 +206,12 @@ public class AlignStacks_PlugIn implements PlugIn {
     gd.addChoice("Sub-pixel_method", subPixelMethods, subPixelMethods[subPixelMethod]);
     gd.addChoice("Interpolation", interpolationMethods, interpolationMethods[interpolationMethod]);
     gd.addCheckbox("Clip_output", clipOutput);
+    gd.addCheckbox("Tiled_drift", tiled);
+    gd.addNumericField("Tiles_x", tilesX, 0);
+    gd.addNumericField("Tiles_y", tilesY, 0);
+    gd.addNumericField("Tile_overlap", tileOverlap, 2);
+    gd.addNumericField("Min_tile_score", minTileScore, 2);
+    gd.addChoice("Drift_field", fieldModels, fieldModels[fieldModel]);
     gd.addHelp(uk.ac.sussex.gdsc.ij.help.Urls.UTILITY);
 
     gd.showDialog();
@@ -192,6 +234,19 @@ public class AlignStacks_PlugIn implements PlugIn {
     subPixelMethod = gd.getNextChoiceIndex();
     interpolationMethod = gd.getNextChoiceIndex();
     clipOutput = gd.getNextBoolean();
+    tiled = gd.getNextBoolean();
+    tilesX = Math.max(1, (int) gd.getNextNumber());
+    tilesY = Math.max(1, (int) gd.getNextNumber());
+    tileOverlap = MathUtils.clip(0, 1, gd.getNextNumber());
+    minTileScore = gd.getNextNumber();
+    fieldModel = gd.getNextChoiceIndex();
+
+    // The field requires more tiles than the polynomial degree in at least one dimension
+    if (tiled && Math.max(tilesX, tilesY) <= fieldModel + 1) {
+      IJ.error(TITLE, String.format("A %s drift field requires at least %d tiles in x or y",
+          fieldModels[fieldModel].toLowerCase(Locale.ROOT), fieldModel + 2));
+      return false;
+    }
 
     return true;
   }
@@ -252,83 +307,373 @@ public class AlignStacks_PlugIn implements PlugIn {
     final int z2 = targetImp.getSlice();
     final int t2 = targetImp.getFrame();
 
-    if (refImp.getNFrames() == 1 || selfAlign) {
-      final ImageProcessor ip1 = createComposite(refImp, t1, projectionMethod, windowFunction);
-      final ImagePlus imp1 = new ImagePlus("ip1", ip1);
-      final AlignImagesFft align = new AlignImagesFft();
-      align.setDoTranslation(false);
-      align.initialiseReference(imp1, windowFunction, true);
+    if (tiled) {
+      execTiled(refImp, targetImp, projectionMethod, windowFunction, bounds, subPixelMethod,
+          interpolationMethod, clipOutput);
+    } else {
+      execGlobal(refImp, targetImp, projectionMethod, windowFunction, bounds, subPixelMethod,
+          interpolationMethod, clipOutput);
+    }
 
-      // For each time point
-      for (int frame = 1; frame <= targetImp.getNFrames(); frame++) {
-        if (selfAlign && frame == t1) {
-          continue;
+    if (ImageJUtils.isInterrupted()) {
+      return;
+    }
+
+    // Reset input images
+    refImp.setPosition(c1, z1, t1);
+    targetImp.setPosition(c2, z2, t2);
+    targetImp.updateAndDraw();
+  }
+
+  /**
+   * Align each frame using a global translation.
+   */
+  private static void execGlobal(ImagePlus refImp, ImagePlus targetImp, int projectionMethod,
+      WindowMethod windowFunction, Rectangle bounds, SubPixelMethod subPixelMethod,
+      int interpolationMethod, boolean clipOutput) {
+    final int t1 = refImp.getFrame();
+    final int frames = targetImp.getNFrames();
+    final boolean fixedReference = refImp.getNFrames() == 1 || selfAlign;
+    final ImageProcessor ip1 =
+        fixedReference ? createComposite(refImp, t1, projectionMethod, windowFunction) : null;
+
+    // Process frames in parallel. Each worker owns an aligner. When the reference is fixed the
+    // aligner is initialised once with the reference transform and reused for all frames.
+    final int threadCount = MathUtils.min(Prefs.getThreads(), frames);
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+    final Ticker ticker = ImageJUtils.createTicker(frames, threadCount);
+    final AtomicInteger nextFrame = new AtomicInteger(1);
+    final ImageStack stack = targetImp.getImageStack();
+
+    for (int i = 0; i < threadCount; i++) {
+      futures.add(executor.submit(() -> {
+        AlignImagesFft align = null;
+        if (fixedReference) {
+          align = new AlignImagesFft();
+          align.initialiseReference(ip1, windowFunction, true);
         }
+        for (int frame = nextFrame.getAndIncrement(); frame <= frames;
+            frame = nextFrame.getAndIncrement()) {
+          if (ImageJUtils.isInterrupted()) {
+            return;
+          }
+          if (selfAlign && frame == t1) {
+            ticker.tick();
+            continue;
+          }
 
-        IJ.showProgress(frame, targetImp.getNFrames());
+          // Build composite image for the timepoint
+          if (!fixedReference) {
+            align = new AlignImagesFft();
+            align.initialiseReference(
+                createComposite(refImp, frame, projectionMethod, windowFunction),
+                WindowMethod.NONE, true);
+          }
+          final ImageProcessor ip2 =
+              createComposite(targetImp, frame, projectionMethod, windowFunction);
+
+          // Align the image
+          final double[] offset = align.align(ip2, WindowMethod.NONE, bounds, subPixelMethod);
+
+          // Transform original stack
+          for (int channel = 1; channel <= targetImp.getNChannels(); channel++) {
+            for (int slice = 1; slice <= targetImp.getNSlices(); slice++) {
+              final int index = targetImp.getStackIndex(channel, slice, frame);
+              final ImageProcessor ip = stack.getProcessor(index);
+              AlignImages_PlugIn.translateProcessor(interpolationMethod, ip, offset[0], offset[1],
+                  clipOutput);
+            }
+          }
+          ticker.tick();
+        }
+      }));
+    }
 
-        // Build composite image for the timepoint
-        final ImageProcessor ip2 =
-            createComposite(targetImp, frame, projectionMethod, windowFunction);
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+    ImageJUtils.finished();
+  }
 
-        // Align the image
-        final ImagePlus imp2 = new ImagePlus("ip2", ip2);
-        align.align(imp2, WindowMethod.NONE, bounds, subPixelMethod, interpolationMethod,
-            clipOutput);
+  /**
+   * Align each frame using a displacement field fit to the shifts of overlapping tiles.
+   *
+   * <p>Frames are processed sequentially. The tiles of a frame are aligned in parallel and the
+   * slices of the frame warped in parallel. When the reference is fixed the aligner for each tile
+   * is initialised once and reused for all frames.
+   *
+   * <p>Blank tiles and tiles with a low correlation score at the aligned shift are excluded from
+   * the field fit. If no tiles remain then all tiles are used.
+   */
+  private static void execTiled(ImagePlus refImp, ImagePlus targetImp, int projectionMethod,
+      WindowMethod windowFunction, Rectangle bounds, SubPixelMethod subPixelMethod,
+      int interpolationMethod, boolean clipOutput) {
+    final int t1 = refImp.getFrame();
+    final int frames = targetImp.getNFrames();
+    final int width = targetImp.getWidth();
+    final int height = targetImp.getHeight();
+    final boolean fixedReference = refImp.getNFrames() == 1 || selfAlign;
+    final Rectangle[] regions = createTileRegions(width, height, tilesX, tilesY, tileOverlap);
+    final int degree = fieldModel + 1;
+    final int terms = DisplacementField.getExponents(regions, degree).length;
+    if (terms < DisplacementField.getNumberOfTerms(degree)) {
+      IJ.log(String.format("%s: The tile centres support %d of the %d %s drift field terms", TITLE,
+          terms, DisplacementField.getNumberOfTerms(degree),
+          fieldModels[fieldModel].toLowerCase(Locale.ROOT)));
+    }
 
-        // Transform original stack
-        final ImageStack stack = targetImp.getImageStack();
-        for (int channel = 1; channel <= targetImp.getNChannels(); channel++) {
-          for (int slice = 1; slice <= targetImp.getNSlices(); slice++) {
-            final int index = targetImp.getStackIndex(channel, slice, frame);
-            final ImageProcessor ip = stack.getProcessor(index);
-            AlignImages_PlugIn.translateProcessor(interpolationMethod, ip, align.getLastXOffset(),
-                align.getLastYOffset(), clipOutput);
+    final ExecutorService executor = Executors.newFixedThreadPool(Prefs.getThreads());
+    final LocalList<Future<?>> futures = new LocalList<>();
+
+    // All tiles are the same size. Initialise the aligner for each tile once if the reference is
+    // fixed.
+    final AlignImagesFft[] aligners = new AlignImagesFft[regions.length];
+    final ImageProcessor[] refComposites = new ImageProcessor[regions.length];
+    if (fixedReference) {
+      final FloatProcessor[] projections = createProjections(refImp, t1, projectionMethod);
+      for (int i = 0; i < regions.length; i++) {
+        final int tile = i;
+        futures.add(executor.submit(() -> {
+          refComposites[tile] = createComposite(projections, regions[tile], windowFunction);
+          aligners[tile] = new AlignImagesFft();
+          aligners[tile].initialiseReference(refComposites[tile], WindowMethod.NONE, true);
+        }));
+      }
+      ConcurrencyUtils.waitForCompletionUnchecked(futures);
+    }
+
+    final ImageStack stack = targetImp.getImageStack();
+    final double[][] offsets = new double[regions.length][];
+    final double[] scores = new double[regions.length];
+    final double[] variances = new double[regions.length];
+    final Ticker ticker = ImageJUtils.createTicker(frames, 1);
+    for (int frame = 1; frame <= frames; frame++) {
+      if (ImageJUtils.isInterrupted()) {
+        break;
+      }
+      if (selfAlign && frame == t1) {
+        ticker.tick();
+        continue;
+      }
+
+      // Estimate the shift of each tile
+      final FloatProcessor[] refProjections =
+          fixedReference ? null : createProjections(refImp, frame, projectionMethod);
+      final FloatProcessor[] projections = createProjections(targetImp, frame, projectionMethod);
+      final double[] frameVariances = new double[projections.length];
+      for (int channel = 0; channel < projections.length; channel++) {
+        frameVariances[channel] = getVariance(projections[channel], null);
+      }
+      futures.clear();
+      for (int i = 0; i < regions.length; i++) {
+        final int tile = i;
+        futures.add(executor.submit(() -> {
+          final ImageProcessor refComposite = fixedReference ? refComposites[tile]
+              : createComposite(refProjections, regions[tile], windowFunction);
+          AlignImagesFft align = aligners[tile];
+          if (align == null) {
+            align = new AlignImagesFft();
+            align.initialiseReference(refComposite, WindowMethod.NONE, true);
           }
-        }
+          final ImageProcessor composite =
+              createComposite(projections, regions[tile], windowFunction);
+          final double[] offset = align.align(composite, WindowMethod.NONE, bounds, subPixelMethod);
+          offsets[tile] = offset;
+          scores[tile] = AlignImages_PlugIn.calculateScore(refComposite, null, composite,
+              (int) Math.round(offset[0]), (int) Math.round(offset[1]));
+          // Use the channel with the most content
+          double variance = 0;
+          for (int channel = 0; channel < projections.length; channel++) {
+            variance = Math.max(variance,
+                getVariance(projections[channel], regions[tile]) / frameVariances[channel]);
+          }
+          variances[tile] = variance;
+        }));
+      }
+      ConcurrencyUtils.waitForCompletionUnchecked(futures);
 
-        if (ImageJUtils.isInterrupted()) {
-          return;
-        }
+      final int[] selected = selectTiles(scores, variances, minTileScore, MIN_TILE_VARIANCE);
+      if (selected.length < regions.length) {
+        IJ.log(String.format("%s: Frame %d: Excluded %d of %d tiles from the drift field", TITLE,
+            frame, regions.length - selected.length, regions.length));
       }
-    } else {
-      // For each time point
-      for (int frame = 1; frame <= targetImp.getNFrames(); frame++) {
-        IJ.showProgress(frame, targetImp.getNFrames());
-
-        // Build composite image for the timepoint
-        final ImageProcessor ip1 = createComposite(refImp, frame, projectionMethod, windowFunction);
-        final ImageProcessor ip2 =
-            createComposite(targetImp, frame, projectionMethod, windowFunction);
-
-        // Align the image
-        final ImagePlus imp1 = new ImagePlus("ip1", ip1);
-        final ImagePlus imp2 = new ImagePlus("ip2", ip2);
-        final AlignImagesFft align = new AlignImagesFft();
-        align.align(imp1, imp2, WindowMethod.NONE, bounds, subPixelMethod, interpolationMethod,
-            true, null, null, null, clipOutput);
-
-        // Transform original stack
-        final ImageStack stack = targetImp.getImageStack();
-        for (int channel = 1; channel <= targetImp.getNChannels(); channel++) {
-          for (int slice = 1; slice <= targetImp.getNSlices(); slice++) {
-            final int index = targetImp.getStackIndex(channel, slice, frame);
+      final DisplacementField field = fitField(selected, regions, offsets, degree, width, height);
+
+      // Warp each slice of the frame
+      futures.clear();
+      for (int channel = 1; channel <= targetImp.getNChannels(); channel++) {
+        for (int slice = 1; slice <= targetImp.getNSlices(); slice++) {
+          final int index = targetImp.getStackIndex(channel, slice, frame);
+          futures.add(executor.submit(() -> {
             final ImageProcessor ip = stack.getProcessor(index);
-            AlignImages_PlugIn.translateProcessor(interpolationMethod, ip, align.getLastXOffset(),
-                align.getLastYOffset(), clipOutput);
-          }
+            stack.setPixels(warpProcessor(interpolationMethod, ip, field, clipOutput).getPixels(),
+                index);
+          }));
         }
+      }
+      ConcurrencyUtils.waitForCompletionUnchecked(futures);
+      ticker.tick();
+    }
 
-        if (ImageJUtils.isInterrupted()) {
-          return;
-        }
+    executor.shutdown();
+    ImageJUtils.finished();
+  }
+
+  /**
+   * Select the tiles to use for the displacement field. Tiles are excluded if the correlation
+   * score is below the minimum or the relative variance is below the minimum (blank tiles). If no
+   * tiles remain then all tiles are selected.
+   *
+   * @param scores the correlation score of each tile
+   * @param variances the variance of each tile relative to the frame
+   * @param minScore the minimum score
+   * @param minVariance the minimum relative variance
+   * @return the indices of the selected tiles
+   */
+  @VisibleForTesting
+  static int[] selectTiles(double[] scores, double[] variances, double minScore,
+      double minVariance) {
+    final int[] selected = new int[scores.length];
+    int count = 0;
+    for (int i = 0; i < scores.length; i++) {
+      // Reject NaN scores and variances
+      if (scores[i] >= minScore && variances[i] >= minVariance) {
+        selected[count++] = i;
+      }
+    }
+    if (count == 0) {
+      for (int i = 0; i < scores.length; i++) {
+        selected[i] = i;
       }
+      return selected;
     }
+    return Arrays.copyOf(selected, count);
+  }
 
-    // Reset input images
-    refImp.setPosition(c1, z1, t1);
-    targetImp.setPosition(c2, z2, t2);
-    targetImp.updateAndDraw();
+  /**
+   * Fit the displacement field to the selected tiles. If the fit is singular (e.g. the selected
+   * tile centres are collinear) then the field is the mean shift of the selected tiles.
+   *
+   * @param selected the indices of the selected tiles
+   * @param regions the regions
+   * @param offsets the shift of each region
+   * @param degree the polynomial degree (0, 1 or 2)
+   * @param width the image width
+   * @param height the image height
+   * @return the displacement field
+   */
+  private static DisplacementField fitField(int[] selected, Rectangle[] regions,
+      double[][] offsets, int degree, int width, int height) {
+    final Rectangle[] selectedRegions = new Rectangle[selected.length];
+    final double[][] selectedOffsets = new double[selected.length][];
+    for (int i = 0; i < selected.length; i++) {
+      selectedRegions[i] = regions[selected[i]];
+      selectedOffsets[i] = offsets[selected[i]];
+    }
+    try {
+      return DisplacementField.fit(selectedRegions, selectedOffsets, degree, width, height);
+    } catch (final SingularMatrixException ex) {
+      return DisplacementField.fit(selectedRegions, selectedOffsets, 0, width, height);
+    }
+  }
+
+  /**
+   * Gets the variance of the pixels in the region.
+   *
+   * @param fp the image
+   * @param region the region (can be null for the entire image)
+   * @return the variance
+   */
+  private static double getVariance(FloatProcessor fp, Rectangle region) {
+    final Rectangle r = region == null ? new Rectangle(fp.getWidth(), fp.getHeight()) : region;
+    final float[] pixels = (float[]) fp.getPixels();
+    double sum = 0;
+    double sumSq = 0;
+    for (int y = r.y; y < r.y + r.height; y++) {
+      for (int x = r.x, i = y * fp.getWidth() + r.x; x < r.x + r.width; x++, i++) {
+        sum += pixels[i];
+        sumSq += (double) pixels[i] * pixels[i];
+      }
+    }
+    final double n = (double) r.width * r.height;
+    return Math.max(0, (sumSq - sum * sum / n) / n);
+  }
+
+  /**
+   * Creates the tile regions. The image is divided into a grid of tiles. Each tile is enlarged by
+   * the overlap fraction and clipped to the image. All tiles have the same size.
+   *
+   * @param width the width
+   * @param height the height
+   * @param tilesX the number of tiles in x
+   * @param tilesY the number of tiles in y
+   * @param overlap the overlap fraction
+   * @return the regions
+   */
+  static Rectangle[] createTileRegions(int width, int height, int tilesX, int tilesY,
+      double overlap) {
+    final int nx = MathUtils.clip(1, width, tilesX);
+    final int ny = MathUtils.clip(1, height, tilesY);
+    final int tileWidth = Math.min(width, (int) Math.ceil((double) width / nx * (1 + overlap)));
+    final int tileHeight = Math.min(height, (int) Math.ceil((double) height / ny * (1 + overlap)));
+    final Rectangle[] regions = new Rectangle[nx * ny];
+    for (int j = 0, i = 0; j < ny; j++) {
+      final double cy = (j + 0.5) * height / ny;
+      final int y = MathUtils.clip(0, height - tileHeight, (int) Math.round(cy - tileHeight / 2.0));
+      for (int k = 0; k < nx; k++) {
+        final double cx = (k + 0.5) * width / nx;
+        final int x = MathUtils.clip(0, width - tileWidth, (int) Math.round(cx - tileWidth / 2.0));
+        regions[i++] = new Rectangle(x, y, tileWidth, tileHeight);
+      }
+    }
+    return regions;
+  }
+
+  /**
+   * Warp the image processor using the displacement field. The displacement at each pixel is
+   * applied in the same direction as a translation.
+   *
+   * @param interpolationMethod the interpolation method
+   * @param ip the image
+   * @param field the displacement field
+   * @param clipOutput Set to true to ensure the output image has the same max as the input. Applies
+   *        to bicubic interpolation
+   * @return New warped processor
+   */
+  @VisibleForTesting
+  static ImageProcessor warpProcessor(int interpolationMethod, ImageProcessor ip,
+      DisplacementField field, boolean clipOutput) {
+    final int width = ip.getWidth();
+    final int height = ip.getHeight();
+    double max = Double.POSITIVE_INFINITY;
+    if (interpolationMethod == ImageProcessor.BICUBIC && clipOutput) {
+      max = ImageStatistics.getStatistics(ip, Measurements.MIN_MAX, null).max;
+    }
+    ip.setInterpolationMethod(interpolationMethod);
+    final ImageProcessor out = ip.createProcessor(width, height);
+    // The polynomial is separable: precompute the powers of each column and row coordinate
+    final double[][] powersX = field.getPowersX(width);
+    final double[][] powersY = field.getPowersY(height);
+    final double[] rowX = new double[field.getNumberOfTerms()];
+    final double[] rowY = new double[rowX.length];
+    for (int y = 0; y < height; y++) {
+      field.getRowCoefficients(powersY[y], rowX, rowY);
+      for (int x = 0; x < width; x++) {
+        final double xs = x - field.evaluate(rowX, powersX[x]);
+        final double ys = y - field.evaluate(rowY, powersX[x]);
+        if (xs < 0 || xs > width - 1 || ys < 0 || ys > height - 1) {
+          continue;
+        }
+        double value;
+        if (interpolationMethod == ImageProcessor.NONE) {
+          value = ip.getf((int) Math.round(xs), (int) Math.round(ys));
+        } else {
+          value = ip.getInterpolatedPixel(xs, ys);
+        }
+        out.putPixelValue(x, y, Math.min(max, value));
+      }
+    }
+    return out;
   }
 
   /**
@@ -358,10 +703,27 @@ public class AlignStacks_PlugIn implements PlugIn {
 
   private static ImageProcessor createComposite(ImagePlus imp, int frame, int projectionMethod,
       WindowMethod windowFunction) {
+    return createComposite(createProjections(imp, frame, projectionMethod), null, windowFunction);
+  }
+
+  private static FloatProcessor[] createProjections(ImagePlus imp, int frame,
+      int projectionMethod) {
     // Extract the channels using the specified projection method
-    final FloatProcessor[] tiles = new FloatProcessor[imp.getNChannels()];
+    final FloatProcessor[] projections = new FloatProcessor[imp.getNChannels()];
     for (int channel = 1; channel <= imp.getNChannels(); channel++) {
-      tiles[channel - 1] = extractTile(imp, frame, channel, projectionMethod);
+      projections[channel - 1] = extractTile(imp, frame, channel, projectionMethod);
+    }
+    return projections;
+  }
+
+  private static ImageProcessor createComposite(FloatProcessor[] projections, Rectangle region,
+      WindowMethod windowFunction) {
+    final int channels = projections.length;
+    final FloatProcessor[] tiles = new FloatProcessor[channels];
+    for (int channel = 1; channel <= channels; channel++) {
+      // The projections are shared so crop to a new processor before modifying
+      tiles[channel - 1] = region == null ? projections[channel - 1]
+          : crop(projections[channel - 1], region);
       tiles[channel - 1] = AlignImagesFft.applyWindowSeparable(tiles[channel - 1], windowFunction);
 
       // Normalise so each image contributes equally to the alignment
@@ -369,8 +731,8 @@ public class AlignStacks_PlugIn implements PlugIn {
     }
 
     // Build a composite image
-    final int w = imp.getWidth();
-    final int h = imp.getHeight();
+    final int w = tiles[0].getWidth();
+    final int h = tiles[0].getHeight();
 
     // Calculate total dimensions by tiling always along the smallest dimension
     // to produce the smallest possible output image.
@@ -379,20 +741,20 @@ public class AlignStacks_PlugIn implements PlugIn {
     int horizontalTiles = 1;
     int verticalTiles = 1;
     do {
-      while (w2 <= h2 && horizontalTiles * verticalTiles < imp.getNChannels()) {
+      while (w2 <= h2 && horizontalTiles * verticalTiles < channels) {
         horizontalTiles++;
         w2 += w;
       }
-      while (h2 <= w2 && horizontalTiles * verticalTiles < imp.getNChannels()) {
+      while (h2 <= w2 && horizontalTiles * verticalTiles < channels) {
         verticalTiles++;
         h2 += h;
       }
-    } while (horizontalTiles * verticalTiles < imp.getNChannels());
+    } while (horizontalTiles * verticalTiles < channels);
 
     // Create output composite
     final FloatProcessor ip = new FloatProcessor(w2, h2);
 
-    for (int channel = 1; channel <= imp.getNChannels(); channel++) {
+    for (int channel = 1; channel <= channels; channel++) {
       final int x = (channel - 1) % horizontalTiles;
       final int y = (channel - 1) / horizontalTiles;
 
@@ -402,9 +764,28 @@ public class AlignStacks_PlugIn implements PlugIn {
     return ip;
   }
 
+  private static FloatProcessor crop(FloatProcessor fp, Rectangle region) {
+    final float[] pixels = (float[]) fp.getPixels();
+    final float[] cropped = new float[region.width * region.height];
+    for (int y = 0; y < region.height; y++) {
+      System.arraycopy(pixels, (region.y + y) * fp.getWidth() + region.x, cropped,
+          y * region.width, region.width);
+    }
+    return new FloatProcessor(region.width, region.height, cropped);
+  }
+
   private static FloatProcessor extractTile(ImagePlus imp, int frame, int channel,
       int projectionMethod) {
-    return ImageJUtils.extractTile(imp, frame, channel, projectionMethod).toFloat(1, null);
+    // Collect the slices without changing the image position so this is thread-safe
+    final ImageStack stack = imp.getImageStack();
+    final ImageStack tile = new ImageStack(imp.getWidth(), imp.getHeight());
+    for (int slice = 1; slice <= imp.getNSlices(); slice++) {
+      tile.addSlice(null, stack.getPixels(imp.getStackIndex(channel, slice, frame)));
+    }
+    final ZProjector projector = new ZProjector(new ImagePlus(null, tile));
+    projector.setMethod(projectionMethod);
+    projector.doProjection();
+    return projector.getProjection().getProcessor().toFloat(1, null);
   }
 
   /**
@@ -455,4 +836,233 @@ public class AlignStacks_PlugIn implements PlugIn {
   public static void selfAlign() {
     new AlignStacks_PlugIn().run(SELF_ALIGN);
   }
+
+  /**
+   * A smooth displacement field defined by a polynomial in x and y fit to the tile shifts.
+   *
+   * <p>The polynomial uses the terms u<sup>a</sup>v<sup>b</sup> with a + b no more than the degree.
+   * A term is only used if there are more than a distinct tile centres in x and more than b
+   * distinct tile centres in y. For a grid of tiles this ensures the fit has a unique solution.
+   */
+  @VisibleForTesting
+  static class DisplacementField {
+    private final int[][] exponents;
+    private final double[] coeffX;
+    private final double[] coeffY;
+    private final double scaleX;
+    private final double scaleY;
+
+    DisplacementField(int[][] exponents, double[] coeffX, double[] coeffY, int width,
+        int height) {
+      this.exponents = exponents;
+      this.coeffX = coeffX;
+      this.coeffY = coeffY;
+      scaleX = 1.0 / width;
+      scaleY = 1.0 / height;
+    }
+
+    /**
+     * Fit the displacement field to the shifts at the centre of each region. The polynomial terms
+     * are limited by the number of distinct region centres.
+     *
+     * @param regions the regions
+     * @param offsets the shift of each region
+     * @param degree the polynomial degree (0, 1 or 2)
+     * @param width the image width
+     * @param height the image height
+     * @return the displacement field
+     */
+    static DisplacementField fit(Rectangle[] regions, double[][] offsets, int degree, int width,
+        int height) {
+      final int[][] exponents = getExponents(regions, degree);
+      final double[][] design = new double[regions.length][];
+      final double[] dx = new double[regions.length];
+      final double[] dy = new double[regions.length];
+      for (int i = 0; i < regions.length; i++) {
+        design[i] = getTerms(exponents, regions[i].getCenterX() / width - 0.5,
+            regions[i].getCenterY() / height - 0.5);
+        dx[i] = offsets[i][0];
+        dy[i] = offsets[i][1];
+      }
+      final DecompositionSolver solver =
+          new QRDecomposition(new Array2DRowRealMatrix(design, false)).getSolver();
+      return new DisplacementField(exponents,
+          solver.solve(new ArrayRealVector(dx, false)).toArray(),
+          solver.solve(new ArrayRealVector(dy, false)).toArray(), width, height);
+    }
+
+    /**
+     * Gets the exponents {a, b} of the polynomial terms u<sup>a</sup>v<sup>b</sup> that can be fit
+     * using the region centres. The number of terms is limited by the number of regions; lower
+     * order terms are preferred.
+     *
+     * @param regions the regions
+     * @param degree the polynomial degree (0, 1 or 2)
+     * @return the exponents
+     */
+    static int[][] getExponents(Rectangle[] regions, int degree) {
+      final int nx = countDistinct(regions, true);
+      final int ny = countDistinct(regions, false);
+      final ArrayList<int[]> exponents = new ArrayList<>();
+      for (int order = 0; order <= degree; order++) {
+        for (int a = order; a >= 0; a--) {
+          final int b = order - a;
+          if (a < nx && b < ny && exponents.size() < regions.length) {
+            exponents.add(new int[] {a, b});
+          }
+        }
+      }
+      return exponents.toArray(new int[0][]);
+    }
+
+    /**
+     * Gets the number of polynomial terms for the degree.
+     *
+     * @param degree the degree
+     * @return the number of terms
+     */
+    static int getNumberOfTerms(int degree) {
+      return (degree + 1) * (degree + 2) / 2;
+    }
+
+    private static int countDistinct(Rectangle[] regions, boolean xdim) {
+      final double[] centres = new double[regions.length];
+      for (int i = 0; i < regions.length; i++) {
+        centres[i] = xdim ? regions[i].getCenterX() : regions[i].getCenterY();
+      }
+      Arrays.sort(centres);
+      int count = centres.length == 0 ? 0 : 1;
+      for (int i = 1; i < centres.length; i++) {
+        if (centres[i] != centres[i - 1]) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    private static double[] getTerms(int[][] exponents, double u, double v) {
+      final int max = getMaxExponent(exponents);
+      final double[] pu = getPowers(u, max);
+      final double[] pv = getPowers(v, max);
+      final double[] terms = new double[exponents.length];
+      for (int i = 0; i < terms.length; i++) {
+        terms[i] = pu[exponents[i][0]] * pv[exponents[i][1]];
+      }
+      return terms;
+    }
+
+    /**
+     * Gets the powers of the value: {1, x, x^2, ..., x^max}.
+     *
+     * @param x the value
+     * @param max the maximum exponent
+     * @return the powers
+     */
+    private static double[] getPowers(double x, int max) {
+      final double[] powers = new double[max + 1];
+      powers[0] = 1;
+      for (int i = 1; i <= max; i++) {
+        powers[i] = powers[i - 1] * x;
+      }
+      return powers;
+    }
+
+    private static int getMaxExponent(int[][] exponents) {
+      int max = 0;
+      for (final int[] e : exponents) {
+        max = Math.max(max, Math.max(e[0], e[1]));
+      }
+      return max;
+    }
+
+    /**
+     * Gets the powers of the normalised x coordinate for each column.
+     *
+     * @param width the width
+     * @return the powers (indexed by column then exponent)
+     */
+    double[][] getPowersX(int width) {
+      final int max = getMaxExponent(exponents);
+      final double[][] powers = new double[width][];
+      for (int x = 0; x < width; x++) {
+        powers[x] = getPowers(x * scaleX - 0.5, max);
+      }
+      return powers;
+    }
+
+    /**
+     * Gets the powers of the normalised y coordinate for each row.
+     *
+     * @param height the height
+     * @return the powers (indexed by row then exponent)
+     */
+    double[][] getPowersY(int height) {
+      final int max = getMaxExponent(exponents);
+      final double[][] powers = new double[height][];
+      for (int y = 0; y < height; y++) {
+        powers[y] = getPowers(y * scaleY - 0.5, max);
+      }
+      return powers;
+    }
+
+    /**
+     * Gets the coefficients of each term for a row, i.e. the coefficient multiplied by the y
+     * component of the term. The field can then be evaluated using
+     * {@link #evaluate(double[], double[])} with the powers of the x coordinate.
+     *
+     * @param powersY the powers of the row y coordinate
+     * @param rowX the row coefficients for the x shift (output)
+     * @param rowY the row coefficients for the y shift (output)
+     */
+    void getRowCoefficients(double[] powersY, double[] rowX, double[] rowY) {
+      for (int i = 0; i < exponents.length; i++) {
+        final double pv = powersY[exponents[i][1]];
+        rowX[i] = coeffX[i] * pv;
+        rowY[i] = coeffY[i] * pv;
+      }
+    }
+
+    /**
+     * Evaluate the field using the row coefficients and the powers of the x coordinate.
+     *
+     * @param row the row coefficients
+     * @param powersX the powers of the x coordinate
+     * @return the value
+     */
+    double evaluate(double[] row, double[] powersX) {
+      double value = 0;
+      for (int i = 0; i < row.length; i++) {
+        value += row[i] * powersX[exponents[i][0]];
+      }
+      return value;
+    }
+
+    private double evaluate(double[] coeff, double u, double v) {
+      final int max = getMaxExponent(exponents);
+      final double[] pu = getPowers(u, max);
+      final double[] pv = getPowers(v, max);
+      double value = 0;
+      for (int i = 0; i < coeff.length; i++) {
+        value += coeff[i] * pu[exponents[i][0]] * pv[exponents[i][1]];
+      }
+      return value;
+    }
+
+    /**
+     * Gets the number of polynomial terms.
+     *
+     * @return the number of terms
+     */
+    int getNumberOfTerms() {
+      return exponents.length;
+    }
+
+    double getX(double x, double y) {
+      return evaluate(coeffX, x * scaleX - 0.5, y * scaleY - 0.5);
+    }
+
+    double getY(double x, double y) {
+      return evaluate(coeffY, x * scaleX - 0.5, y * scaleY - 0.5);
+    }
+  }
 }
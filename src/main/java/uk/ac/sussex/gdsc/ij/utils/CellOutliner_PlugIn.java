@@ -27,6 +27,7 @@ package uk.ac.sussex.gdsc.ij.utils;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
@@ -55,6 +56,11 @@ import java.awt.Rectangle;
 import java.awt.image.IndexColorModel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.math3.analysis.MultivariateVectorFunction;
 import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
@@ -68,7 +74,10 @@ import org.apache.commons.math3.optim.SimplePointChecker;
 import org.apache.commons.math3.util.Precision;
 import uk.ac.sussex.gdsc.core.annotation.Nullable;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
+import uk.ac.sussex.gdsc.core.logging.Ticker;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
 import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 
 /**
@@ -94,6 +103,9 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
 
   private static final String TITLE = "Cell Outliner";
 
+  /** The size of the tiles used to compute the membrane filter responses for the whole image. */
+  private static final int TILE_SIZE = 512;
+
   private boolean moreOptions;
   private boolean buildMaskOutput;
   private boolean processAllFrames;
@@ -108,14 +120,11 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
 
   private Int2ObjectOpenHashMap<float[]> kernels;
   private Int2ObjectOpenHashMap<FloatProcessor> convolved;
+  private Int2ObjectOpenHashMap<FloatProcessor> wholeImageConvolved;
+  private int wholeImageSlice;
   private int halfWidth;
   private double maxDistance2;
 
-  private int maxx;
-  private int xlimit;
-  private int ylimit;
-  private int[] offset;
-
   /** The current settings for the plugin instance. */
   private Settings settings;
 
@@ -137,6 +146,7 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
     int iterations = 3;
     boolean ellipticalFit;
     int dilate;
+    boolean wholeImage;
 
     /**
      * Default constructor.
@@ -161,6 +171,7 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
       iterations = source.iterations;
       ellipticalFit = source.ellipticalFit;
       dilate = source.dilate;
+      wholeImage = source.wholeImage;
     }
 
     /**
@@ -227,6 +238,7 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
     gd.addSlider("Iterations", 1, 10, settings.iterations);
     gd.addCheckbox("Show_elliptical_fit", settings.ellipticalFit);
     gd.addSlider("Dilate", 0, 5, settings.dilate);
+    gd.addCheckbox("Whole_image", settings.wholeImage);
 
     if (moreOptions) {
       gd.addCheckbox("Debug", debug);
@@ -279,6 +291,7 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
     settings.iterations = (int) gd.getNextNumber();
     settings.ellipticalFit = gd.getNextBoolean();
     settings.dilate = (int) gd.getNextNumber();
+    settings.wholeImage = gd.getNextBoolean();
     if (moreOptions) {
       debug = gd.getNextBoolean();
     }
@@ -364,39 +377,74 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
       final ImageStack stack = new ImageStack(w, h, size);
       final ImageStack inputStack = this.imp.getImageStack();
 
-      int totalSlices = 1;
+      // Collect the slices to process
+      final ImageProcessor[] inputs = new ImageProcessor[size];
+      final String[] labels = new String[size];
+      int totalSlices = 0;
       for (final int frame : frames) {
         for (final int slice : slices) {
-          final String label = "t" + frame + "z" + slice;
-          IJ.showStatus("Processing " + label);
-          IJ.showProgress(totalSlices - 1, size);
-
-          final ImageProcessor maskIp =
-              (useShort) ? new ShortProcessor(w, h) : new ByteProcessor(w, h);
+          labels[totalSlices] = "t" + frame + "z" + slice;
+          inputs[totalSlices] = inputStack.getProcessor(imp.getStackIndex(channel, slice, frame));
+          totalSlices++;
+        }
+      }
 
-          final int index = imp.getStackIndex(channel, slice, frame);
-          final ImageProcessor ip = inputStack.getProcessor(index);
+      // The kernels are shared by all slices
+      initialiseKernels();
+      if (resetConvolved) {
+        convolved = null;
+        wholeImageConvolved = null;
+      }
 
-          if (resetConvolved) {
-            convolved = null;
-          }
-          final PolygonRoi[] cells = findCells(ip);
+      // Process slices in parallel. The remaining threads are used within each slice.
+      IJ.showStatus("Processing " + size + " slice" + (size == 1 ? "" : "s"));
+      final int threadCount = MathUtils.min(Prefs.getThreads(), size);
+      final int sliceThreads = Math.max(1, Prefs.getThreads() / threadCount);
+      final Ticker ticker = ImageJUtils.createTicker(size, threadCount);
+      final AtomicInteger nextSlice = new AtomicInteger();
+      final AtomicBoolean stop = new AtomicBoolean();
+      final Runnable worker = () -> {
+        for (int i = nextSlice.getAndIncrement(); i < size && !stop.get();
+            i = nextSlice.getAndIncrement()) {
+          final PolygonRoi[] cells = findCells(inputs[i], !resetConvolved, sliceThreads);
           if (cells == null) {
-            return;
+            stop.set(true);
+            break;
           }
 
-          for (int i = 0; i < cells.length; i++) {
-            final PolygonRoi cell = cells[i];
+          final ImageProcessor maskIp =
+              (useShort) ? new ShortProcessor(w, h) : new ByteProcessor(w, h);
+          for (int j = 0; j < cells.length; j++) {
+            final PolygonRoi cell = cells[j];
             final Rectangle b = cell.getBounds();
             cell.setLocation(0, 0); // Remove the cell offset to allow it to be created
-            final ByteProcessor cellIp = createFilledCell(b.width, b.height, cell, i + 1);
+            final ByteProcessor cellIp = createFilledCell(b.width, b.height, cell, j + 1);
             maskIp.copyBits(cellIp, b.x, b.y, Blitter.COPY_ZERO_TRANSPARENT);
           }
 
-          stack.setPixels(maskIp.getPixels(), totalSlices);
-          stack.setSliceLabel(label, totalSlices);
-          totalSlices++;
+          stack.setPixels(maskIp.getPixels(), i + 1);
+          stack.setSliceLabel(labels[i], i + 1);
+          ticker.tick();
+        }
+      };
+      if (threadCount == 1) {
+        worker.run();
+      } else {
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+          futures.add(executor.submit(worker));
         }
+        executor.shutdown();
+        ConcurrencyUtils.waitForCompletionUnchecked(futures);
+      }
+      ImageJUtils.finished();
+
+      // The final run is complete so the responses are not required
+      convolved = null;
+      wholeImageConvolved = null;
+      if (stop.get()) {
+        return;
       }
 
       // Create the output image
@@ -420,7 +468,8 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
       overlay.setStrokeColor(Color.green);
       overlay.setFillColor(null);
 
-      final PolygonRoi[] cells = findCells(inputProcessor);
+      initialiseKernels();
+      final PolygonRoi[] cells = findCells(inputProcessor, true, Prefs.getThreads());
       ImageJUtils.finished();
 
       if (cells == null) {
@@ -442,35 +491,58 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
     return s;
   }
 
-  @Nullable
-  private PolygonRoi[] findCells(ImageProcessor inputProcessor) {
-    // Limit processing to where it is needed
-    final Rectangle bounds = createBounds(inputProcessor, xpoints, ypoints, getCellRange());
-    ImageProcessor ip = inputProcessor.duplicate();
-    ip.setRoi(bounds);
-    ip = ip.crop();
-
+  /**
+   * Initialise the convolution kernels if they have been reset.
+   */
+  private void initialiseKernels() {
     if (kernels == null) {
       kernels = createKernels();
       convolved = null;
+      wholeImageConvolved = null;
     }
-    if (convolved == null) {
-      convolved = convolveImage(ip, kernels);
-      // showConvolvedImages(convolved)
-    }
+  }
 
-    if (ImageJUtils.isInterrupted()) {
-      return null;
+  /**
+   * Find the cells around each point.
+   *
+   * <p>The membrane filter responses are computed for the region around the points. The responses
+   * can be cached in the plugin instance for repeat analysis of the same image. In whole image mode
+   * the responses for the entire image are computed; these can be cached in the plugin instance for
+   * any points in the same image slice.
+   *
+   * <p>The kernels must be initialised.
+   *
+   * @param inputProcessor the input processor
+   * @param cacheResponses set to true to cache the responses in the plugin instance
+   * @param threads the number of threads
+   * @return the cells (or null if interrupted)
+   */
+  @Nullable
+  private PolygonRoi[] findCells(ImageProcessor inputProcessor, boolean cacheResponses,
+      int threads) {
+    final Rectangle bounds;
+    final Int2ObjectOpenHashMap<FloatProcessor> responses;
+    if (settings.wholeImage) {
+      bounds = new Rectangle(inputProcessor.getWidth(), inputProcessor.getHeight());
+      responses = getWholeImageResponses(inputProcessor, cacheResponses, threads);
+    } else if (cacheResponses && convolved != null) {
+      bounds = createBounds(inputProcessor, xpoints, ypoints, getCellRange());
+      responses = convolved;
+    } else {
+      // Limit processing to where it is needed
+      bounds = createBounds(inputProcessor, xpoints, ypoints, getCellRange());
+      ImageProcessor ip = inputProcessor.duplicate();
+      ip.setRoi(bounds);
+      ip = ip.crop();
+      responses = convolveImage(ip, kernels, threads);
+      // showConvolvedImages(responses)
+      if (cacheResponses) {
+        convolved = responses;
+      }
     }
 
-    FloatProcessor combinedIp = null;
-    Blitter blitter = null;
-    ImagePlus combinedImp = null;
-
-    if (debug) {
-      combinedIp = new FloatProcessor(ip.getWidth(), ip.getHeight());
-      blitter = new FloatBlitter(combinedIp);
-      combinedImp = displayImage(combinedIp, "Combined edge projection");
+    if (responses == null || ImageJUtils.isInterrupted()) {
+      return null;
     }
 
     final PolygonRoi[] cells = new PolygonRoi[xpoints.length];
@@ -479,114 +551,164 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
       IJ.showStatus("Finding cells ...");
     }
 
-    // Process each point
-    for (int n = 0; n < xpoints.length; n++) {
-      if (!this.buildMaskOutput) {
+    if (debug) {
+      // Process each point in turn to show the debug images
+      final ImagePlus combinedImp = displayImage(
+          new FloatProcessor(bounds.width, bounds.height), "Combined edge projection");
+      for (int n = 0; n < xpoints.length; n++) {
         IJ.showProgress(n, xpoints.length);
-      }
-
-      final int cx = xpoints[n] - bounds.x;
-      final int cy = ypoints[n] - bounds.y;
-
-      // Restrict bounds using the cell radius and tolerance
-      final Rectangle pointBounds = createBounds(ip, cx, cy, cx, cy, getCellRange());
-
-      // Calculate the angle
-      final FloatProcessor angle = createAngleProcessor(cx, cy, pointBounds);
-
-      if (ImageJUtils.isInterrupted()) {
-        return null;
-      }
-      final FloatProcessor edgeProjection = computeEdgeProjection(convolved, pointBounds, angle);
-
-      // Initialise the edge as a circle.
-      PolygonRoi cell = null;
-      double[] params = {cx - pointBounds.x, cy - pointBounds.y, settings.cellRadius,
-          settings.cellRadius, settings.cellRadius, 0};
-      final double range = settings.cellRadius * 0.9;
-
-      // Iterate to find the best cell outline
-      boolean returnEllipticalFit = settings.ellipticalFit;
-      for (int iter = 0; iter < settings.iterations; iter++) {
-        // Use the current elliptical edge to define the weights for the edge projection
-        final FloatProcessor weights = createWeightMap(pointBounds, params, range);
-        if (ImageJUtils.isInterrupted() || weights == null) {
+        cells[n] = findCell(n, bounds, responses, combinedImp);
+        if (cells[n] == null) {
           return null;
         }
-
-        if (debug) {
-          displayImage(weights, "Weight map");
+      }
+      return cells;
+    }
+
+    // Process each point. Points are independent and share the responses.
+    final int size = xpoints.length;
+    final int threadCount = MathUtils.clip(1, size, threads);
+    final Ticker ticker =
+        buildMaskOutput ? Ticker.getDefaultInstance() : ImageJUtils.createTicker(size, threadCount);
+    final AtomicInteger nextPoint = new AtomicInteger();
+    final AtomicBoolean stop = new AtomicBoolean();
+    final Runnable worker = () -> {
+      for (int n = nextPoint.getAndIncrement(); n < size && !stop.get();
+          n = nextPoint.getAndIncrement()) {
+        cells[n] = findCell(n, bounds, responses, null);
+        if (cells[n] == null) {
+          stop.set(true);
         }
+        ticker.tick();
+      }
+    };
+    if (threadCount == 1) {
+      worker.run();
+    } else {
+      final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+      final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+      for (int i = 0; i < threadCount; i++) {
+        futures.add(executor.submit(worker));
+      }
+      executor.shutdown();
+      ConcurrencyUtils.waitForCompletionUnchecked(futures);
+    }
+    return stop.get() ? null : cells;
+  }
 
-        final FloatProcessor weightedEdgeProjection = applyWeights(edgeProjection, weights);
+  /**
+   * Find the cell around the point.
+   *
+   * @param n the point index
+   * @param bounds the bounds of the responses within the image
+   * @param responses the membrane filter responses
+   * @param combinedImp the combined edge projection debug image (can be null)
+   * @return the cell (or null if interrupted)
+   */
+  @Nullable
+  private PolygonRoi findCell(int n, Rectangle bounds,
+      Int2ObjectOpenHashMap<FloatProcessor> responses, ImagePlus combinedImp) {
+    final int cx = xpoints[n] - bounds.x;
+    final int cy = ypoints[n] - bounds.y;
 
-        if (debug) {
-          blitter.copyBits(weightedEdgeProjection, pointBounds.x, pointBounds.y, Blitter.ADD);
-          combinedIp.resetMinAndMax();
-          combinedImp.updateAndDraw();
-          displayImage(weightedEdgeProjection, "Weighted edge projection");
-        }
+    // Restrict bounds using the cell radius and tolerance
+    final Rectangle pointBounds =
+        createBounds(bounds.width, bounds.height, cx, cy, cx, cy, getCellRange());
 
-        cell = findPolygonalCell((int) Math.round(params[0]), (int) Math.round(params[1]),
-            weightedEdgeProjection, angle);
+    // Calculate the angle
+    final FloatProcessor angle = createAngleProcessor(cx, cy, pointBounds);
 
-        final FloatProcessor weightMap = weightedEdgeProjection; // weights
-        final double[] newParams = fitPolygonalCell(cell, params, weightMap);
+    if (ImageJUtils.isInterrupted()) {
+      return null;
+    }
+    final FloatProcessor edgeProjection = computeEdgeProjection(responses, pointBounds, angle);
 
-        if (newParams == null) {
-          returnEllipticalFit = false;
-          break;
-        }
+    // Initialise the edge as a circle.
+    PolygonRoi cell = null;
+    double[] params = {cx - pointBounds.x, cy - pointBounds.y, settings.cellRadius,
+        settings.cellRadius, settings.cellRadius, 0};
+    final double range = settings.cellRadius * 0.9;
 
-        // Set the parameters for the weight map
-        params = newParams;
+    // Iterate to find the best cell outline
+    boolean returnEllipticalFit = settings.ellipticalFit;
+    for (int iter = 0; iter < settings.iterations; iter++) {
+      // Use the current elliptical edge to define the weights for the edge projection
+      final FloatProcessor weights = createWeightMap(pointBounds, params, range);
+      if (ImageJUtils.isInterrupted() || weights == null) {
+        return null;
       }
 
-      assert cell != null : "No cell";
+      if (debug) {
+        displayImage(weights, "Weight map");
+      }
+
+      final FloatProcessor weightedEdgeProjection = applyWeights(edgeProjection, weights);
 
-      // Return either the fitted elliptical cell or the last polygon outline
-      if (returnEllipticalFit) {
-        final EllipticalCell e = new EllipticalCell();
-        final FloatPolygon ellipse = e.drawEllipse(params);
-        cell = new PolygonRoi(ellipse.xpoints, ellipse.ypoints, ellipse.npoints, Roi.POLYGON);
+      if (debug) {
+        final FloatProcessor combinedIp = (FloatProcessor) combinedImp.getProcessor();
+        new FloatBlitter(combinedIp).copyBits(weightedEdgeProjection, pointBounds.x,
+            pointBounds.y, Blitter.ADD);
+        combinedIp.resetMinAndMax();
+        combinedImp.updateAndDraw();
+        displayImage(weightedEdgeProjection, "Weighted edge projection");
       }
 
-      PolygonRoi finalCell = cell;
-      if (settings.dilate > 0) {
-        // Dilate the cell and then trace the new outline
-        final ByteProcessor bp = new ByteProcessor(pointBounds.width, pointBounds.height);
-        bp.setColor(CELL & 0xff);
-        bp.draw(cell);
-        for (int i = 0; i < settings.dilate; i++) {
-          dilate(bp);
-        }
-        cell = traceOutline(bp);
-        if (cell != null) {
-          finalCell = cell;
-        }
+      cell = findPolygonalCell((int) Math.round(params[0]), (int) Math.round(params[1]),
+          weightedEdgeProjection, angle);
+
+      final FloatProcessor weightMap = weightedEdgeProjection; // weights
+      final double[] newParams = fitPolygonalCell(cell, params, weightMap);
+
+      if (newParams == null) {
+        returnEllipticalFit = false;
+        break;
       }
 
-      final Rectangle pos = finalCell.getBounds();
+      // Set the parameters for the weight map
+      params = newParams;
+    }
 
-      // Does not work in IJ 1.46+
-      // finalCell.setLocation(pos.x + bounds.x + pointBounds.x, pos.y + bounds.y + pointBounds.y)
+    assert cell != null : "No cell";
 
-      // Create a new Polygon with the correct coordinates. This is required since IJ 1.46
-      // since setting the location is not passed through when drawing an overlay
-      final int[] xCoords = finalCell.getXCoordinates();
-      final int[] yCoords = finalCell.getYCoordinates();
-      final int npoints = finalCell.getNCoordinates();
-      for (int i = 0; i < npoints; i++) {
-        xCoords[i] += pos.x + bounds.x + pointBounds.x;
-        yCoords[i] += pos.y + bounds.y + pointBounds.y;
+    // Return either the fitted elliptical cell or the last polygon outline
+    if (returnEllipticalFit) {
+      final EllipticalCell e = new EllipticalCell();
+      final FloatPolygon ellipse = e.drawEllipse(params);
+      cell = new PolygonRoi(ellipse.xpoints, ellipse.ypoints, ellipse.npoints, Roi.POLYGON);
+    }
+
+    PolygonRoi finalCell = cell;
+    if (settings.dilate > 0) {
+      // Dilate the cell and then trace the new outline
+      final ByteProcessor bp = new ByteProcessor(pointBounds.width, pointBounds.height);
+      bp.setColor(CELL & 0xff);
+      bp.draw(cell);
+      final OutlineTracer tracer = new OutlineTracer(bp);
+      for (int i = 0; i < settings.dilate; i++) {
+        tracer.dilate(bp);
+      }
+      cell = tracer.traceOutline(bp);
+      if (cell != null) {
+        finalCell = cell;
       }
+    }
 
-      finalCell = new PolygonRoi(xCoords, yCoords, npoints, Roi.POLYGON);
+    final Rectangle pos = finalCell.getBounds();
 
-      cells[n] = finalCell;
+    // Does not work in IJ 1.46+
+    // finalCell.setLocation(pos.x + bounds.x + pointBounds.x, pos.y + bounds.y + pointBounds.y)
+
+    // Create a new Polygon with the correct coordinates. This is required since IJ 1.46
+    // since setting the location is not passed through when drawing an overlay
+    final int[] xCoords = finalCell.getXCoordinates();
+    final int[] yCoords = finalCell.getYCoordinates();
+    final int npoints = finalCell.getNCoordinates();
+    for (int i = 0; i < npoints; i++) {
+      xCoords[i] += pos.x + bounds.x + pointBounds.x;
+      yCoords[i] += pos.y + bounds.y + pointBounds.y;
     }
 
-    return cells;
+    return new PolygonRoi(xCoords, yCoords, npoints, Roi.POLYGON);
   }
 
   /**
@@ -730,15 +852,15 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
     }
 
     // Add the cell width, tolerance and kernel size to get the total required limits
-    return createBounds(ip, minx, miny, maxx, maxy, extra);
+    return createBounds(ip.getWidth(), ip.getHeight(), minx, miny, maxx, maxy, extra);
   }
 
-  private static Rectangle createBounds(ImageProcessor ip, int minx, int miny, int maxx, int maxy,
-      int extra) {
+  private static Rectangle createBounds(int width, int height, int minx, int miny, int maxx,
+      int maxy, int extra) {
     minx = Math.max(0, minx - extra);
     miny = Math.max(0, miny - extra);
-    maxx = Math.min(ip.getWidth() - 1, maxx + extra);
-    maxy = Math.min(ip.getHeight() - 1, maxy + extra);
+    maxx = Math.min(width - 1, maxx + extra);
+    maxy = Math.min(height - 1, maxy + extra);
     return new Rectangle(minx, miny, maxx - minx + 1, maxy - miny + 1);
   }
 
@@ -900,31 +1022,100 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
     fp.putPixelValue(x, y, value + weight);
   }
 
+  /**
+   * Convolve the image with each rotated kernel. The kernels are processed in parallel.
+   *
+   * @param ip the image
+   * @param kernels the kernels
+   * @param threads the number of threads
+   * @return the convolved images (or null if interrupted)
+   */
   private Int2ObjectOpenHashMap<FloatProcessor> convolveImage(ImageProcessor ip,
-      Int2ObjectOpenHashMap<float[]> kernels) {
-    final Int2ObjectOpenHashMap<FloatProcessor> newConvolved = new Int2ObjectOpenHashMap<>();
+      Int2ObjectOpenHashMap<float[]> kernels, int threads) {
+    if (!this.buildMaskOutput) {
+      IJ.showStatus("Convolving ...");
+    }
+    return new KernelBankConvolver(rotationAngles, kernels, settings.kernelWidth).convolve(ip,
+        threads);
+  }
 
-    // Convolve image with each
-    boolean stop = false;
-    for (int i = 0; i < rotationAngles.size(); i++) {
-      final int rotation = rotationAngles.getInt(i);
-      if (!this.buildMaskOutput) {
-        IJ.showStatus("Convolving " + rotation);
-      }
-      final float[] kernel = kernels.get(rotation);
-      final FloatProcessor fp =
-          (ip instanceof FloatProcessor) ? (FloatProcessor) ip.duplicate() : ip.toFloat(0, null);
-      fp.convolve(kernel, settings.kernelWidth, settings.kernelWidth);
-      newConvolved.put(rotation, fp);
-      if (ImageJUtils.isInterrupted()) {
-        stop = true;
-      }
+  /**
+   * Gets the membrane filter responses for the entire image. The responses can be cached in the
+   * plugin instance for reuse with any points in the current image slice. The cache is reset when
+   * the kernels change and is discarded at the end of the final run.
+   *
+   * @param ip the image
+   * @param cacheResponses set to true to cache the responses in the plugin instance
+   * @param threads the number of threads
+   * @return the responses (or null if interrupted)
+   */
+  private Int2ObjectOpenHashMap<FloatProcessor> getWholeImageResponses(ImageProcessor ip,
+      boolean cacheResponses, int threads) {
+    final int slice = imp.getCurrentSlice();
+    if (cacheResponses && wholeImageConvolved != null && wholeImageSlice == slice) {
+      return wholeImageConvolved;
+    }
+    final Int2ObjectOpenHashMap<FloatProcessor> responses = convolveTiled(ip, threads);
+    if (cacheResponses) {
+      wholeImageConvolved = responses;
+      wholeImageSlice = slice;
+    }
+    return responses;
+  }
+
+  /**
+   * Convolve the image with each rotated kernel. Large images are processed in tiles to limit the
+   * working memory of the convolution. Each tile is extended by half the kernel width so the
+   * result is the same as convolution of the entire image.
+   *
+   * @param ip the image
+   * @param threads the number of threads
+   * @return the convolved images (or null if interrupted)
+   */
+  private Int2ObjectOpenHashMap<FloatProcessor> convolveTiled(ImageProcessor ip, int threads) {
+    final int width = ip.getWidth();
+    final int height = ip.getHeight();
+    if (width <= TILE_SIZE && height <= TILE_SIZE) {
+      return convolveImage(ip, kernels, threads);
     }
-    if (!this.buildMaskOutput) {
-      // Convolver modifies the progress tracker
-      ImageJUtils.finished();
+
+    final FloatProcessor fp = KernelBankConvolver.toFloat(ip);
+    final Int2ObjectOpenHashMap<FloatProcessor> responses = new Int2ObjectOpenHashMap<>();
+    rotationAngles.forEach(rotation -> {
+      responses.put(rotation, new FloatProcessor(width, height));
+    });
+    final int border = settings.kernelWidth / 2;
+    final Rectangle imageBounds = new Rectangle(width, height);
+    for (int ty = 0; ty < height; ty += TILE_SIZE) {
+      for (int tx = 0; tx < width; tx += TILE_SIZE) {
+        final Rectangle tile = new Rectangle(tx, ty, Math.min(TILE_SIZE, width - tx),
+            Math.min(TILE_SIZE, height - ty));
+        final Rectangle region = new Rectangle(tile);
+        region.grow(border, border);
+        final Rectangle extended = region.intersection(imageBounds);
+        final FloatProcessor tileIp =
+            new FloatProcessor(extended.width, extended.height, crop(fp, extended));
+        final Int2ObjectOpenHashMap<FloatProcessor> tileResponses =
+            convolveImage(tileIp, kernels, threads);
+        if (tileResponses == null) {
+          return null;
+        }
+        // Copy the tile into the output
+        final int ox = tile.x - extended.x;
+        final int oy = tile.y - extended.y;
+        rotationAngles.forEach(rotation -> {
+          final float[] source = (float[]) tileResponses.get(rotation).getPixels();
+          final float[] target = (float[]) responses.get(rotation).getPixels();
+          for (int y = 0; y < tile.height; y++) {
+            System.arraycopy(source, (y + oy) * extended.width + ox, target,
+                (y + tile.y) * width + tile.x, tile.width);
+          }
+        });
+      }
     }
-    return stop ? null : newConvolved;
+    // Retain the range of the input as per convolution of the entire image
+    responses.values().forEach(response -> response.setMinAndMax(fp.getMin(), fp.getMax()));
+    return responses;
   }
 
   /**
@@ -990,13 +1181,13 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
     final float[][] stack = new float[rotationAngles.size()][];
     for (int i = 0; i < rotationAngles.size(); i++) {
       final int rotation = rotationAngles.getInt(i);
-      FloatProcessor fp = (FloatProcessor) convolved.get(rotation).duplicate();
-      fp.setRoi(pointBounds);
-      fp = (FloatProcessor) fp.crop();
+      // Crop directly from the shared response
+      final FloatProcessor response = convolved.get(rotation);
+      final float[] p = crop(response, pointBounds);
       if (settings.darkEdge) {
-        fp.invert();
+        // Invert using the display range of the entire response
+        invert(p, (float) response.getMin(), (float) response.getMax());
       }
-      final float[] p = (float[]) fp.getPixels();
 
       // Do a projection of membrane filters convolved with a filter roughly perpendicular to the
       // edge
@@ -1029,6 +1220,37 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
     return ip2;
   }
 
+  /**
+   * Crop the region from the image.
+   *
+   * @param fp the image
+   * @param bounds the bounds of the region
+   * @return the region pixels
+   */
+  private static float[] crop(FloatProcessor fp, Rectangle bounds) {
+    final float[] pixels = (float[]) fp.getPixels();
+    final float[] region = new float[bounds.width * bounds.height];
+    for (int y = 0; y < bounds.height; y++) {
+      System.arraycopy(pixels, (y + bounds.y) * fp.getWidth() + bounds.x, region,
+          y * bounds.width, bounds.width);
+    }
+    return region;
+  }
+
+  /**
+   * Invert the data using the range. This matches {@link FloatProcessor#invert()} for an image
+   * with the given display range.
+   *
+   * @param data the data
+   * @param min the minimum
+   * @param max the maximum
+   */
+  private static void invert(float[] data, float min, float max) {
+    for (int i = 0; i < data.length; i++) {
+      data[i] = max - (data[i] - min);
+    }
+  }
+
   private static final byte CELL = (byte) 255;
 
   private static FloatProcessor cropToValues(FloatProcessor fp, Rectangle cropBounds) {
@@ -1614,161 +1836,182 @@ public class CellOutliner_PlugIn implements ExtendedPlugInFilter, DialogListener
     }
   }
 
-  private void dilate(ByteProcessor bp) {
-    final byte[] data = (byte[]) bp.getPixels();
-    final byte[] newData = new byte[data.length];
-    initialise(bp);
-
-    for (int index = 0; index < data.length; index++) {
-      if (data[index] != 0) {
-        newData[index] = CELL;
-        final int x = index % maxx;
-        final int y = index / maxx;
-        final boolean isInnerXy = (y != 0 && y != ylimit) && (x != 0 && x != xlimit);
-
-        // Use 4-connected cells
-        if (isInnerXy) {
-          for (int d = 0; d < 8; d += 2) {
-            newData[index + offset[d]] = CELL;
-          }
-        } else {
-          for (int d = 0; d < 8; d += 2) {
-            if (isWithinXy(x, y, d)) {
+  /**
+   * Provides methods to dilate and trace the outline of an object in an image. The instance is
+   * created for the dimensions of a single image.
+   */
+  private static final class OutlineTracer {
+    private final int maxx;
+    private final int xlimit;
+    private final int ylimit;
+    private final int[] offset;
+
+    /**
+     * Create a new instance. Creates the direction offset tables.
+     *
+     * @param ip the image
+     */
+    OutlineTracer(ImageProcessor ip) {
+      maxx = ip.getWidth();
+      final int maxy = ip.getHeight();
+
+      xlimit = maxx - 1;
+      ylimit = maxy - 1;
+
+      // Create the offset table (for single array 3D neighbour comparisons)
+      offset = new int[DIR_X_OFFSET.length];
+      for (int d = offset.length; d-- > 0;) {
+        offset[d] = DIR_X_OFFSET[d] + maxx * DIR_Y_OFFSET[d];
+      }
+    }
+
+    /**
+     * Dilate the image using 4-connected pixels.
+     *
+     * @param bp the image
+     */
+    void dilate(ByteProcessor bp) {
+      final byte[] data = (byte[]) bp.getPixels();
+      final byte[] newData = new byte[data.length];
+
+      for (int index = 0; index < data.length; index++) {
+        if (data[index] != 0) {
+          newData[index] = CELL;
+          final int x = index % maxx;
+          final int y = index / maxx;
+          final boolean isInnerXy = (y != 0 && y != ylimit) && (x != 0 && x != xlimit);
+
+          // Use 4-connected cells
+          if (isInnerXy) {
+            for (int d = 0; d < 8; d += 2) {
               newData[index + offset[d]] = CELL;
             }
+          } else {
+            for (int d = 0; d < 8; d += 2) {
+              if (isWithinXy(x, y, d)) {
+                newData[index + offset[d]] = CELL;
+              }
+            }
           }
         }
       }
-    }
 
-    bp.setPixels(newData);
-  }
-
-  private PolygonRoi traceOutline(ByteProcessor bp) {
-    final byte[] data = (byte[]) bp.getPixels();
+      bp.setPixels(newData);
+    }
 
-    initialise(bp);
+    /**
+     * Trace the outline of the first object in the image.
+     *
+     * @param bp the image
+     * @return the outline (or null)
+     */
+    PolygonRoi traceOutline(ByteProcessor bp) {
+      final byte[] data = (byte[]) bp.getPixels();
 
-    // Find first pixel
-    int startIndex = 0;
-    while (data[startIndex] == 0 && startIndex < data.length) {
-      startIndex++;
-    }
-    if (startIndex == data.length) {
-      return null;
-    }
+      // Find first pixel
+      int startIndex = 0;
+      while (data[startIndex] == 0 && startIndex < data.length) {
+        startIndex++;
+      }
+      if (startIndex == data.length) {
+        return null;
+      }
 
-    final ArrayList<Point> coords = new ArrayList<>(100);
-    addPoint(coords, startIndex);
-
-    // Set start direction for search
-    int searchDirection = 7;
-    int index = startIndex;
-    // Safety limit - The outline shouldn't be greater than the image perimeter
-    int limit = (bp.getWidth() + bp.getHeight()) * 2 - 2;
-    while (limit-- > 0) {
-      final int nextDirection = findNext(data, index, searchDirection);
-      if (nextDirection >= 0) {
-        index += offset[nextDirection];
-        if (index == startIndex) {
-          break; // End of the outline
+      final ArrayList<Point> coords = new ArrayList<>(100);
+      addPoint(coords, startIndex);
+
+      // Set start direction for search
+      int searchDirection = 7;
+      int index = startIndex;
+      // Safety limit - The outline shouldn't be greater than the image perimeter
+      int limit = (bp.getWidth() + bp.getHeight()) * 2 - 2;
+      while (limit-- > 0) {
+        final int nextDirection = findNext(data, index, searchDirection);
+        if (nextDirection >= 0) {
+          index += offset[nextDirection];
+          if (index == startIndex) {
+            break; // End of the outline
+          }
+          addPoint(coords, index);
+          searchDirection = (nextDirection + 6) % 8;
+        } else {
+          break; // Single point with no move direction
         }
-        addPoint(coords, index);
-        searchDirection = (nextDirection + 6) % 8;
-      } else {
-        break; // Single point with no move direction
       }
-    }
-    if (limit <= 0) {
-      return null;
-    }
+      if (limit <= 0) {
+        return null;
+      }
 
-    // Return the outline
-    int npoints = 0;
-    final int[] xp = new int[coords.size()];
-    final int[] yp = new int[coords.size()];
-    for (final Point p : coords) {
-      xp[npoints] = p.x;
-      yp[npoints] = p.y;
-      npoints++;
-    }
+      // Return the outline
+      int npoints = 0;
+      final int[] xp = new int[coords.size()];
+      final int[] yp = new int[coords.size()];
+      for (final Point p : coords) {
+        xp[npoints] = p.x;
+        yp[npoints] = p.y;
+        npoints++;
+      }
 
-    return new PolygonRoi(xp, yp, npoints, Roi.POLYGON);
-  }
+      return new PolygonRoi(xp, yp, npoints, Roi.POLYGON);
+    }
 
-  private void addPoint(ArrayList<Point> coords, int index) {
-    final Point p = new Point(index % maxx, index / maxx);
-    coords.add(p);
-  }
+    private void addPoint(ArrayList<Point> coords, int index) {
+      final Point p = new Point(index % maxx, index / maxx);
+      coords.add(p);
+    }
 
-  private int findNext(byte[] data, int index, int direction) {
-    final int x = index % maxx;
-    final int y = index / maxx;
-    final boolean isInnerXy = (y != 0 && y != ylimit) && (x != 0 && x != xlimit);
+    private int findNext(byte[] data, int index, int direction) {
+      final int x = index % maxx;
+      final int y = index / maxx;
+      final boolean isInnerXy = (y != 0 && y != ylimit) && (x != 0 && x != xlimit);
 
-    // Process the neighbours
-    for (int d = 0; d < 7; d++) {
-      if (isInnerXy || isWithinXy(x, y, direction)) {
-        final int index2 = index + offset[direction];
+      // Process the neighbours
+      for (int d = 0; d < 7; d++) {
+        if (isInnerXy || isWithinXy(x, y, direction)) {
+          final int index2 = index + offset[direction];
 
-        // Check if foreground
-        if (data[index2] != 0) {
-          return direction;
+          // Check if foreground
+          if (data[index2] != 0) {
+            return direction;
+          }
         }
+        direction = (direction + 1) % 8;
       }
-      direction = (direction + 1) % 8;
-    }
-
-    return -1;
-  }
-
-  /**
-   * Initialises the global width and height variables. Creates the direction offset tables.
-   */
-  private void initialise(ImageProcessor ip) {
-    maxx = ip.getWidth();
-    final int maxy = ip.getHeight();
-
-    xlimit = maxx - 1;
-    ylimit = maxy - 1;
 
-    // Create the offset table (for single array 3D neighbour comparisons)
-    offset = new int[DIR_X_OFFSET.length];
-    for (int d = offset.length; d-- > 0;) {
-      offset[d] = DIR_X_OFFSET[d] + maxx * DIR_Y_OFFSET[d];
+      return -1;
     }
-  }
 
-  /**
-   * Returns whether the neighbour in a given direction is within the image. NOTE: it is assumed
-   * that the pixel x,y itself is within the image! Uses class variables xlimit, ylimit: (dimensions
-   * of the image)-1.
-   *
-   * @param x x-coordinate of the pixel that has a neighbour in the given direction
-   * @param y y-coordinate of the pixel that has a neighbour in the given direction
-   * @param direction the direction from the pixel towards the neighbour
-   * @return true if the neighbour is within the image (provided that x, y is within)
-   */
-  private boolean isWithinXy(int x, int y, int direction) {
-    switch (direction) {
-      case 0:
-        return (y > 0);
-      case 1:
-        return (y > 0 && x < xlimit);
-      case 2:
-        return (x < xlimit);
-      case 3:
-        return (y < ylimit && x < xlimit);
-      case 4:
-        return (y < ylimit);
-      case 5:
-        return (y < ylimit && x > 0);
-      case 6:
-        return (x > 0);
-      case 7:
-        return (y > 0 && x > 0);
-      default:
-        return false;
+    /**
+     * Returns whether the neighbour in a given direction is within the image. NOTE: it is assumed
+     * that the pixel x,y itself is within the image! Uses the variables xlimit, ylimit: (dimensions
+     * of the image)-1.
+     *
+     * @param x x-coordinate of the pixel that has a neighbour in the given direction
+     * @param y y-coordinate of the pixel that has a neighbour in the given direction
+     * @param direction the direction from the pixel towards the neighbour
+     * @return true if the neighbour is within the image (provided that x, y is within)
+     */
+    private boolean isWithinXy(int x, int y, int direction) {
+      switch (direction) {
+        case 0:
+          return (y > 0);
+        case 1:
+          return (y > 0 && x < xlimit);
+        case 2:
+          return (x < xlimit);
+        case 3:
+          return (y < ylimit && x < xlimit);
+        case 4:
+          return (y < ylimit);
+        case 5:
+          return (y < ylimit && x > 0);
+        case 6:
+          return (x > 0);
+        case 7:
+          return (y > 0 && x > 0);
+        default:
+          return false;
+      }
     }
   }
 }
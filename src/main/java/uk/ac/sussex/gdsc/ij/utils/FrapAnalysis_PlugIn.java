@@ -27,6 +27,7 @@ package uk.ac.sussex.gdsc.ij.utils;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.OvalRoi;
 import ij.gui.Overlay;
 import ij.gui.Plot;
@@ -49,7 +50,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
 import java.util.function.IntFunction;
 import org.apache.commons.math3.analysis.UnivariateFunction;
 import org.apache.commons.math3.exception.ConvergenceException;
@@ -97,7 +103,9 @@ import uk.ac.sussex.gdsc.core.utils.RegressionUtils;
 import uk.ac.sussex.gdsc.core.utils.SimpleArrayUtils;
 import uk.ac.sussex.gdsc.core.utils.Statistics;
 import uk.ac.sussex.gdsc.core.utils.TextUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
+import uk.ac.sussex.gdsc.ij.foci.FindFoci_PlugIn;
 import uk.ac.sussex.gdsc.ij.foci.ObjectAnalyzer;
 import uk.ac.sussex.gdsc.ij.foci.ObjectAnalyzer.ObjectCentre;
 
@@ -114,6 +122,8 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
   private static final String TITLE = "FRAP Analysis";
   private static final int MAX_BORDER = 5;
   private static final double LN2 = Math.log(2);
+  /** The size of the buffer used to hold a transposed block of the stack (256KiB of floats). */
+  private static final int TILE_BUFFER_SIZE = 1 << 16;
 
   /** The flags specifying the capabilities and needs. */
   private static final int FLAGS = DOES_8G | DOES_16 | DOES_32 | NO_CHANGES | STACK_REQUIRED;
@@ -128,6 +138,8 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
 
   /** The current settings for the plugin instance. */
   private Settings settings;
+  /** Set to true in batch mode. Errors are logged and the image is skipped. */
+  private boolean batchMode;
 
   /**
    * Contains the settings that are the re-usable state of the plugin.
@@ -154,6 +166,7 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     String resultsDir;
     boolean saveIndividualFiles;
     int backgroundSize;
+    String inputDir;
 
     /**
      * Default constructor.
@@ -168,6 +181,7 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
       bleachedBorder = 3;
       resultsDir = "";
       backgroundSize = 20;
+      inputDir = "";
     }
 
     /**
@@ -193,6 +207,7 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
       resultsDir = source.resultsDir;
       saveIndividualFiles = source.saveIndividualFiles;
       backgroundSize = source.backgroundSize;
+      inputDir = source.inputDir;
     }
 
     /**
@@ -219,11 +234,51 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     void save() {
       lastSettings.set(this);
     }
+
+    /**
+     * Create a copy of the settings for batch processing. All image display and alignment log
+     * options are disabled.
+     *
+     * @return the settings
+     */
+    Settings forBatch() {
+      final Settings batch = copy();
+      batch.showAlignmentOffsets = false;
+      batch.showAlignedImage = false;
+      batch.showBleachingScores = false;
+      batch.showBleachingEvents = false;
+      batch.showBleachedRegions = false;
+      return batch;
+    }
+  }
+
+  /**
+   * Create an instance.
+   */
+  public FrapAnalysis_PlugIn() {
+    // The settings are loaded in setup
+  }
+
+  /**
+   * Create an instance with the default settings and no calibration.
+   *
+   * @param nestedModels set to true to fit the nested models
+   */
+  @VisibleForTesting
+  FrapAnalysis_PlugIn(boolean nestedModels) {
+    settings = new Settings();
+    settings.nestedModels = nestedModels;
+    distanceScale = 1;
+    timeScale = 1;
   }
 
   @Override
   public int setup(String arg, ImagePlus imp) {
     UsageTracker.recordPlugin(this.getClass(), arg);
+    if ("batch".equals(arg)) {
+      runBatchMode();
+      return DONE;
+    }
     if (imp == null) {
       IJ.noImage();
       return DONE;
@@ -238,31 +293,55 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
       return DONE;
     }
     this.imp = imp;
-    return showDialog();
+    return showDialog(false) ? FLAGS : DONE;
   }
 
-  private int showDialog() {
+  /**
+   * Show the dialog.
+   *
+   * <p>In batch mode the input directory is collected and the image display and alignment log
+   * options are omitted.
+   *
+   * @param batch set to true for batch mode
+   * @return true if successful
+   */
+  private boolean showDialog(boolean batch) {
     settings = Settings.load();
 
     final ExtendedGenericDialog gd = new ExtendedGenericDialog(TITLE);
-    gd.addMessage("Analyses an image stack to detect pixel regions that have been photobleached.\n"
-        + "The stack is aligned to correct drift.\n"
-        + "Bleaching events are detected using significant jumps in intensity\n"
-        + "using the standard score (number of standard deviations from the mean).\n"
-        + "A plot of the intensity of each bleached region is created over time.");
-    gd.addSlider("Alignment_slice", 0, imp.getStackSize(), settings.alignmentSlice);
+    if (batch) {
+      gd.addMessage("Analyses a directory of image stacks to detect pixel regions that have been\n"
+          + "photobleached. The recovery curve fit of each bleached region is saved to a\n"
+          + "combined results table in the results directory.");
+      gd.addDirectoryField("Input_dir", settings.inputDir, 30);
+      gd.addNumericField("Alignment_slice", settings.alignmentSlice, 0);
+    } else {
+      gd.addMessage(
+          "Analyses an image stack to detect pixel regions that have been photobleached.\n"
+          + "The stack is aligned to correct drift.\n"
+          + "Bleaching events are detected using significant jumps in intensity\n"
+          + "using the standard score (number of standard deviations from the mean).\n"
+          + "A plot of the intensity of each bleached region is created over time.");
+      gd.addSlider("Alignment_slice", 0, imp.getStackSize(), settings.alignmentSlice);
+    }
     gd.addNumericField("Max_shift", settings.maxShift, 0);
     gd.addSlider("Alignment_iterations", 1, 5, settings.alignmentIterations);
     gd.addCheckbox("Subpixel_alignment", settings.subPixelAlignement);
-    gd.addCheckbox("Show_alignment_offsets", settings.showAlignmentOffsets);
-    gd.addCheckbox("Show_aligned", settings.showAlignedImage);
+    if (!batch) {
+      gd.addCheckbox("Show_alignment_offsets", settings.showAlignmentOffsets);
+      gd.addCheckbox("Show_aligned", settings.showAlignedImage);
+    }
     gd.addSlider("Score_threshold", 5, 20, settings.scoreThreshold);
     gd.addCheckbox("Circular_region", settings.circularRegion);
     gd.addNumericField("Min_region_size", settings.minRegionSize, 0);
-    gd.addCheckbox("Show_bleaching_scores", settings.showBleachingScores);
-    gd.addCheckbox("Show_bleaching_events", settings.showBleachingEvents);
+    if (!batch) {
+      gd.addCheckbox("Show_bleaching_scores", settings.showBleachingScores);
+      gd.addCheckbox("Show_bleaching_events", settings.showBleachingEvents);
+    }
     gd.addSlider("Bleach_border", 0, MAX_BORDER, settings.bleachedBorder);
-    gd.addCheckbox("Show_bleached_regions", settings.showBleachedRegions);
+    if (!batch) {
+      gd.addCheckbox("Show_bleached_regions", settings.showBleachedRegions);
+    }
     gd.addCheckbox("Fit_nested_models", settings.nestedModels);
     gd.addDirectoryField("Results_dir", settings.resultsDir, 30);
     gd.addCheckbox("Save_individual_files", settings.saveIndividualFiles);
@@ -270,21 +349,30 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     gd.showDialog();
     settings.save();
     if (gd.wasCanceled()) {
-      return DONE;
+      return false;
+    }
+    if (batch) {
+      settings.inputDir = gd.getNextString();
     }
     settings.alignmentSlice = (int) gd.getNextNumber();
     settings.maxShift = (int) gd.getNextNumber();
     settings.alignmentIterations = Math.max(1, (int) gd.getNextNumber());
     settings.subPixelAlignement = gd.getNextBoolean();
-    settings.showAlignmentOffsets = gd.getNextBoolean();
-    settings.showAlignedImage = gd.getNextBoolean();
+    if (!batch) {
+      settings.showAlignmentOffsets = gd.getNextBoolean();
+      settings.showAlignedImage = gd.getNextBoolean();
+    }
     settings.scoreThreshold = gd.getNextNumber();
     settings.circularRegion = gd.getNextBoolean();
     settings.minRegionSize = (int) gd.getNextNumber();
-    settings.showBleachingScores = gd.getNextBoolean();
-    settings.showBleachingEvents = gd.getNextBoolean();
+    if (!batch) {
+      settings.showBleachingScores = gd.getNextBoolean();
+      settings.showBleachingEvents = gd.getNextBoolean();
+    }
     settings.bleachedBorder = (int) gd.getNextNumber();
-    settings.showBleachedRegions = gd.getNextBoolean();
+    if (!batch) {
+      settings.showBleachedRegions = gd.getNextBoolean();
+    }
     settings.nestedModels = gd.getNextBoolean();
     settings.resultsDir = gd.getNextString();
     settings.saveIndividualFiles = gd.getNextBoolean();
@@ -292,15 +380,155 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
 
     if (gd.invalidNumber()) {
       IJ.error(TITLE, "Bad input number");
-      return DONE;
+      return false;
     }
 
-    return FLAGS;
+    return true;
   }
 
   @Override
   public void run(ImageProcessor ip) {
-    final String title = TITLE + " : " + imp.getTitle();
+    analyse(TITLE + " : " + imp.getTitle(), true);
+  }
+
+  /**
+   * Run the analysis on all the images in the input directory. The recovery fits are saved to a
+   * single results table in the results directory.
+   */
+  private void runBatchMode() {
+    if (!showDialog(true)) {
+      return;
+    }
+    if (TextUtils.isNullOrEmpty(settings.resultsDir)
+        || !Files.isDirectory(Paths.get(settings.resultsDir))) {
+      IJ.error(TITLE, "Batch mode requires a results directory");
+      return;
+    }
+    final String[] images = FindFoci_PlugIn.getBatchImages(settings.inputDir);
+    if (images == null || images.length == 0) {
+      IJ.error(TITLE, "No images in the input directory");
+      return;
+    }
+    settings = settings.forBatch();
+    batchMode = true;
+
+    final Path path = Paths.get(settings.resultsDir, "FRAP_fits.csv");
+    try (BufferedWriter out = Files.newBufferedWriter(path)) {
+      out.write("Image,Region,Size,Bleach time,Model,i0,A,koff,tD,B,tau,RSS,Half-life,D");
+      out.newLine();
+      final int count = processBatch(settings.inputDir, images, out, (batchImp, title) -> {
+        imp = batchImp;
+        return analyse(title, false);
+      });
+      ImageJUtils.log("%s: Saved fits for %d/%d images to %s", TITLE, count, images.length, path);
+    } catch (final IOException ex) {
+      ImageJUtils.log("Failed to save batch results: " + ex.getMessage());
+    } finally {
+      imp = null;
+      batchMode = false;
+    }
+  }
+
+  /**
+   * Analyse each image in the input directory and write the recovery fits to the results table.
+   * Images that cannot be opened, do not have multiple time frames, or fail analysis are skipped.
+   *
+   * @param inputDir the input directory
+   * @param images the image names
+   * @param out the output
+   * @param analyser the analyser of an image with a title (returns null on failure)
+   * @return the number of images with recovery fits
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @VisibleForTesting
+  int processBatch(String inputDir, String[] images, BufferedWriter out,
+      BiFunction<ImagePlus, String, RecoveryFit[]> analyser) throws IOException {
+    int count = 0;
+    for (int i = 0; i < images.length; i++) {
+      if (ImageJUtils.isInterrupted()) {
+        break;
+      }
+      final String name = images[i];
+      final ImagePlus batchImp = IJ.openImage(Paths.get(inputDir, name).toString());
+      if (batchImp == null) {
+        ImageJUtils.log("Cannot open image: " + name);
+        continue;
+      }
+      if (batchImp.getStackSize() == 1
+          || (batchImp.isHyperStack() && batchImp.getNFrames() == 1)) {
+        ImageJUtils.log("Image does not have multiple time frames: " + name);
+        continue;
+      }
+      final RecoveryFit[] fits = analyser.apply(batchImp,
+          String.format("%s : %s (%d/%d)", TITLE, name, i + 1, images.length));
+      if (fits != null) {
+        writeFits(out, name, fits);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Write the recovery fits to the results table.
+   *
+   * @param out the output
+   * @param name the image name
+   * @param fits the recovery fits
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeFits(BufferedWriter out, String name, RecoveryFit[] fits) throws IOException {
+    final String prefix = name.replace(',', '_') + ",";
+    for (int j = 1; j <= fits.length; j++) {
+      final RecoveryFit fitResult = fits[j - 1];
+      final StringBuilder sb = new StringBuilder(prefix).append(j).append(',')
+          .append(fitResult.size).append(',')
+          .append(MathUtils.rounded(fitResult.bleachingEvent * timeScale)).append(',');
+      final FrapFunction fun = fitResult.function;
+      if (fun == null) {
+        sb.append("None,,,,,,,,,");
+      } else {
+        final double[] fit = fitResult.optimum.getPoint().toArray();
+        final boolean reaction = fun instanceof ReactionLimitedRecoveryFunction
+            || fun instanceof ReactionLimitedRecoveryFunctionB;
+        final boolean decay = fit.length == 5;
+        sb.append(reaction ? "Reaction" : "Diffusion").append(decay ? " with decay," : ",");
+        // i0, A, koff|tD, B, tau
+        sb.append(MathUtils.rounded(fit[0])).append(',');
+        sb.append(MathUtils.rounded(fit[1])).append(',');
+        if (reaction) {
+          sb.append(MathUtils.rounded(fit[2])).append(",,");
+        } else {
+          sb.append(',').append(MathUtils.rounded(fit[2])).append(',');
+        }
+        if (decay) {
+          sb.append(MathUtils.rounded(fit[3])).append(',');
+          sb.append(MathUtils.rounded(fit[4])).append(',');
+        } else {
+          sb.append(",,");
+        }
+        sb.append(MathUtils.rounded(getResidualSumOfSquares(fitResult.optimum))).append(',');
+        // Half-life or diffusion coefficient: D = w^2 / 4tD
+        if (reaction) {
+          sb.append(MathUtils.rounded(LN2 / fit[2])).append(',');
+        } else {
+          final double w2 = distanceScale * distanceScale * fitResult.size / Math.PI;
+          sb.append(',').append(MathUtils.rounded(w2 / (4 * timeScale * fit[2])));
+        }
+      }
+      out.write(sb.toString());
+      out.newLine();
+    }
+  }
+
+  /**
+   * Analyse the current image.
+   *
+   * @param title the title
+   * @param showPlot set to true to show the plot of the region intensity curves
+   * @return the recovery fits for each bleached region (or null)
+   */
+  private RecoveryFit[] analyse(String title, boolean showPlot) {
     ImageJUtils.log(title);
 
     getCalibration();
@@ -328,12 +556,12 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     final LocalList<Pair<Integer, Roi>> rois = extractBleachedRegions(events);
 
     if (rois.isEmpty()) {
-      return;
+      return null;
     }
 
     if (rois.size() >= 255) {
-      IJ.error(TITLE, "Too many bleached regions: " + rois.size());
-      return;
+      error("Too many bleached regions: " + rois.size());
+      return null;
     }
 
     addRoisToImage(alignedImp, rois);
@@ -345,8 +573,8 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
 
     final int n = rois.size() + 1;
     if (count[n] == 0) {
-      IJ.error(TITLE, "No foreground (entire image is bleached regions)");
-      return;
+      error("No foreground (entire image is bleached regions)");
+      return null;
     }
     ImageJUtils.log("Foregound = %s pixels", count[n]);
 
@@ -378,12 +606,15 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     // Fit foreground to estimate the bleaching kinetics
     final double[] ffit = fitBleaching(data[n - 1], timeScale);
     if (ffit == null) {
-      return;
+      return null;
     }
     ImageJUtils.log("Foregound decay: f(t) = %s + %s * exp(-%s t); Half-life = %s",
         MathUtils.rounded(ffit[0]), MathUtils.rounded(ffit[1]), MathUtils.rounded(ffit[2]),
         MathUtils.rounded(LN2 / ffit[2]));
 
+    // Fit each region FRAP curve. The regions are independent and are fit concurrently.
+    final RecoveryFit[] fits = fitRecovery(data, rois, count, ffit[2], Prefs.getThreads());
+
     // Plot the mean over time.
     final float[] x =
         SimpleArrayUtils.toFloat(SimpleArrayUtils.newArray(aligned.size(), 0, timeScale));
@@ -404,15 +635,14 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     for (int j = 1; j < n; j++) {
       plot.setColor(LutHelper.getColour(lut, j - 1, 0, n - 1));
       plot.addPoints(x, data[j - 1], null, Plot.LINE, "Region" + j);
-      // Fit each region FRAP curve
-      final int bleachingEvent = rois.unsafeGet(j - 1).getFirst();
-      final Pair<FrapFunction, Optimum> fitResult =
-          fitRecovery(j, data[j - 1], ffit[2], bleachingEvent, count[j]);
-      if (fitResult != null) {
-        final FrapFunction fun = fitResult.getFirst();
-        final double[] fit = fitResult.getSecond().getPoint().toArray();
-        plot.addPoints(Arrays.copyOfRange(x, bleachingEvent, x.length),
-            SimpleArrayUtils.toFloat(fun.values(fitResult.getSecond().getPoint())), null, Plot.DOT,
+      // Report the fit in region order
+      final RecoveryFit fitResult = fits[j - 1];
+      fitResult.messages.forEach(IJ::log);
+      if (fitResult.function != null) {
+        final FrapFunction fun = fitResult.function;
+        final double[] fit = fitResult.optimum.getPoint().toArray();
+        plot.addPoints(Arrays.copyOfRange(x, fitResult.bleachingEvent, x.length),
+            SimpleArrayUtils.toFloat(fun.values(fitResult.optimum.getPoint())), null, Plot.DOT,
             null);
         if (fun instanceof ReactionLimitedRecoveryFunction) {
           ImageJUtils.log(
@@ -452,11 +682,28 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
         }
       }
     }
-    plot.setColor(Color.BLACK);
-    // Options must be empty string for auto-position
-    plot.addLegend(null, "");
-    ImageJUtils.display(plot.getTitle(), plot);
-    plot.setLimitsToFit(true); // Seems to only work after drawing
+    if (showPlot) {
+      plot.setColor(Color.BLACK);
+      // Options must be empty string for auto-position
+      plot.addLegend(null, "");
+      ImageJUtils.display(plot.getTitle(), plot);
+      plot.setLimitsToFit(true); // Seems to only work after drawing
+    }
+    return fits;
+  }
+
+  /**
+   * Report an error with the analysis. In batch mode the error is logged so the remaining images
+   * can be processed.
+   *
+   * @param message the message
+   */
+  private void error(String message) {
+    if (batchMode) {
+      ImageJUtils.log("%s: Skipping image: %s", TITLE, message);
+    } else {
+      IJ.error(TITLE, message);
+    }
   }
 
   private void getCalibration() {
@@ -506,10 +753,11 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     final int shift = settings.maxShift;
     final Rectangle bounds = shift > 0 ? new Rectangle(-shift, -shift, 2 * shift, 2 * shift) : null;
 
-    // Center if the slice is not set.
+    // Center if the slice is not set (or is outside the stack in batch mode).
     // Note that indices are 1-based so add 1 to the stack size for the middle.
-    final int middle =
-        settings.alignmentSlice == 0 ? (imp2.getStackSize() + 1) / 2 : settings.alignmentSlice;
+    final int middle = settings.alignmentSlice == 0 || settings.alignmentSlice > imp2.getStackSize()
+        ? (imp2.getStackSize() + 1) / 2
+        : settings.alignmentSlice;
     align.initialiseReference(imp2.getImageStack().getProcessor(middle), WindowMethod.TUKEY, true);
 
     // Align the rest of the stack
@@ -630,7 +878,7 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
   private ImageStack detectBleachingScores(final ImageStack aligned, final ByteProcessor mask) {
     // For each pixel create an intensity trace over time.
     IJ.showStatus("!Detecting bleaching events...");
-    final IntFunction<float[]> traceFunction = createTraceFunction(aligned);
+    final TileTransposer transposer = createTileTransposer(aligned);
 
     // The number of standard deviations from the mean for a significant jump.
     // This is squared for convenience during processing.
@@ -640,72 +888,138 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     // Create a mask stack with bleaching events marked on it
     final ImageStack events2 = IJ.createImage("Events2", "32-bit black", aligned.getWidth(),
         aligned.getHeight(), aligned.getSize()).getImageStack();
+    final Object[] eventPixels = events2.getImageArray();
 
+    // Process blocks of pixels in parallel. Each block of the stack is transposed into a
+    // time-major buffer so the trace for each pixel is contiguous.
     final int size = aligned.getWidth() * aligned.getHeight();
-    final Ticker ticker = ImageJUtils.createTicker(size, 1);
-    for (int i = 0; i < size; i++) {
-      if (mask.get(i) == 0) {
-        continue;
-      }
-      final float[] trace = traceFunction.apply(i);
-      // Detect large drops in intensity as a bleaching event.
-      final double[] event2 = detectBleachingEvent(trace, scoreThreshold);
-      if (event2 != null) {
-        final int index = (int) event2[0] + 1;
-        events2.getProcessor(index).setf(i, (float) event2[1]);
-      }
-
-      ticker.tick();
+    final int frames = aligned.getSize();
+    final int blockSize = MathUtils.clip(1, size, TILE_BUFFER_SIZE / frames);
+    final int blocks = (size + blockSize - 1) / blockSize;
+    final int threadCount = MathUtils.min(Prefs.getThreads(), blocks);
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+    final Ticker ticker = ImageJUtils.createTicker(blocks, threadCount);
+    final AtomicInteger nextBlock = new AtomicInteger();
+    for (int i = 0; i < threadCount; i++) {
+      futures.add(executor.submit(() -> {
+        // Working buffers reused for each trace
+        final float[] buffer = new float[blockSize * frames];
+        final double[] laplacian = new double[frames];
+        final Statistics stats = new Statistics();
+        for (int block = nextBlock.getAndIncrement(); block < blocks;
+            block = nextBlock.getAndIncrement()) {
+          final int from = block * blockSize;
+          final int to = Math.min(size, from + blockSize);
+          if (isMasked(mask, from, to)) {
+            transposer.transpose(from, to, buffer);
+            for (int index = from; index < to; index++) {
+              if (mask.get(index) == 0) {
+                continue;
+              }
+              // Detect large drops in intensity as a bleaching event.
+              final double[] event2 = detectBleachingEvent(buffer, (index - from) * frames, frames,
+                  laplacian, stats, scoreThreshold);
+              if (event2 != null) {
+                ((float[]) eventPixels[(int) event2[0]])[index] = (float) event2[1];
+              }
+            }
+          }
+          ticker.tick();
+        }
+      }));
     }
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
     return events2;
   }
 
   /**
-   * Creates the trace function.
+   * Checks if any pixel in the range is within the mask.
+   *
+   * @param mask the mask
+   * @param from the from index (inclusive)
+   * @param to the to index (exclusive)
+   * @return true if masked
+   */
+  private static boolean isMasked(ByteProcessor mask, int from, int to) {
+    for (int index = from; index < to; index++) {
+      if (mask.get(index) != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Transpose a block of pixels from all slices of a stack into time-major order.
+   */
+  @VisibleForTesting
+  @FunctionalInterface
+  interface TileTransposer {
+    /**
+     * Transpose the pixels {@code [from, to)} from each slice into the buffer. The trace for pixel
+     * {@code i} is stored at {@code buffer[(i - from) * size]} where {@code size} is the number of
+     * slices.
+     *
+     * @param from the from index (inclusive)
+     * @param to the to index (exclusive)
+     * @param buffer the buffer
+     */
+    void transpose(int from, int to, float[] buffer);
+  }
+
+  /**
+   * Creates the tile transposer.
    *
    * @param stack the stack
-   * @return the trace function
+   * @return the tile transposer
    */
-  private static IntFunction<float[]> createTraceFunction(ImageStack stack) {
+  @VisibleForTesting
+  static TileTransposer createTileTransposer(ImageStack stack) {
     final Object[] imageArray = stack.getImageArray();
     final int size = stack.size();
-    // Detect pixels type
+    // Detect pixels type.
+    // Each slice is read sequentially. The writes are strided but the buffer is small.
     final Object pixels = imageArray[0];
     if (pixels instanceof byte[]) {
       final byte[][] image = new byte[size][];
       for (int i = 0; i < size; i++) {
         image[i] = (byte[]) imageArray[i];
       }
-      return index -> {
-        final float[] trace = new float[size];
-        for (int i = 0; i < size; i++) {
-          trace[i] = image[i][index] & 0xff;
+      return (from, to, buffer) -> {
+        for (int t = 0; t < size; t++) {
+          final byte[] data = image[t];
+          for (int i = from, j = t; i < to; i++, j += size) {
+            buffer[j] = data[i] & 0xff;
+          }
         }
-        return trace;
       };
     } else if (pixels instanceof short[]) {
       final short[][] image = new short[size][];
       for (int i = 0; i < size; i++) {
         image[i] = (short[]) imageArray[i];
       }
-      return index -> {
-        final float[] trace = new float[size];
-        for (int i = 0; i < size; i++) {
-          trace[i] = image[i][index] & 0xffff;
+      return (from, to, buffer) -> {
+        for (int t = 0; t < size; t++) {
+          final short[] data = image[t];
+          for (int i = from, j = t; i < to; i++, j += size) {
+            buffer[j] = data[i] & 0xffff;
+          }
         }
-        return trace;
       };
     } else if (pixels instanceof float[]) {
       final float[][] image = new float[size][];
       for (int i = 0; i < size; i++) {
         image[i] = (float[]) imageArray[i];
       }
-      return index -> {
-        final float[] trace = new float[size];
-        for (int i = 0; i < size; i++) {
-          trace[i] = image[i][index];
+      return (from, to, buffer) -> {
+        for (int t = 0; t < size; t++) {
+          final float[] data = image[t];
+          for (int i = from, j = t; i < to; i++, j += size) {
+            buffer[j] = data[i];
+          }
         }
-        return trace;
       };
     }
     throw new IllegalStateException("Unsupported pixels type");
@@ -775,19 +1089,27 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
    *
    * <p>The event is returned as the frame where the intensity of the pixel has dropped.
    *
-   * @param trace the trace
+   * <p>The trace is read from the data starting at the offset. The working buffers are reused to
+   * avoid allocation.
+   *
+   * @param data the data containing the trace
+   * @param offset the offset of the trace in the data
+   * @param length the length of the trace
+   * @param laplacian the working buffer for the Laplacian (must be at least the trace length)
+   * @param stats the working statistics
    * @param scoreThreshold the score threshold for (x-mean)^2 / variance
    * @return {index, magnitude} (or null)
    */
-  private static double[] detectBleachingEvent(float[] trace, double scoreThreshold) {
-    final int end = trace.length - 1;
+  private static double[] detectBleachingEvent(float[] data, int offset, int length,
+      double[] laplacian, Statistics stats, double scoreThreshold) {
+    final int end = length - 1;
+    final int last = offset + end;
     // Compute a Laplacian of the trace using the [1 -2 1] filter.
-    final double[] laplacian = new double[trace.length];
     // Ends by mirroring
-    laplacian[0] = -2.0 * trace[0] + 2.0 * trace[1];
-    laplacian[end] = -2.0 * trace[end] + 2.0 * trace[end - 1];
-    for (int i = 1; i < end; i++) {
-      laplacian[i] = -2.0 * trace[i] + trace[i - 1] + trace[i + 1];
+    laplacian[0] = -2.0 * data[offset] + 2.0 * data[offset + 1];
+    laplacian[end] = -2.0 * data[last] + 2.0 * data[last - 1];
+    for (int i = 1, j = offset + 1; i < end; i++, j++) {
+      laplacian[i] = -2.0 * data[j] + data[j - 1] + data[j + 1];
     }
 
     // Detect the biggest difference in the Laplacian.
@@ -802,7 +1124,7 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     }
 
     // For all other values compute the mean and SD of the Laplacian
-    final Statistics stats = new Statistics();
+    stats.reset();
     for (int i = maxi + 1; i < end; i++) {
       stats.add(laplacian[i]);
     }
@@ -1404,6 +1726,64 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     }
   }
 
+  /**
+   * Fit the recovery curve of each bleached region.
+   *
+   * <p>Regions are fit concurrently. The log messages from the fitting of each region are
+   * collected so they can be reported in region order.
+   *
+   * <p>The data of each region {@code n} in {@code data[n - 1]}. The size of each region {@code n}
+   * in {@code countHistogram[n]}.
+   *
+   * @param data the data
+   * @param rois the bleached regions (with the bleaching event)
+   * @param countHistogram the count histogram
+   * @param tau the initial estimate for the general image bleaching rate
+   * @param threads the number of threads
+   * @return the recovery fits
+   */
+  @VisibleForTesting
+  RecoveryFit[] fitRecovery(float[][] data, LocalList<Pair<Integer, Roi>> rois,
+      int[] countHistogram, double tau, int threads) {
+    IJ.showStatus("!Fitting recovery curves...");
+    final int regions = rois.size();
+    final RecoveryFit[] fits = new RecoveryFit[regions];
+    final int threadCount = MathUtils.clip(1, regions, threads);
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final LocalList<Future<?>> futures = new LocalList<>(regions);
+    final Ticker ticker = ImageJUtils.createTicker(regions, threadCount);
+    for (int i = 0; i < regions; i++) {
+      final int region = i + 1;
+      futures.add(executor.submit(() -> {
+        final RecoveryFit fit =
+            new RecoveryFit(rois.unsafeGet(region - 1).getFirst(), countHistogram[region]);
+        final Pair<FrapFunction, Optimum> result = fitRecovery(region, data[region - 1], tau,
+            fit.bleachingEvent, fit.size, fit.messages);
+        if (result != null) {
+          fit.function = result.getFirst();
+          fit.optimum = result.getSecond();
+        }
+        fits[region - 1] = fit;
+        ticker.tick();
+      }));
+    }
+    executor.shutdown();
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+    ImageJUtils.finished();
+    return fits;
+  }
+
+  /**
+   * Add a formatted message to the log messages.
+   *
+   * @param messages the messages
+   * @param format the format
+   * @param args the arguments
+   */
+  private static void log(LocalList<String> messages, String format, Object... args) {
+    messages.add(String.format(format, args));
+  }
+
   /**
    * Fit the bleaching curve.
    *
@@ -1414,10 +1794,11 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
    * @param tau the initial estimate for the general image bleaching rate
    * @param bleachingEvent the index in y for the bleaching event (low point of curve)
    * @param size the size of the region
+   * @param messages the log messages
    * @return fit function and result
    */
   private Pair<FrapFunction, Optimum> fitRecovery(int region, float[] y, double tau,
-      int bleachingEvent, int size) {
+      int bleachingEvent, int size, LocalList<String> messages) {
     final boolean nested = settings.nestedModels;
 
     // Initial estimates
@@ -1497,13 +1878,13 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     try {
       best1 = optimizer.optimize(problem1);
       final double[] fit = best1.getPoint().toArray();
-      ImageJUtils.log(
+      log(messages,
           "  Region [%d] reaction limited recovery (ss=%s): f(t) = %s + %s(1 - exp(-%s t)); "
               + "Half-life = %s",
           region, MathUtils.rounded(getResidualSumOfSquares(best1)), MathUtils.rounded(fit[0]),
           MathUtils.rounded(fit[1]), MathUtils.rounded(fit[2]), MathUtils.rounded(LN2 / fit[2]));
     } catch (TooManyIterationsException | ConvergenceException ex) {
-      ImageJUtils.log("Failed to fit reaction limited recovery curve: ", ex.getMessage());
+      log(messages, "Failed to fit reaction limited recovery curve: ", ex.getMessage());
     }
 
     if (best1 != null && nested) {
@@ -1540,13 +1921,13 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
         }
         // Optionally log no improvement here...
         final double[] fit = lvmSolution.getPoint().toArray();
-        ImageJUtils.log(
+        log(messages,
             "  Region [%d] reaction limited recovery (ss=%s): f(t) = %s + "
                 + "(%s + %s(1 - exp(-%s t))) * exp(-%s t); Half-life1 = %s; Half-life2 = %s",
             region, MathUtils.rounded(rss2), MathUtils.rounded(fit[3]), MathUtils.rounded(fit[0]),
             MathUtils.rounded(fit[1]), MathUtils.rounded(fit[2]), MathUtils.rounded(fit[4]),
             MathUtils.rounded(LN2 / fit[2]), MathUtils.rounded(LN2 / fit[4]));
-        ImageJUtils.log("  Region [%d] : rss1=%s, rss2=%s, p(F-Test=%s) = %s; ", region,
+        log(messages, "  Region [%d] : rss1=%s, rss2=%s, p(F-Test=%s) = %s; ", region,
             MathUtils.rounded(rss1), MathUtils.rounded(rss2), MathUtils.rounded(f),
             MathUtils.rounded(pvalue));
         if (pvalue < 0.01) {
@@ -1555,7 +1936,7 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
           best1 = lvmSolution;
         }
       } catch (TooManyIterationsException | ConvergenceException ex) {
-        ImageJUtils.log("Failed to fit reaction limited recovery curve with decay: ",
+        log(messages, "Failed to fit reaction limited recovery curve with decay: ",
             ex.getMessage());
       }
     }
@@ -1581,13 +1962,13 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
       best2 = optimizer.optimize(problem3);
       final double[] fit = best2.getPoint().toArray();
       final String dT = MathUtils.rounded(fit[2]);
-      ImageJUtils.log(
+      log(messages,
           "  Region [%d] diffusion limited recovery (ss=%s): f(t) = %s + "
               + "%s(exp(-2*%s/t) * (I0(2*%s/t) + I1(2*%s/t)); D = %s",
           region, MathUtils.rounded(getResidualSumOfSquares(best2)), MathUtils.rounded(fit[0]),
           MathUtils.rounded(fit[1]), dT, dT, dT, MathUtils.round(w2 / (4 * timeScale * fit[2])));
     } catch (TooManyIterationsException | ConvergenceException ex) {
-      ImageJUtils.log("Failed to fit diffusion limited recovery curve: ", ex.getMessage());
+      log(messages, "Failed to fit diffusion limited recovery curve: ", ex.getMessage());
     }
 
     if (best2 != null && nested) {
@@ -1625,14 +2006,14 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
         // Optionally log no improvement here...
         final double[] fit = lvmSolution.getPoint().toArray();
         final String dT = MathUtils.rounded(fit[2]);
-        ImageJUtils.log(
+        log(messages,
             "  Region [%d] diffusion limited recovery (ss=%s): f(t) = %s + "
                 + "(%s + %s(exp(-2*%s/t) * (I0(2*%s/t) + I1(2*%s/t))) * exp(-%s t); D = %s; "
                 + "Half-life2 = %s",
             region, MathUtils.rounded(rss2), MathUtils.rounded(fit[3]), MathUtils.rounded(fit[0]),
             MathUtils.rounded(fit[1]), dT, dT, dT, MathUtils.rounded(fit[4]),
             MathUtils.round(w2 / (4 * timeScale * fit[2])), MathUtils.rounded(LN2 / fit[4]));
-        ImageJUtils.log("  Region [%d] : rss1=%s, rss2=%s, p(F-Test=%s) = %s; ", region,
+        log(messages, "  Region [%d] : rss1=%s, rss2=%s, p(F-Test=%s) = %s; ", region,
             MathUtils.rounded(rss1), MathUtils.rounded(rss2), MathUtils.rounded(f),
             MathUtils.rounded(pvalue));
         if (pvalue < 0.01) {
@@ -1641,7 +2022,7 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
           best2 = lvmSolution;
         }
       } catch (TooManyIterationsException | ConvergenceException ex) {
-        ImageJUtils.log("Failed to fit diffusion limited recovery curve with decay: ",
+        log(messages, "Failed to fit diffusion limited recovery curve with decay: ",
             ex.getMessage());
       }
     }
@@ -1721,6 +2102,34 @@ public class FrapAnalysis_PlugIn implements PlugInFilter {
     return res.dotProduct(res);
   }
 
+  /**
+   * The result of fitting the recovery curve of a bleached region.
+   */
+  @VisibleForTesting
+  static final class RecoveryFit {
+    /** The index of the bleaching event. */
+    final int bleachingEvent;
+    /** The size of the region. */
+    final int size;
+    /** The log messages from fitting. */
+    final LocalList<String> messages = new LocalList<>();
+    /** The fit function (or null). */
+    FrapFunction function;
+    /** The fit result (or null). */
+    Optimum optimum;
+
+    /**
+     * Create an instance.
+     *
+     * @param bleachingEvent the index of the bleaching event
+     * @param size the size of the region
+     */
+    RecoveryFit(int bleachingEvent, int size) {
+      this.bleachingEvent = bleachingEvent;
+      this.size = size;
+    }
+  }
+
   /**
    * Base class for FRAP function.
    */
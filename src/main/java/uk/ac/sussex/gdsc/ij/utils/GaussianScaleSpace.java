@@ -0,0 +1,257 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.utils;
+
+import ij.ImageStack;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.ij.ext.plugin.filter.DifferenceOfGaussians;
+
+/**
+ * A Gaussian scale-space representation of an image stack computed as a cascade.
+ *
+ * <p>Each scale is derived from the previous scale using a Gaussian blur with the incremental
+ * sigma: {@code sqrt(s[i]^2 - s[i-1]^2)}. The scales are computed lazily when first requested and
+ * the slices of the stack are filtered concurrently; a stack with fewer slices than threads is
+ * filtered concurrently in blocks of rows.
+ *
+ * <p>Optionally the cascade is downsampled by a factor of 2 for each octave (SIFT-style). When the
+ * sigma of the current scale is at least 2 pixels at the current resolution the image is reduced
+ * using a 2x2 mean; the blur added by the reduction is accounted for in the next incremental
+ * sigma. Downsampled scales are returned at full resolution using bilinear interpolation.
+ *
+ * @see <a href="https://en.wikipedia.org/wiki/Scale_space">Scale space</a>
+ * @see <a href="https://en.wikipedia.org/wiki/Scale-invariant_feature_transform">SIFT</a>
+ */
+final class GaussianScaleSpace {
+  /** The minimum size of a downsampled image. */
+  private static final int MIN_SIZE = 8;
+
+  private final ImageStack stack;
+  private final double[] sigmas;
+  private final boolean downsample;
+  private final int threads;
+
+  /** The computed scales at the working resolution. */
+  private final ImageStack[] levels;
+  /** The downsampling factor of each computed scale. */
+  private final int[] factors;
+  /** The number of computed scales. */
+  private int computed;
+  /** The variance (in full resolution pixels) of the last computed scale. */
+  private double variance;
+
+  /**
+   * Create a new instance.
+   *
+   * @param stack the stack (8, 16 or 32-bit)
+   * @param sigmas the Gaussian sigma of each scale in pixels (must be positive and ascending)
+   * @param downsample set to true to downsample each octave
+   * @param threads the number of threads
+   * @throws IllegalArgumentException if the sigmas are not positive and ascending, or the stack is
+   *         RGB
+   */
+  GaussianScaleSpace(ImageStack stack, double[] sigmas, boolean downsample, int threads) {
+    if (stack.getBitDepth() == 24) {
+      throw new IllegalArgumentException("RGB stacks are not supported");
+    }
+    double last = 0;
+    for (final double sigma : sigmas) {
+      if (!(sigma > last)) {
+        throw new IllegalArgumentException("Sigma must be positive and ascending: " + sigma);
+      }
+      last = sigma;
+    }
+    this.stack = stack;
+    this.sigmas = sigmas.clone();
+    this.downsample = downsample;
+    this.threads = threads;
+    levels = new ImageStack[sigmas.length];
+    factors = new int[sigmas.length];
+  }
+
+  /**
+   * Gets the number of scales.
+   *
+   * @return the size
+   */
+  int getSize() {
+    return sigmas.length;
+  }
+
+  /**
+   * Gets the Gaussian sigma of the scale.
+   *
+   * @param index the index
+   * @return the sigma
+   */
+  double getSigma(int index) {
+    return sigmas[index];
+  }
+
+  /**
+   * Gets the scale at full resolution. The scale (and all smaller scales) are computed if
+   * necessary.
+   *
+   * @param index the index
+   * @return the scale as a float stack
+   */
+  ImageStack getScale(int index) {
+    final ImageStack level;
+    final int factor;
+    synchronized (this) {
+      while (computed <= index) {
+        computeNext();
+      }
+      level = levels[index];
+      factor = factors[index];
+    }
+    if (factor == 1) {
+      return level;
+    }
+    final ImageStack result = new ImageStack(stack.getWidth(), stack.getHeight());
+    for (int slice = 1; slice <= level.getSize(); slice++) {
+      result.addSlice(null, upsample((float[]) level.getPixels(slice), level.getWidth(),
+          level.getHeight(), factor, stack.getWidth(), stack.getHeight()));
+    }
+    return result;
+  }
+
+  /**
+   * Gets the Difference of Gaussians between the scale and the next scale (scale[i] - scale[i+1]).
+   *
+   * @param index the index (must be less than size - 1)
+   * @return the difference as a float stack
+   */
+  ImageStack getDifferenceOfGaussians(int index) {
+    final ImageStack s1 = getScale(index);
+    final ImageStack s2 = getScale(index + 1);
+    final ImageStack result = new ImageStack(s1.getWidth(), s1.getHeight());
+    for (int slice = 1; slice <= s1.getSize(); slice++) {
+      final float[] p1 = (float[]) s1.getPixels(slice);
+      final float[] p2 = (float[]) s2.getPixels(slice);
+      final float[] pixels = new float[p1.length];
+      for (int i = 0; i < pixels.length; i++) {
+        pixels[i] = p1[i] - p2[i];
+      }
+      result.addSlice(null, pixels);
+    }
+    return result;
+  }
+
+  /**
+   * Compute the next scale in the cascade.
+   */
+  private void computeNext() {
+    final int index = computed;
+    ImageStack previous = (index == 0) ? stack : levels[index - 1];
+    int factor = (index == 0) ? 1 : factors[index - 1];
+
+    if (index != 0 && downsample && variance >= MathUtils.pow2(2.0 * factor)
+        && previous.getWidth() >= 2 * MIN_SIZE && previous.getHeight() >= 2 * MIN_SIZE) {
+      previous = reduce(previous);
+      // The 2x2 mean has a variance of 0.25 pixels^2 at the previous resolution
+      variance += 0.25 * factor * factor;
+      factor *= 2;
+    }
+
+    // Incremental blur at the working resolution
+    final double target = MathUtils.pow2(sigmas[index]);
+    final double sigma = Math.sqrt(Math.max(0, target - variance)) / factor;
+    levels[index] = DifferenceOfGaussians.blur(previous, sigma, null, threads);
+    factors[index] = factor;
+    variance = target;
+    computed++;
+  }
+
+  /**
+   * Reduce the stack by a factor of 2 using a 2x2 mean. The last row/column is replicated for odd
+   * dimensions.
+   *
+   * @param stack the stack (float)
+   * @return the reduced stack
+   */
+  private static ImageStack reduce(ImageStack stack) {
+    final int width = stack.getWidth();
+    final int height = stack.getHeight();
+    final int w = (width + 1) / 2;
+    final int h = (height + 1) / 2;
+    final ImageStack result = new ImageStack(w, h);
+    for (int slice = 1; slice <= stack.getSize(); slice++) {
+      final float[] data = (float[]) stack.getPixels(slice);
+      final float[] pixels = new float[w * h];
+      for (int y = 0, i = 0; y < h; y++) {
+        final int y1 = 2 * y * width;
+        final int y2 = Math.min(2 * y + 1, height - 1) * width;
+        for (int x = 0; x < w; x++, i++) {
+          final int x1 = 2 * x;
+          final int x2 = Math.min(x1 + 1, width - 1);
+          pixels[i] = (data[y1 + x1] + data[y1 + x2] + data[y2 + x1] + data[y2 + x2]) * 0.25f;
+        }
+      }
+      result.addSlice(null, pixels);
+    }
+    return result;
+  }
+
+  /**
+   * Upsample the data using bilinear interpolation. The pixel centres are aligned, i.e. the centre
+   * of the output pixel x maps to ((x + 0.5) / factor - 0.5) in the input.
+   *
+   * @param data the data
+   * @param width the width
+   * @param height the height
+   * @param factor the factor
+   * @param outWidth the output width
+   * @param outHeight the output height
+   * @return the upsampled data
+   */
+  static float[] upsample(float[] data, int width, int height, int factor, int outWidth,
+      int outHeight) {
+    // Precompute the interpolation in x
+    final int[] x0 = new int[outWidth];
+    final int[] x1 = new int[outWidth];
+    final float[] wx = new float[outWidth];
+    for (int x = 0; x < outWidth; x++) {
+      final double u = MathUtils.clip(0, width - 1, (x + 0.5) / factor - 0.5);
+      x0[x] = (int) u;
+      x1[x] = Math.min(x0[x] + 1, width - 1);
+      wx[x] = (float) (u - x0[x]);
+    }
+    final float[] pixels = new float[outWidth * outHeight];
+    for (int y = 0, i = 0; y < outHeight; y++) {
+      final double v = MathUtils.clip(0, height - 1, (y + 0.5) / factor - 0.5);
+      final int y0 = (int) v;
+      final int row0 = y0 * width;
+      final int row1 = Math.min(y0 + 1, height - 1) * width;
+      final float wy = (float) (v - y0);
+      for (int x = 0; x < outWidth; x++, i++) {
+        final float a = data[row0 + x0[x]] + wx[x] * (data[row0 + x1[x]] - data[row0 + x0[x]]);
+        final float b = data[row1 + x0[x]] + wx[x] * (data[row1 + x1[x]] - data[row1 + x0[x]]);
+        pixels[i] = a + wy * (b - a);
+      }
+    }
+    return pixels;
+  }
+}
@@ -0,0 +1,359 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.utils;
+
+import ij.Prefs;
+import ij.plugin.filter.Convolver;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
+import uk.ac.sussex.gdsc.core.ij.process.Fht;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
+
+/**
+ * Convolves an image with a bank of square kernels, e.g. a kernel rotated through a set of
+ * angles.
+ *
+ * <p>The result of each kernel matches {@link FloatProcessor#convolve(float[], int, int)}: the
+ * kernel is normalised by its sum (if non-zero) and edge pixels are replicated outside the image.
+ *
+ * <p>The kernels are processed in parallel. Spatial convolution is used for small kernels and
+ * reproduces the ImageJ result exactly. For large kernels the convolution is performed in the
+ * frequency domain; the forward transform of the image is computed once and shared by all the
+ * kernels.
+ */
+final class KernelBankConvolver {
+  /** The relative cost of a frequency domain convolution per pixel per log2(pixels). */
+  private static final double FFT_COST = 4;
+
+  private final IntArrayList keys;
+  private final Int2ObjectOpenHashMap<float[]> kernels;
+  private final int kernelWidth;
+
+  /**
+   * Create a new instance.
+   *
+   * @param keys the keys of the kernels to process
+   * @param kernels the kernels
+   * @param kernelWidth the kernel width (must be odd)
+   */
+  KernelBankConvolver(IntArrayList keys, Int2ObjectOpenHashMap<float[]> kernels,
+      int kernelWidth) {
+    this.keys = keys;
+    this.kernels = kernels;
+    this.kernelWidth = kernelWidth;
+  }
+
+  /**
+   * Convolve the image with each kernel. The method is chosen using the size of the image and the
+   * kernel.
+   *
+   * @param ip the image
+   * @return the convolved images (or null if interrupted)
+   * @see #isFftFaster(int, int, int)
+   */
+  Int2ObjectOpenHashMap<FloatProcessor> convolve(ImageProcessor ip) {
+    return convolve(ip, Prefs.getThreads());
+  }
+
+  /**
+   * Convolve the image with each kernel using the specified number of threads. The method is
+   * chosen using the size of the image and the kernel.
+   *
+   * @param ip the image
+   * @param threads the maximum number of threads
+   * @return the convolved images (or null if interrupted)
+   * @see #isFftFaster(int, int, int)
+   */
+  Int2ObjectOpenHashMap<FloatProcessor> convolve(ImageProcessor ip, int threads) {
+    return convolve(ip, isFftFaster(ip.getWidth(), ip.getHeight(), kernelWidth), threads);
+  }
+
+  /**
+   * Convolve the image with each kernel.
+   *
+   * @param ip the image
+   * @param fft set to true to use frequency domain convolution
+   * @return the convolved images (or null if interrupted)
+   */
+  Int2ObjectOpenHashMap<FloatProcessor> convolve(ImageProcessor ip, boolean fft) {
+    return convolve(ip, fft, Prefs.getThreads());
+  }
+
+  /**
+   * Convolve the image with each kernel using the specified number of threads. If only one thread
+   * is used then the kernels are processed in the calling thread.
+   *
+   * @param ip the image
+   * @param fft set to true to use frequency domain convolution
+   * @param threads the maximum number of threads
+   * @return the convolved images (or null if interrupted)
+   */
+  Int2ObjectOpenHashMap<FloatProcessor> convolve(ImageProcessor ip, boolean fft, int threads) {
+    final int width = ip.getWidth();
+    final int height = ip.getHeight();
+    final FloatProcessor source = toFloat(ip);
+    final KernelFunction function =
+        fft ? createFftFunction(source) : createSpatialFunction(source);
+
+    final int size = keys.size();
+    final float[][] results = new float[size][];
+    final int threadCount = MathUtils.clip(1, size, threads);
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicBoolean stop = new AtomicBoolean();
+    final Runnable worker = () -> {
+      final Object buffer = function.createBuffer();
+      for (int index = next.getAndIncrement(); index < size && !stop.get();
+          index = next.getAndIncrement()) {
+        results[index] = function.apply(kernels.get(keys.getInt(index)), buffer);
+        if (ImageJUtils.isInterrupted()) {
+          stop.set(true);
+        }
+      }
+    };
+    if (threadCount == 1) {
+      worker.run();
+    } else {
+      final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+      final LocalList<Future<?>> futures = new LocalList<>(threadCount);
+      for (int i = 0; i < threadCount; i++) {
+        futures.add(executor.submit(worker));
+      }
+      executor.shutdown();
+      ConcurrencyUtils.waitForCompletionUnchecked(futures);
+    }
+    if (stop.get()) {
+      return null;
+    }
+
+    final Int2ObjectOpenHashMap<FloatProcessor> convolved = new Int2ObjectOpenHashMap<>(size);
+    for (int i = 0; i < size; i++) {
+      final FloatProcessor fp = new FloatProcessor(width, height, results[i], null);
+      fp.setMinAndMax(source.getMin(), source.getMax());
+      convolved.put(keys.getInt(i), fp);
+    }
+    return convolved;
+  }
+
+  /**
+   * Convert the image to a float processor. This is the image convolved by
+   * {@link FloatProcessor#convolve(float[], int, int)} in the per-kernel method; the display range
+   * of the result is retained by the convolution.
+   *
+   * @param ip the image
+   * @return the float processor
+   */
+  static FloatProcessor toFloat(ImageProcessor ip) {
+    return (ip instanceof FloatProcessor) ? (FloatProcessor) ip.duplicate() : ip.toFloat(0, null);
+  }
+
+  /**
+   * Checks if frequency domain convolution is expected to be faster than spatial convolution.
+   *
+   * <p>Spatial convolution costs {@code w * h * k * k} for each kernel. Frequency domain
+   * convolution costs approximately {@code n * log2(n)} for the forward transform of the kernel
+   * and the inverse transform of the product, where {@code n} is the size of the padded power of
+   * 2 square image.
+   *
+   * @param width the image width
+   * @param height the image height
+   * @param kernelWidth the kernel width
+   * @return true if FFT is faster
+   */
+  static boolean isFftFaster(int width, int height, int kernelWidth) {
+    final int maxN = getFftSize(width, height, kernelWidth);
+    final double n = (double) maxN * maxN;
+    final double spatialCost = (double) width * height * kernelWidth * kernelWidth;
+    final double fftCost = FFT_COST * n * (Math.log(n) / Math.log(2));
+    return spatialCost > fftCost;
+  }
+
+  /**
+   * Gets the size of the square power of 2 image that contains the image with a border of half
+   * the kernel width.
+   *
+   * @param width the image width
+   * @param height the image height
+   * @param kernelWidth the kernel width
+   * @return the size
+   */
+  private static int getFftSize(int width, int height, int kernelWidth) {
+    final int size = Math.max(width, height) + 2 * (kernelWidth / 2);
+    int maxN = 2;
+    while (maxN < size) {
+      maxN *= 2;
+    }
+    return maxN;
+  }
+
+  /**
+   * Define a function to convolve the image with a kernel.
+   */
+  private interface KernelFunction {
+    /**
+     * Creates the working buffer for a single thread.
+     *
+     * @return the buffer
+     */
+    Object createBuffer();
+
+    /**
+     * Convolve the image with the kernel.
+     *
+     * @param kernel the kernel
+     * @param buffer the working buffer
+     * @return the result
+     */
+    float[] apply(float[] kernel, Object buffer);
+  }
+
+  /**
+   * Creates the spatial convolution function. The image is padded once with replicated edge
+   * pixels so the inner loop does not require bounds checks.
+   *
+   * @param fp the image
+   * @return the function
+   */
+  private KernelFunction createSpatialFunction(FloatProcessor fp) {
+    final int width = fp.getWidth();
+    final int height = fp.getHeight();
+    final int kw = kernelWidth;
+    final int hw = kw / 2;
+    final int pw = width + 2 * hw;
+    final float[] padded = pad(fp, pw, height + 2 * hw, hw);
+    return new KernelFunction() {
+      @Override
+      public Object createBuffer() {
+        return null;
+      }
+
+      @Override
+      public float[] apply(float[] kernel, Object buffer) {
+        final double scale = Convolver.getScale(kernel);
+        final float[] pixels = new float[width * height];
+        for (int y = 0, index = 0; y < height; y++) {
+          for (int x = 0; x < width; x++, index++) {
+            // Same summation order as the ImageJ Convolver
+            double sum = 0;
+            int i = 0;
+            for (int v = 0; v < kw; v++) {
+              final int offset = (y + v) * pw + x;
+              for (int u = 0; u < kw; u++) {
+                sum += padded[offset + u] * kernel[i++];
+              }
+            }
+            pixels[index] = (float) (sum * scale);
+          }
+        }
+        return pixels;
+      }
+    };
+  }
+
+  /**
+   * Creates the frequency domain convolution function. The image is padded with replicated edge
+   * pixels to a power of 2 square size and transformed once.
+   *
+   * @param fp the image
+   * @return the function
+   */
+  private KernelFunction createFftFunction(FloatProcessor fp) {
+    final int width = fp.getWidth();
+    final int height = fp.getHeight();
+    final int kw = kernelWidth;
+    final int hw = kw / 2;
+    final int maxN = getFftSize(width, height, kw);
+    final Fht imageFht = new Fht(pad(fp, maxN, maxN, hw), maxN, false);
+    imageFht.transform();
+    imageFht.initialiseFastMultiply();
+    return new KernelFunction() {
+      @Override
+      public Object createBuffer() {
+        return new float[maxN * maxN];
+      }
+
+      @Override
+      public float[] apply(float[] kernel, Object buffer) {
+        final double scale = Convolver.getScale(kernel);
+        // Place the kernel centre at the origin with wrapping. The correlation of the image with
+        // the kernel is then the ImageJ convolution.
+        final float[] data = new float[maxN * maxN];
+        for (int v = -hw, i = 0; v <= hw; v++) {
+          final int offset = ((v + maxN) % maxN) * maxN;
+          for (int u = -hw; u <= hw; u++) {
+            data[offset + (u + maxN) % maxN] = kernel[i++];
+          }
+        }
+        final Fht kernelFht = new Fht(data, maxN, false);
+        kernelFht.copyTables(imageFht);
+        kernelFht.transform();
+        final Fht result = imageFht.conjugateMultiply(kernelFht, (float[]) buffer);
+        result.copyTables(imageFht);
+        result.inverseTransform();
+        final float[] transformed = result.getData();
+        final float[] pixels = new float[width * height];
+        for (int y = 0, index = 0; y < height; y++) {
+          for (int x = 0, i = (y + hw) * maxN + hw; x < width; x++, index++, i++) {
+            pixels[index] = (float) (transformed[i] * scale);
+          }
+        }
+        return pixels;
+      }
+    };
+  }
+
+  /**
+   * Pad the image using replicated edge pixels. The image is inserted at the given border offset
+   * and all other pixels take the value of the closest image pixel.
+   *
+   * @param fp the image
+   * @param paddedWidth the padded width
+   * @param paddedHeight the padded height
+   * @param border the border
+   * @return the padded data
+   */
+  private static float[] pad(FloatProcessor fp, int paddedWidth, int paddedHeight, int border) {
+    final int width = fp.getWidth();
+    final int height = fp.getHeight();
+    final float[] pixels = (float[]) fp.getPixels();
+    final float[] padded = new float[paddedWidth * paddedHeight];
+    for (int y = 0, i = 0; y < paddedHeight; y++) {
+      final int offset = MathUtils.clip(0, height - 1, y - border) * width;
+      for (int x = 0; x < paddedWidth; x++, i++) {
+        padded[i] = pixels[offset + MathUtils.clip(0, width - 1, x - border)];
+      }
+    }
+    return padded;
+  }
+}
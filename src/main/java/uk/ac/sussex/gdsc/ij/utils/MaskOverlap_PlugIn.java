@@ -27,28 +27,50 @@ package uk.ac.sussex.gdsc.ij.utils;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.BiConsumer;
-import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.function.Predicate;
-import java.util.function.ToDoubleBiFunction;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
 import uk.ac.sussex.gdsc.core.ij.SimpleImageJTrackProgress;
 import uk.ac.sussex.gdsc.core.ij.gui.ExtendedGenericDialog;
+import uk.ac.sussex.gdsc.core.logging.Ticker;
 import uk.ac.sussex.gdsc.core.match.Matchings;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
 import uk.ac.sussex.gdsc.core.utils.SimpleArrayUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 
 /**
  * Relabels mask image using overlap between z and/or t dimensions.
+ *
+ * <p>The overlap between objects in adjacent frames is counted in a single scan of the pixels
+ * using a sparse map of the overlapping label pairs. Matching is performed only between objects
+ * that overlap. The overlap of independent frame pairs is computed in parallel; the new labels are
+ * then assigned in order through each series.
  */
 public class MaskOverlap_PlugIn implements PlugIn {
   private static final String TITLE = "Mask Overlap";
+  /** The maximum label that can be exactly represented in a 32-bit float image. */
+  private static final int MAX_FLOAT_LABEL = 1 << 24;
+  /** The distance for objects that do not overlap. This is above any matching threshold. */
+  private static final double NO_OVERLAP = 2;
   private ImagePlus imp;
   /** The current settings for the plugin instance. */
   private Settings settings;
@@ -144,7 +166,8 @@ public class MaskOverlap_PlugIn implements PlugIn {
     gd.addMessage("Relabels mask image using overlap between z and/or t dimensions.");
 
     final Predicate<ImagePlus> filter =
-        imp -> imp.getBitDepth() == 16 && (imp.getNFrames() > 1 || imp.getNSlices() > 1);
+        imp -> (imp.getBitDepth() == 16 || imp.getBitDepth() == 32)
+            && (imp.getNFrames() > 1 || imp.getNSlices() > 1);
     final String[] maskList = ImageJUtils.getImageList(filter);
 
     settings = Settings.load();
@@ -184,42 +207,60 @@ public class MaskOverlap_PlugIn implements PlugIn {
     final int[] channels = getChannels();
     final int nz = imp.getNSlices();
     final int nt = imp.getNFrames();
+    final boolean minimumDistance = settings.method == Settings.MINIMUM_DISTANCE;
+    final int threads = Prefs.getThreads();
+
+    // Labels for each stack slice of the processed channels
+    final int[][] labels = new int[stack.getSize()][];
+    for (final int c : channels) {
+      for (int t = 1; t <= nt; t++) {
+        for (int z = 1; z <= nz; z++) {
+          final int index = imp.getStackIndex(c, z, t);
+          labels[index - 1] = getLabels(stack.getProcessor(index));
+        }
+      }
+    }
+
     if (settings.doZ) {
       progress.status("Overlap slices");
-      final int total = channels.length * imp.getNFrames() * (imp.getNSlices() - 1);
-      int count = 0;
-      final short[] nextId = {0};
+      // Each z-stack is a series of single slice frames
+      final LocalList<List<int[][]>> series = new LocalList<>();
       for (final int c : channels) {
         for (int t = 1; t <= nt; t++) {
-          short[] m2 = (short[]) stack.getProcessor(imp.getStackIndex(c, 1, t)).getPixels();
-          for (int z = 2; z <= nz; z++) {
-            progress.progress(count++, total);
-            final short[] m1 = m2;
-            m2 = (short[]) stack.getProcessor(imp.getStackIndex(c, z, t)).getPixels();
-            overlapAnalysis(m1, m2, nextId);
+          final LocalList<int[][]> frames = new LocalList<>(nz);
+          for (int z = 1; z <= nz; z++) {
+            frames.add(new int[][] {labels[imp.getStackIndex(c, z, t) - 1]});
           }
+          series.add(frames);
         }
       }
-      progress.progress(1);
+      final Ticker ticker = Ticker.createStarted(progress,
+          (long) channels.length * nt * (nz - 1), threads > 1);
+      relabel(series, settings.iouThreshold, minimumDistance, threads, ticker);
+      ticker.stop();
     }
     if (settings.doT) {
       progress.status("Overlap frames");
-      final int total = channels.length * (imp.getNFrames() - 1);
-      int count = 0;
-      final short[] nextId = {0};
+      // Each timepoint is a frame of the z-stack slices
+      final LocalList<List<int[][]>> series = new LocalList<>();
       for (final int c : channels) {
-        // Extract first mask
-        short[] m2 = getTimepoint(stack, c, 1);
-        for (int t = 2; t <= nt; t++) {
-          progress.progress(count++, total);
-          final short[] m1 = m2;
-          m2 = getTimepoint(stack, c, t);
-          overlapAnalysis(m1, m2, nextId);
-          setTimepoint(stack, c, t, m2);
+        final LocalList<int[][]> frames = new LocalList<>(nt);
+        for (int t = 1; t <= nt; t++) {
+          final int[][] frame = new int[nz][];
+          for (int z = 1; z <= nz; z++) {
+            frame[z - 1] = labels[imp.getStackIndex(c, z, t) - 1];
+          }
+          frames.add(frame);
         }
+        series.add(frames);
       }
-      progress.progress(1);
+      final Ticker ticker =
+          Ticker.createStarted(progress, (long) channels.length * (nt - 1), threads > 1);
+      relabel(series, settings.iouThreshold, minimumDistance, threads, ticker);
+      ticker.stop();
     }
+
+    setLabels(stack, labels);
   }
 
   /**
@@ -235,185 +276,483 @@ public class MaskOverlap_PlugIn implements PlugIn {
   }
 
   /**
-   * Gets the timepoint z-stack as a single array.
+   * Gets the labels from the 16-bit or 32-bit image.
    *
-   * @param stack the image stack
-   * @param c the channel
-   * @param t the timepoint
-   * @return the image data
+   * @param ip the image
+   * @return the labels
    */
-  private short[] getTimepoint(ImageStack stack, int c, int t) {
-    final int size = imp.getWidth() * imp.getHeight();
-    final int nz = imp.getNSlices();
-    final short[] data = new short[nz * size];
-    for (int z = 0; z < nz; z++) {
-      final short[] m = (short[]) stack.getProcessor(imp.getStackIndex(c, z + 1, t)).getPixels();
-      System.arraycopy(m, 0, data, z * size, size);
+  private static int[] getLabels(ImageProcessor ip) {
+    final int[] data = new int[ip.getPixelCount()];
+    final Object pixels = ip.getPixels();
+    if (pixels instanceof short[]) {
+      final short[] s = (short[]) pixels;
+      for (int i = 0; i < data.length; i++) {
+        data[i] = s[i] & 0xffff;
+      }
+    } else {
+      final float[] f = (float[]) pixels;
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (int) f[i];
+      }
     }
     return data;
   }
 
   /**
-   * Sets the timepoint z-stack as a single array.
+   * Sets the labels into the image. If the labels exceed the range of a 16-bit image then the
+   * image is converted to 32-bit.
    *
    * @param stack the image stack
-   * @param c the channel
-   * @param t the timepoint
-   * @param the image data
+   * @param labels the labels for each processed slice (unprocessed slices are null)
+   * @throws IllegalStateException if the labels cannot be represented in a 32-bit image
    */
-  private void setTimepoint(ImageStack stack, int c, int t, short[] data) {
-    final int size = imp.getWidth() * imp.getHeight();
-    final int nz = imp.getNSlices();
-    for (int z = 0; z < nz; z++) {
-      final short[] m = (short[]) stack.getProcessor(imp.getStackIndex(c, z + 1, t)).getPixels();
-      System.arraycopy(data, z * size, m, 0, size);
+  private void setLabels(ImageStack stack, int[][] labels) {
+    int max = 0;
+    for (final int[] data : labels) {
+      if (data != null) {
+        max = Math.max(max, MathUtils.max(data));
+      }
+    }
+    if (max > MAX_FLOAT_LABEL) {
+      throw new IllegalStateException("Too many objects (2^24)");
+    }
+
+    if (max > 0xffff && imp.getBitDepth() == 16) {
+      ImageJUtils.log("%s: %s has %d labels; converting to 32-bit", TITLE, imp.getTitle(), max);
+      final ImageStack stack2 = new ImageStack(stack.getWidth(), stack.getHeight());
+      for (int i = 0; i < labels.length; i++) {
+        final ImageProcessor ip = stack.getProcessor(i + 1);
+        final FloatProcessor fp = labels[i] == null ? ip.convertToFloatProcessor()
+            : new FloatProcessor(ip.getWidth(), ip.getHeight(), labels[i]);
+        stack2.addSlice(stack.getSliceLabel(i + 1), fp);
+      }
+      imp.setStack(stack2);
+      imp.resetDisplayRange();
+      return;
+    }
+
+    for (int i = 0; i < labels.length; i++) {
+      final int[] data = labels[i];
+      if (data == null) {
+        continue;
+      }
+      final Object pixels = stack.getPixels(i + 1);
+      if (pixels instanceof short[]) {
+        final short[] s = (short[]) pixels;
+        for (int j = 0; j < data.length; j++) {
+          s[j] = (short) data[j];
+        }
+      } else {
+        final float[] f = (float[]) pixels;
+        for (int j = 0; j < data.length; j++) {
+          f[j] = data[j];
+        }
+      }
     }
   }
 
   /**
-   * Maps overlapping objects in the second mask to the first mask. The maximum ID is the maximum of
-   * all IDs from previous overlap analysis through the series.
+   * Relabel each series of frames using the overlap of objects between adjacent frames. Objects in
+   * a frame that match an object in the previous frame are assigned the label of that object.
+   * Unmatched objects are assigned a new label that is above all labels observed in the analysis.
    *
-   * @param m1 the first mask
-   * @param m2 the second mask
-   * @param nextId the maximum id
+   * <p>A frame is one or more slices of labels. The labels are updated in place.
+   *
+   * <p>The overlap of all frame pairs is computed in parallel. The labels are then assigned
+   * sequentially through each series in order and the frames relabelled in parallel.
+   *
+   * @param series the series of frames
+   * @param iouThreshold the intersection-over-union (IoU) threshold for matching
+   * @param minimumDistance set to true to use the minimum distance matching; otherwise use the
+   *        nearest neighbour matching
+   * @param threads the number of threads
+   * @param ticker the ticker to track progress of each frame pair
    */
-  private void overlapAnalysis(short[] m1, short[] m2, short[] nextId) {
-    final int[] h1 = histogram(m1);
-    final int[] h2 = histogram(m2);
-    final int min1 = minNonZeroIndex(h1);
-    final int min2 = minNonZeroIndex(h2);
-    if ((min1 | min2) < 0) {
-      // No objects in at least 1 frame
-      return;
+  @VisibleForTesting
+  static void relabel(List<List<int[][]>> series, double iouThreshold, boolean minimumDistance,
+      int threads, Ticker ticker) {
+    final LocalList<Frame> frames = new LocalList<>();
+    for (final List<int[][]> list : series) {
+      for (final int[][] data : list) {
+        frames.add(new Frame(data));
+      }
     }
-    final int max1 = maxNonZeroIndex(h1);
-    final int max2 = maxNonZeroIndex(h2);
+    final int threadCount = MathUtils.clip(1, Math.max(1, frames.size()), threads);
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      // Objects in each frame
+      forEach(executor, frames.size(), i -> frames.unsafeGet(i).initialise());
+
+      // Match each frame to the previous frame in the series
+      final Match[] matches = new Match[frames.size()];
+      final double threshold = 1 - iouThreshold;
+      final LocalList<Future<?>> futures = new LocalList<>();
+      int index = 0;
+      for (final List<int[][]> list : series) {
+        for (int i = 1; i < list.size(); i++) {
+          final Frame f1 = frames.unsafeGet(index + i - 1);
+          final Frame f2 = frames.unsafeGet(index + i);
+          final int pair = index + i;
+          futures.add(executor.submit(() -> {
+            matches[pair] = match(f1, f2, threshold, minimumDistance);
+            ticker.tick();
+          }));
+        }
+        index += list.size();
+      }
+      ConcurrencyUtils.waitForCompletionUnchecked(futures);
+
+      // Assign labels through each series
+      final int[] nextId = {0};
+      index = 0;
+      for (final List<int[][]> list : series) {
+        Frame f1 = frames.unsafeGet(index);
+        f1.newLabels = f1.objects;
+        for (int i = 1; i < list.size(); i++) {
+          final Frame f2 = frames.unsafeGet(index + i);
+          assignLabels(f1, f2, matches[index + i], nextId);
+          f1 = f2;
+        }
+        index += list.size();
+      }
 
-    // Overlap matrix can be very large so compact using the min/max range
-    // for mask 1 and compress mask 2 to contiguous sequence.
+      forEach(executor, frames.size(), i -> frames.unsafeGet(i).relabel());
+    } finally {
+      executor.shutdown();
+    }
+  }
 
-    // Compress mask 2 to contiguous sequence
-    final short[] label = new short[max2 + 1];
-    int id2 = 0;
-    for (int i = min2; i <= max2; i++) {
-      if (h2[i] != 0) {
-        label[i] = (short) ++id2;
-        // Update histogram for new ID
-        h2[id2] = h2[i];
+  /**
+   * Run the task for each index in parallel.
+   *
+   * @param executor the executor
+   * @param size the number of tasks
+   * @param task the task
+   */
+  private static void forEach(ExecutorService executor, int size, IntConsumer task) {
+    final LocalList<Future<?>> futures = new LocalList<>(size);
+    for (int i = 0; i < size; i++) {
+      final int index = i;
+      futures.add(executor.submit(() -> task.accept(index)));
+    }
+    ConcurrencyUtils.waitForCompletionUnchecked(futures);
+  }
+
+  /**
+   * Contains the labels of a frame.
+   */
+  private static class Frame {
+    /** The label data for each slice. */
+    final int[][] data;
+    /** The object labels (sorted). */
+    int[] objects;
+    /** The size of each object. */
+    int[] sizes;
+    /** The new label of each object. */
+    int[] newLabels;
+
+    /**
+     * Create an instance.
+     *
+     * @param data the data
+     */
+    Frame(int[][] data) {
+      this.data = data;
+    }
+
+    /**
+     * Initialise the objects and their sizes.
+     */
+    void initialise() {
+      final Int2IntOpenHashMap counts = new Int2IntOpenHashMap();
+      for (final int[] slice : data) {
+        // Count runs of the same label
+        int label = 0;
+        int count = 0;
+        for (final int value : slice) {
+          if (value != label) {
+            if (label != 0) {
+              counts.addTo(label, count);
+            }
+            label = value;
+            count = 0;
+          }
+          count++;
+        }
+        if (label != 0) {
+          counts.addTo(label, count);
+        }
       }
+      objects = counts.keySet().toIntArray();
+      Arrays.sort(objects);
+      sizes = new int[objects.length];
+      for (int i = 0; i < objects.length; i++) {
+        sizes[i] = counts.get(objects[i]);
+      }
+    }
+
+    /**
+     * Gets the index of the object with the label.
+     *
+     * @param label the label
+     * @return the index
+     */
+    int indexOf(int label) {
+      return Arrays.binarySearch(objects, label);
     }
-    relabel(m2, label);
 
-    // Sparse matrix
-    final int m2size = id2 + 1;
-    final int[][] overlap = IntStream.rangeClosed(min1, max1)
-        .mapToObj(i -> h1[i] == 0 ? null : new int[m2size]).toArray(int[][]::new);
-    for (int i = 0; i < m1.length; i++) {
-      if (m1[i] != 0 && m2[i] != 0) {
-        overlap[m1[i] - min1][m2[i]]++;
+    /**
+     * Replace the object labels with the new labels.
+     */
+    void relabel() {
+      for (final int[] slice : data) {
+        int label = 0;
+        int newLabel = 0;
+        for (int i = 0; i < slice.length; i++) {
+          final int value = slice[i];
+          if (value != 0) {
+            if (value != label) {
+              label = value;
+              newLabel = newLabels[indexOf(value)];
+            }
+            slice[i] = newLabel;
+          }
+        }
       }
     }
-    // Mask 1 indices may not be contiguous so filter zero counts
-    final List<Integer> verticesA = IntStream.rangeClosed(min1, max1).filter(i -> h1[i] != 0)
-        .boxed().collect(Collectors.toList());
-    final List<Integer> verticesB =
-        IntStream.rangeClosed(1, id2).boxed().collect(Collectors.toList());
-    // a = mask1 index
-    // b = mask2 index
-    final ToDoubleBiFunction<Integer, Integer> edges = (a, b) -> {
-      final int intersection = overlap[a - min1][b];
-      final double union = (double) h1[a] + h2[b] - intersection;
-      final double iou = intersection / union;
-      return 1 - iou;
-    };
-    final short[] relabel = new short[m2size];
-    final BiConsumer<Integer, Integer> matched = (a, b) -> relabel[b] = a.shortValue();
-    // Any unmatched objects must have a unique ID.
-    // Set to the maximum of all observed IDs.
-    // This supports up to 2^16 objects if original masks are labelled with consecutive IDs.
-    nextId[0] = (short) Math.max(max1, nextId[0] & 0xffff);
-    final Consumer<Integer> unmatchedB = b -> relabel[b] = incrementUnsignedId(nextId);
-    if (settings.method == Settings.MINIMUM_DISTANCE) {
-      Matchings.minimumDistance(verticesA, verticesB, edges, 1 - settings.iouThreshold, matched,
-          null, unmatchedB);
-    } else {
-      Matchings.nearestNeighbour(verticesA, verticesB, edges, 1 - settings.iouThreshold, matched,
-          null, unmatchedB);
+  }
+
+  /**
+   * Contains the matches of objects in a frame to objects in the previous frame.
+   */
+  private static class Match {
+    /** The index of the matched object in the previous frame for each object (or -1). */
+    final int[] matched;
+
+    /**
+     * Create an instance.
+     *
+     * @param size the number of objects
+     */
+    Match(int size) {
+      matched = new int[size];
+      Arrays.fill(matched, -1);
     }
-    relabel(m2, relabel);
   }
 
   /**
-   * Histogram the unsigned 16-bit image.
+   * Match the objects in the second frame to the first frame using the overlap. Only objects that
+   * overlap are matched. The distance is {@code 1 - IoU} (intersection-over-union).
    *
-   * @param image the image
-   * @return the histogram
+   * @param f1 the first frame
+   * @param f2 the second frame
+   * @param threshold the distance threshold
+   * @param minimumDistance set to true to use the minimum distance matching
+   * @return the match (or null if a frame has no objects)
    */
-  private static int[] histogram(short[] image) {
-    final int[] h = new int[1 << 16];
-    for (int i = 0; i < image.length; i++) {
-      h[image[i] & 0xffff]++;
+  private static Match match(Frame f1, Frame f2, double threshold, boolean minimumDistance) {
+    if (f1.objects.length == 0 || f2.objects.length == 0) {
+      return null;
     }
-    return h;
+
+    // Count the overlap of each pair of labels. Runs of the same pair are counted together.
+    final Long2IntOpenHashMap overlap = new Long2IntOpenHashMap();
+    for (int s = 0; s < f1.data.length; s++) {
+      final int[] m1 = f1.data[s];
+      final int[] m2 = f2.data[s];
+      long key = 0;
+      int count = 0;
+      for (int i = 0; i < m1.length; i++) {
+        if (m1[i] != 0 && m2[i] != 0) {
+          final long next = ((long) m1[i] << 32) | (m2[i] & 0xffffffffL);
+          if (next != key) {
+            if (count != 0) {
+              overlap.addTo(key, count);
+            }
+            key = next;
+            count = 0;
+          }
+          count++;
+        }
+      }
+      if (count != 0) {
+        overlap.addTo(key, count);
+      }
+    }
+
+    // Edges within the threshold using the object indices
+    final int size = overlap.size();
+    final int[] edgeA = new int[size];
+    final int[] edgeB = new int[size];
+    final double[] distance = new double[size];
+    int edges = 0;
+    for (final Long2IntMap.Entry e : overlap.long2IntEntrySet()) {
+      final long key = e.getLongKey();
+      final int a = f1.indexOf((int) (key >>> 32));
+      final int b = f2.indexOf((int) key);
+      final int intersection = e.getIntValue();
+      final double union = (double) f1.sizes[a] + f2.sizes[b] - intersection;
+      final double d = 1 - intersection / union;
+      if (d <= threshold) {
+        edgeA[edges] = a;
+        edgeB[edges] = b;
+        distance[edges] = d;
+        edges++;
+      }
+    }
+
+    final Match match = new Match(f2.objects.length);
+    if (minimumDistance) {
+      minimumDistance(f1.objects.length, edgeA, edgeB, distance, edges, threshold, match);
+    } else {
+      nearestNeighbour(f1.objects.length, edgeA, edgeB, distance, edges, match);
+    }
+    return match;
   }
 
   /**
-   * Return the minimum non zero index.
+   * Match the closest pairs in order of distance.
    *
-   * @param data the data
-   * @return the index (or -1)
+   * @param sizeA the number of objects in the first frame
+   * @param edgeA the first object of each edge
+   * @param edgeB the second object of each edge
+   * @param distance the distance of each edge
+   * @param edges the number of edges
+   * @param match the match
    */
-  private static int minNonZeroIndex(int[] data) {
-    final int len = data.length;
-    for (int i = 1; i < len; i++) {
-      if (data[i] != 0) {
-        return i;
+  private static void nearestNeighbour(int sizeA, int[] edgeA, int[] edgeB, double[] distance,
+      int edges, Match match) {
+    // Sort by distance then object order
+    final int[] order = SimpleArrayUtils.natural(edges);
+    IntArrays.quickSort(order, (i, j) -> {
+      final int result = Double.compare(distance[i], distance[j]);
+      if (result != 0) {
+        return result;
+      }
+      return edgeA[i] == edgeA[j] ? Integer.compare(edgeB[i], edgeB[j])
+          : Integer.compare(edgeA[i], edgeA[j]);
+    });
+    final boolean[] assignedA = new boolean[sizeA];
+    for (final int i : order) {
+      final int a = edgeA[i];
+      final int b = edgeB[i];
+      if (!assignedA[a] && match.matched[b] < 0) {
+        assignedA[a] = true;
+        match.matched[b] = a;
       }
     }
-    return -1;
   }
 
   /**
-   * Return the maximum non zero index.
+   * Match the pairs to minimise the total distance. The overlap graph is divided into connected
+   * components which are matched independently.
    *
-   * @param data the data
-   * @return the index (or -1)
+   * @param sizeA the number of objects in the first frame
+   * @param edgeA the first object of each edge
+   * @param edgeB the second object of each edge
+   * @param distance the distance of each edge
+   * @param edges the number of edges
+   * @param threshold the distance threshold
+   * @param match the match
    */
-  private static int maxNonZeroIndex(int[] data) {
-    for (int i = data.length; --i > 0;) {
-      if (data[i] != 0) {
-        return i;
+  private static void minimumDistance(int sizeA, int[] edgeA, int[] edgeB, double[] distance,
+      int edges, double threshold, Match match) {
+    // Union-find of the objects: A objects then B objects
+    final int[] parent = SimpleArrayUtils.natural(sizeA + match.matched.length);
+    for (int i = 0; i < edges; i++) {
+      final int r1 = find(parent, edgeA[i]);
+      final int r2 = find(parent, sizeA + edgeB[i]);
+      parent[Math.max(r1, r2)] = Math.min(r1, r2);
+    }
+
+    // Group the edges by component
+    final Int2IntOpenHashMap componentSize = new Int2IntOpenHashMap();
+    for (int i = 0; i < edges; i++) {
+      componentSize.addTo(find(parent, edgeA[i]), 1);
+    }
+    final int[] order = SimpleArrayUtils.natural(edges);
+    IntArrays.quickSort(order, (i, j) -> {
+      final int ri = find(parent, edgeA[i]);
+      final int rj = find(parent, edgeA[j]);
+      return ri == rj ? Integer.compare(i, j) : Integer.compare(ri, rj);
+    });
+
+    for (int start = 0; start < edges;) {
+      final int root = find(parent, edgeA[order[start]]);
+      final int end = start + componentSize.get(root);
+      if (end - start == 1) {
+        // Single overlap within the threshold
+        match.matched[edgeB[order[start]]] = edgeA[order[start]];
+      } else {
+        final LocalList<Integer> verticesA = new LocalList<>();
+        final LocalList<Integer> verticesB = new LocalList<>();
+        final Long2DoubleOpenHashMap distances = new Long2DoubleOpenHashMap();
+        distances.defaultReturnValue(NO_OVERLAP);
+        for (int k = start; k < end; k++) {
+          final int i = order[k];
+          if (!verticesA.contains(edgeA[i])) {
+            verticesA.add(edgeA[i]);
+          }
+          if (!verticesB.contains(edgeB[i])) {
+            verticesB.add(edgeB[i]);
+          }
+          distances.put(((long) edgeA[i] << 32) | edgeB[i], distance[i]);
+        }
+        verticesA.sort(Integer::compare);
+        verticesB.sort(Integer::compare);
+        Matchings.minimumDistance(verticesA, verticesB,
+            (a, b) -> distances.get(((long) a << 32) | b), threshold,
+            (a, b) -> match.matched[b] = a, null, b -> {
+              // Ignore
+            });
       }
+      start = end;
     }
-    return -1;
   }
 
   /**
-   * Relabel the data.
+   * Find the root of the set.
    *
-   * @param data the data
-   * @param label the labels
+   * @param parent the parent of each element
+   * @param index the index
+   * @return the root
    */
-  private void relabel(short[] data, final short[] label) {
-    for (int i = 0; i < data.length; i++) {
-      data[i] = label[data[i] & 0xffff];
+  private static int find(int[] parent, int index) {
+    int root = index;
+    while (parent[root] != root) {
+      root = parent[root];
+    }
+    // Path compression
+    while (parent[index] != root) {
+      final int next = parent[index];
+      parent[index] = root;
+      index = next;
     }
+    return root;
   }
 
   /**
-   * Increment the unsigned id.
+   * Assign the new labels to the objects in the second frame. Matched objects take the label of
+   * the object in the first frame. Unmatched objects are assigned a unique label above the maximum
+   * of all labels in the analysis.
    *
-   * @param id the id
-   * @return the short
-   * @throws IllegalStateException if the next ID is zero
+   * @param f1 the first frame (with new labels assigned)
+   * @param f2 the second frame
+   * @param match the match (or null if a frame has no objects)
+   * @param nextId the maximum id
    */
-  private short incrementUnsignedId(short[] id) {
-    final short next = (short) (id[0] + 1);
-    if (next == 0) {
-      throw new IllegalStateException("Too many objects (2^16)");
+  private static void assignLabels(Frame f1, Frame f2, Match match, int[] nextId) {
+    if (match == null) {
+      // No objects in at least 1 frame: labels are unchanged
+      f2.newLabels = f2.objects;
+      return;
+    }
+    nextId[0] = Math.max(MathUtils.max(f1.newLabels), nextId[0]);
+    final int[] newLabels = new int[f2.objects.length];
+    for (int b = 0; b < newLabels.length; b++) {
+      final int a = match.matched[b];
+      newLabels[b] = a < 0 ? ++nextId[0] : f1.newLabels[a];
     }
-    id[0] = next;
-    return next;
+    f2.newLabels = newLabels;
   }
 }
@@ -26,6 +26,7 @@ package uk.ac.sussex.gdsc.ij.utils;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.plugin.filter.ExtendedPlugInFilter;
@@ -176,8 +177,12 @@ public class MaskToBorder_PlugIn implements ExtendedPlugInFilter, DialogListener
     // Test creating a ring around each object
     final ImageProcessor ip1 = ip.duplicate();
     final ImageProcessor ip2 = ip.duplicate();
-    new ObjectExpander(ip1).expand(settings.outer);
-    new ObjectEroder(ip2, settings.extend).erode(settings.inner);
+    final ObjectExpander expander = new ObjectExpander(ip1);
+    expander.setThreads(Prefs.getThreads());
+    expander.expand(settings.outer);
+    final ObjectEroder eroder = new ObjectEroder(ip2, settings.extend);
+    eroder.setThreads(Prefs.getThreads());
+    eroder.erode(settings.inner);
     for (int i = ip.getPixelCount(); i-- > 0;) {
       if (ip1.get(i) > ip2.get(i)) {
         ip.set(i, ip1.get(i));
@@ -0,0 +1,376 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.utils;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+
+/**
+ * Performs coarse-to-fine image registration using XY translation on a Gaussian pyramid.
+ *
+ * <p>The shift is estimated on the most downsampled level of the pyramid. The estimate is then
+ * refined at each finer level by searching only a small window around the up-scaled shift. The
+ * correlation surface around the final integer shift is used for sub-pixel refinement.
+ *
+ * <p>The reference pyramid is computed once on construction and is read-only. Instances can be
+ * shared between threads.
+ */
+final class PyramidRegistration {
+  /** The half-width of the search window at each finer level. */
+  private static final int SEARCH_RADIUS = 2;
+  /** The maximum number of times the search window is moved at a level to find a maximum. */
+  private static final int MAX_WINDOW_MOVES = 4;
+  /** The target shift range at the coarsest level. */
+  private static final int COARSE_RANGE = 16;
+  /** The minimum dimension of the coarsest level. */
+  private static final int MIN_SIZE = 32;
+
+  private final FloatProcessor[] reference;
+  private final ByteProcessor[] mask;
+
+  /**
+   * Define the coarse search used on the most downsampled level of the pyramid.
+   */
+  @FunctionalInterface
+  interface CoarseSearch {
+    /**
+     * Find the integer shift that maximises the correlation of the target to the reference.
+     *
+     * @param level the pyramid level
+     * @param target the target image at the pyramid level
+     * @param bounds the translation bounds at the pyramid level
+     * @return the shift {x, y}
+     */
+    int[] search(int level, FloatProcessor target, Rectangle bounds);
+  }
+
+  /**
+   * Create a new instance.
+   *
+   * @param refIp the reference image
+   * @param maskIp the reference image mask (can be null)
+   * @param levels the number of downsampled levels
+   */
+  PyramidRegistration(ImageProcessor refIp, ImageProcessor maskIp, int levels) {
+    reference = createPyramid(refIp, levels);
+    mask = maskIp == null ? null : createMaskPyramid(maskIp, levels);
+  }
+
+  /**
+   * Gets the number of downsampled levels.
+   *
+   * @return the levels
+   */
+  int getLevels() {
+    return reference.length - 1;
+  }
+
+  /**
+   * Gets the reference image at the pyramid level.
+   *
+   * @param level the level
+   * @return the reference
+   */
+  FloatProcessor getReference(int level) {
+    return reference[level];
+  }
+
+  /**
+   * Gets the number of pyramid levels required to reduce the translation range to a small window.
+   * The image dimensions at the coarsest level are not reduced below a minimum size.
+   *
+   * @param width the image width
+   * @param height the image height
+   * @param bounds the translation bounds
+   * @return the levels
+   */
+  static int getLevels(int width, int height, Rectangle bounds) {
+    final int range = Math.max(bounds.width, bounds.height);
+    int levels = 0;
+    final int size = Math.min(width, height);
+    while ((range >> levels) > COARSE_RANGE && (size >> (levels + 1)) >= MIN_SIZE) {
+      levels++;
+    }
+    return levels;
+  }
+
+  /**
+   * Gets the default translation bounds for the images. This restricts the translation so that at
+   * least half of the smaller image width/height is within the larger image.
+   *
+   * @param refIp the reference image
+   * @param targetIp the target image
+   * @return the bounds
+   */
+  static Rectangle getDefaultBounds(ImageProcessor refIp, ImageProcessor targetIp) {
+    final int halfWidth = Math.min(refIp.getWidth(), targetIp.getWidth()) / 2;
+    final int halfHeight = Math.min(refIp.getHeight(), targetIp.getHeight()) / 2;
+    return new Rectangle(-halfWidth, -halfHeight, 2 * halfWidth, 2 * halfHeight);
+  }
+
+  /**
+   * Align the target to the reference.
+   *
+   * <p>The sub-pixel method uses {@code 0} for none, {@code 1} for the cubic fit and {@code 2} for
+   * the Gaussian fit.
+   *
+   * @param targetIp the target image
+   * @param bounds the translation bounds
+   * @param subPixelMethod the sub pixel method
+   * @param coarseSearch the coarse search (if null an exhaustive correlation search is used)
+   * @param surface the correlation surface of the final search window (can be null)
+   * @return the shift {x, y, score, window origin x, window origin y}
+   */
+  double[] align(ImageProcessor targetIp, Rectangle bounds, int subPixelMethod,
+      CoarseSearch coarseSearch, FloatProcessor[] surface) {
+    final int levels = getLevels();
+    final FloatProcessor[] target = createPyramid(targetIp, levels);
+
+    // Coarse search over the entire (downsampled) translation range
+    final int scale = 1 << levels;
+    final int minX = Math.floorDiv(bounds.x, scale);
+    final int minY = Math.floorDiv(bounds.y, scale);
+    final int maxX = -Math.floorDiv(-(bounds.x + bounds.width), scale);
+    final int maxY = -Math.floorDiv(-(bounds.y + bounds.height), scale);
+    int[] shift;
+    if (coarseSearch == null || levels == 0) {
+      shift = searchWindow(levels, target[levels], minX, maxX, minY, maxY, null);
+    } else {
+      shift = coarseSearch.search(levels, target[levels],
+          new Rectangle(minX, minY, maxX - minX, maxY - minY));
+    }
+
+    // Refine at each finer level
+    for (int level = levels; level-- > 1;) {
+      shift = refine(level, target[level], shift[0] * 2, shift[1] * 2, bounds, null);
+    }
+
+    final int[] centre = levels == 0 ? shift : new int[] {shift[0] * 2, shift[1] * 2};
+    final FloatProcessor[] window = new FloatProcessor[1];
+    shift = refine(0, target[0], centre[0], centre[1], bounds, window);
+
+    // Sub-pixel refinement using the local correlation surface
+    final FloatProcessor fp = window[0];
+    if (surface != null) {
+      surface[0] = fp;
+    }
+    final int originX = shift[2];
+    final int originY = shift[3];
+    double xoffset = shift[0];
+    double yoffset = shift[1];
+    double score = fp.getf(shift[0] - originX, shift[1] - originY);
+    if (subPixelMethod > 0 && score != 1.00) {
+      double[] fit;
+      if (subPixelMethod == 1) {
+        fit = AlignImages_PlugIn.performCubicFit(fp, shift[0] - originX, shift[1] - originY);
+      } else {
+        fit = AlignImages_PlugIn.performGaussianFit(fp);
+      }
+      if (fit != null) {
+        xoffset = fit[0] + originX;
+        yoffset = fit[1] + originY;
+        score = fp.getBicubicInterpolatedPixel(fit[0], fit[1], fp);
+      }
+    }
+    return new double[] {xoffset, yoffset, score, originX, originY};
+  }
+
+  /**
+   * Search a small window around the centre for the maximum correlation. If the maximum is on the
+   * edge of the window then the window is moved to the maximum and the search repeated.
+   *
+   * @param level the pyramid level
+   * @param target the target image at the pyramid level
+   * @param cx the centre x shift
+   * @param cy the centre y shift
+   * @param bounds the full resolution translation bounds
+   * @param surface the correlation surface of the final window (can be null)
+   * @return the shift {x, y, window origin x, window origin y}
+   */
+  private int[] refine(int level, FloatProcessor target, int cx, int cy, Rectangle bounds,
+      FloatProcessor[] surface) {
+    final int scale = 1 << level;
+    final int minX = Math.floorDiv(bounds.x, scale);
+    final int minY = Math.floorDiv(bounds.y, scale);
+    final int maxX = -Math.floorDiv(-(bounds.x + bounds.width), scale);
+    final int maxY = -Math.floorDiv(-(bounds.y + bounds.height), scale);
+    int[] shift = null;
+    for (int move = 0; move < MAX_WINDOW_MOVES; move++) {
+      final int x0 = Math.max(minX, cx - SEARCH_RADIUS);
+      final int x1 = Math.min(maxX, cx + SEARCH_RADIUS);
+      final int y0 = Math.max(minY, cy - SEARCH_RADIUS);
+      final int y1 = Math.min(maxY, cy + SEARCH_RADIUS);
+      shift = searchWindow(level, target, x0, x1, y0, y1, surface);
+      // Stop when the maximum is inside the window or on the translation bounds
+      if ((shift[0] > x0 || x0 == minX) && (shift[0] < x1 || x1 == maxX)
+          && (shift[1] > y0 || y0 == minY) && (shift[1] < y1 || y1 == maxY)) {
+        break;
+      }
+      cx = shift[0];
+      cy = shift[1];
+    }
+    return shift;
+  }
+
+  /**
+   * Search all the shifts within the window for the maximum correlation.
+   *
+   * @param level the pyramid level
+   * @param target the target image at the pyramid level
+   * @param minX the min X shift
+   * @param maxX the max X shift
+   * @param minY the min Y shift
+   * @param maxY the max Y shift
+   * @param surface the correlation surface (can be null)
+   * @return the shift {x, y, window origin x, window origin y}
+   */
+  private int[] searchWindow(int level, FloatProcessor target, int minX, int maxX, int minY,
+      int maxY, FloatProcessor[] surface) {
+    final FloatProcessor ref = reference[level];
+    final ByteProcessor maskIp = mask == null ? null : mask[level];
+    final FloatProcessor fp = new FloatProcessor(maxX - minX + 1, maxY - minY + 1);
+    double scoreMax = Double.NEGATIVE_INFINITY;
+    int xshiftMax = minX;
+    int yshiftMax = minY;
+    for (int xshift = minX; xshift <= maxX; xshift++) {
+      for (int yshift = minY; yshift <= maxY; yshift++) {
+        final double score = AlignImages_PlugIn.calculateScore(ref, maskIp, target, xshift, yshift);
+        fp.setf(xshift - minX, yshift - minY, (float) score);
+        if (scoreMax < score) {
+          scoreMax = score;
+          xshiftMax = xshift;
+          yshiftMax = yshift;
+        }
+      }
+    }
+    if (surface != null) {
+      surface[0] = fp;
+    }
+    return new int[] {xshiftMax, yshiftMax, minX, minY};
+  }
+
+  /**
+   * Creates the Gaussian pyramid. Level 0 is the full resolution image.
+   *
+   * @param ip the image
+   * @param levels the number of downsampled levels
+   * @return the pyramid
+   */
+  static FloatProcessor[] createPyramid(ImageProcessor ip, int levels) {
+    final FloatProcessor[] pyramid = new FloatProcessor[levels + 1];
+    pyramid[0] = (FloatProcessor) ip.convertToFloat();
+    for (int level = 1; level <= levels; level++) {
+      pyramid[level] = reduce(pyramid[level - 1]);
+    }
+    return pyramid;
+  }
+
+  /**
+   * Creates the mask pyramid. A downsampled pixel is in the mask if any of the pixels it replaces
+   * are in the mask.
+   *
+   * @param ip the mask
+   * @param levels the number of downsampled levels
+   * @return the pyramid
+   */
+  private static ByteProcessor[] createMaskPyramid(ImageProcessor ip, int levels) {
+    final ByteProcessor[] pyramid = new ByteProcessor[levels + 1];
+    pyramid[0] = new ByteProcessor(ip.getWidth(), ip.getHeight());
+    for (int i = ip.getPixelCount(); i-- > 0;) {
+      if (ip.get(i) != 0) {
+        pyramid[0].set(i, 255);
+      }
+    }
+    for (int level = 1; level <= levels; level++) {
+      final ByteProcessor bp = pyramid[level - 1];
+      final int width = bp.getWidth();
+      final int height = bp.getHeight();
+      final ByteProcessor out = new ByteProcessor((width + 1) / 2, (height + 1) / 2);
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          if (bp.get(x, y) != 0) {
+            out.set(x / 2, y / 2, 255);
+          }
+        }
+      }
+      pyramid[level] = out;
+    }
+    return pyramid;
+  }
+
+  /**
+   * Reduce the image by a factor of 2 using the 5-tap binomial filter [1 4 6 4 1]/16 sampled at
+   * even pixels. Edge pixels are clamped.
+   *
+   * @param fp the image
+   * @return the reduced image
+   */
+  static FloatProcessor reduce(FloatProcessor fp) {
+    final int width = fp.getWidth();
+    final int height = fp.getHeight();
+    final int width2 = (width + 1) / 2;
+    final int height2 = (height + 1) / 2;
+    final float[] pixels = (float[]) fp.getPixels();
+
+    // Horizontal pass on the even columns
+    final float[] tmp = new float[width2 * height];
+    for (int y = 0, i = 0; y < height; y++) {
+      final int offset = y * width;
+      for (int x = 0; x < width2; x++) {
+        tmp[i++] = filter(pixels, offset, 1, 2 * x, width);
+      }
+    }
+
+    // Vertical pass on the even rows
+    final float[] out = new float[width2 * height2];
+    for (int y = 0, i = 0; y < height2; y++) {
+      for (int x = 0; x < width2; x++) {
+        out[i++] = filter(tmp, x, width2, 2 * y, height);
+      }
+    }
+    return new FloatProcessor(width2, height2, out);
+  }
+
+  /**
+   * Apply the 5-tap binomial filter at the position with edge clamping.
+   *
+   * @param data the data
+   * @param offset the offset of the first data value
+   * @param stride the stride between data values
+   * @param position the position
+   * @param size the number of data values
+   * @return the filtered value
+   */
+  private static float filter(float[] data, int offset, int stride, int position, int size) {
+    final int last = size - 1;
+    final float m2 = data[offset + stride * Math.max(0, position - 2)];
+    final float m1 = data[offset + stride * Math.max(0, position - 1)];
+    final float p1 = data[offset + stride * Math.min(last, position + 1)];
+    final float p2 = data[offset + stride * Math.min(last, position + 2)];
+    return (m2 + p2 + 4 * (m1 + p1) + 6 * data[offset + stride * position]) / 16;
+  }
+}
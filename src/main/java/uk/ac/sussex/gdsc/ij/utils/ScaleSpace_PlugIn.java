@@ -29,21 +29,18 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Prefs;
-import ij.plugin.filter.GaussianBlur;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import imagescience.feature.Differentiator;
 import imagescience.image.FloatImage;
 import imagescience.image.Image;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.BiFunction;
-import java.util.function.UnaryOperator;
-import org.apache.commons.lang3.tuple.Pair;
 import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
 import uk.ac.sussex.gdsc.core.ij.gui.ExtendedGenericDialog;
 import uk.ac.sussex.gdsc.core.logging.Ticker;
@@ -55,6 +52,10 @@ import uk.ac.sussex.gdsc.ij.UsageTracker;
 /**
  * Create a scale-space representation of an image using a 2D Gaussian filter at different scales.
  *
+ * <p>The Gaussian scales are computed as a cascade with each scale derived from the previous scale
+ * using an incremental blur. The cascade can be downsampled for each octave to reduce the cost of
+ * large scales.
+ *
  * @see <a href="https://en.wikipedia.org/wiki/Scale_space">Scale space</a>
  */
 public class ScaleSpace_PlugIn implements PlugInFilter {
@@ -92,6 +93,7 @@ public class ScaleSpace_PlugIn implements PlugInFilter {
     double maxScale;
     int outputOption;
     int subIntervals;
+    boolean downsample;
 
     /**
      * Default constructor.
@@ -110,6 +112,7 @@ public class ScaleSpace_PlugIn implements PlugInFilter {
       maxScale = source.maxScale;
       outputOption = source.outputOption;
       subIntervals = source.subIntervals;
+      downsample = source.downsample;
     }
 
     /**
@@ -155,6 +158,7 @@ public class ScaleSpace_PlugIn implements PlugInFilter {
     gd.addNumericField("Max_scale", settings.maxScale, 2);
     gd.addChoice("Output", Settings.OUTPUT_OPTIONS, settings.outputOption);
     gd.addNumericField("Sub_interval_steps", settings.subIntervals, 0);
+    gd.addCheckbox("Downsample_octaves", settings.downsample);
     gd.addHelp(uk.ac.sussex.gdsc.ij.help.Urls.UTILITY);
     gd.showDialog();
     settings.save();
@@ -165,6 +169,7 @@ public class ScaleSpace_PlugIn implements PlugInFilter {
     settings.maxScale = gd.getNextNumber();
     settings.outputOption = gd.getNextChoiceIndex();
     settings.subIntervals = Math.max(0, (int) gd.getNextNumber());
+    settings.downsample = gd.getNextBoolean();
 
     if (gd.invalidNumber()) {
       IJ.error(TITLE, "Bad input number");
@@ -201,135 +206,146 @@ public class ScaleSpace_PlugIn implements PlugInFilter {
     final double maxT =
         MathUtils.clip(minT, limitT, (settings.maxScale > 0 ? settings.maxScale : limitT));
 
-    // Multi-thread
-    final ExecutorService executor = Executors.newFixedThreadPool(Prefs.getThreads());
-    final List<Future<Pair<Double, ImageProcessor>>> futures = new LocalList<>();
-
-    final BiFunction<ImageProcessor, Double, ImageProcessor> fun = createFunction();
-    final Ticker ticker = ImageJUtils.createTicker(countSteps(minT, maxT), 2, "Computing ...");
-
-    for (double scaleT = minT; scaleT <= maxT; scaleT *= 2) {
-      final double step = scaleT / (settings.subIntervals + 1);
-      for (int i = 0; i <= settings.subIntervals; i++) {
-        final Double t = scaleT + i * step;
-        futures.add(executor.submit(() -> {
-          // Since it is 2D use sqrt(t) for each dimension
-          final Double sigma = Math.sqrt(t);
-          final ImageProcessor scaledIp = fun.apply(ip, sigma);
-          ticker.tick();
-          return Pair.of(t, scaledIp);
-        }));
-      }
-    }
-
-    ConcurrencyUtils.waitForCompletionUncheckedT(futures);
-    executor.shutdown();
-
-    ImageJUtils.finished();
-
-    // Sort by scale and add to the stack.
-    // Note the futures are all complete so get the result unchecked.
-    futures.stream().map(Futures::getUnchecked)
-        .sorted((r1, r2) -> Double.compare(r1.getLeft(), r2.getLeft())).forEachOrdered(
-            pair -> stack.addSlice("t=" + MathUtils.rounded(pair.getLeft()), pair.getRight()));
+    final double[] scales = createScales(minT, maxT);
 
     String suffix;
     ImageStack outputStack;
-    if (settings.outputOption == Settings.OPT_DOG && stack.getSize() > 1) {
-      suffix = "Difference of Gaussians";
-      outputStack = new ImageStack(width, height);
-      float[] pixels2 = (float[]) stack.getPixels(1);
-      for (int slice = 2; slice <= stack.size(); slice++) {
-        final float[] pixels1 = pixels2;
-        pixels2 = (float[]) stack.getPixels(slice);
-        // Q. Does this need to be scale normalised?
-        for (int i = 0; i < pixels1.length; i++) {
-          final float v = pixels1[i] - pixels2[i];
-          pixels1[i] = v;
-        }
-        outputStack.addSlice(stack.getSliceLabel(slice) + "-" + stack.getSliceLabel(slice - 1),
-            pixels1);
-      }
-    } else if (settings.outputOption == Settings.OPT_LOG) {
+    if (settings.outputOption == Settings.OPT_LOG) {
       suffix = "Laplacian of Gaussian";
-      outputStack = stack;
+      outputStack = createLaplacianOfGaussian(ip, scales);
     } else {
-      suffix = TITLE;
-      outputStack = stack;
+      // Gaussian cascade. All channels of the image are processed concurrently.
+      final ImageStack channels = new ImageStack(width, height);
+      for (int c = 0; c < ip.getNChannels(); c++) {
+        channels.addSlice(null, ip.toFloat(c, null).getPixels());
+      }
+      final double[] sigmas = new double[scales.length];
+      for (int i = 0; i < scales.length; i++) {
+        // Since it is 2D use sqrt(t) for each dimension
+        sigmas[i] = Math.sqrt(scales[i]);
+      }
+      final GaussianScaleSpace scaleSpace =
+          new GaussianScaleSpace(channels, sigmas, settings.downsample, Prefs.getThreads());
+
+      final Ticker ticker = ImageJUtils.createTicker(scales.length, 1, "Computing ...");
+      if (settings.outputOption == Settings.OPT_DOG && scales.length > 1) {
+        suffix = "Difference of Gaussians";
+        outputStack = new ImageStack(width, height);
+        for (int i = 1; i < scales.length; i++) {
+          // Q. Does this need to be scale normalised?
+          outputStack.addSlice(
+              "t=" + MathUtils.rounded(scales[i]) + "-t=" + MathUtils.rounded(scales[i - 1]),
+              scaleSpace.getDifferenceOfGaussians(i - 1).getPixels(1));
+          ticker.tick();
+        }
+      } else {
+        suffix = TITLE;
+        outputStack = stack;
+        for (int i = 0; i < scales.length; i++) {
+          final ImageStack scale = scaleSpace.getScale(i);
+          final ImageProcessor scaledIp;
+          if (settings.outputOption == Settings.OPT_GAUSS) {
+            // Output the same type as the input
+            scaledIp = ip.createProcessor(width, height);
+            for (int c = 0; c < ip.getNChannels(); c++) {
+              scaledIp.setPixels(c,
+                  new FloatProcessor(width, height, (float[]) scale.getPixels(c + 1)));
+            }
+          } else {
+            scaledIp = new FloatProcessor(width, height, (float[]) scale.getPixels(1));
+          }
+          stack.addSlice("t=" + MathUtils.rounded(scales[i]), scaledIp);
+          ticker.tick();
+        }
+      }
     }
 
+    ImageJUtils.finished();
+
     ImageJUtils.display(imp.getTitle() + " " + suffix, outputStack);
   }
 
   /**
-   * Count the number of steps between min and max T accounting for sub intervals.
+   * Creates the scales between min and max T accounting for sub intervals. The scales are
+   * ascending.
    *
    * @param minT the min T
    * @param maxT the max T
-   * @return the steps
+   * @return the scales
    */
-  private long countSteps(double minT, double maxT) {
-    long steps = 0;
+  private double[] createScales(double minT, double maxT) {
+    final DoubleArrayList scales = new DoubleArrayList();
     for (double scaleT = minT; scaleT <= maxT; scaleT *= 2) {
-      steps++;
+      final double step = scaleT / (settings.subIntervals + 1);
+      for (int i = 0; i <= settings.subIntervals; i++) {
+        scales.add(scaleT + i * step);
+      }
     }
-    return steps * (settings.subIntervals + 1);
+    return scales.toDoubleArray();
   }
 
   /**
-   * Creates the function to processor the input image processor.
+   * Creates the Laplacian of Gaussian at each scale. The scales are computed concurrently.
    *
-   * @return the function
+   * @param ip the image
+   * @param scales the scales
+   * @return the stack
    */
-  private BiFunction<ImageProcessor, Double, ImageProcessor> createFunction() {
-    final UnaryOperator<ImageProcessor> converter = createConverter();
+  private ImageStack createLaplacianOfGaussian(ImageProcessor ip, double[] scales) {
+    // Multi-thread
+    final ExecutorService executor = Executors.newFixedThreadPool(Prefs.getThreads());
+    final List<Future<ImageProcessor>> futures = new LocalList<>();
 
-    if (settings.outputOption == Settings.OPT_LOG) {
-      return (ip, sigma) -> {
-        FloatProcessor fp = (FloatProcessor) converter.apply(ip);
-        final FloatImage img = (FloatImage) Image.wrap(new ImagePlus(null, fp));
-        final Differentiator differentiator = new Differentiator();
-        final Image Ixx = differentiator.run(img.duplicate(), sigma, 2, 0, 0);
-        final Image Iyy = differentiator.run(img, sigma, 0, 2, 0);
-        Iyy.add(Ixx);
-        fp = (FloatProcessor) Iyy.imageplus().getProcessor();
-
-        // Post-processing for scale normalisation and negation.
-        // This makes the appearance match the Difference of Gaussians (but the scale
-        // make be different).
-        final double norm = -sigma * sigma;
-        final float[] data = (float[]) fp.getPixels();
-        for (int i = 0; i < data.length; i++) {
-          data[i] *= norm;
-        }
+    final Ticker ticker = ImageJUtils.createTicker(scales.length, 2, "Computing ...");
 
-        return fp;
-      };
+    for (final double t : scales) {
+      futures.add(executor.submit(() -> {
+        // Since it is 2D use sqrt(t) for each dimension
+        final ImageProcessor scaledIp = laplacianOfGaussian(ip, Math.sqrt(t));
+        ticker.tick();
+        return scaledIp;
+      }));
     }
 
-    // Others use a Gaussian blur
-    return (ip, sigma) -> {
-      final GaussianBlur gb = new GaussianBlur();
-      gb.showProgress(false);
-      ip = converter.apply(ip);
-      gb.blurGaussian(ip, sigma);
-      return ip;
-    };
+    ConcurrencyUtils.waitForCompletionUncheckedT(futures);
+    executor.shutdown();
+
+    // Add to the stack in scale order.
+    // Note the futures are all complete so get the result unchecked.
+    final ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
+    for (int i = 0; i < scales.length; i++) {
+      stack.addSlice("t=" + MathUtils.rounded(scales[i]), Futures.getUnchecked(futures.get(i)));
+    }
+    return stack;
   }
 
   /**
-   * Creates the converter to prepare the input image processor.
+   * Compute the Laplacian of Gaussian of the image.
    *
-   * @return the converter
+   * @param ip the image
+   * @param sigma the sigma
+   * @return the Laplacian of Gaussian
    */
-  private UnaryOperator<ImageProcessor> createConverter() {
-    // Duplicate the processor.
-    if (settings.outputOption == Settings.OPT_GAUSS) {
-      return ImageProcessor::duplicate;
+  private static ImageProcessor laplacianOfGaussian(ImageProcessor ip, double sigma) {
+    // Float-image required for correct LoG
+    FloatProcessor fp =
+        (ip instanceof FloatProcessor) ? (FloatProcessor) ip.duplicate() : ip.toFloat(0, null);
+    final FloatImage img = (FloatImage) Image.wrap(new ImagePlus(null, fp));
+    final Differentiator differentiator = new Differentiator();
+    final Image Ixx = differentiator.run(img.duplicate(), sigma, 2, 0, 0);
+    final Image Iyy = differentiator.run(img, sigma, 0, 2, 0);
+    Iyy.add(Ixx);
+    fp = (FloatProcessor) Iyy.imageplus().getProcessor();
+
+    // Post-processing for scale normalisation and negation.
+    // This makes the appearance match the Difference of Gaussians (but the scale
+    // make be different).
+    final double norm = -sigma * sigma;
+    final float[] data = (float[]) fp.getPixels();
+    for (int i = 0; i < data.length; i++) {
+      data[i] *= norm;
     }
-    // Float-image required for correct DoG or LoG
-    return ip -> {
-      return (ip instanceof FloatProcessor) ? (FloatProcessor) ip.duplicate() : ip.toFloat(0, null);
-    };
+
+    return fp;
   }
 }
@@ -27,75 +27,208 @@ package uk.ac.sussex.gdsc.ij.utils;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
-import ij.plugin.filter.PlugInFilter;
+import ij.io.Opener;
+import ij.plugin.FolderOpener;
+import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import org.apache.commons.lang3.concurrent.ConcurrentRuntimeException;
+import org.apache.commons.rng.UniformRandomProvider;
+import uk.ac.sussex.gdsc.core.annotation.Nullable;
+import uk.ac.sussex.gdsc.core.data.VisibleForTesting;
+import uk.ac.sussex.gdsc.core.ij.ImageJUtils;
+import uk.ac.sussex.gdsc.core.ij.gui.ExtendedGenericDialog;
+import uk.ac.sussex.gdsc.core.logging.Ticker;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
+import uk.ac.sussex.gdsc.core.utils.MathUtils;
+import uk.ac.sussex.gdsc.core.utils.concurrent.ConcurrencyUtils;
+import uk.ac.sussex.gdsc.core.utils.rng.UniformRandomProviders;
 import uk.ac.sussex.gdsc.ij.UsageTracker;
 
 /**
- * Create an average of all the open stacks with the same dimensions and bit-depth as the active
- * stack.
+ * Create an average of stacks with the same dimensions and bit-depth. The stacks can be all the
+ * open stacks matching the active stack, or the stacks in a directory.
+ *
+ * <p>Stacks in a directory are streamed: each stack is opened, added to a double-precision running
+ * sum per voxel and then discarded. Stacks are opened in parallel up to a memory budget. The
+ * median or robust mean uses a bounded reservoir sample of the stacks. The accumulator is included
+ * in the memory budget; the reservoir size is reduced if required. Accumulation is performed in
+ * parallel across slices.
  */
-public class StackAverage_PlugIn implements PlugInFilter {
-  private ImagePlus imp;
+public class StackAverage_PlugIn implements PlugIn {
+  private static final String TITLE = "Stack Average";
 
-  /** {@inheritDoc} */
-  @Override
-  public int setup(String arg, ImagePlus imp) {
-    UsageTracker.recordPlugin(this.getClass(), arg);
-    if (imp == null) {
-      IJ.noImage();
-      return DONE;
+  /** The current settings for the plugin instance. */
+  private Settings settings;
+
+  /**
+   * Contains the settings that are the re-usable state of the plugin.
+   */
+  private static class Settings {
+    /** The last settings used by the plugin. This should be updated after plugin execution. */
+    private static final AtomicReference<Settings> lastSettings =
+        new AtomicReference<>(new Settings());
+    static final String[] SOURCES = {"Open images", "Directory"};
+    static final int DIRECTORY = 1;
+
+    int source;
+    String directory;
+    int statistic;
+    int reservoirSize;
+    long seed;
+
+    /**
+     * Default constructor.
+     */
+    Settings() {
+      directory = "";
+      reservoirSize = 31;
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param source the source
+     */
+    private Settings(Settings source) {
+      this.source = source.source;
+      directory = source.directory;
+      statistic = source.statistic;
+      reservoirSize = source.reservoirSize;
+      seed = source.seed;
+    }
+
+    /**
+     * Copy the settings.
+     *
+     * @return the settings
+     */
+    Settings copy() {
+      return new Settings(this);
+    }
+
+    /**
+     * Load a copy of the settings.
+     *
+     * @return the settings
+     */
+    static Settings load() {
+      return lastSettings.get().copy();
+    }
+
+    /**
+     * Save the settings.
+     */
+    void save() {
+      lastSettings.set(this);
     }
-    this.imp = imp;
-    return DOES_8G + DOES_16 + DOES_32 + NO_CHANGES;
   }
 
   /** {@inheritDoc} */
   @Override
-  public void run(ImageProcessor ip) {
-    final ArrayList<ImagePlus> images = getImages();
+  public void run(String arg) {
+    UsageTracker.recordPlugin(this.getClass(), arg);
 
-    final int bufferSize = imp.getWidth() * imp.getHeight();
-    final int count = images.size();
+    if (!showDialog()) {
+      return;
+    }
 
-    final ImageStack result = createResult();
+    final ImageStack result;
+    if (settings.source == Settings.DIRECTORY) {
+      result = averageDirectory();
+    } else {
+      result = averageImages();
+    }
 
-    // Add all the images - Process each stack slice individually
-    for (int n = imp.getStackSize(); n > 0; n--) {
-      // Sum all the images
-      final double[] sum = new double[bufferSize];
-      for (final ImagePlus imp2 : images) {
-        final ImageProcessor ip2 = imp2.getStack().getProcessor(n);
-        for (int i = sum.length; i-- > 0;) {
-          sum[i] += ip2.get(i);
-        }
-      }
+    // Show result
+    if (result != null) {
+      new ImagePlus(TITLE, result).show();
+    }
+  }
 
-      // Average
-      final ImageProcessor ip2 = result.getProcessor(n);
-      for (int i = sum.length; i-- > 0;) {
-        ip2.set(i, (int) (sum[i] / count));
-      }
+  private boolean showDialog() {
+    final ExtendedGenericDialog gd = new ExtendedGenericDialog(TITLE);
+    gd.addMessage("Create an average of stacks with the same dimensions and bit-depth.\n"
+        + "Open images are matched to the active image.");
+    settings = Settings.load();
+    gd.addChoice("Source", Settings.SOURCES, settings.source);
+    gd.addDirectoryField("Directory", settings.directory);
+    gd.addChoice("Statistic", Accumulator.STATISTICS, settings.statistic);
+    gd.addNumericField("Reservoir_size", settings.reservoirSize, 0);
+    gd.addNumericField("Seed", settings.seed, 0);
+    gd.addHelp(uk.ac.sussex.gdsc.ij.help.Urls.UTILITY);
+    gd.showDialog();
+    if (gd.wasCanceled()) {
+      return false;
     }
+    settings.source = gd.getNextChoiceIndex();
+    settings.directory = gd.getNextString();
+    settings.statistic = gd.getNextChoiceIndex();
+    settings.reservoirSize = Math.max(1, (int) gd.getNextNumber());
+    settings.seed = (long) gd.getNextNumber();
+    settings.save();
+    return true;
+  }
 
-    // Show result
-    new ImagePlus("Stack Average", result).show();
+  /**
+   * Average all the open stacks with the same dimensions and bit-depth as the active stack.
+   *
+   * @return the result
+   */
+  private ImageStack averageImages() {
+    final ImagePlus imp = WindowManager.getCurrentImage();
+    if (imp == null) {
+      IJ.noImage();
+      return null;
+    }
+    if (imp.getBitDepth() == 24) {
+      IJ.error(TITLE, "Greyscale image required");
+      return null;
+    }
+    final ArrayList<ImagePlus> images = getImages(imp);
+    // The images are already in memory
+    final Accumulator accumulator = createAccumulator(imp, getMemoryBudget());
+    if (accumulator == null) {
+      return null;
+    }
+    final ExecutorService executor = createExecutor(imp.getStackSize());
+    try {
+      final Ticker ticker = ImageJUtils.createTicker(images.size(), 1);
+      for (final ImagePlus imp2 : images) {
+        accumulator.add(imp2.getImageStack(), executor);
+        ticker.tick();
+      }
+      ticker.stop();
+      logSample(accumulator);
+      return accumulator.getResult(imp.getBitDepth(), executor);
+    } finally {
+      shutdown(executor);
+    }
   }
 
-  private ArrayList<ImagePlus> getImages() {
+  private static ArrayList<ImagePlus> getImages(ImagePlus imp) {
     final int[] dimensions = imp.getDimensions();
     final int bitDepth = imp.getBitDepth();
 
     // Build a list of the images
-    final int[] wList = uk.ac.sussex.gdsc.core.ij.ImageJUtils.getIdList();
+    final int[] wList = ImageJUtils.getIdList();
 
     final ArrayList<ImagePlus> images = new ArrayList<>(wList.length);
 
     for (int i = 0; i < wList.length; i++) {
       final ImagePlus imp2 = WindowManager.getImage(wList[i]);
-      if (imp2 != null && (!imp2.getTitle().startsWith("Stack Average")
+      if (imp2 != null && (!imp2.getTitle().startsWith(TITLE)
           && sameDimensions(dimensions, imp2.getDimensions()) && bitDepth == imp2.getBitDepth())) {
         images.add(imp2);
       }
@@ -113,17 +246,416 @@ public class StackAverage_PlugIn implements PlugInFilter {
     return true;
   }
 
-  private ImageStack createResult() {
+  /**
+   * Average all the stacks in the directory with the same dimensions and bit-depth as the first
+   * stack. Stacks are opened in parallel up to a memory budget and added in file order.
+   *
+   * @return the result
+   */
+  private ImageStack averageDirectory() {
+    final String[] list = getFileList(settings.directory);
+    if (list.length == 0) {
+      IJ.error(TITLE, "No images in directory: " + settings.directory);
+      return null;
+    }
+
+    // The first valid image defines the dimensions
+    int next = 0;
+    ImagePlus imp = null;
+    while (imp == null && next < list.length) {
+      imp = openImage(settings.directory, list[next++]);
+      if (imp != null && imp.getBitDepth() == 24) {
+        imp = null;
+      }
+    }
+    if (imp == null) {
+      IJ.error(TITLE, "No greyscale images in directory: " + settings.directory);
+      return null;
+    }
+    final int[] dimensions = imp.getDimensions();
+    final int bitDepth = imp.getBitDepth();
+
+    // Limit the accumulator and the stacks held in memory. At least one stack is loaded.
+    final long stackBytes = (long) imp.getWidth() * imp.getHeight() * imp.getStackSize()
+        * (bitDepth / 8);
+    final long budget = getMemoryBudget();
+    final Accumulator accumulator = createAccumulator(imp, budget - stackBytes);
+    if (accumulator == null) {
+      return null;
+    }
+    final int loaders = (int) Math.max(1, Math.min(Prefs.getThreads(),
+        (budget - accumulator.getMemorySize()) / Math.max(1, stackBytes)));
+
+    final ExecutorService executor = createExecutor(imp.getStackSize());
+    final ExecutorService loader = Executors.newFixedThreadPool(loaders);
+    try {
+      final Ticker ticker = ImageJUtils.createTicker(list.length - next + 1, 1);
+      accumulator.add(imp.getImageStack(), executor);
+      ticker.tick();
+      imp = null;
+
+      // Open the remaining images with a bounded queue of pending images
+      final ArrayDeque<Future<ImagePlus>> pending = new ArrayDeque<>(loaders);
+      final String directory = settings.directory;
+      while (next < list.length || !pending.isEmpty()) {
+        while (next < list.length && pending.size() < loaders) {
+          final String name = list[next++];
+          pending.add(loader.submit(() -> openImage(directory, name)));
+        }
+        final ImagePlus imp2 = getImage(pending.poll());
+        if (imp2 != null) {
+          if (sameDimensions(dimensions, imp2.getDimensions())
+              && bitDepth == imp2.getBitDepth()) {
+            accumulator.add(imp2.getImageStack(), executor);
+          } else {
+            ImageJUtils.log("%s: Ignoring image with different dimensions: %s", TITLE,
+                imp2.getTitle());
+          }
+        }
+        ticker.tick();
+      }
+      ticker.stop();
+      ImageJUtils.log("%s: Combined %d images from %s", TITLE, accumulator.getCount(),
+          directory);
+      logSample(accumulator);
+      return accumulator.getResult(bitDepth, executor);
+    } finally {
+      loader.shutdown();
+      shutdown(executor);
+    }
+  }
+
+  /**
+   * Gets the image files in the directory.
+   *
+   * @param directory the directory
+   * @return the file list
+   */
+  private static String[] getFileList(String directory) {
+    final File[] fileList = new File(directory).listFiles(File::isFile);
+    if (fileList == null) {
+      return new String[0];
+    }
+    String[] list = Arrays.stream(fileList).map(File::getName).toArray(String[]::new);
+    // Exclude non-image files as per the ImageJ FolderOpener
+    final FolderOpener fo = new FolderOpener();
+    list = fo.trimFileList(list);
+    if (list == null) {
+      return new String[0];
+    }
+    return fo.sortFileList(list);
+  }
+
+  /**
+   * Open the image.
+   *
+   * @param directory the directory
+   * @param filename the filename
+   * @return the image plus (or null)
+   */
+  private static ImagePlus openImage(String directory, String filename) {
+    final Opener opener = new Opener();
+    opener.setSilentMode(true);
+    return opener.openImage(directory, filename);
+  }
+
+  /**
+   * Gets the image from the future.
+   *
+   * @param future the future
+   * @return the image plus (or null)
+   */
+  private static ImagePlus getImage(Future<ImagePlus> future) {
+    try {
+      return future.get();
+    } catch (final InterruptedException ex) {
+      // Restore interrupted state...
+      Thread.currentThread().interrupt();
+      throw new ConcurrentRuntimeException(ex);
+    } catch (final ExecutionException ex) {
+      throw new ConcurrentRuntimeException(ex.getCause());
+    }
+  }
+
+  /**
+   * Gets the memory budget for the accumulator and the stacks held in memory.
+   *
+   * @return the memory budget (in bytes)
+   */
+  private static long getMemoryBudget() {
+    return Runtime.getRuntime().maxMemory() / 2;
+  }
+
+  /**
+   * Creates the accumulator. The reservoir size is reduced to fit the available memory.
+   *
+   * @param imp the image
+   * @param available the available memory (in bytes)
+   * @return the accumulator (or null if there is insufficient memory)
+   */
+  @Nullable
+  private Accumulator createAccumulator(ImagePlus imp, long available) {
     final int width = imp.getWidth();
     final int height = imp.getHeight();
+    final int slices = imp.getStackSize();
+    int reservoirSize = settings.reservoirSize;
+    if (settings.statistic != Accumulator.MEAN) {
+      final long maxSize = available
+          / Accumulator.getMemorySize(width, height, slices, settings.statistic, 1);
+      if (maxSize < 1) {
+        IJ.error(TITLE, "Insufficient memory for the " + Accumulator.STATISTICS[settings.statistic]
+            + " reservoir");
+        return null;
+      }
+      if (maxSize < reservoirSize) {
+        reservoirSize = (int) maxSize;
+        ImageJUtils.log("%s: Reservoir size reduced from %d to %d to fit in memory", TITLE,
+            settings.reservoirSize, reservoirSize);
+      }
+    }
+    return new Accumulator(width, height, slices, settings.statistic, reservoirSize,
+        settings.seed);
+  }
+
+  /**
+   * Log if the result is computed from a sample of the stacks.
+   *
+   * @param accumulator the accumulator
+   */
+  private void logSample(Accumulator accumulator) {
+    if (accumulator.isSample()) {
+      ImageJUtils.log("%s: %s computed from a random sample of %d of %d stacks (seed %d)", TITLE,
+          Accumulator.STATISTICS[settings.statistic], accumulator.getReservoirSize(),
+          accumulator.getCount(), settings.seed);
+    }
+  }
+
+  @Nullable
+  private static ExecutorService createExecutor(int slices) {
+    final int threadCount = MathUtils.clip(1, slices, Prefs.getThreads());
+    return threadCount == 1 ? null : Executors.newFixedThreadPool(threadCount);
+  }
+
+  private static void shutdown(@Nullable ExecutorService executor) {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Accumulate stacks to compute the average of each voxel.
+   *
+   * <p>The mean uses a double-precision running sum. The median and robust mean use a reservoir
+   * sample of the stacks; the result is exact when the number of stacks does not exceed the
+   * reservoir size. Otherwise the result is computed from a random sample of the stacks selected
+   * using the seed; the same input order and seed will create the same result.
+   */
+  @VisibleForTesting
+  static final class Accumulator {
+    /** The statistics. */
+    static final String[] STATISTICS = {"Mean", "Median", "Robust mean"};
+    /** The mean statistic. */
+    static final int MEAN = 0;
+    /** The median statistic. */
+    static final int MEDIAN = 1;
+    /** The robust mean statistic. This is the mean of the inter-quartile range. */
+    static final int ROBUST_MEAN = 2;
+
+    private final int width;
+    private final int height;
+    private final int statistic;
+    /** The running sum for each slice. */
+    private double[][] sum;
+    /** The reservoir of pixels for each slice. */
+    private float[][][] reservoir;
+    private UniformRandomProvider rng;
+    private int count;
+
+    /**
+     * Create an instance.
+     *
+     * @param width the width
+     * @param height the height
+     * @param slices the number of slices
+     * @param statistic the statistic
+     * @param reservoirSize the reservoir size
+     * @param seed the seed for the reservoir sample
+     */
+    Accumulator(int width, int height, int slices, int statistic, int reservoirSize,
+        long seed) {
+      this.width = width;
+      this.height = height;
+      this.statistic = statistic;
+      if (statistic == MEAN) {
+        sum = new double[slices][width * height];
+      } else {
+        reservoir = new float[slices][reservoirSize][];
+        rng = UniformRandomProviders.create(seed);
+      }
+    }
 
-    final ImageStack inStack = imp.getImageStack();
-    final ImageStack outStack = new ImageStack(width, height);
+    /**
+     * Gets the memory size of the accumulator. This is the size of the running sum or the full
+     * reservoir.
+     *
+     * @param width the width
+     * @param height the height
+     * @param slices the number of slices
+     * @param statistic the statistic
+     * @param reservoirSize the reservoir size
+     * @return the memory size (in bytes)
+     */
+    static long getMemorySize(int width, int height, int slices, int statistic,
+        int reservoirSize) {
+      final long pixels = (long) width * height * slices;
+      return statistic == MEAN ? pixels * Double.BYTES : pixels * reservoirSize * Float.BYTES;
+    }
+
+    /**
+     * Gets the memory size of the accumulator. This is the size of the running sum or the full
+     * reservoir.
+     *
+     * @return the memory size (in bytes)
+     */
+    long getMemorySize() {
+      return sum != null ? getMemorySize(width, height, sum.length, MEAN, 0)
+          : getMemorySize(width, height, reservoir.length, statistic, reservoir[0].length);
+    }
+
+    /**
+     * Gets the reservoir size. This is zero if the statistic does not use a reservoir.
+     *
+     * @return the reservoir size
+     */
+    int getReservoirSize() {
+      return reservoir != null ? reservoir[0].length : 0;
+    }
+
+    /**
+     * Gets the number of stacks added.
+     *
+     * @return the count
+     */
+    int getCount() {
+      return count;
+    }
+
+    /**
+     * Checks if the result is computed from a sample of the stacks added.
+     *
+     * @return true if a sample
+     */
+    boolean isSample() {
+      return reservoir != null && count > reservoir[0].length;
+    }
+
+    /**
+     * Add the stack. Slices are processed in parallel if an executor is provided.
+     *
+     * @param stack the stack
+     * @param executor the executor (can be null)
+     */
+    void add(ImageStack stack, @Nullable ExecutorService executor) {
+      count++;
+      if (sum != null) {
+        forEachSlice(executor, sum.length, n -> {
+          final ImageProcessor ip = stack.getProcessor(n + 1);
+          final double[] s = sum[n];
+          for (int i = 0; i < s.length; i++) {
+            s[i] += ip.getf(i);
+          }
+        });
+        return;
+      }
+      // Reservoir sampling: retain the first stacks then replace with a probability of
+      // size / count
+      final int size = reservoir[0].length;
+      final int slot = count <= size ? count - 1 : rng.nextInt(count);
+      if (slot >= size) {
+        return;
+      }
+      forEachSlice(executor, reservoir.length, n -> {
+        final ImageProcessor ip = stack.getProcessor(n + 1);
+        float[] pixels = reservoir[n][slot];
+        if (pixels == null) {
+          pixels = new float[width * height];
+          reservoir[n][slot] = pixels;
+        }
+        for (int i = 0; i < pixels.length; i++) {
+          pixels[i] = ip.getf(i);
+        }
+      });
+    }
+
+    /**
+     * Gets the result. Values are truncated to the bit-depth of the output. Slices are processed in
+     * parallel if an executor is provided.
+     *
+     * @param bitDepth the bit depth of the output
+     * @param executor the executor (can be null)
+     * @return the result
+     */
+    ImageStack getResult(int bitDepth, @Nullable ExecutorService executor) {
+      final int slices = sum != null ? sum.length : reservoir.length;
+      final ImageStack result = ImageStack.create(width, height, slices, bitDepth);
+      if (count == 0) {
+        return result;
+      }
+      forEachSlice(executor, slices, n -> {
+        final ImageProcessor ip = result.getProcessor(n + 1);
+        if (sum != null) {
+          final double[] s = sum[n];
+          for (int i = 0; i < s.length; i++) {
+            ip.setf(i, (float) (s[i] / count));
+          }
+          return;
+        }
+        final float[][] samples = reservoir[n];
+        final int size = Math.min(count, samples.length);
+        final float[] values = new float[size];
+        for (int i = ip.getPixelCount(); i-- > 0;) {
+          for (int j = 0; j < size; j++) {
+            values[j] = samples[j][i];
+          }
+          Arrays.sort(values);
+          ip.setf(i, (float) (statistic == MEDIAN ? median(values) : interQuartileMean(values)));
+        }
+      });
+      return result;
+    }
+
+    private static double median(float[] values) {
+      final int half = values.length >>> 1;
+      if ((values.length & 1) == 1) {
+        return values[half];
+      }
+      return ((double) values[half - 1] + values[half]) / 2;
+    }
 
-    for (int n = inStack.getSize(); n > 0; n--) {
-      outStack.addSlice(null, inStack.getProcessor(n).createProcessor(width, height));
+    private static double interQuartileMean(float[] values) {
+      // Exclude the lower and upper quarter of the sorted values
+      final int trim = values.length >>> 2;
+      double total = 0;
+      for (int i = trim; i < values.length - trim; i++) {
+        total += values[i];
+      }
+      return total / (values.length - 2 * trim);
     }
 
-    return outStack;
+    private static void forEachSlice(@Nullable ExecutorService executor, int slices,
+        IntConsumer task) {
+      if (executor == null || slices == 1) {
+        for (int n = 0; n < slices; n++) {
+          task.accept(n);
+        }
+        return;
+      }
+      final LocalList<Future<?>> futures = new LocalList<>(slices);
+      for (int n = 0; n < slices; n++) {
+        final int slice = n;
+        futures.add(executor.submit(() -> task.accept(slice)));
+      }
+      ConcurrencyUtils.waitForCompletionUnchecked(futures);
+    }
   }
 }
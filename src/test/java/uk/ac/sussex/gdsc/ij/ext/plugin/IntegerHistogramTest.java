@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.ext.plugin;
+
+import java.util.Arrays;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.apache.commons.statistics.descriptive.Median;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class IntegerHistogramTest {
+  @ParameterizedTest
+  @ValueSource(ints = {0, 17})
+  void testConstructorThrows(int bits) {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new IntegerHistogram(bits));
+  }
+
+  @Test
+  void testEmpty() {
+    final IntegerHistogram h = new IntegerHistogram(8);
+    Assertions.assertEquals(0, h.size());
+    Assertions.assertEquals(Double.NaN, h.median());
+    Assertions.assertEquals(0, h.mode(new int[0], 0, false));
+  }
+
+  @SeededTest
+  void testMedianAndMode(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    for (final int bits : new int[] {8, 12, 16}) {
+      final IntegerHistogram h = new IntegerHistogram(bits);
+      for (int i = 0; i < 20; i++) {
+        final int length = 1 + rng.nextInt(50);
+        // Use a small number of distinct values to create repeats
+        final int distinct = rng.nextBoolean() ? 5 : 1 << bits;
+        final int scale = (1 << bits) / distinct;
+        final int[] values = rng.ints(length, 0, distinct).map(v -> v * scale).toArray();
+        h.add(values, length);
+        Assertions.assertEquals(length, h.size());
+
+        final int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (int k = 0; k < length; k++) {
+          Assertions.assertEquals(sorted[k], h.get(k));
+          Assertions.assertEquals(countOf(sorted, sorted[k]), h.getCount(sorted[k]));
+        }
+        final double[] data = Arrays.stream(values).asDoubleStream().toArray();
+        Assertions.assertEquals(Median.withDefaults().evaluate(data), h.median());
+
+        for (final boolean ignoreZero : new boolean[] {true, false}) {
+          final float[] fdata = new float[length];
+          for (int j = 0; j < length; j++) {
+            fdata[j] = values[j];
+          }
+          Assertions.assertEquals(ExtendedZProjector.mode(fdata, ignoreZero),
+              h.mode(values, length, ignoreZero));
+        }
+
+        h.remove(values, length);
+        Assertions.assertEquals(0, h.size());
+      }
+    }
+  }
+
+  private static int countOf(int[] values, int value) {
+    return (int) Arrays.stream(values).filter(v -> v == value).count();
+  }
+}
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.ext.plugin;
+
+import java.util.Arrays;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.apache.commons.statistics.descriptive.Median;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.test.api.Predicates;
+import uk.ac.sussex.gdsc.test.api.TestAssertions;
+import uk.ac.sussex.gdsc.test.api.function.DoubleDoubleBiPredicate;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class RunningProjectorTest {
+  @Test
+  void testConstructorThrows() {
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new RunningProjector(ZProjectorCopy.MAX_METHOD, 0, 10));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new RunningProjector(-1, 3, 10));
+  }
+
+  @SeededTest
+  void testProjection(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final DoubleDoubleBiPredicate test = Predicates.doublesAreClose(1e-6, 0);
+    for (int method = 0; method <= ExtendedZProjector.MODE_IGNORE_ZERO_METHOD; method++) {
+      for (final int window : new int[] {1, 2, 5, 8}) {
+        assertProjection(rng, test, method, window);
+      }
+    }
+  }
+
+  @SeededTest
+  void testStandardDeviationWithLargeOffset(RandomSeed seed) {
+    // The variance is small relative to the mean. This loses precision when computed as the
+    // difference of the sum of squares and the squared sum.
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final DoubleDoubleBiPredicate test = Predicates.doublesAreClose(1e-6, 1e-5);
+    for (final int window : new int[] {2, 5, 8}) {
+      assertProjection(rng, test, ZProjectorCopy.SD_METHOD, window, 64, 1.0 / 16, 1e6);
+    }
+  }
+
+  private static void assertProjection(UniformRandomProvider rng, DoubleDoubleBiPredicate test,
+      int method, int window) {
+    // Use a small range to create repeats and values below zero
+    final int range = rng.nextBoolean() ? 4 : 1000;
+    assertProjection(rng, test, method, window, range, 1, -1);
+  }
+
+  private static void assertProjection(UniformRandomProvider rng, DoubleDoubleBiPredicate test,
+      int method, int window, int range, double scale, double offset) {
+    final int size = 23;
+    // Slide the window multiple times
+    final float[][] slices = new float[3 * window + 15][size];
+    for (final float[] slice : slices) {
+      for (int i = 0; i < size; i++) {
+        slice[i] = (float) (rng.nextInt(range) * scale + offset);
+      }
+    }
+    final RunningProjector projector = new RunningProjector(method, window, size);
+    final float[] output = new float[size];
+    final float[] values = new float[window];
+    for (int n = 0; n < slices.length; n++) {
+      projector.push(slices[n]);
+      // Update in two blocks
+      projector.update(0, size / 2);
+      projector.update(size / 2, size);
+      Assertions.assertEquals(n >= window - 1, projector.isFull());
+      if (!projector.isFull()) {
+        continue;
+      }
+      projector.project(0, size, output);
+      for (int i = 0; i < size; i++) {
+        for (int k = 0; k < window; k++) {
+          values[k] = slices[n - window + 1 + k][i];
+        }
+        TestAssertions.assertTest(project(method, values), output[i], test);
+      }
+    }
+  }
+
+  private static double project(int method, float[] values) {
+    final double[] data = new double[values.length];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = values[i];
+    }
+    final int n = data.length;
+    switch (method) {
+      case ZProjectorCopy.AVG_METHOD:
+        return Arrays.stream(data).sum() / n;
+      case ZProjectorCopy.SUM_METHOD:
+        return Arrays.stream(data).sum();
+      case ZProjectorCopy.MAX_METHOD:
+        return Arrays.stream(data).max().getAsDouble();
+      case ZProjectorCopy.MIN_METHOD:
+        return Arrays.stream(data).min().getAsDouble();
+      case ZProjectorCopy.SD_METHOD:
+        if (n == 1) {
+          return 0;
+        }
+        final double mean = Arrays.stream(data).sum() / n;
+        return Math.sqrt(Arrays.stream(data).map(x -> (x - mean) * (x - mean)).sum() / (n - 1));
+      case ZProjectorCopy.MEDIAN_METHOD:
+        return Median.withDefaults().evaluate(data);
+      default:
+        return ExtendedZProjector.mode(values.clone(),
+            method == ExtendedZProjector.MODE_IGNORE_ZERO_METHOD);
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package uk.ac.sussex.gdsc.ij.ext.plugin.filter;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class DifferenceOfGaussiansTest {
+  @Test
+  void testMakeKernel() {
+    Assertions.assertArrayEquals(new float[] {1}, DifferenceOfGaussians.makeKernel(0, 0.002));
+    final float[] kernel = DifferenceOfGaussians.makeKernel(2.5, 0.0002);
+    double sum = kernel[0];
+    for (int i = 1; i < kernel.length; i++) {
+      Assertions.assertTrue(kernel[i] < kernel[i - 1]);
+      sum += 2 * kernel[i];
+    }
+    Assertions.assertEquals(1, sum, 1e-6);
+  }
+
+  @Test
+  void testRgbThrows() {
+    final ImageStack stack = new ImageStack(3, 3);
+    stack.addSlice(null, new int[9]);
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> DifferenceOfGaussians.run(stack, 2, 1, null, 1));
+  }
+
+  @SeededTest
+  void canFilterStack(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int width = 31;
+    final int height = 23;
+    final ImageStack stack = new ImageStack(width, height);
+    for (int i = 0; i < 5; i++) {
+      final short[] pixels = new short[width * height];
+      for (int j = 0; j < pixels.length; j++) {
+        pixels[j] = (short) rng.nextInt(1000);
+      }
+      stack.addSlice(null, pixels);
+    }
+    final Rectangle roi = new Rectangle(4, 3, 20, 15);
+    assertFilter(stack, 4, 1.5, null, true);
+    assertFilter(stack, 4, 1.5, roi, true);
+    assertFilter(stack, 0, 2, null, false);
+    assertFilter(stack, 0, 2, roi, false);
+  }
+
+  @SeededTest
+  void canFilterSingleSliceInBlocks(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int width = 29;
+    final int height = 33;
+    final float[] pixels = new float[width * height];
+    for (int j = 0; j < pixels.length; j++) {
+      pixels[j] = rng.nextFloat() * 100;
+    }
+    final ImageStack stack = new ImageStack(width, height);
+    stack.addSlice(null, pixels);
+    final Rectangle roi = new Rectangle(2, 5, 21, 17);
+    assertFilter(stack, 3, 1, null, true);
+    assertFilter(stack, 3, 1, roi, true);
+    assertFilter(stack, 0, 2.5, null, false);
+    assertFilter(stack, 0, 2.5, roi, false);
+  }
+
+  @SeededTest
+  void canFilterStackAsImageProcessor(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int width = 41;
+    final int height = 37;
+    final ImageStack stack8 = new ImageStack(width, height);
+    final ImageStack stack16 = new ImageStack(width, height);
+    for (int i = 0; i < 3; i++) {
+      final byte[] pixels8 = new byte[width * height];
+      final short[] pixels16 = new short[width * height];
+      for (int j = 0; j < pixels8.length; j++) {
+        pixels8[j] = (byte) rng.nextInt(256);
+        pixels16[j] = (short) rng.nextInt(1000);
+      }
+      stack8.addSlice(null, pixels8);
+      stack16.addSlice(null, pixels16);
+    }
+    final Rectangle roi = new Rectangle(6, 5, 25, 20);
+    for (final ImageStack stack : new ImageStack[] {stack8, stack16}) {
+      // Tolerance relative to the data range
+      final double delta = 1e-3 * (stack.getBitDepth() == 8 ? 255 : 1000);
+      assertFilterImageProcessor(stack, 4, 1.5, null, true, delta);
+      assertFilterImageProcessor(stack, 4, 1.5, roi, true, delta);
+      assertFilterImageProcessor(stack, 0, 2, null, false, delta);
+      assertFilterImageProcessor(stack, 0, 2, roi, false, delta);
+    }
+  }
+
+  /**
+   * Check the stack filter matches filtering a float copy of each slice with the ImageProcessor
+   * methods. This is how the filter was applied to stacks before the stack API.
+   */
+  private static void assertFilterImageProcessor(ImageStack stack, double sigma1, double sigma2,
+      Rectangle roi, boolean difference, double delta) {
+    final ImageStack result = difference ? DifferenceOfGaussians.run(stack, sigma1, sigma2, roi, 2)
+        : DifferenceOfGaussians.blur(stack, sigma2, roi, 2);
+    final DifferenceOfGaussians filter = new DifferenceOfGaussians();
+    filter.setNoProgress(true);
+    for (int slice = 1; slice <= stack.getSize(); slice++) {
+      final ImageProcessor ip = stack.getProcessor(slice).toFloat(0, null);
+      if (roi != null) {
+        ip.setRoi(roi);
+        ip.snapshot();
+      }
+      if (difference) {
+        DifferenceOfGaussians.run(ip, sigma1, sigma2);
+      } else {
+        filter.blurGaussian(ip, sigma2);
+      }
+      final float[] expected = (float[]) ip.getPixels();
+      final float[] actual = (float[]) result.getPixels(slice);
+      for (int i = 0; i < expected.length; i++) {
+        Assertions.assertEquals(expected[i], actual[i], delta);
+      }
+    }
+  }
+
+  private static void assertFilter(ImageStack stack, double sigma1, double sigma2, Rectangle roi,
+      boolean difference) {
+    final int width = stack.getWidth();
+    final int height = stack.getHeight();
+    final Rectangle bounds = (roi == null) ? new Rectangle(width, height) : roi;
+    final float[] kernel1 = DifferenceOfGaussians.makeKernel(sigma1, 0.0002);
+    final float[] kernel2 = DifferenceOfGaussians.makeKernel(sigma2, 0.0002);
+    final ImageStack result1 = difference ? DifferenceOfGaussians.run(stack, sigma1, sigma2, roi, 1)
+        : DifferenceOfGaussians.blur(stack, sigma2, roi, 1);
+    final ImageStack result2 = difference ? DifferenceOfGaussians.run(stack, sigma1, sigma2, roi, 3)
+        : DifferenceOfGaussians.blur(stack, sigma2, roi, 3);
+    // More threads than slices filters blocks of rows
+    final int threads = 4 * stack.getSize();
+    final ImageStack result3 = difference
+        ? DifferenceOfGaussians.run(stack, sigma1, sigma2, roi, threads)
+        : DifferenceOfGaussians.blur(stack, sigma2, roi, threads);
+    for (int slice = 1; slice <= stack.getSize(); slice++) {
+      final float[] data = (float[]) stack.getProcessor(slice).convertToFloat().getPixels();
+      final float[] b2 = convolve(data, width, height, kernel2);
+      final float[] b1 = difference ? convolve(data, width, height, kernel1) : null;
+      final float[] actual = (float[]) result1.getPixels(slice);
+      Assertions.assertArrayEquals(actual, (float[]) result2.getPixels(slice));
+      Assertions.assertArrayEquals(actual, (float[]) result3.getPixels(slice));
+      for (int y = 0, i = 0; y < height; y++) {
+        for (int x = 0; x < width; x++, i++) {
+          final float expected;
+          if (bounds.contains(x, y)) {
+            expected = difference ? b2[i] - b1[i] : b2[i];
+          } else {
+            expected = data[i];
+          }
+          Assertions.assertEquals(expected, actual[i], 1e-2);
+        }
+      }
+    }
+  }
+
+  /**
+   * Convolve the image using the symmetric kernel. Pixels outside the image are the edge pixel.
+   */
+  private static float[] convolve(float[] data, int width, int height, float[] kernel) {
+    final int radius = kernel.length - 1;
+    final float[] tmp = new float[data.length];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        double sum = 0;
+        for (int k = -radius; k <= radius; k++) {
+          final int xx = Math.min(width - 1, Math.max(0, x + k));
+          sum += kernel[Math.abs(k)] * data[y * width + xx];
+        }
+        tmp[y * width + x] = (float) sum;
+      }
+    }
+    final float[] out = new float[data.length];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        double sum = 0;
+        for (int k = -radius; k <= radius; k++) {
+          final int yy = Math.min(height - 1, Math.max(0, y + k));
+          sum += kernel[Math.abs(k)] * tmp[yy * width + x];
+        }
+        out[y * width + x] = (float) sum;
+      }
+    }
+    return out;
+  }
+}
@@ -0,0 +1,176 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.foci;
+
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class ObjectDistanceTransformTest {
+  @Test
+  void testBadDimensions() {
+    final int[] mask = new int[10];
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new ObjectDistanceTransform(mask, 3, 3, 1, 1, 1, 1, 1));
+  }
+
+  @Test
+  void canComputeSquareObject() {
+    final int size = 7;
+    final int[] mask = new int[size * size];
+    for (int y = 1; y < size - 1; y++) {
+      for (int x = 1; x < size - 1; x++) {
+        mask[y * size + x] = 1;
+      }
+    }
+    final ObjectDistanceTransform edt =
+        new ObjectDistanceTransform(mask, size, size, 1, 1, 1, 1, 1);
+    final double[] d2 = edt.getSquaredDistances();
+    // Edge
+    Assertions.assertEquals(0, d2[size + 1]);
+    Assertions.assertEquals(1, d2[2 * size + 2]);
+    Assertions.assertEquals(4, d2[3 * size + 3]);
+    // Background
+    Assertions.assertEquals(0, d2[0]);
+    Assertions.assertEquals(-1, edt.getNearestIndices()[0]);
+  }
+
+  @SeededTest
+  void canComputeDistanceTransform2d(RandomSeed seed) {
+    assertDistanceTransform(seed, 40, 30, 1, 1, 1);
+    assertDistanceTransform(seed, 40, 30, 1, 1.5, 1);
+  }
+
+  @SeededTest
+  void canComputeDistanceTransform3d(RandomSeed seed) {
+    assertDistanceTransform(seed, 20, 15, 10, 1, 1);
+    assertDistanceTransform(seed, 20, 15, 10, 1.25, 3);
+  }
+
+  private static void assertDistanceTransform(RandomSeed seed, int maxx, int maxy, int maxz,
+      double sy, double sz) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int maxObject = 3;
+    final int[] mask = createMask(rng, maxx, maxy, maxz, maxObject);
+
+    final ObjectDistanceTransform edt =
+        new ObjectDistanceTransform(mask, maxx, maxy, maxz, maxObject, sy, sz, 2);
+    final double[] d2 = edt.getSquaredDistances();
+    final int[] nearest = edt.getNearestIndices();
+
+    // Brute force search of the edge pixels of the same object
+    final boolean[] edge = new boolean[mask.length];
+    for (int i = 0; i < mask.length; i++) {
+      edge[i] = mask[i] != 0 && isEdge(mask, i, maxx, maxy, maxz);
+    }
+    final int maxxMaxy = maxx * maxy;
+    final double wy = sy * sy;
+    final double wz = sz * sz;
+    for (int i = 0; i < mask.length; i++) {
+      if (mask[i] == 0) {
+        Assertions.assertEquals(0, d2[i]);
+        Assertions.assertEquals(-1, nearest[i]);
+        continue;
+      }
+      final int x = i % maxx;
+      final int y = (i % maxxMaxy) / maxx;
+      final int z = i / maxxMaxy;
+      double min = Double.POSITIVE_INFINITY;
+      for (int j = 0; j < mask.length; j++) {
+        if (edge[j] && mask[j] == mask[i]) {
+          min = Math.min(min, distance2(x, y, z, j, maxx, maxxMaxy, wy, wz));
+        }
+      }
+      Assertions.assertEquals(min, d2[i], 1e-10, "distance");
+      Assertions.assertTrue(edge[nearest[i]], "nearest is edge");
+      Assertions.assertEquals(mask[i], mask[nearest[i]], "nearest object");
+      Assertions.assertEquals(min, distance2(x, y, z, nearest[i], maxx, maxxMaxy, wy, wz), 1e-10,
+          "nearest distance");
+    }
+  }
+
+  /**
+   * Create a mask of random rectangular objects. Later objects overwrite earlier objects.
+   */
+  private static int[] createMask(UniformRandomProvider rng, int maxx, int maxy, int maxz,
+      int maxObject) {
+    final int[] mask = new int[maxx * maxy * maxz];
+    for (int id = 1; id <= maxObject; id++) {
+      final int x1 = rng.nextInt(maxx);
+      final int x2 = x1 + rng.nextInt(maxx - x1);
+      final int y1 = rng.nextInt(maxy);
+      final int y2 = y1 + rng.nextInt(maxy - y1);
+      final int z1 = rng.nextInt(maxz);
+      final int z2 = z1 + rng.nextInt(maxz - z1);
+      for (int z = z1; z <= z2; z++) {
+        for (int y = y1; y <= y2; y++) {
+          for (int x = x1; x <= x2; x++) {
+            mask[z * maxx * maxy + y * maxx + x] = id;
+          }
+        }
+      }
+    }
+    return mask;
+  }
+
+  private static boolean isEdge(int[] mask, int index, int maxx, int maxy, int maxz) {
+    final int maxxMaxy = maxx * maxy;
+    final int x = index % maxx;
+    final int y = (index % maxxMaxy) / maxx;
+    final int z = index / maxxMaxy;
+    for (int dz = -1; dz <= 1; dz++) {
+      final int zz = z + dz;
+      if (zz < 0 || zz >= maxz) {
+        if (maxz > 1) {
+          return true;
+        }
+        continue;
+      }
+      for (int dy = -1; dy <= 1; dy++) {
+        final int yy = y + dy;
+        for (int dx = -1; dx <= 1; dx++) {
+          final int xx = x + dx;
+          if (xx < 0 || xx >= maxx || yy < 0 || yy >= maxy
+              || mask[zz * maxxMaxy + yy * maxx + xx] != mask[index]) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static double distance2(int x, int y, int z, int index, int maxx, int maxxMaxy,
+      double wy, double wz) {
+    final double dx = x - index % maxx;
+    final double dy = y - (index % maxxMaxy) / maxx;
+    final double dz = z - index / maxxMaxy;
+    return dx * dx + dy * dy * wy + dz * dz * wz;
+  }
+}
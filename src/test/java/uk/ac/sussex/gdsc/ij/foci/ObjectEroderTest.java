@@ -25,8 +25,12 @@
 package uk.ac.sussex.gdsc.ij.foci;
 
 import ij.process.ByteProcessor;
+import org.apache.commons.rng.UniformRandomProvider;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
 
 @SuppressWarnings({"javadoc"})
 class ObjectEroderTest {
@@ -207,6 +211,58 @@ class ObjectEroderTest {
 
   //@formatter:on
 
+  @SeededTest
+  void checkMultipleIterationsMatchRepeatedErosion(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    for (int i = 0; i < 50; i++) {
+      final int width = 1 + rng.nextInt(40);
+      final int height = 1 + rng.nextInt(40);
+      final byte[] data = createObjects(rng, width, height);
+      final int iterations = 2 + rng.nextInt(5);
+      for (final boolean extendOutside : new boolean[] {true, false}) {
+        final byte[] expected = data.clone();
+        final ObjectEroder eroder1 =
+            new ObjectEroder(new ByteProcessor(width, height, expected), extendOutside);
+        for (int j = 0; j < iterations; j++) {
+          eroder1.erode();
+        }
+
+        final byte[] actual = data.clone();
+        final ObjectEroder eroder2 =
+            new ObjectEroder(new ByteProcessor(width, height, actual), extendOutside);
+        eroder2.setThreads(3);
+        eroder2.setMinPixelsPerThread(16);
+        eroder2.erode(iterations);
+        Assertions.assertArrayEquals(expected, actual);
+      }
+    }
+  }
+
+  /**
+   * Create random objects as rectangles of the same value.
+   *
+   * @param rng the random generator
+   * @param width the width
+   * @param height the height
+   * @return the data
+   */
+  private static byte[] createObjects(UniformRandomProvider rng, int width, int height) {
+    final byte[] data = new byte[width * height];
+    for (int i = rng.nextInt(8); i-- > 0;) {
+      final int x = rng.nextInt(width);
+      final int y = rng.nextInt(height);
+      final int w = 1 + rng.nextInt(width - x);
+      final int h = 1 + rng.nextInt(height - y);
+      final byte value = (byte) (1 + rng.nextInt(4));
+      for (int yy = y; yy < y + h; yy++) {
+        for (int xx = x; xx < x + w; xx++) {
+          data[yy * width + xx] = value;
+        }
+      }
+    }
+    return data;
+  }
+
   /**
    * Create a byte image, perform the erosion and check the output.
    *
@@ -190,6 +190,63 @@ class ObjectExpanderTest {
 
   //@formatter:on
 
+  @SeededTest
+  void checkMultipleIterationsMatchRepeatedExpansion(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    for (int i = 0; i < 50; i++) {
+      final int width = 1 + rng.nextInt(40);
+      final int height = 1 + rng.nextInt(40);
+      final byte[] data = createObjects(rng, width, height);
+      final int iterations = 2 + rng.nextInt(10);
+
+      final byte[] expected = data.clone();
+      final ObjectExpander expander1 =
+          new ObjectExpander(new ByteProcessor(width, height, expected));
+      for (int j = 0; j < iterations; j++) {
+        expander1.expand();
+      }
+
+      final byte[] actual = data.clone();
+      final ObjectExpander expander2 =
+          new ObjectExpander(new ByteProcessor(width, height, actual));
+      expander2.setThreads(3);
+      expander2.setMinPixelsPerThread(16);
+      expander2.expand(iterations);
+      Assertions.assertArrayEquals(expected, actual);
+
+      // The nearest object mode fills the same pixels
+      final byte[] nearest = data.clone();
+      final ObjectExpander expander3 =
+          new ObjectExpander(new ByteProcessor(width, height, nearest));
+      expander3.setExact(false);
+      expander3.expand(iterations);
+      for (int j = 0; j < data.length; j++) {
+        Assertions.assertEquals(expected[j] == 0, nearest[j] == 0);
+        if (data[j] != 0) {
+          Assertions.assertEquals(data[j], nearest[j]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Create random objects.
+   *
+   * @param rng the random generator
+   * @param width the width
+   * @param height the height
+   * @return the data
+   */
+  private static byte[] createObjects(UniformRandomProvider rng, int width, int height) {
+    final byte[] data = new byte[width * height];
+    for (int i = 0; i < data.length; i++) {
+      if (rng.nextInt(10) == 0) {
+        data[i] = (byte) (1 + rng.nextInt(4));
+      }
+    }
+    return data;
+  }
+
   /**
    * Create a byte image, perform the erosion and check the output.
    *
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.foci;
+
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import uk.ac.sussex.gdsc.ij.foci.ObjectFociDepth_PlugIn.Distance;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class ObjectFociDepthPlugInTest {
+  @SeededTest
+  void canMatchSearchWithDistanceTransform2d(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    for (final double sy : new double[] {1, 1.5}) {
+      final ObjectFociDepth_PlugIn.Distance2D df = (dx, dy) -> dx * dx + dy * dy * sy * sy;
+      for (int n = 0; n < 5; n++) {
+        final int maxx = 30;
+        final int maxy = 25;
+        final int[] mask = createRectangle(rng, maxx, maxy, 1);
+        final ObjectDistanceTransform edt =
+            new ObjectDistanceTransform(mask, maxx, maxy, 1, 1, sy, 1, 2);
+        for (int y = 0, i = 0; y < maxy; y++) {
+          for (int x = 0; x < maxx; x++, i++) {
+            final AssignedPoint point = new AssignedPoint(x, y, i);
+            final Distance d1 = ObjectFociDepth_PlugIn.search2d(point, mask, maxx, maxy, df);
+            final Distance d2 = ObjectFociDepth_PlugIn.lookup(point, 0, mask, maxx, maxy, edt);
+            assertEqual(d1, d2);
+          }
+        }
+      }
+    }
+  }
+
+  @SeededTest
+  void canMatchSearchWithDistanceTransform3d(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    for (final double[] s : new double[][] {{1, 1}, {1.25, 3}}) {
+      final double sy = s[0];
+      final double sz = s[1];
+      final ObjectFociDepth_PlugIn.Distance3D df =
+          (dx, dy, dz) -> dx * dx + dy * dy * sy * sy + dz * dz * sz * sz;
+      for (int n = 0; n < 5; n++) {
+        final int maxx = 20;
+        final int maxy = 15;
+        final int maxz = 10;
+        final int[] mask = createRectangle(rng, maxx, maxy, maxz);
+        final ObjectDistanceTransform edt =
+            new ObjectDistanceTransform(mask, maxx, maxy, maxz, 1, sy, sz, 2);
+        for (int z = 0, i = 0; z < maxz; z++) {
+          for (int y = 0; y < maxy; y++) {
+            for (int x = 0; x < maxx; x++, i++) {
+              // Points use 1-based z
+              final AssignedPoint point = new AssignedPoint(x, y, z + 1, i);
+              final Distance d1 =
+                  ObjectFociDepth_PlugIn.search3d(point, mask, maxx, maxy, maxz, df);
+              final Distance d2 = ObjectFociDepth_PlugIn.lookup(point, z, mask, maxx, maxy, edt);
+              assertEqual(d1, d2);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Create a mask with a single rectangular object. The object may touch the image border.
+   */
+  private static int[] createRectangle(UniformRandomProvider rng, int maxx, int maxy, int maxz) {
+    final int[] mask = new int[maxx * maxy * maxz];
+    final int x1 = rng.nextInt(maxx);
+    final int x2 = x1 + rng.nextInt(maxx - x1);
+    final int y1 = rng.nextInt(maxy);
+    final int y2 = y1 + rng.nextInt(maxy - y1);
+    final int z1 = rng.nextInt(maxz);
+    final int z2 = z1 + rng.nextInt(maxz - z1);
+    for (int z = z1; z <= z2; z++) {
+      for (int y = y1; y <= y2; y++) {
+        for (int x = x1; x <= x2; x++) {
+          mask[z * maxx * maxy + y * maxx + x] = 1;
+        }
+      }
+    }
+    return mask;
+  }
+
+  private static void assertEqual(Distance d1, Distance d2) {
+    if (d1 == null) {
+      Assertions.assertNull(d2);
+      return;
+    }
+    Assertions.assertNotNull(d2);
+    Assertions.assertEquals(d1.id, d2.id);
+    // The nearest edge pixel may differ if equidistant; the distance must match
+    Assertions.assertEquals(d1.d2, d2.d2, 1e-10);
+  }
+}
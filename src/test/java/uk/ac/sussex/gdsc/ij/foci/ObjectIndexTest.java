@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package uk.ac.sussex.gdsc.ij.foci;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class ObjectIndexTest {
+  @SeededTest
+  void canIndexObjects(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int maxx = 23;
+    final int maxy = 19;
+    final int maxz = 5;
+    final int[] image = new int[maxx * maxy * maxz];
+    final float[] intensity = new float[image.length];
+    for (int i = 0; i < image.length; i++) {
+      if (rng.nextDouble() < 0.4) {
+        image[i] = 1 + rng.nextInt(2);
+      }
+      intensity[i] = rng.nextFloat();
+    }
+    final ObjectAnalyzer3D oa = new ObjectAnalyzer3D(image, maxx, maxy, maxz, true);
+    oa.setMinObjectSize(2);
+    final int[] mask = oa.getObjectMask();
+    final ObjectIndex index = oa.getObjectIndex();
+    final int max = oa.getMaxObject();
+    Assertions.assertEquals(max, index.getMaxObject());
+
+    final double[][] moments = index.getIntensityMoments(intensity);
+    for (int object = 1; object <= max; object++) {
+      // Brute force scan of the mask
+      final IntArrayList indices = new IntArrayList();
+      final int[] bounds = {maxx, maxy, maxz, 0, 0, 0};
+      double sx = 0;
+      double sy = 0;
+      double sz = 0;
+      double sum = 0;
+      double sumSq = 0;
+      double wx = 0;
+      for (int z = 0, i = 0; z < maxz; z++) {
+        for (int y = 0; y < maxy; y++) {
+          for (int x = 0; x < maxx; x++, i++) {
+            if (mask[i] == object) {
+              indices.add(i);
+              bounds[0] = Math.min(bounds[0], x);
+              bounds[1] = Math.min(bounds[1], y);
+              bounds[2] = Math.min(bounds[2], z);
+              bounds[3] = Math.max(bounds[3], x);
+              bounds[4] = Math.max(bounds[4], y);
+              bounds[5] = Math.max(bounds[5], z);
+              sx += x;
+              sy += y;
+              sz += z;
+              final double v = intensity[i];
+              sum += v;
+              sumSq += v * v;
+              wx += v * x;
+            }
+          }
+        }
+      }
+      final int size = indices.size();
+      Assertions.assertEquals(size, index.getSize(object));
+      Assertions.assertArrayEquals(bounds, index.getBounds(object));
+      Assertions.assertArrayEquals(new double[] {sx / size, sy / size, sz / size},
+          index.getCentroid(object));
+      Assertions.assertEquals(indices.getInt(0), index.getFirstIndex(object));
+      final IntArrayList actual = new IntArrayList();
+      index.forEachIndex(object, actual::add);
+      Assertions.assertEquals(indices, actual);
+      Assertions.assertEquals(sum, moments[object][0], 1e-10);
+      Assertions.assertEquals(sumSq, moments[object][1], 1e-10);
+      Assertions.assertEquals(wx / sum, moments[object][2], 1e-10);
+    }
+  }
+}
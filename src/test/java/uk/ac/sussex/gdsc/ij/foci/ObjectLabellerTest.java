@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package uk.ac.sussex.gdsc.ij.foci;
+
+import java.util.ArrayDeque;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class ObjectLabellerTest {
+  @SeededTest
+  void canLabel2d(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    for (int i = 0; i < 20; i++) {
+      assertLabel(rng, 25, 31, 1);
+    }
+  }
+
+  @SeededTest
+  void canLabel3d(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    for (int i = 0; i < 20; i++) {
+      assertLabel(rng, 17, 13, 9);
+    }
+  }
+
+  private static void assertLabel(UniformRandomProvider rng, int maxx, int maxy, int maxz) {
+    final int[] image = new int[maxx * maxy * maxz];
+    final double p = rng.nextDouble();
+    for (int i = 0; i < image.length; i++) {
+      if (rng.nextDouble() < p) {
+        image[i] = 1 + rng.nextInt(2);
+      }
+    }
+    for (final boolean eightConnected : new boolean[] {false, true}) {
+      for (final int minSize : new int[] {0, 3}) {
+        final int[] expected = new int[image.length];
+        final int max = floodFill(image, expected, maxx, maxy, maxz, eightConnected, minSize);
+        for (final int threads : new int[] {1, 3}) {
+          final ObjectLabeller labeller = new ObjectLabeller(maxx, maxy, maxz, eightConnected);
+          labeller.setMinPixelsPerThread(1);
+          final int[] mask = new int[image.length];
+          Assertions.assertEquals(max, labeller.label(image, mask, minSize, threads));
+          Assertions.assertArrayEquals(expected, mask);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reference implementation using a flood fill from each unlabelled pixel in raster order.
+   */
+  private static int floodFill(int[] image, int[] mask, int maxx, int maxy, int maxz,
+      boolean eightConnected, int minSize) {
+    final int maxxByMaxy = maxx * maxy;
+    int max = 0;
+    int[] sizes = new int[image.length + 1];
+    final ArrayDeque<Integer> queue = new ArrayDeque<>();
+    for (int i = 0; i < image.length; i++) {
+      if (image[i] == 0 || mask[i] != 0) {
+        continue;
+      }
+      mask[i] = ++max;
+      queue.add(i);
+      while (!queue.isEmpty()) {
+        final int index = queue.poll();
+        sizes[max]++;
+        final int x = index % maxx;
+        final int y = (index / maxx) % maxy;
+        final int z = index / maxxByMaxy;
+        for (int dz = -1; dz <= 1; dz++) {
+          for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+              final int manhattan = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+              if (manhattan == 0 || (!eightConnected && manhattan != 1)) {
+                continue;
+              }
+              final int xx = x + dx;
+              final int yy = y + dy;
+              final int zz = z + dz;
+              if (xx < 0 || xx >= maxx || yy < 0 || yy >= maxy || zz < 0 || zz >= maxz) {
+                continue;
+              }
+              final int index2 = zz * maxxByMaxy + yy * maxx + xx;
+              if (mask[index2] == 0 && image[index2] == image[i]) {
+                mask[index2] = max;
+                queue.add(index2);
+              }
+            }
+          }
+        }
+      }
+    }
+    if (minSize > 0) {
+      final int[] map = new int[max + 1];
+      max = 0;
+      for (int i = 1; i < map.length; i++) {
+        if (sizes[i] >= minSize) {
+          map[i] = ++max;
+        }
+      }
+      for (int i = 0; i < mask.length; i++) {
+        mask[i] = map[mask[i]];
+      }
+    }
+    return max;
+  }
+}
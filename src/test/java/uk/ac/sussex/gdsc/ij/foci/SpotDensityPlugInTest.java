@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.foci;
+
+import ij.process.FloatProcessor;
+import java.util.Arrays;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import uk.ac.sussex.gdsc.ij.foci.SpotDensity_PlugIn.DistanceHistograms;
+import uk.ac.sussex.gdsc.ij.foci.SpotDensity_PlugIn.Foci;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class SpotDensityPlugInTest {
+
+  @SeededTest
+  void canComputeHistogramsUsingDifferentFoci(RandomSeed seed) {
+    assertComputeHistograms(seed, false);
+  }
+
+  @SeededTest
+  void canComputeHistogramsUsingIdenticalFoci(RandomSeed seed) {
+    assertComputeHistograms(seed, true);
+  }
+
+  private static void assertComputeHistograms(RandomSeed seed, boolean identical) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int size = 200;
+    // Distance map with an edge region
+    final FloatProcessor map = new FloatProcessor(size, size);
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        map.setf(x, y, Math.min(Math.min(x, y), Math.min(size - 1 - x, size - 1 - y)));
+      }
+    }
+    final Foci[] foci1 = createFoci(rng, 1500, size);
+    final Foci[] foci2 = identical ? foci1.clone() : createFoci(rng, 1000, size);
+    // Use a subset of set 2
+    final int n2 = foci2.length - 10;
+    for (final double[] params : new double[][] {{15, 1.5}, {10, 2.5}, {3, 1}}) {
+      final double distance = params[0];
+      final double interval = params[1];
+      final DistanceHistograms expected =
+          computeHistograms(foci1, foci2, n2, identical, map, distance, interval);
+      for (final int threads : new int[] {1, 3}) {
+        final DistanceHistograms actual = SpotDensity_PlugIn.computeHistograms(foci1, foci2, n2,
+            identical, map, distance, interval, threads);
+        Assertions.assertEquals(expected.n1, actual.n1, "n1");
+        Assertions.assertArrayEquals(expected.h1, actual.h1, "h1");
+        Assertions.assertArrayEquals(expected.h2, actual.h2, "h2");
+        Assertions.assertEquals(expected.count, actual.count, "count");
+        Assertions.assertArrayEquals(Arrays.copyOf(expected.distances, expected.count),
+            Arrays.copyOf(actual.distances, actual.count), "distances");
+      }
+    }
+  }
+
+  private static Foci[] createFoci(UniformRandomProvider rng, int count, int size) {
+    final Foci[] foci = new Foci[count];
+    for (int i = 0; i < count; i++) {
+      foci[i] = new Foci(i, rng.nextInt(size), rng.nextInt(size));
+    }
+    return foci;
+  }
+
+  /**
+   * Compute the histograms by comparing all pairs of foci.
+   */
+  private static DistanceHistograms computeHistograms(Foci[] foci1, Foci[] foci2, int n2,
+      boolean identical, FloatProcessor map, double distance, double interval) {
+    final int nbins = (int) (distance / interval) + 1;
+    final double maxDistance2 = distance * distance;
+    final DistanceHistograms histograms = new DistanceHistograms(nbins, foci1.length);
+    final int[] h1 = histograms.h1;
+    final int[] h2 = histograms.h2;
+    for (int i = foci1.length; i-- > 0;) {
+      final Foci m = foci1[i];
+      if (map.getPixelValue(m.x, m.y) < distance) {
+        continue;
+      }
+      histograms.n1++;
+
+      double min = Double.POSITIVE_INFINITY;
+      for (int j = n2; j-- > 0;) {
+        final Foci m2 = foci2[j];
+        if (identical && m.id == m2.id) {
+          continue;
+        }
+        final double d2 = m.distance2(m2);
+        if (d2 < maxDistance2) {
+          h1[(int) (Math.sqrt(d2) / interval)]++;
+        }
+        if (d2 < min) {
+          min = d2;
+        }
+      }
+
+      if (min != Double.POSITIVE_INFINITY) {
+        min = Math.sqrt(min);
+        if (min < distance) {
+          h2[(int) (min / interval)]++;
+        }
+        histograms.distances[histograms.count++] = min;
+      }
+    }
+    return histograms;
+  }
+}
@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package uk.ac.sussex.gdsc.ij.foci;
+
+import ij.ImageStack;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import uk.ac.sussex.gdsc.ij.ext.plugin.filter.DifferenceOfGaussians;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class SpotDistancePlugInTest {
+  private static final int WIDTH = 40;
+  private static final int HEIGHT = 33;
+
+  @SeededTest
+  void canFilterStacks(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final ImageStack s1 = createStack(rng, 3);
+    final ImageStack s2 = createStack(rng, 3);
+    final Rectangle bounds = new Rectangle(5, 3, 25, 20);
+    for (final Rectangle roi : new Rectangle[] {null, bounds}) {
+      final ImageStack[] filtered = SpotDistance_PlugIn.filterStacks(2, 1, roi, 3, s1, s2);
+      assertStackEquals(DifferenceOfGaussians.run(s1, 2, 1, roi, 1), filtered[0]);
+      assertStackEquals(DifferenceOfGaussians.run(s2, 2, 1, roi, 1), filtered[1]);
+
+      final ImageStack[] blurred = SpotDistance_PlugIn.filterStacks(0, 1.5, roi, 3, s1, null);
+      assertStackEquals(DifferenceOfGaussians.blur(s1, 1.5, roi, 1), blurred[0]);
+      Assertions.assertNull(blurred[1]);
+    }
+  }
+
+  @SeededTest
+  void canFilterStacksAfterThePixelsAreModified(RandomSeed seed) {
+    // Filtered slices must not be reused when the image is edited in place and the
+    // plugin is repeated
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final ImageStack s1 = createStack(rng, 2);
+    final ImageStack first = SpotDistance_PlugIn.filterStacks(2, 1, null, 2, s1)[0];
+    final short[] pixels = (short[]) s1.getPixels(2);
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = (short) (pixels[i] + 100 * (i % 7));
+    }
+    final ImageStack second = SpotDistance_PlugIn.filterStacks(2, 1, null, 2, s1)[0];
+    assertStackEquals(DifferenceOfGaussians.run(s1, 2, 1, null, 1), second);
+    Assertions.assertArrayEquals((float[]) first.getPixels(1), (float[]) second.getPixels(1));
+    Assertions.assertFalse(Arrays.equals((float[]) first.getPixels(2),
+        (float[]) second.getPixels(2)));
+  }
+
+  private static ImageStack createStack(UniformRandomProvider rng, int size) {
+    final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+    for (int slice = 0; slice < size; slice++) {
+      final short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; i++) {
+        pixels[i] = (short) (100 + rng.nextInt(1000));
+      }
+      stack.addSlice(null, pixels);
+    }
+    return stack;
+  }
+
+  private static void assertStackEquals(ImageStack expected, ImageStack actual) {
+    Assertions.assertEquals(expected.getSize(), actual.getSize());
+    for (int slice = 1; slice <= expected.getSize(); slice++) {
+      Assertions.assertArrayEquals((float[]) expected.getPixels(slice),
+          (float[]) actual.getPixels(slice));
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package uk.ac.sussex.gdsc.ij.threshold;
+
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class LaplacianZeroCrossingTest {
+  @ParameterizedTest
+  @ValueSource(doubles = {0.5, 1, 2.3, 4.5})
+  void testMakeKernels(double sigma) {
+    final float[][] kernels = LaplacianZeroCrossing.makeKernels(sigma);
+    final float[] g = kernels[0];
+    final float[] d2 = kernels[1];
+    double sum = g[0];
+    double sum2 = d2[0];
+    double moment = 0;
+    for (int i = 1; i < g.length; i++) {
+      sum += 2 * g[i];
+      sum2 += 2 * d2[i];
+      moment += i * i * d2[i];
+    }
+    Assertions.assertEquals(1, sum, 1e-6, "Gaussian sum");
+    Assertions.assertEquals(0, sum2, 1e-6, "Second derivative sum");
+    Assertions.assertEquals(1, moment, 1e-6, "Second derivative moment");
+  }
+
+  @SeededTest
+  void testLaplacianMatchesDirectConvolution(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int width = 37;
+    final int height = 150;
+    final float[] pixels = new float[width * height];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = rng.nextFloat() * 100;
+    }
+    for (final double sigma : new double[] {0.5, 1, 2.3}) {
+      final float[][] kernels = LaplacianZeroCrossing.makeKernels(sigma);
+      final float[] g = kernels[0];
+      final float[] d2 = kernels[1];
+      final int radius = g.length - 1;
+      final float[] laplacian = new float[pixels.length];
+      final byte[] edges = new byte[pixels.length];
+      new LaplacianZeroCrossing(width, height, sigma).run(pixels, edges, laplacian, 1);
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          // Non-separable convolution with edge clamping
+          double sum = 0;
+          for (int dy = -radius; dy <= radius; dy++) {
+            final int yy = Math.min(height - 1, Math.max(0, y + dy)) * width;
+            final int ay = Math.abs(dy);
+            for (int dx = -radius; dx <= radius; dx++) {
+              final int xx = Math.min(width - 1, Math.max(0, x + dx));
+              final int ax = Math.abs(dx);
+              sum += pixels[yy + xx] * ((double) d2[ax] * g[ay] + (double) g[ax] * d2[ay]);
+            }
+          }
+          Assertions.assertEquals(sum, laplacian[y * width + x], 1e-3);
+        }
+      }
+    }
+  }
+
+  @SeededTest
+  void testRunIsIndependentOfThreads(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    for (int i = 0; i < 10; i++) {
+      final int width = 10 + rng.nextInt(100);
+      final int height = 10 + rng.nextInt(300);
+      final short[] pixels = new short[width * height];
+      for (int j = 0; j < pixels.length; j++) {
+        pixels[j] = (short) rng.nextInt(1 << 16);
+      }
+      final double sigma = 0.5 + rng.nextDouble() * 4;
+      final LaplacianZeroCrossing lzc = new LaplacianZeroCrossing(width, height, sigma);
+      final byte[] edges1 = new byte[pixels.length];
+      final float[] laplacian1 = new float[pixels.length];
+      lzc.run(pixels, edges1, laplacian1, 1);
+      final byte[] edges2 = new byte[pixels.length];
+      final float[] laplacian2 = new float[pixels.length];
+      lzc.run(pixels, edges2, laplacian2, 3);
+      Assertions.assertArrayEquals(laplacian1, laplacian2, "Laplacian");
+      Assertions.assertArrayEquals(edges1, edges2, "Edges");
+    }
+  }
+
+  @Test
+  void testZeroCrossingsOfDisk() {
+    final int size = 64;
+    final int centre = 32;
+    final int radius = 15;
+    final byte[] pixels = new byte[size * size];
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        if (distance(x, y, centre) <= radius) {
+          pixels[y * size + x] = (byte) 200;
+        }
+      }
+    }
+    final byte[] edges = new byte[pixels.length];
+    new LaplacianZeroCrossing(size, size, 1.5).run(pixels, edges, null, 1);
+    int count = 0;
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        if (edges[y * size + x] != 0) {
+          count++;
+          Assertions.assertEquals((byte) 255, edges[y * size + x]);
+          Assertions.assertEquals(radius, distance(x, y, centre), 1.5);
+        }
+      }
+    }
+    // The edge should enclose the disk
+    Assertions.assertTrue(count > 4 * radius, "Edge count");
+    for (final int[] d : new int[][] {{1, 0}, {-1, 0}, {0, 1}, {0, -1}}) {
+      boolean found = false;
+      for (int i = 0; i < size / 2 && !found; i++) {
+        found = edges[(centre + i * d[1]) * size + centre + i * d[0]] != 0;
+      }
+      Assertions.assertTrue(found, "No edge found");
+    }
+  }
+
+  private static double distance(int x, int y, int centre) {
+    return Math.hypot(x - centre, y - centre);
+  }
+}
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.threshold;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import uk.ac.sussex.gdsc.core.threshold.AutoThreshold;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class MaskCreaterPluginTest {
+  @SeededTest
+  void checkThresholdMaskIsIndependentOfThreads(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int channels = 2;
+    final int slices = 3;
+    final int frames = 4;
+    for (final int bitDepth : new int[] {16, 32}) {
+      final ImageStack stack = ImageStack.create(20, 15, channels * slices * frames, bitDepth);
+      for (int n = 1; n <= stack.getSize(); n++) {
+        final ImageProcessor ip = stack.getProcessor(n);
+        for (int i = ip.getPixelCount(); i-- > 0;) {
+          ip.setf(i, rng.nextInt(1000));
+        }
+      }
+      final ImagePlus imp = new ImagePlus("test", stack);
+      imp.setDimensions(channels, slices, frames);
+      for (final boolean stackHistogram : new boolean[] {true, false}) {
+        final ImagePlus expected = createMask(imp, stackHistogram, 1);
+        final ImagePlus actual = createMask(imp, stackHistogram, 4);
+        final ImageStack s1 = expected.getImageStack();
+        final ImageStack s2 = actual.getImageStack();
+        Assertions.assertEquals(s1.getSize(), s2.getSize());
+        for (int n = 1; n <= s1.getSize(); n++) {
+          Assertions.assertArrayEquals((byte[]) s1.getPixels(n), (byte[]) s2.getPixels(n));
+        }
+        Assertions.assertEquals(expected.getRoi().getBounds(), actual.getRoi().getBounds());
+      }
+    }
+  }
+
+  @SeededTest
+  void checkMaskWithRoiAndObjects(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int width = 16;
+    final int height = 12;
+    final int channels = 2;
+    final int slices = 3;
+    final int frames = 2;
+    final ImageStack stack = ImageStack.create(width, height, channels * slices * frames, 8);
+    for (int n = 1; n <= stack.getSize(); n++) {
+      final ImageProcessor ip = stack.getProcessor(n);
+      for (int i = ip.getPixelCount(); i-- > 0;) {
+        if (rng.nextInt(10) < 3) {
+          ip.set(i, 1 + rng.nextInt(200));
+        }
+      }
+    }
+    final ImagePlus imp = new ImagePlus("test", stack);
+    imp.setDimensions(channels, slices, frames);
+    final Roi[] rois = {null, new Roi(2, 3, 10, 7), new OvalRoi(1, 1, 13, 9)};
+    for (final Roi roi : rois) {
+      imp.setRoi(roi);
+      for (int options = 0; options < 32; options++) {
+        final boolean clearOutside = (options & 1) != 0;
+        final boolean removeEdgeParticles = (options & 2) != 0;
+        final boolean assignObjects = (options & 4) != 0;
+        final boolean eightConnected = (options & 8) != 0;
+        final int minParticleSize = (options & 16) != 0 ? 3 : 0;
+        for (final int threads : new int[] {1, 3}) {
+          final MaskCreater_PlugIn mc =
+              new MaskCreater_PlugIn(imp, MaskCreater_PlugIn.OPTION_MASK);
+          mc.setClearOutside(clearOutside);
+          mc.setRemoveEdgeParticles(removeEdgeParticles);
+          mc.setAssignObjects(assignObjects);
+          mc.setEightConnected(eightConnected);
+          mc.setMinParticleSize(minParticleSize);
+          mc.setThreads(threads);
+          final ImageStack result = mc.createMask().getImageStack();
+          Assertions.assertEquals(stack.getSize(), result.getSize());
+
+          final boolean[] inside = getInside(width, height, clearOutside ? roi : null);
+          for (int c = 1; c <= channels; c++) {
+            for (int t = 1; t <= frames; t++) {
+              final int[] expected = createExpectedMask(imp, c, t, inside, eightConnected,
+                  minParticleSize, removeEdgeParticles);
+              final int[] actual = new int[expected.length];
+              for (int z = 1, j = 0; z <= slices; z++) {
+                final ImageProcessor ip = result.getProcessor(imp.getStackIndex(c, z, t));
+                for (int i = 0; i < ip.getPixelCount(); i++) {
+                  actual[j++] = ip.get(i);
+                }
+              }
+              if (assignObjects) {
+                assertSameObjects(expected, actual);
+              } else {
+                for (int i = 0; i < expected.length; i++) {
+                  expected[i] = expected[i] == 0 ? 0 : 255;
+                }
+                Assertions.assertArrayEquals(expected, actual);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static ImagePlus createMask(ImagePlus imp, boolean stackHistogram, int threads) {
+    final MaskCreater_PlugIn mc = new MaskCreater_PlugIn(imp, MaskCreater_PlugIn.OPTION_THRESHOLD);
+    mc.setThresholdMethod(AutoThreshold.Method.OTSU.toString());
+    mc.setStackHistogram(stackHistogram);
+    mc.setThreads(threads);
+    return mc.createMask();
+  }
+
+  /**
+   * Gets the pixels inside the ROI using the ROI bounds and mask.
+   */
+  private static boolean[] getInside(int width, int height, Roi roi) {
+    final boolean[] inside = new boolean[width * height];
+    if (roi == null) {
+      Arrays.fill(inside, true);
+      return inside;
+    }
+    final Rectangle bounds = roi.getBounds();
+    final ImageProcessor mask = roi.getMask();
+    for (int y = 0; y < bounds.height; y++) {
+      for (int x = 0; x < bounds.width; x++) {
+        if (mask == null || mask.get(x, y) != 0) {
+          inside[(y + bounds.y) * width + x + bounds.x] = true;
+        }
+      }
+    }
+    return inside;
+  }
+
+  /**
+   * Create the expected object labels for the z-stack of the channel and frame. Objects are
+   * labelled with a flood fill and filtered by size and contact with the XY edge.
+   */
+  private static int[] createExpectedMask(ImagePlus imp, int channel, int frame,
+      boolean[] inside, boolean eightConnected, int minParticleSize,
+      boolean removeEdgeParticles) {
+    final int width = imp.getWidth();
+    final int height = imp.getHeight();
+    final int depth = imp.getNSlices();
+    final int size = width * height;
+    final boolean[] foreground = new boolean[size * depth];
+    for (int z = 0; z < depth; z++) {
+      final ImageProcessor ip =
+          imp.getImageStack().getProcessor(imp.getStackIndex(channel, z + 1, frame));
+      for (int i = 0; i < size; i++) {
+        foreground[z * size + i] = inside[i] && ip.get(i) != 0;
+      }
+    }
+    final int[] labels = new int[foreground.length];
+    final int[] queue = new int[foreground.length];
+    int objects = 0;
+    for (int start = 0; start < foreground.length; start++) {
+      if (!foreground[start] || labels[start] != 0) {
+        continue;
+      }
+      final int label = ++objects;
+      labels[start] = label;
+      queue[0] = start;
+      boolean edge = false;
+      int count = 1;
+      for (int head = 0; head < count; head++) {
+        final int index = queue[head];
+        final int z = index / size;
+        final int y = (index % size) / width;
+        final int x = index % width;
+        edge |= x == 0 || y == 0 || x == width - 1 || y == height - 1;
+        for (int dz = -1; dz <= 1; dz++) {
+          for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+              final int steps = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+              if (steps == 0 || (!eightConnected && steps != 1)) {
+                continue;
+              }
+              final int x2 = x + dx;
+              final int y2 = y + dy;
+              final int z2 = z + dz;
+              if (x2 < 0 || y2 < 0 || z2 < 0 || x2 >= width || y2 >= height || z2 >= depth) {
+                continue;
+              }
+              final int index2 = z2 * size + y2 * width + x2;
+              if (foreground[index2] && labels[index2] == 0) {
+                labels[index2] = label;
+                queue[count++] = index2;
+              }
+            }
+          }
+        }
+      }
+      if (count < minParticleSize || (removeEdgeParticles && edge)) {
+        for (int k = 0; k < count; k++) {
+          labels[queue[k]] = -1;
+        }
+      }
+    }
+    // Remove the excluded objects
+    for (int i = 0; i < labels.length; i++) {
+      if (labels[i] < 0) {
+        labels[i] = 0;
+      }
+    }
+    return labels;
+  }
+
+  /**
+   * Assert the labels define the same objects. The actual labels must be numbered from 1.
+   */
+  private static void assertSameObjects(int[] expected, int[] actual) {
+    final int max = Arrays.stream(expected).max().orElse(0) + 1;
+    final int[] map = new int[max];
+    final int[] inverse = new int[Arrays.stream(actual).max().orElse(0) + 1];
+    for (int i = 0; i < expected.length; i++) {
+      final int e = expected[i];
+      final int a = actual[i];
+      Assertions.assertEquals(e == 0, a == 0, "Foreground mismatch");
+      if (e == 0) {
+        continue;
+      }
+      if (map[e] == 0) {
+        Assertions.assertEquals(0, inverse[a], "Object label is used for two objects");
+        map[e] = a;
+        inverse[a] = e;
+      } else {
+        Assertions.assertEquals(map[e], a, "Object has two labels");
+      }
+    }
+    for (int a = 1; a < inverse.length; a++) {
+      Assertions.assertNotEquals(0, inverse[a], "Object labels are not consecutive");
+    }
+  }
+}
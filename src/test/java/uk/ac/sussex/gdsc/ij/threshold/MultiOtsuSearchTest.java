@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.threshold;
+
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class MultiOtsuSearchTest {
+  @Test
+  void testFindMaxSigmaThrowsWithBadLevel() {
+    final MultiOtsuSearch search = new MultiOtsuSearch(new float[10]);
+    final int[] thresholds = new int[1];
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> search.findMaxSigma(1, thresholds));
+  }
+
+  @Test
+  void testFindMaxSigmaWithSmallHistogram() {
+    final MultiOtsuSearch search = new MultiOtsuSearch(new float[] {0.5f, 0.25f, 0.25f});
+    final int[] thresholds = new int[2];
+    Assertions.assertEquals(-1, search.findMaxSigma(2, thresholds));
+    Assertions.assertArrayEquals(new int[2], thresholds);
+  }
+
+  @SeededTest
+  void testFindMaxSigmaMatchesExhaustiveSearch(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final MultiOtsuThreshold_PlugIn plugin = new MultiOtsuThreshold_PlugIn();
+    for (int i = 0; i < 200; i++) {
+      final float[] histogram = createHistogram(rng, 5 + rng.nextInt(40), i % 2 == 0);
+      final float[][] lookupTable = plugin.buildLookupTables(histogram);
+      final MultiOtsuSearch search = new MultiOtsuSearch(histogram);
+      search.setThreads(1 + rng.nextInt(3));
+      for (int levels = 2; levels <= 5; levels++) {
+        final int[] expected = new int[levels];
+        final int[] actual = new int[levels];
+        final float expectedSig = plugin.findMaxSigma(levels, lookupTable, expected);
+        final float actualSig = search.findMaxSigma(levels, actual);
+        Assertions.assertEquals(expectedSig, Math.max(0, actualSig));
+        Assertions.assertArrayEquals(expected, actual);
+      }
+    }
+  }
+
+  @SeededTest
+  void testFindMaxSigmaMatchesExhaustiveSearchWith256Bins(RandomSeed seed) {
+    assertFindMaxSigmaMatchesExhaustiveSearch(seed, 256, 5);
+  }
+
+  @SeededTest
+  void testFindMaxSigmaMatchesExhaustiveSearchWith1024Bins(RandomSeed seed) {
+    assertFindMaxSigmaMatchesExhaustiveSearch(seed, 1024, 1);
+  }
+
+  /**
+   * Assert the search matches the exhaustive search at 3 and 4 levels. Nearly flat histograms
+   * retain many partial sums within rounding error of the maximum at each threshold position.
+   */
+  private static void assertFindMaxSigmaMatchesExhaustiveSearch(RandomSeed seed, int size,
+      int repeats) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final MultiOtsuThreshold_PlugIn plugin = new MultiOtsuThreshold_PlugIn();
+    for (int i = 0; i < repeats; i++) {
+      for (final float[] histogram : new float[][] {createHistogram(rng, size, true),
+          createFlatHistogram(rng, size)}) {
+        final float[][] lookupTable = plugin.buildLookupTables(histogram);
+        final MultiOtsuSearch search = new MultiOtsuSearch(histogram);
+        search.setThreads(1 + rng.nextInt(4));
+        for (int levels = 3; levels <= 4; levels++) {
+          final int[] expected = new int[levels];
+          final int[] actual = new int[levels];
+          final float expectedSig = plugin.findMaxSigma(levels, lookupTable, expected);
+          final float actualSig = search.findMaxSigma(levels, actual);
+          Assertions.assertEquals(expectedSig, Math.max(0, actualSig));
+          Assertions.assertArrayEquals(expected, actual);
+        }
+      }
+    }
+  }
+
+  @SeededTest
+  void testFindMaxSigmaIsIndependentOfThreads(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final float[] histogram = createHistogram(rng, 1024, false);
+    final MultiOtsuSearch search = new MultiOtsuSearch(histogram);
+    final int[] expected = new int[4];
+    final float expectedSig = search.findMaxSigma(4, expected);
+    search.setThreads(4);
+    final int[] actual = new int[4];
+    Assertions.assertEquals(expectedSig, search.findMaxSigma(4, actual));
+    Assertions.assertArrayEquals(expected, actual);
+  }
+
+  /**
+   * Creates a normalised histogram. Sparse histograms have many empty bins and repeated counts
+   * which generate equal class significance.
+   */
+  private static float[] createHistogram(UniformRandomProvider rng, int size, boolean sparse) {
+    final float[] histogram = new float[size];
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      if (sparse) {
+        histogram[i] = rng.nextInt(3) == 0 ? rng.nextInt(5) : 0;
+      } else {
+        histogram[i] = 1 + rng.nextInt(100);
+      }
+      sum += histogram[i];
+    }
+    if (sum == 0) {
+      histogram[size / 2] = 1;
+      sum = 1;
+    }
+    for (int i = 0; i < size; i++) {
+      histogram[i] = (float) (histogram[i] / sum);
+    }
+    return histogram;
+  }
+
+  /**
+   * Creates a normalised histogram with counts in [1, 3].
+   */
+  private static float[] createFlatHistogram(UniformRandomProvider rng, int size) {
+    final float[] histogram = new float[size];
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      histogram[i] = 1 + rng.nextInt(3);
+      sum += histogram[i];
+    }
+    for (int i = 0; i < size; i++) {
+      histogram[i] = (float) (histogram[i] / sum);
+    }
+    return histogram;
+  }
+}
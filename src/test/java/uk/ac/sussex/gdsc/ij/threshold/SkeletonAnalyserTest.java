@@ -0,0 +1,376 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.threshold;
+
+import ij.process.ByteProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class SkeletonAnalyserTest {
+  private static final byte FOREGROUND = 0;
+  private static final byte BACKGROUND = (byte) 255;
+
+  @Test
+  void testExtractSkeletonLines() {
+    final int width = 20;
+    final int height = 12;
+    final byte[] pixels = createImage(width, height);
+    // A T-shape with a junction at (7,2)
+    drawLine(pixels, width, 2, 2, 12, 2);
+    drawLine(pixels, width, 7, 3, 7, 8);
+    // A closed loop
+    drawLine(pixels, width, 14, 6, 17, 6);
+    drawLine(pixels, width, 17, 6, 17, 9);
+    drawLine(pixels, width, 17, 9, 14, 9);
+    drawLine(pixels, width, 14, 9, 14, 6);
+
+    final SkeletonAnalyser_PlugIn sa = new SkeletonAnalyser_PlugIn();
+    sa.initialise(width, height);
+    final byte[] map = sa.findNodes(new ByteProcessor(width, height, pixels));
+    final byte[] copy = map.clone();
+    final SkeletonLines lines = sa.extractSkeletonLines(map);
+    Assertions.assertArrayEquals(copy, map, "Map was modified");
+
+    Assertions.assertEquals(4, lines.size());
+    Assertions.assertArrayEquals(new float[] {14, 6, 14, 6, 12}, lines.getLine(0));
+    Assertions.assertArrayEquals(new float[] {7, 8, 7, 2, 6}, lines.getLine(1));
+    Assertions.assertArrayEquals(new float[] {2, 2, 7, 2, 5}, lines.getLine(2));
+    Assertions.assertArrayEquals(new float[] {12, 2, 7, 2, 5}, lines.getLine(3));
+    for (int i = 0; i < lines.size(); i++) {
+      final ChainCode code = lines.getChainCode(i);
+      final float[] line = lines.getLine(i);
+      Assertions.assertEquals(line[0], code.getX());
+      Assertions.assertEquals(line[1], code.getY());
+      Assertions.assertEquals(line[4], code.getLength(), 1e-6);
+      Assertions.assertEquals(line[4], lines.getLength(i));
+      final int[] end = code.getEnd();
+      Assertions.assertEquals(line[2], end[0]);
+      Assertions.assertEquals(line[3], end[1]);
+    }
+  }
+
+  @SeededTest
+  void testExtractSkeletonLinesMatchesLegacyTracer(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final SkeletonAnalyser_PlugIn sa = new SkeletonAnalyser_PlugIn();
+    for (int i = 0; i < 50; i++) {
+      // Random overlapping lines create junction clusters and small loops
+      final int width = 20 + rng.nextInt(100);
+      final int height = 20 + rng.nextInt(100);
+      final byte[] pixels = createImage(width, height);
+      for (int j = 1 + rng.nextInt(30); j-- > 0;) {
+        drawLine(pixels, width, rng.nextInt(width), rng.nextInt(height), rng.nextInt(width),
+            rng.nextInt(height));
+      }
+      final ByteProcessor bp = new ByteProcessor(width, height, pixels);
+
+      sa.initialise(width, height);
+      sa.setThreads(1 + rng.nextInt(3));
+      final byte[] map = sa.findNodes(bp);
+      final List<ChainCode> chainCodes = new ArrayList<>();
+      final List<float[]> expected =
+          new LegacyLineTracer(width, height).extractLines(map.clone(), chainCodes);
+
+      final SkeletonLines lines = sa.extractSkeletonLines(map);
+      Assertions.assertEquals(expected.size(), lines.size());
+      for (int k = 0; k < lines.size(); k++) {
+        Assertions.assertArrayEquals(expected.get(k), lines.getLine(k));
+        Assertions.assertEquals(chainCodes.get(k).toString(), lines.getChainCode(k).toString());
+      }
+    }
+  }
+
+  @SeededTest
+  void testExtractSkeletonLinesIsIndependentOfThreads(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final SkeletonAnalyser_PlugIn sa = new SkeletonAnalyser_PlugIn();
+    for (int i = 0; i < 50; i++) {
+      // Random overlapping lines create junction clusters and small loops
+      final int width = 50 + rng.nextInt(200);
+      final int height = 50 + rng.nextInt(200);
+      final byte[] pixels = createImage(width, height);
+      for (int j = 10 + rng.nextInt(40); j-- > 0;) {
+        drawLine(pixels, width, rng.nextInt(width), rng.nextInt(height), rng.nextInt(width),
+            rng.nextInt(height));
+      }
+      final ByteProcessor bp = new ByteProcessor(width, height, pixels);
+
+      sa.initialise(width, height);
+      sa.setThreads(1);
+      final byte[] map = sa.findNodes(bp);
+      final List<ChainCode> chainCodes = new ArrayList<>();
+      final List<float[]> expected = sa.extractLines(map, chainCodes);
+
+      sa.setThreads(2 + rng.nextInt(3));
+      Assertions.assertArrayEquals(map, sa.findNodes(bp));
+      final SkeletonLines lines = sa.extractSkeletonLines(map);
+      Assertions.assertEquals(expected.size(), lines.size());
+      for (int k = 0; k < lines.size(); k++) {
+        Assertions.assertArrayEquals(expected.get(k), lines.getLine(k));
+        final ChainCode code = lines.getChainCode(k);
+        Assertions.assertEquals(chainCodes.get(k).toString(), code.toString());
+      }
+    }
+  }
+
+  private static byte[] createImage(int width, int height) {
+    final byte[] pixels = new byte[width * height];
+    Arrays.fill(pixels, BACKGROUND);
+    return pixels;
+  }
+
+  /**
+   * Draw a line using Bresenham's algorithm.
+   */
+  private static void drawLine(byte[] pixels, int width, int x0, int y0, int x1, int y1) {
+    final int dx = Math.abs(x1 - x0);
+    final int dy = -Math.abs(y1 - y0);
+    final int sx = x0 < x1 ? 1 : -1;
+    final int sy = y0 < y1 ? 1 : -1;
+    int err = dx + dy;
+    int x = x0;
+    int y = y0;
+    for (;;) {
+      pixels[y * width + x] = FOREGROUND;
+      if (x == x1 && y == y1) {
+        return;
+      }
+      final int e2 = 2 * err;
+      if (e2 >= dy) {
+        err += dy;
+        x += sx;
+      }
+      if (e2 <= dx) {
+        err += dx;
+        y += sy;
+      }
+    }
+  }
+
+  /**
+   * A copy of the serial line tracer that marks the traced pixels with the PROCESSED bit in the
+   * map. This is the reference for the line extraction.
+   */
+  private static class LegacyLineTracer {
+    private static final byte TERMINUS = SkeletonAnalyser_PlugIn.TERMINUS;
+    private static final byte EDGE = SkeletonAnalyser_PlugIn.EDGE;
+    private static final byte JUNCTION = SkeletonAnalyser_PlugIn.JUNCTION;
+    private static final byte LINE = SkeletonAnalyser_PlugIn.LINE;
+    private static final byte NODE = SkeletonAnalyser_PlugIn.NODE;
+    private static final byte SKELETON = SkeletonAnalyser_PlugIn.SKELETON;
+    private static final byte PROCESSED = SkeletonAnalyser_PlugIn.PROCESSED;
+
+    private final int maxx;
+    private final int xlimit;
+    private final int ylimit;
+    private final int[] offset;
+
+    LegacyLineTracer(int width, int height) {
+      maxx = width;
+      xlimit = width - 1;
+      ylimit = height - 1;
+      offset = new int[ChainCode.DIRECTION_SIZE];
+      for (int d = offset.length; d-- > 0;) {
+        offset[d] = maxx * ChainCode.getYDirection(d) + ChainCode.getXDirection(d);
+      }
+    }
+
+    List<float[]> extractLines(byte[] map, List<ChainCode> chainCodes) {
+      final List<float[]> lines = new ArrayList<>();
+      final List<ChainCode> codes = new ArrayList<>();
+
+      for (int index = 0; index < map.length; index++) {
+        map[index] &= ~PROCESSED;
+      }
+
+      // Process TERMINALs
+      for (int index = 0; index < map.length; index++) {
+        if ((map[index] & TERMINUS) != 0 && (map[index] & PROCESSED) != PROCESSED) {
+          final ChainCode code = new ChainCode(index % maxx, index / maxx);
+          codes.add(code);
+          lines.add(extend(map, index, code, new byte[1]));
+          map[index] |= PROCESSED;
+        }
+      }
+
+      // Process JUNCTIONs multiple times
+      for (int index = 0; index < map.length; index++) {
+        if ((map[index] & JUNCTION) != 0 && (map[index] & PROCESSED) != PROCESSED) {
+          final byte[] processedDirections = new byte[1];
+          ChainCode code = new ChainCode(index % maxx, index / maxx);
+          float[] line = extend(map, index, code, processedDirections);
+          while (line[4] > 0) {
+            lines.add(line);
+            codes.add(code);
+            code = new ChainCode(index % maxx, index / maxx);
+            line = extend(map, index, code, processedDirections);
+          }
+          map[index] |= PROCESSED;
+        }
+      }
+
+      // Process EDGEs - closed loops with no junctions/terminals
+      for (int index = 0; index < map.length; index++) {
+        if ((map[index] & EDGE) == EDGE && (map[index] & PROCESSED) != PROCESSED) {
+          final ChainCode code = new ChainCode(index % maxx, index / maxx);
+          codes.add(code);
+          lines.add(extend(map, index, code, new byte[1]));
+        }
+      }
+
+      // Sort by length (descending) then coordinates (ascending). The sort is stable.
+      final Integer[] order = new Integer[lines.size()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (i1, i2) -> {
+        final float[] l1 = lines.get(i1);
+        final float[] l2 = lines.get(i2);
+        final int result = compare(l2[4], l1[4]);
+        if (result != 0) {
+          return result;
+        }
+        for (int k = 0; k < 4; k++) {
+          final int r = compare(l1[k], l2[k]);
+          if (r != 0) {
+            return r;
+          }
+        }
+        return 0;
+      });
+      final List<float[]> sortedLines = new ArrayList<>(order.length);
+      chainCodes.clear();
+      for (final int i : order) {
+        sortedLines.add(lines.get(i));
+        chainCodes.add(codes.get(i));
+      }
+      return sortedLines;
+    }
+
+    private static int compare(float value1, float value2) {
+      if (value1 < value2) {
+        return -1;
+      }
+      return value1 > value2 ? 1 : 0;
+    }
+
+    private float[] extend(byte[] map, int startIndex, ChainCode code,
+        byte[] processedDirections) {
+      float length = 0;
+      int currentIndex = startIndex;
+      int nextDirection = findStartDirection(map, currentIndex, processedDirections);
+      while (nextDirection >= 0) {
+        currentIndex += offset[nextDirection];
+        length += ChainCode.getDirectionLength(nextDirection);
+        code.add(nextDirection);
+        if ((map[currentIndex] & LINE) != 0) {
+          map[currentIndex] |= PROCESSED;
+        }
+        if (currentIndex == startIndex || (map[currentIndex] & NODE) != 0) {
+          break;
+        }
+        nextDirection = findNext(map, currentIndex, nextDirection);
+      }
+      return new float[] {startIndex % maxx, startIndex / maxx, currentIndex % maxx,
+          currentIndex / maxx, length};
+    }
+
+    private int findStartDirection(byte[] map, int index, byte[] processedDirections) {
+      final int x = index % maxx;
+      final int y = index / maxx;
+      // Sweep one way until a background pixel is found
+      int dir = 8;
+      while (dir > 0) {
+        dir--;
+        if (isWithinXy(x, y, dir) && map[index + offset[dir]] == 0) {
+          break;
+        }
+      }
+      // Sweep the other way until an unused skeleton pixel is found
+      for (int i = 1; i <= 8; i++) {
+        final int d = (dir + i) % 8;
+        if (isWithinXy(x, y, d) && (map[index + offset[d]] & SKELETON) != 0
+            && (map[index + offset[d]] & PROCESSED) != PROCESSED
+            && (processedDirections[0] & (1 << d)) == 0) {
+          processedDirections[0] |= (byte) (1 << d);
+          return d;
+        }
+      }
+      return -1;
+    }
+
+    private int findNext(byte[] map, int index, int nextDirection) {
+      final int x = index % maxx;
+      final int y = index / maxx;
+      // Sweep for NODEs then EDGEs, ignoring the pixel connected to the previous pixel
+      final int searchDirection = (nextDirection + 6) % 8;
+      for (int i = 0; i < 6; i++) {
+        final int d = (searchDirection + i) % 8;
+        if (isWithinXy(x, y, d) && (map[index + offset[d]] & NODE) != 0) {
+          return d;
+        }
+      }
+      for (int i = 0; i < 6; i++) {
+        final int d = (searchDirection + i) % 8;
+        if (isWithinXy(x, y, d) && (map[index + offset[d]] & EDGE) == EDGE
+            && (map[index + offset[d]] & PROCESSED) != PROCESSED) {
+          return d;
+        }
+      }
+      return -1;
+    }
+
+    private boolean isWithinXy(int x, int y, int direction) {
+      switch (direction) {
+        case 0:
+          return y > 0;
+        case 1:
+          return y > 0 && x < xlimit;
+        case 2:
+          return x < xlimit;
+        case 3:
+          return y < ylimit && x < xlimit;
+        case 4:
+          return y < ylimit;
+        case 5:
+          return y < ylimit && x > 0;
+        case 6:
+          return x > 0;
+        case 7:
+          return y > 0 && x > 0;
+        default:
+          return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.threshold;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings({"javadoc"})
+class ThreadAnalyserPluginTest {
+  private static final String NL = System.lineSeparator();
+  private static final String SETTINGS = "Image_channel=1; Mask_channel=1; Method=Otsu";
+  private static final String HEADER = "# " + SETTINGS + NL;
+  /** The results file content: header and two lines for each of 3 images. */
+  private static final String RESULTS = "header" + NL + "1a" + NL + "1b" + NL + "2a" + NL + "2b"
+      + NL + "3a" + NL + "3b" + NL;
+
+  @Test
+  void canTruncate() throws IOException {
+    final Path path = Files.createTempFile("ThreadAnalyserPluginTest", ".txt");
+    try {
+      write(path, "0123456789");
+      ThreadAnalyser_PlugIn.truncate(path, 4);
+      Assertions.assertEquals("0123", read(path));
+      // Truncate to a larger length has no effect
+      ThreadAnalyser_PlugIn.truncate(path, 10);
+      Assertions.assertEquals("0123", read(path));
+      ThreadAnalyser_PlugIn.truncate(path, 0);
+      Assertions.assertEquals("", read(path));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  void canReadCheckpoint() throws IOException {
+    final String checkpoint = HEADER + "a.tif\t" + length(3) + NL + "b.tif\t" + length(5) + NL;
+    assertReadCheckpoint(RESULTS, checkpoint, Arrays.asList("a.tif", "b.tif"),
+        RESULTS.substring(0, length(5)), checkpoint);
+  }
+
+  @Test
+  void canReadCheckpointWithPartialLine() throws IOException {
+    // The final line is incomplete; the results after the last complete line are removed
+    final String complete = HEADER + "a.tif\t" + length(3) + NL;
+    assertReadCheckpoint(RESULTS, complete + "b.tif\t" + length(5),
+        Collections.singletonList("a.tif"), RESULTS.substring(0, length(3)), complete);
+    assertReadCheckpoint(RESULTS, complete + "b.t", Collections.singletonList("a.tif"),
+        RESULTS.substring(0, length(3)), complete);
+  }
+
+  @Test
+  void canReadCheckpointWithLengthShrink() throws IOException {
+    // The results length cannot decrease; the checkpoint is truncated at the invalid line
+    final String complete = HEADER + "a.tif\t" + length(5) + NL;
+    assertReadCheckpoint(RESULTS,
+        complete + "b.tif\t" + length(3) + NL + "c.tif\t" + length(7) + NL,
+        Collections.singletonList("a.tif"), RESULTS.substring(0, length(5)), complete);
+  }
+
+  @Test
+  void cannotReadCheckpointWhenResultsAreShorter() throws IOException {
+    // The results file is shorter than the checkpoint: start a new batch without changes
+    final String results = RESULTS.substring(0, length(3));
+    final String checkpoint = HEADER + "a.tif\t" + length(3) + NL + "b.tif\t" + length(5) + NL;
+    assertReadCheckpoint(results, checkpoint, Collections.emptyList(), results, checkpoint);
+  }
+
+  @Test
+  void cannotReadCheckpointWithNoCompleteImages() throws IOException {
+    assertReadCheckpoint(RESULTS, HEADER, Collections.emptyList(), RESULTS, HEADER);
+    // Incomplete settings
+    final String partial = HEADER.substring(0, 5);
+    assertReadCheckpoint(RESULTS, partial, Collections.emptyList(), RESULTS, partial);
+  }
+
+  @Test
+  void cannotReadCheckpointWithDifferentSettings() throws IOException {
+    // Different settings or no settings (from a previous version)
+    for (final String header : new String[] {"# Image_channel=2; Mask_channel=1; Method=Otsu" + NL,
+        "# " + SETTINGS + "; Min_length=3" + NL, ""}) {
+      final String checkpoint = header + "a.tif\t" + length(3) + NL;
+      assertReadCheckpoint(RESULTS, checkpoint, null, RESULTS, checkpoint);
+    }
+  }
+
+  /**
+   * Get the length of the results after the given number of lines.
+   */
+  private static int length(int lines) {
+    int index = 0;
+    for (int i = 0; i < lines; i++) {
+      index = RESULTS.indexOf(NL, index) + NL.length();
+    }
+    return index;
+  }
+
+  private static void assertReadCheckpoint(String results, String checkpoint,
+      List<String> expected, String expectedResults, String expectedCheckpoint)
+      throws IOException {
+    final Path resultsPath = Files.createTempFile("ThreadAnalyserPluginTest", ".xls");
+    final Path checkpointPath = Files.createTempFile("ThreadAnalyserPluginTest", ".checkpoint");
+    try {
+      write(resultsPath, results);
+      write(checkpointPath, checkpoint);
+      final List<String> names =
+          ThreadAnalyser_PlugIn.readCheckpoint(resultsPath, checkpointPath, SETTINGS);
+      Assertions.assertEquals(expected, names == null ? null : new ArrayList<>(names));
+      Assertions.assertEquals(expectedResults, read(resultsPath));
+      Assertions.assertEquals(expectedCheckpoint, read(checkpointPath));
+    } finally {
+      Files.delete(resultsPath);
+      Files.delete(checkpointPath);
+    }
+  }
+
+  private static void write(Path path, String content) throws IOException {
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+  }
+}
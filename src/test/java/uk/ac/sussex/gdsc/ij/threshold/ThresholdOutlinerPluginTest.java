@@ -0,0 +1,246 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.threshold;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatPolygon;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import uk.ac.sussex.gdsc.core.math.hull.ConvexHull2d;
+import uk.ac.sussex.gdsc.core.math.hull.DiggingConcaveHull2d;
+import uk.ac.sussex.gdsc.core.math.hull.Hull;
+import uk.ac.sussex.gdsc.core.math.hull.Hull2d;
+import uk.ac.sussex.gdsc.core.math.hull.KnnConcaveHull2d;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class ThresholdOutlinerPluginTest {
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+  /** The object rectangles: {x, y, width, height}. */
+  private static final int[][] OBJECTS =
+      {{2, 2, 20, 16}, {30, 3, 20, 16}, {4, 26, 20, 16}, {36, 28, 20, 16}};
+
+  @SeededTest
+  void checkOutlineUsesAllForegroundPixels(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final ImageProcessor ip = createImage(rng);
+    final int[][] objects = createObjects();
+    for (int hullMethod = 0; hullMethod < 3; hullMethod++) {
+      final ThresholdOutliner_PlugIn plugin = new ThresholdOutliner_PlugIn(hullMethod);
+      for (final int threads : new int[] {1, 3}) {
+        final byte[] foreground = new byte[WIDTH * HEIGHT];
+        final List<Roi> rois =
+            plugin.outlineObjects(ip, objects[0], objects[1], i -> foreground[i] = 1, threads);
+        Assertions.assertEquals(OBJECTS.length, rois.size());
+        for (int i = 0; i < foreground.length; i++) {
+          Assertions.assertEquals(ip.get(i) > 1 ? 1 : 0, foreground[i]);
+        }
+        for (int o = 0; o < OBJECTS.length; o++) {
+          // The hull of all the foreground pixels in ascending index order
+          final Hull.Builder hb = createBuilder(hullMethod);
+          final int[] r = OBJECTS[o];
+          for (int y = r[1]; y < r[1] + r[3]; y++) {
+            for (int x = r[0]; x < r[0] + r[2]; x++) {
+              if (ip.get(x, y) > 1) {
+                hb.add(x, y);
+              }
+            }
+          }
+          final Hull2d hull = (Hull2d) hb.build();
+          assertVertices(hull.getVertices(), rois.get(o).getFloatPolygon());
+        }
+      }
+    }
+  }
+
+  @SeededTest
+  void checkOutlineSlicesIsIndependentOfThreads(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int slices = 3;
+    final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+    final ImageStack maskStack = new ImageStack(WIDTH, HEIGHT);
+    for (int n = 0; n < slices; n++) {
+      stack.addSlice(createImage(rng));
+      maskStack.addSlice(createMask());
+    }
+    final ImagePlus imp = new ImagePlus("test", stack);
+    // The mask can be a stack or a single slice
+    final ImageStack singleMask = new ImageStack(WIDTH, HEIGHT);
+    singleMask.addSlice(createMask());
+    for (final ImageStack masks : new ImageStack[] {maskStack, singleMask}) {
+      final ImagePlus maskImp = new ImagePlus("mask", masks);
+      for (int hullMethod = 0; hullMethod < 3; hullMethod++) {
+        final List<List<Roi>> expected =
+            new ThresholdOutliner_PlugIn(hullMethod).outlineSlices(imp, maskImp, 1, 1, 1,
+                slices, 1);
+        Assertions.assertEquals(slices, expected.size());
+        // Threads for: objects within a slice; some slices; slices and objects
+        for (final int threads : new int[] {2, 3, 7}) {
+          final List<List<Roi>> actual =
+              new ThresholdOutliner_PlugIn(hullMethod).outlineSlices(imp, maskImp, 1, 1, 1,
+                  slices, threads);
+          Assertions.assertEquals(slices, actual.size());
+          for (int n = 0; n < slices; n++) {
+            final List<Roi> l1 = expected.get(n);
+            final List<Roi> l2 = actual.get(n);
+            Assertions.assertEquals(OBJECTS.length, l1.size());
+            Assertions.assertEquals(l1.size(), l2.size());
+            for (int i = 0; i < l1.size(); i++) {
+              final FloatPolygon p1 = l1.get(i).getFloatPolygon();
+              final FloatPolygon p2 = l2.get(i).getFloatPolygon();
+              Assertions.assertArrayEquals(Arrays.copyOf(p1.xpoints, p1.npoints),
+                  Arrays.copyOf(p2.xpoints, p2.npoints));
+              Assertions.assertArrayEquals(Arrays.copyOf(p1.ypoints, p1.npoints),
+                  Arrays.copyOf(p2.ypoints, p2.npoints));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @SeededTest
+  void checkOutlineIsEmptyWhenInterrupted(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final ImageProcessor ip = createImage(rng);
+    final int[][] objects = createObjects();
+    final ThresholdOutliner_PlugIn plugin = new ThresholdOutliner_PlugIn(0);
+    for (final int threads : new int[] {1, 3}) {
+      // As if the preview settings changed
+      Thread.currentThread().interrupt();
+      try {
+        final List<Roi> rois = plugin.outlineObjects(ip, objects[0], objects[1], i -> {
+          /* no-op */ }, threads);
+        Assertions.assertTrue(rois.isEmpty());
+        Assertions.assertTrue(Thread.currentThread().isInterrupted());
+      } finally {
+        // Clear the interrupted state
+        Thread.interrupted();
+      }
+      Assertions.assertEquals(OBJECTS.length,
+          plugin.outlineObjects(ip, objects[0], objects[1], i -> {
+            /* no-op */ }, threads).size());
+    }
+  }
+
+  /**
+   * Creates the image. Each object has a background of 1 and at most 10% foreground pixels above 1
+   * so the default 90th percentile threshold is 1. The foreground is a disc with interior pixels
+   * at a random position.
+   */
+  private static ImageProcessor createImage(UniformRandomProvider rng) {
+    final ByteProcessor ip = new ByteProcessor(WIDTH, HEIGHT);
+    for (final int[] r : OBJECTS) {
+      for (int y = r[1]; y < r[1] + r[3]; y++) {
+        for (int x = r[0]; x < r[0] + r[2]; x++) {
+          ip.set(x, y, 1);
+        }
+      }
+      // Disc of radius 3 (29 pixels)
+      final int cx = r[0] + 3 + rng.nextInt(r[2] - 6);
+      final int cy = r[1] + 3 + rng.nextInt(r[3] - 6);
+      for (int y = -3; y <= 3; y++) {
+        for (int x = -3; x <= 3; x++) {
+          if (x * x + y * y <= 9) {
+            ip.set(cx + x, cy + y, 2 + rng.nextInt(254));
+          }
+        }
+      }
+    }
+    return ip;
+  }
+
+  private static ByteProcessor createMask() {
+    final ByteProcessor bp = new ByteProcessor(WIDTH, HEIGHT);
+    bp.setValue(255);
+    for (final int[] r : OBJECTS) {
+      bp.setRoi(r[0], r[1], r[2], r[3]);
+      bp.fill();
+    }
+    bp.resetRoi();
+    return bp;
+  }
+
+  /**
+   * Creates the objects: {objectIds, indices}. The indices of each object are ascending.
+   */
+  private static int[][] createObjects() {
+    final int size = Arrays.stream(OBJECTS).mapToInt(r -> r[2] * r[3]).sum();
+    final int[] objects = new int[size];
+    final int[] indices = new int[size];
+    int count = 0;
+    for (int o = 0; o < OBJECTS.length; o++) {
+      final int[] r = OBJECTS[o];
+      for (int y = r[1]; y < r[1] + r[3]; y++) {
+        for (int x = r[0]; x < r[0] + r[2]; x++) {
+          objects[count] = o + 1;
+          indices[count] = y * WIDTH + x;
+          count++;
+        }
+      }
+    }
+    return new int[][] {objects, indices};
+  }
+
+  private static Hull.Builder createBuilder(int hullMethod) {
+    // As per the default settings
+    if (hullMethod == 1) {
+      return DiggingConcaveHull2d.newBuilder().setThreshold(1.5);
+    }
+    if (hullMethod == 2) {
+      return KnnConcaveHull2d.newBuilder().setK(3);
+    }
+    return ConvexHull2d.newBuilder();
+  }
+
+  /**
+   * Assert the polygon has the same vertices as the hull. The order is ignored.
+   */
+  private static void assertVertices(double[][] vertices, FloatPolygon polygon) {
+    Assertions.assertEquals(vertices.length, polygon.npoints);
+    final double[][] actual = new double[polygon.npoints][];
+    for (int i = 0; i < actual.length; i++) {
+      actual[i] = new double[] {polygon.xpoints[i], polygon.ypoints[i]};
+    }
+    final double[][] expected = vertices.clone();
+    final Comparator<double[]> cmp =
+        Comparator.<double[]>comparingDouble(v -> v[0]).thenComparingDouble(v -> v[1]);
+    Arrays.sort(expected, cmp);
+    Arrays.sort(actual, cmp);
+    for (int i = 0; i < actual.length; i++) {
+      Assertions.assertArrayEquals(expected[i], actual[i]);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.utils;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.function.DoubleBinaryOperator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.ij.utils.AlignStacks_PlugIn.DisplacementField;
+
+@SuppressWarnings({"javadoc"})
+class AlignStacksPluginTest {
+  private static final int WIDTH = 100;
+  private static final int HEIGHT = 80;
+
+  @Test
+  void testCreateTileRegions() {
+    final Rectangle[] regions = AlignStacks_PlugIn.createTileRegions(WIDTH, HEIGHT, 4, 3, 0.5);
+    Assertions.assertEquals(12, regions.length);
+    final Rectangle bounds = new Rectangle(WIDTH, HEIGHT);
+    for (final Rectangle r : regions) {
+      Assertions.assertEquals(38, r.width);
+      Assertions.assertEquals(40, r.height);
+      Assertions.assertTrue(bounds.contains(r));
+    }
+    // Row-major order
+    Assertions.assertTrue(regions[0].x < regions[1].x);
+    Assertions.assertTrue(regions[0].y < regions[4].y);
+  }
+
+  @Test
+  void canFitLinearField() {
+    assertFit(4, 4, 0.5, 1, 3, (u, v) -> 2 + 3 * u - v, (u, v) -> -1 + 0.5 * u + 2 * v);
+  }
+
+  @Test
+  void canFitQuadraticField() {
+    assertFit(4, 4, 0.5, 2, 6, (u, v) -> 2 + 3 * u - v + u * u - 2 * u * v + 0.5 * v * v,
+        (u, v) -> -1 + 0.5 * u + 2 * v - v * v);
+  }
+
+  @Test
+  void canFitLinearFieldToSingleColumn() {
+    // Centres are collinear: the field cannot vary in x
+    assertFit(1, 4, 0.5, 1, 2, (u, v) -> 2 + 3 * v, (u, v) -> -1 + 0.5 * v);
+  }
+
+  @Test
+  void canFitLinearFieldToSingleRow() {
+    assertFit(4, 1, 0.5, 1, 2, (u, v) -> 2 + 3 * u, (u, v) -> -1 + 0.5 * u);
+  }
+
+  @Test
+  void canFitQuadraticFieldToSingleRow() {
+    assertFit(4, 1, 0.5, 2, 3, (u, v) -> 1 + 2 * u - 4 * u * u, (u, v) -> u * u);
+  }
+
+  @Test
+  void canFitQuadraticFieldTo3x2Grid() {
+    // No v^2 term
+    assertFit(3, 2, 0.5, 2, 5, (u, v) -> 1 + u - v + 2 * u * u + 3 * u * v,
+        (u, v) -> -u * v + 0.5 * u * u);
+  }
+
+  @Test
+  void canFitQuadraticFieldTo2x2Grid() {
+    // Bilinear
+    assertFit(2, 2, 0.5, 2, 4, (u, v) -> 1 + u - v + 3 * u * v, (u, v) -> -u * v);
+  }
+
+  @Test
+  void canFitSingleTile() {
+    assertFit(1, 1, 0.5, 2, 1, (u, v) -> 1.5, (u, v) -> -2.5);
+  }
+
+  @Test
+  void canFitFullSizeTiles() {
+    // The overlap makes every tile the full image so all the centres are the same.
+    // The fit is the mean shift.
+    final Rectangle[] regions = AlignStacks_PlugIn.createTileRegions(WIDTH, HEIGHT, 2, 2, 1);
+    for (final Rectangle r : regions) {
+      Assertions.assertEquals(new Rectangle(WIDTH, HEIGHT), r);
+    }
+    final double[][] offsets = new double[regions.length][];
+    double sx = 0;
+    double sy = 0;
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = new double[] {i, 2 - 0.5 * i};
+      sx += offsets[i][0];
+      sy += offsets[i][1];
+    }
+    for (int degree = 0; degree <= 2; degree++) {
+      final DisplacementField field =
+          DisplacementField.fit(regions, offsets, degree, WIDTH, HEIGHT);
+      Assertions.assertEquals(1, field.getNumberOfTerms());
+      Assertions.assertEquals(sx / offsets.length, field.getX(3, 7), 1e-10);
+      Assertions.assertEquals(sy / offsets.length, field.getY(3, 7), 1e-10);
+    }
+  }
+
+  @Test
+  void testSelectTiles() {
+    final double[] scores = {0.9, 0.1, 0.8, Double.NaN, 0.7};
+    final double[] variances = {1, 1, 0.01, 1, 0.5};
+    Assertions.assertArrayEquals(new int[] {0, 4},
+        AlignStacks_PlugIn.selectTiles(scores, variances, 0.3, 0.05));
+    Assertions.assertArrayEquals(new int[] {0, 1, 4},
+        AlignStacks_PlugIn.selectTiles(scores, variances, 0, 0.05));
+    // All tiles are used if none pass
+    Assertions.assertArrayEquals(new int[] {0, 1, 2, 3, 4},
+        AlignStacks_PlugIn.selectTiles(scores, variances, 1, 0.05));
+  }
+
+  @Test
+  void canFitQuadraticFieldToFewerTiles() {
+    // 3 of the 4 tiles: the terms are limited by the number of tiles
+    final Rectangle[] regions = AlignStacks_PlugIn.createTileRegions(WIDTH, HEIGHT, 2, 2, 0.5);
+    final Rectangle[] subset = {regions[0], regions[1], regions[2]};
+    final double[][] offsets = {{1, 2}, {1, 2}, {1, 2}};
+    final DisplacementField field = DisplacementField.fit(subset, offsets, 2, WIDTH, HEIGHT);
+    Assertions.assertEquals(3, field.getNumberOfTerms());
+    Assertions.assertEquals(1, field.getX(13, 17), 1e-10);
+    Assertions.assertEquals(2, field.getY(13, 17), 1e-10);
+  }
+
+  @Test
+  void testWarpWithConstantField() {
+    final FloatProcessor ip = new FloatProcessor(WIDTH, HEIGHT);
+    for (int i = 0; i < ip.getPixelCount(); i++) {
+      ip.setf(i, i + 1);
+    }
+    final Rectangle[] regions = AlignStacks_PlugIn.createTileRegions(WIDTH, HEIGHT, 2, 2, 0.5);
+    final double[][] offsets = new double[regions.length][];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = new double[] {2, -1};
+    }
+    final DisplacementField field = DisplacementField.fit(regions, offsets, 1, WIDTH, HEIGHT);
+    final ImageProcessor out =
+        AlignStacks_PlugIn.warpProcessor(ImageProcessor.NONE, ip, field, false);
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        final int xs = x - 2;
+        final int ys = y + 1;
+        final float expected = xs < 0 || ys >= HEIGHT ? 0 : ip.getf(xs, ys);
+        Assertions.assertEquals(expected, out.getf(x, y));
+      }
+    }
+  }
+
+  /**
+   * Fit a field to the shifts at the tile centres and check the field is recovered.
+   */
+  private static void assertFit(int tilesX, int tilesY, double overlap, int degree, int terms,
+      DoubleBinaryOperator fx, DoubleBinaryOperator fy) {
+    final Rectangle[] regions =
+        AlignStacks_PlugIn.createTileRegions(WIDTH, HEIGHT, tilesX, tilesY, overlap);
+    final double[][] offsets = new double[regions.length][];
+    for (int i = 0; i < offsets.length; i++) {
+      final double u = regions[i].getCenterX() / WIDTH - 0.5;
+      final double v = regions[i].getCenterY() / HEIGHT - 0.5;
+      offsets[i] = new double[] {fx.applyAsDouble(u, v), fy.applyAsDouble(u, v)};
+    }
+    final DisplacementField field = DisplacementField.fit(regions, offsets, degree, WIDTH, HEIGHT);
+    Assertions.assertEquals(terms, field.getNumberOfTerms());
+    // The precomputed row evaluation used to warp the image
+    final double[][] powersX = field.getPowersX(WIDTH);
+    final double[][] powersY = field.getPowersY(HEIGHT);
+    final double[] rowX = new double[terms];
+    final double[] rowY = new double[terms];
+    for (int y = 0; y < HEIGHT; y += 7) {
+      field.getRowCoefficients(powersY[y], rowX, rowY);
+      for (int x = 0; x < WIDTH; x += 9) {
+        final double u = (double) x / WIDTH - 0.5;
+        final double v = (double) y / HEIGHT - 0.5;
+        Assertions.assertEquals(fx.applyAsDouble(u, v), field.getX(x, y), 1e-8);
+        Assertions.assertEquals(fy.applyAsDouble(u, v), field.getY(x, y), 1e-8);
+        Assertions.assertEquals(field.getX(x, y), field.evaluate(rowX, powersX[x]), 1e-10);
+        Assertions.assertEquals(field.getY(x, y), field.evaluate(rowY, powersX[x]), 1e-10);
+      }
+    }
+  }
+}
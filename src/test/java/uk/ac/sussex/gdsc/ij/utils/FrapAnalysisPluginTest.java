@@ -24,12 +24,29 @@
 
 package uk.ac.sussex.gdsc.ij.utils;
 
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 import org.apache.commons.math3.util.Pair;
+import org.apache.commons.rng.UniformRandomProvider;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.core.utils.LocalList;
 import uk.ac.sussex.gdsc.ij.utils.FrapAnalysis_PlugIn.Bessel;
 import uk.ac.sussex.gdsc.ij.utils.FrapAnalysis_PlugIn.DecayFunction;
 import uk.ac.sussex.gdsc.ij.utils.FrapAnalysis_PlugIn.DiffusionLimitedRecoveryFunction;
@@ -37,9 +54,14 @@ import uk.ac.sussex.gdsc.ij.utils.FrapAnalysis_PlugIn.DiffusionLimitedRecoveryFu
 import uk.ac.sussex.gdsc.ij.utils.FrapAnalysis_PlugIn.FrapFunction;
 import uk.ac.sussex.gdsc.ij.utils.FrapAnalysis_PlugIn.ReactionLimitedRecoveryFunction;
 import uk.ac.sussex.gdsc.ij.utils.FrapAnalysis_PlugIn.ReactionLimitedRecoveryFunctionB;
+import uk.ac.sussex.gdsc.ij.utils.FrapAnalysis_PlugIn.RecoveryFit;
+import uk.ac.sussex.gdsc.ij.utils.FrapAnalysis_PlugIn.TileTransposer;
 import uk.ac.sussex.gdsc.test.api.Predicates;
 import uk.ac.sussex.gdsc.test.api.TestAssertions;
 import uk.ac.sussex.gdsc.test.api.function.DoubleDoubleBiPredicate;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
 
 @SuppressWarnings({"javadoc"})
 class FrapAnalysisPluginTest {
@@ -385,4 +407,137 @@ class FrapAnalysisPluginTest {
       }
     }
   }
+
+  @Test
+  void canTransposeTile() {
+    final int width = 7;
+    final int height = 5;
+    final int size = 4;
+    for (int type = 0; type < 3; type++) {
+      final ImageStack stack = new ImageStack(width, height);
+      for (int t = 0; t < size; t++) {
+        final ImageProcessor ip = type == 0 ? new ByteProcessor(width, height)
+            : type == 1 ? new ShortProcessor(width, height) : new FloatProcessor(width, height);
+        for (int i = 0; i < ip.getPixelCount(); i++) {
+          ip.setf(i, (i * 13 + t * 7) % 251 + (type == 2 ? 0.5f : 0));
+        }
+        stack.addSlice(ip);
+      }
+      final TileTransposer transposer = FrapAnalysis_PlugIn.createTileTransposer(stack);
+      final float[] buffer = new float[11 * size];
+      for (final int[] range : new int[][] {{0, 11}, {3, 9}, {30, 35}}) {
+        final int from = range[0];
+        final int to = range[1];
+        transposer.transpose(from, to, buffer);
+        for (int i = from; i < to; i++) {
+          for (int t = 0; t < size; t++) {
+            Assertions.assertEquals(stack.getProcessor(t + 1).getf(i),
+                buffer[(i - from) * size + t]);
+          }
+        }
+      }
+    }
+  }
+
+  @SeededTest
+  void canFitRecoveryConcurrently(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int regions = 5;
+    final int size = 40;
+    final int bleachingEvent = 10;
+    // Regions [1, n] and the foreground
+    final float[][] data = new float[regions + 1][size];
+    final int[] countHistogram = new int[regions + 2];
+    final LocalList<Pair<Integer, Roi>> rois = new LocalList<>();
+    for (int r = 0; r <= regions; r++) {
+      final double i0 = 30 + 5 * r;
+      final double a = 50;
+      final double koff = 0.1 + 0.02 * r;
+      for (int t = 0; t < size; t++) {
+        final double y = t < bleachingEvent ? 100
+            : i0 + a * (1 - Math.exp(-koff * (t - bleachingEvent)));
+        data[r][t] = (float) (y + rng.nextDouble() - 0.5);
+      }
+      countHistogram[r + 1] = 50 + r;
+      if (r < regions) {
+        rois.add(Pair.create(bleachingEvent, null));
+      }
+    }
+    for (final boolean nestedModels : new boolean[] {false, true}) {
+      final FrapAnalysis_PlugIn plugin = new FrapAnalysis_PlugIn(nestedModels);
+      final RecoveryFit[] fits1 = plugin.fitRecovery(data, rois, countHistogram, 0.001, 1);
+      final RecoveryFit[] fits2 = plugin.fitRecovery(data, rois, countHistogram, 0.001, 3);
+      Assertions.assertEquals(regions, fits1.length);
+      Assertions.assertEquals(regions, fits2.length);
+      for (int i = 0; i < regions; i++) {
+        // Fits are returned in region order
+        final RecoveryFit fit1 = fits1[i];
+        final RecoveryFit fit2 = fits2[i];
+        Assertions.assertEquals(bleachingEvent, fit1.bleachingEvent);
+        Assertions.assertEquals(countHistogram[i + 1], fit1.size);
+        Assertions.assertEquals(fit1.bleachingEvent, fit2.bleachingEvent);
+        Assertions.assertEquals(fit1.size, fit2.size);
+        Assertions.assertNotNull(fit1.function);
+        Assertions.assertEquals(fit1.function.getClass(), fit2.function.getClass());
+        Assertions.assertArrayEquals(fit1.optimum.getPoint().toArray(),
+            fit2.optimum.getPoint().toArray());
+        Assertions.assertEquals(fit1.messages.size(), fit2.messages.size());
+        for (int j = 0; j < fit1.messages.size(); j++) {
+          Assertions.assertEquals(fit1.messages.get(j), fit2.messages.get(j));
+        }
+      }
+    }
+  }
+
+  @Test
+  void canProcessBatch() throws IOException {
+    final Path dir = Files.createTempDirectory("FrapAnalysisPluginTest");
+    final String[] images = {"a.tif", "b.tif", "c.tif", "d.tif"};
+    try {
+      for (final String name : images) {
+        // b.tif has a single time frame
+        final int frames = name.equals("b.tif") ? 1 : 3;
+        final ImageStack stack = new ImageStack(8, 6);
+        for (int t = 0; t < frames; t++) {
+          stack.addSlice(new ByteProcessor(8, 6));
+        }
+        IJ.saveAsTiff(new ImagePlus(name, stack), dir.resolve(name).toString());
+      }
+
+      final List<String> titles = new ArrayList<>();
+      final StringWriter writer = new StringWriter();
+      final int count;
+      try (BufferedWriter out = new BufferedWriter(writer)) {
+        count = new FrapAnalysis_PlugIn(false).processBatch(dir.toString(), images, out,
+            (imp, title) -> {
+              Assertions.assertEquals(3, imp.getStackSize());
+              titles.add(title);
+              // Analysis of c.tif fails; the batch continues with the next image
+              if (title.contains("c.tif")) {
+                return null;
+              }
+              return new RecoveryFit[] {new RecoveryFit(1, 10), new RecoveryFit(2, 20)};
+            });
+      }
+      Assertions.assertEquals(2, count);
+      Assertions.assertEquals(3, titles.size());
+      Assertions.assertTrue(titles.get(0).endsWith("a.tif (1/4)"));
+      Assertions.assertTrue(titles.get(1).endsWith("c.tif (3/4)"));
+      Assertions.assertTrue(titles.get(2).endsWith("d.tif (4/4)"));
+
+      final String[] lines = writer.toString().split("\\R");
+      Assertions.assertEquals(4, lines.length);
+      final String[] prefix = {"a.tif,1,10,", "a.tif,2,20,", "d.tif,1,10,", "d.tif,2,20,"};
+      for (int i = 0; i < lines.length; i++) {
+        Assertions.assertTrue(lines[i].startsWith(prefix[i]), lines[i]);
+        // No fit function
+        Assertions.assertTrue(lines[i].contains(",None,"), lines[i]);
+      }
+    } finally {
+      for (final String name : images) {
+        Files.deleteIfExists(dir.resolve(name));
+      }
+      Files.delete(dir);
+    }
+  }
 }
@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package uk.ac.sussex.gdsc.ij.utils;
+
+import ij.ImageStack;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.ij.ext.plugin.filter.DifferenceOfGaussians;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class GaussianScaleSpaceTest {
+  private static final int WIDTH = 96;
+  private static final int HEIGHT = 81;
+  private static final int BORDER = 20;
+
+  @Test
+  void testBadSigma() {
+    final ImageStack stack = createStack(null);
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new GaussianScaleSpace(stack, new double[] {0, 1}, false, 1));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new GaussianScaleSpace(stack, new double[] {2, 1}, false, 1));
+  }
+
+  @Test
+  void canUpsample() {
+    // A linear ramp is reproduced exactly away from the edge
+    final int width = 10;
+    final float[] data = new float[width * width];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = 2 * (i % width) + 3 * (i / width);
+    }
+    final float[] pixels = GaussianScaleSpace.upsample(data, width, width, 2, 20, 20);
+    for (int y = 1; y < 19; y++) {
+      for (int x = 1; x < 19; x++) {
+        final double u = (x + 0.5) / 2 - 0.5;
+        final double v = (y + 0.5) / 2 - 0.5;
+        Assertions.assertEquals(2 * u + 3 * v, pixels[y * 20 + x], 1e-4);
+      }
+    }
+  }
+
+  @SeededTest
+  void canComputeCascade(RandomSeed seed) {
+    final ImageStack stack = createStack(RngFactory.create(seed.get()));
+    assertCascade(stack, false, 1e-2);
+  }
+
+  @Test
+  void canComputeDownsampledCascade() {
+    // Downsampling uses interpolation so only test on a smooth image
+    final ImageStack stack = createStack(null);
+    assertCascade(stack, true, 0.1);
+  }
+
+  private static void assertCascade(ImageStack stack, boolean downsample, double tolerance) {
+    final double[] sigmas = {1, 1.5, 2, 3, 4, 6};
+    final GaussianScaleSpace scaleSpace = new GaussianScaleSpace(stack, sigmas, downsample, 2);
+    Assertions.assertEquals(sigmas.length, scaleSpace.getSize());
+    for (int i = 0; i < sigmas.length; i++) {
+      Assertions.assertEquals(sigmas[i], scaleSpace.getSigma(i));
+      final ImageStack actual = scaleSpace.getScale(i);
+      final ImageStack expected = DifferenceOfGaussians.blur(stack, sigmas[i], null, 1);
+      for (int slice = 1; slice <= stack.getSize(); slice++) {
+        // The cascade replicates edge pixels at each scale so ignore the border
+        final float[] e = (float[]) expected.getPixels(slice);
+        final float[] o = (float[]) actual.getPixels(slice);
+        final double delta = tolerance * max(e);
+        for (int y = BORDER; y < HEIGHT - BORDER; y++) {
+          for (int x = BORDER, index = y * WIDTH + x; x < WIDTH - BORDER; x++, index++) {
+            Assertions.assertEquals(e[index], o[index], delta);
+          }
+        }
+      }
+    }
+    // Difference of Gaussians
+    final float[] dog = (float[]) scaleSpace.getDifferenceOfGaussians(1).getPixels(1);
+    final float[] s1 = (float[]) scaleSpace.getScale(1).getPixels(1);
+    final float[] s2 = (float[]) scaleSpace.getScale(2).getPixels(1);
+    for (int i = 0; i < dog.length; i++) {
+      Assertions.assertEquals(s1[i] - s2[i], dog[i]);
+    }
+  }
+
+  private static ImageStack createStack(UniformRandomProvider rng) {
+    final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+    for (int slice = 0; slice < 2; slice++) {
+      final float[] pixels = new float[WIDTH * HEIGHT];
+      final double cx = 40 + slice * 10;
+      for (int i = 0; i < pixels.length; i++) {
+        final double dx = i % WIDTH - cx;
+        final double dy = i / WIDTH - 40;
+        pixels[i] = (float) (100 * Math.exp(-(dx * dx + dy * dy) / 50));
+        if (rng != null) {
+          pixels[i] += rng.nextFloat() * 10;
+        }
+      }
+      stack.addSlice(null, pixels);
+    }
+    return stack;
+  }
+
+  private static double max(float[] data) {
+    double max = 0;
+    for (final float v : data) {
+      max = Math.max(max, v);
+    }
+    return max;
+  }
+}
@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.utils;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import java.awt.Rectangle;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class KernelBankConvolverTest {
+  @SeededTest
+  void canConvolveSpatial(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final FloatProcessor fp = createImage(rng, 37, 29);
+    final int kernelWidth = 7;
+    final IntArrayList keys = new IntArrayList();
+    final Int2ObjectOpenHashMap<float[]> kernels = createKernels(rng, keys, kernelWidth);
+    final Int2ObjectOpenHashMap<FloatProcessor> convolved =
+        new KernelBankConvolver(keys, kernels, kernelWidth).convolve(fp, false);
+    for (final int key : keys) {
+      final FloatProcessor expected = (FloatProcessor) fp.duplicate();
+      expected.convolve(kernels.get(key), kernelWidth, kernelWidth);
+      Assertions.assertArrayEquals((float[]) expected.getPixels(),
+          (float[]) convolved.get(key).getPixels());
+    }
+  }
+
+  @SeededTest
+  void canConvolveFft(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final FloatProcessor fp = createImage(rng, 41, 23);
+    final int kernelWidth = 9;
+    final IntArrayList keys = new IntArrayList();
+    final Int2ObjectOpenHashMap<float[]> kernels = createKernels(rng, keys, kernelWidth);
+    final Int2ObjectOpenHashMap<FloatProcessor> convolved =
+        new KernelBankConvolver(keys, kernels, kernelWidth).convolve(fp, true);
+    for (final int key : keys) {
+      final FloatProcessor expected = (FloatProcessor) fp.duplicate();
+      expected.convolve(kernels.get(key), kernelWidth, kernelWidth);
+      final float[] e = (float[]) expected.getPixels();
+      final float[] o = (float[]) convolved.get(key).getPixels();
+      for (int i = 0; i < e.length; i++) {
+        Assertions.assertEquals(e[i], o[i], 1e-3);
+      }
+    }
+  }
+
+  @SeededTest
+  void canInvertResponsesAsPerKernelConvolution(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int width = 31;
+    final int height = 27;
+    final byte[] data = new byte[width * height];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (50 + rng.nextInt(100));
+    }
+    final ByteProcessor bp = new ByteProcessor(width, height, data);
+    assertInvertedResponses(rng, bp);
+    final FloatProcessor fp = createImage(rng, width, height);
+    assertInvertedResponses(rng, fp);
+    // A display range that is not the data range
+    fp.setMinAndMax(10, 50);
+    assertInvertedResponses(rng, fp);
+  }
+
+  /**
+   * Check the dark edge inversion of a cropped response matches that of the original CellOutliner
+   * method that convolved a float copy of the image with each kernel.
+   */
+  private static void assertInvertedResponses(UniformRandomProvider rng, ImageProcessor ip) {
+    final int kernelWidth = 5;
+    final IntArrayList keys = new IntArrayList();
+    final Int2ObjectOpenHashMap<float[]> kernels = createKernels(rng, keys, kernelWidth);
+    final Rectangle bounds = new Rectangle(3, 4, 12, 9);
+    for (final boolean fft : new boolean[] {false, true}) {
+      final Int2ObjectOpenHashMap<FloatProcessor> convolved =
+          new KernelBankConvolver(keys, kernels, kernelWidth).convolve(ip, fft);
+      for (final int key : keys) {
+        final FloatProcessor expected =
+            (ip instanceof FloatProcessor) ? (FloatProcessor) ip.duplicate() : ip.toFloat(0, null);
+        expected.convolve(kernels.get(key), kernelWidth, kernelWidth);
+        final FloatProcessor response = convolved.get(key);
+        Assertions.assertEquals(expected.getMin(), response.getMin(), "min");
+        Assertions.assertEquals(expected.getMax(), response.getMax(), "max");
+        final float[] e = (float[]) invertCrop(expected, bounds).getPixels();
+        final float[] o = (float[]) invertCrop(response, bounds).getPixels();
+        for (int i = 0; i < e.length; i++) {
+          Assertions.assertEquals(e[i], o[i], fft ? 1e-3 : 0);
+        }
+      }
+    }
+  }
+
+  private static FloatProcessor invertCrop(FloatProcessor fp, Rectangle bounds) {
+    final FloatProcessor copy = (FloatProcessor) fp.duplicate();
+    copy.setRoi(bounds);
+    final FloatProcessor crop = (FloatProcessor) copy.crop();
+    crop.invert();
+    return crop;
+  }
+
+  @Test
+  void testIsFftFaster() {
+    Assertions.assertFalse(KernelBankConvolver.isFftFaster(100, 100, 3));
+    Assertions.assertTrue(KernelBankConvolver.isFftFaster(300, 300, 19));
+  }
+
+  private static FloatProcessor createImage(UniformRandomProvider rng, int width, int height) {
+    final float[] data = new float[width * height];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = rng.nextFloat() * 100;
+    }
+    return new FloatProcessor(width, height, data);
+  }
+
+  private static Int2ObjectOpenHashMap<float[]> createKernels(UniformRandomProvider rng,
+      IntArrayList keys, int kernelWidth) {
+    final Int2ObjectOpenHashMap<float[]> kernels = new Int2ObjectOpenHashMap<>();
+    for (int key = 0; key < 90; key += 30) {
+      final float[] kernel = new float[kernelWidth * kernelWidth];
+      for (int i = 0; i < kernel.length; i++) {
+        kernel[i] = rng.nextFloat() - 0.25f;
+      }
+      keys.add(key);
+      kernels.put(key, kernel);
+    }
+    return kernels;
+  }
+}
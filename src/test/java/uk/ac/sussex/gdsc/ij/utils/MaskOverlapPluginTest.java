@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.core.logging.Ticker;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class MaskOverlapPluginTest {
+  //@formatter:off
+  @Test
+  void checkRelabel() {
+    final int[] m1 = {1, 1, 0, 0,
+                      1, 1, 0, 0,
+                      0, 0, 0, 7,
+                      0, 0, 0, 7};
+    final int[] m2 = {0, 3, 3, 0,
+                      0, 3, 3, 0,
+                      5, 0, 0, 0,
+                      0, 0, 0, 0};
+    final int[] m3 = {0, 0, 0, 0,
+                      9, 9, 9, 0,
+                      0, 0, 0, 2,
+                      0, 0, 0, 2};
+    final List<int[][]> frames = Arrays.asList(new int[][] {m1}, new int[][] {m2},
+        new int[][] {m3});
+    MaskOverlap_PlugIn.relabel(Collections.singletonList(frames), 0.3, false, 1,
+        Ticker.getDefaultInstance());
+    // Object 3 matches 1 (IoU 2/6); object 5 is new
+    Assertions.assertArrayEquals(new int[] {0, 1, 1, 0,
+                                            0, 1, 1, 0,
+                                            8, 0, 0, 0,
+                                            0, 0, 0, 0}, m2);
+    // Object 9 has IoU 2/5 with 1; object 2 does not touch any object
+    Assertions.assertArrayEquals(new int[] {0, 0, 0, 0,
+                                            1, 1, 1, 0,
+                                            0, 0, 0, 9,
+                                            0, 0, 0, 9}, m3);
+  }
+  //@formatter:on
+
+  @SeededTest
+  void checkRelabelIsIndependentOfThreads(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int width = 30;
+    final int height = 20;
+    for (final boolean minimumDistance : new boolean[] {true, false}) {
+      final int[][][][] data = new int[3][5][2][];
+      for (final int[][][] series : data) {
+        for (final int[][] frame : series) {
+          for (int z = 0; z < frame.length; z++) {
+            frame[z] = createObjects(rng, width, height);
+          }
+        }
+      }
+      final List<List<int[][]>> expected = toList(data);
+      final List<List<int[][]>> actual = toList(data);
+      MaskOverlap_PlugIn.relabel(expected, 0.2, minimumDistance, 1, Ticker.getDefaultInstance());
+      MaskOverlap_PlugIn.relabel(actual, 0.2, minimumDistance, 4, Ticker.getDefaultInstance());
+      for (int s = 0; s < expected.size(); s++) {
+        for (int f = 0; f < expected.get(s).size(); f++) {
+          Assertions.assertArrayEquals(expected.get(s).get(f), actual.get(s).get(f));
+        }
+      }
+    }
+  }
+
+  /**
+   * Create random rectangle objects.
+   *
+   * @param rng the random generator
+   * @param width the width
+   * @param height the height
+   * @return the labels
+   */
+  private static int[] createObjects(UniformRandomProvider rng, int width, int height) {
+    final int[] data = new int[width * height];
+    for (int i = rng.nextInt(10); i-- > 0;) {
+      final int label = 1 + rng.nextInt(100000);
+      final int x = rng.nextInt(width);
+      final int y = rng.nextInt(height);
+      final int w = Math.min(width - x, 1 + rng.nextInt(8));
+      final int h = Math.min(height - y, 1 + rng.nextInt(8));
+      for (int yy = y; yy < y + h; yy++) {
+        Arrays.fill(data, yy * width + x, yy * width + x + w, label);
+      }
+    }
+    return data;
+  }
+
+  /**
+   * Create a deep copy of the data as a list of series of frames.
+   *
+   * @param data the data
+   * @return the list
+   */
+  private static List<List<int[][]>> toList(int[][][][] data) {
+    final List<List<int[][]>> list = new ArrayList<>();
+    for (final int[][][] series : data) {
+      final List<int[][]> frames = new ArrayList<>();
+      for (final int[][] frame : series) {
+        frames.add(Arrays.stream(frame).map(int[]::clone).toArray(int[][]::new));
+      }
+      list.add(frames);
+    }
+    return list;
+  }
+}
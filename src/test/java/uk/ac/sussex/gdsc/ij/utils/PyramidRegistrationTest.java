@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.utils;
+
+import ij.process.FloatProcessor;
+import java.awt.Rectangle;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.core.ij.AlignImagesFft;
+import uk.ac.sussex.gdsc.core.ij.AlignImagesFft.SubPixelMethod;
+import uk.ac.sussex.gdsc.core.utils.ImageWindow.WindowMethod;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class PyramidRegistrationTest {
+  private static final int SIZE = 128;
+
+  @Test
+  void testGetLevels() {
+    // No levels if the range is small
+    Assertions.assertEquals(0, PyramidRegistration.getLevels(SIZE, SIZE, bounds(8)));
+    // Range 90 is reduced to 22 with 2 levels; the coarse image is not reduced below 32
+    Assertions.assertEquals(2, PyramidRegistration.getLevels(SIZE, SIZE, bounds(45)));
+    Assertions.assertEquals(2, PyramidRegistration.getLevels(SIZE, SIZE, bounds(1000)));
+    Assertions.assertEquals(1, PyramidRegistration.getLevels(64, SIZE, bounds(1000)));
+  }
+
+  @Test
+  void testGetPyramidSubPixelMethod() {
+    Assertions.assertEquals(0, AlignImagesFft_PlugIn.getPyramidSubPixelMethod(SubPixelMethod.NONE));
+    Assertions.assertEquals(1,
+        AlignImagesFft_PlugIn.getPyramidSubPixelMethod(SubPixelMethod.CUBIC));
+    Assertions.assertEquals(2,
+        AlignImagesFft_PlugIn.getPyramidSubPixelMethod(SubPixelMethod.GAUSSIAN));
+  }
+
+  @Test
+  void testReducePreservesConstant() {
+    final FloatProcessor fp = new FloatProcessor(9, 6);
+    fp.set(3);
+    final FloatProcessor out = PyramidRegistration.reduce(fp);
+    Assertions.assertEquals(5, out.getWidth());
+    Assertions.assertEquals(3, out.getHeight());
+    for (final float value : (float[]) out.getPixels()) {
+      Assertions.assertEquals(3, value);
+    }
+  }
+
+  @SeededTest
+  void canRecoverShiftWithoutDownsampling(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final double[][] blobs = createBlobs(rng);
+    final FloatProcessor ref = createImage(blobs, 0, 0);
+    final Rectangle bounds = bounds(6);
+    final PyramidRegistration registration = new PyramidRegistration(ref, null,
+        PyramidRegistration.getLevels(SIZE, SIZE, bounds));
+    Assertions.assertEquals(0, registration.getLevels());
+    for (int i = 0; i < 5; i++) {
+      final int dx = rng.nextInt(11) - 5;
+      final int dy = rng.nextInt(11) - 5;
+      final double[] result =
+          registration.align(createImage(blobs, dx, dy), bounds, 0, null, null);
+      Assertions.assertEquals(dx, result[0]);
+      Assertions.assertEquals(dy, result[1]);
+      Assertions.assertEquals(1, result[2], 1e-6);
+    }
+  }
+
+  @SeededTest
+  void canRecoverShiftAtCoarseAndFineLevels(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final double[][] blobs = createBlobs(rng);
+    final FloatProcessor ref = createImage(blobs, 0, 0);
+    final Rectangle bounds = bounds(45);
+    final PyramidRegistration registration = new PyramidRegistration(ref, null,
+        PyramidRegistration.getLevels(SIZE, SIZE, bounds));
+    final int levels = registration.getLevels();
+    Assertions.assertEquals(2, levels);
+    final int scale = 1 << levels;
+    for (int i = 0; i < 5; i++) {
+      final int dx = rng.nextInt(81) - 40;
+      final int dy = rng.nextInt(81) - 40;
+      // Exhaustive search at the coarse level. This should be within 1 pixel of the
+      // downsampled shift.
+      final PyramidRegistration.CoarseSearch coarseSearch = (level, target, levelBounds) -> {
+        Assertions.assertEquals(levels, level);
+        final FloatProcessor coarseRef = registration.getReference(level);
+        double max = Double.NEGATIVE_INFINITY;
+        int[] shift = null;
+        for (int y = levelBounds.y; y <= levelBounds.y + levelBounds.height; y++) {
+          for (int x = levelBounds.x; x <= levelBounds.x + levelBounds.width; x++) {
+            final double score = AlignImages_PlugIn.calculateScore(coarseRef, null, target, x, y);
+            if (max < score) {
+              max = score;
+              shift = new int[] {x, y};
+            }
+          }
+        }
+        Assertions.assertEquals((double) dx / scale, shift[0], 1, "Coarse X");
+        Assertions.assertEquals((double) dy / scale, shift[1], 1, "Coarse Y");
+        return shift;
+      };
+      final FloatProcessor target = createImage(blobs, dx, dy);
+      final double[] result = registration.align(target, bounds, 0, coarseSearch, null);
+      Assertions.assertEquals(dx, result[0], "Fine X");
+      Assertions.assertEquals(dy, result[1], "Fine Y");
+      // The default exhaustive coarse search
+      final double[] result2 = registration.align(target, bounds, 0, null, null);
+      Assertions.assertArrayEquals(result, result2);
+    }
+  }
+
+  @SeededTest
+  void canRecoverShiftWithFftCoarseSearch(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final double[][] blobs = createBlobs(rng);
+    final FloatProcessor ref = createImage(blobs, 0, 0);
+    final Rectangle bounds = bounds(45);
+    final PyramidRegistration registration = new PyramidRegistration(ref, null,
+        PyramidRegistration.getLevels(SIZE, SIZE, bounds));
+    final int levels = registration.getLevels();
+    final int scale = 1 << levels;
+    final AlignImagesFft align = new AlignImagesFft();
+    align.initialiseReference(registration.getReference(levels), WindowMethod.TUKEY, true);
+    final PyramidRegistration.CoarseSearch fftSearch =
+        AlignImagesFft_PlugIn.createCoarseSearch(align, WindowMethod.TUKEY);
+    for (int i = 0; i < 5; i++) {
+      // Use a shift large enough to be non-zero at the coarse level
+      final int dx = (8 + rng.nextInt(23)) * (rng.nextBoolean() ? 1 : -1);
+      final int dy = (8 + rng.nextInt(23)) * (rng.nextBoolean() ? 1 : -1);
+      final PyramidRegistration.CoarseSearch coarseSearch = (level, target, levelBounds) -> {
+        final int[] shift = fftSearch.search(level, target, levelBounds);
+        // The shift must have the same sign as the exhaustive spatial search
+        Assertions.assertEquals(Integer.signum(dx), Integer.signum(shift[0]), "Coarse X sign");
+        Assertions.assertEquals(Integer.signum(dy), Integer.signum(shift[1]), "Coarse Y sign");
+        Assertions.assertEquals((double) dx / scale, shift[0], 1, "Coarse X");
+        Assertions.assertEquals((double) dy / scale, shift[1], 1, "Coarse Y");
+        return shift;
+      };
+      final double[] result =
+          registration.align(createImage(blobs, dx, dy), bounds, 0, coarseSearch, null);
+      Assertions.assertEquals(dx, result[0], "Fine X");
+      Assertions.assertEquals(dy, result[1], "Fine Y");
+    }
+  }
+
+  @SeededTest
+  void canRecoverSubPixelShift(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final double[][] blobs = createBlobs(rng);
+    final FloatProcessor ref = createImage(blobs, 0, 0);
+    final Rectangle bounds = bounds(45);
+    final PyramidRegistration registration = new PyramidRegistration(ref, null,
+        PyramidRegistration.getLevels(SIZE, SIZE, bounds));
+    for (int i = 0; i < 3; i++) {
+      final double dx = rng.nextInt(61) - 30 + 0.3;
+      final double dy = rng.nextInt(61) - 30 - 0.4;
+      final FloatProcessor target = createImage(blobs, dx, dy);
+      for (int method = 1; method <= 2; method++) {
+        final double[] result = registration.align(target, bounds, method, null, null);
+        Assertions.assertEquals(dx, result[0], 0.25, "X");
+        Assertions.assertEquals(dy, result[1], 0.25, "Y");
+      }
+    }
+  }
+
+  private static Rectangle bounds(int range) {
+    return new Rectangle(-range, -range, 2 * range, 2 * range);
+  }
+
+  /**
+   * Create random Gaussian blobs: {x, y, sigma, amplitude}. The blobs extend beyond the image so
+   * shifted images have content at the edges.
+   */
+  private static double[][] createBlobs(UniformRandomProvider rng) {
+    final double[][] blobs = new double[40][];
+    for (int i = 0; i < blobs.length; i++) {
+      blobs[i] = new double[] {rng.nextDouble() * (SIZE + 100) - 50,
+          rng.nextDouble() * (SIZE + 100) - 50, 3 + rng.nextDouble() * 5,
+          50 + rng.nextDouble() * 150};
+    }
+    return blobs;
+  }
+
+  /**
+   * Create the image f(x + dx, y + dy) where f is the sum of the blobs on a constant background.
+   */
+  private static FloatProcessor createImage(double[][] blobs, double dx, double dy) {
+    final float[] pixels = new float[SIZE * SIZE];
+    for (int y = 0, i = 0; y < SIZE; y++) {
+      for (int x = 0; x < SIZE; x++, i++) {
+        double sum = 10;
+        for (final double[] blob : blobs) {
+          final double u = x + dx - blob[0];
+          final double v = y + dy - blob[1];
+          sum += blob[3] * Math.exp(-(u * u + v * v) / (2 * blob[2] * blob[2]));
+        }
+        pixels[i] = (float) sum;
+      }
+    }
+    return new FloatProcessor(SIZE, SIZE, pixels);
+  }
+}
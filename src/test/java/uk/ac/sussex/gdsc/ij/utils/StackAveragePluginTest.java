@@ -0,0 +1,207 @@
+/*-
+ * #%L
+ * Genome Damage and Stability Centre ImageJ Plugins
+ *
+ * Software for microscopy image analysis
+ * %%
+ * Copyright (C) 2011 - 2025 Alex Herbert
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package uk.ac.sussex.gdsc.ij.utils;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import uk.ac.sussex.gdsc.ij.utils.StackAverage_PlugIn.Accumulator;
+import uk.ac.sussex.gdsc.test.junit5.SeededTest;
+import uk.ac.sussex.gdsc.test.rng.RngFactory;
+import uk.ac.sussex.gdsc.test.utils.RandomSeed;
+
+@SuppressWarnings({"javadoc"})
+class StackAveragePluginTest {
+  @Test
+  void checkAccumulatorMemorySize() {
+    final int width = 7;
+    final int height = 5;
+    final int slices = 3;
+    final long pixels = width * height * slices;
+    Assertions.assertEquals(pixels * 8,
+        Accumulator.getMemorySize(width, height, slices, Accumulator.MEAN, 10));
+    Assertions.assertEquals(pixels * 4 * 10,
+        Accumulator.getMemorySize(width, height, slices, Accumulator.MEDIAN, 10));
+    final Accumulator mean = new Accumulator(width, height, slices, Accumulator.MEAN, 10, 0);
+    Assertions.assertEquals(pixels * 8, mean.getMemorySize());
+    Assertions.assertEquals(0, mean.getReservoirSize());
+    final Accumulator sample =
+        new Accumulator(width, height, slices, Accumulator.ROBUST_MEAN, 10, 0);
+    Assertions.assertEquals(pixels * 4 * 10, sample.getMemorySize());
+    Assertions.assertEquals(10, sample.getReservoirSize());
+  }
+
+  @SeededTest
+  void checkAccumulator(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int width = 7;
+    final int height = 5;
+    final int slices = 3;
+    final int count = 6;
+    final ImageStack[] stacks = new ImageStack[count];
+    for (int k = 0; k < count; k++) {
+      stacks[k] = ImageStack.create(width, height, slices, 32);
+      for (int n = 1; n <= slices; n++) {
+        final ImageProcessor ip = stacks[k].getProcessor(n);
+        for (int i = ip.getPixelCount(); i-- > 0;) {
+          ip.setf(i, rng.nextInt(100));
+        }
+      }
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (int statistic = 0; statistic < Accumulator.STATISTICS.length; statistic++) {
+        for (final ExecutorService ex : new ExecutorService[] {null, executor}) {
+          final Accumulator accumulator =
+              new Accumulator(width, height, slices, statistic, count, seed.getAsLong());
+          for (final ImageStack stack : stacks) {
+            accumulator.add(stack, ex);
+          }
+          Assertions.assertEquals(count, accumulator.getCount());
+          final ImageStack result = accumulator.getResult(32, ex);
+          Assertions.assertEquals(slices, result.getSize());
+          final double[] values = new double[count];
+          for (int n = 1; n <= slices; n++) {
+            for (int i = width * height; i-- > 0;) {
+              for (int k = 0; k < count; k++) {
+                values[k] = stacks[k].getProcessor(n).getf(i);
+              }
+              Arrays.sort(values);
+              final double expected;
+              if (statistic == Accumulator.MEAN) {
+                expected = Arrays.stream(values).average().getAsDouble();
+              } else if (statistic == Accumulator.MEDIAN) {
+                expected = (values[2] + values[3]) / 2;
+              } else {
+                // Exclude 1 value from each end
+                expected = Arrays.stream(values, 1, 5).average().getAsDouble();
+              }
+              Assertions.assertEquals(expected, result.getProcessor(n).getf(i), 1e-5);
+            }
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @SeededTest
+  void checkAccumulatorSample(RandomSeed seed) {
+    final UniformRandomProvider rng = RngFactory.create(seed.get());
+    final int width = 6;
+    final int height = 4;
+    final int slices = 2;
+    final int count = 9;
+    final int size = 4;
+    final ImageStack[] stacks = new ImageStack[count];
+    for (int k = 0; k < count; k++) {
+      stacks[k] = ImageStack.create(width, height, slices, 32);
+      for (int n = 1; n <= slices; n++) {
+        final ImageProcessor ip = stacks[k].getProcessor(n);
+        for (int i = ip.getPixelCount(); i-- > 0;) {
+          ip.setf(i, rng.nextInt(100));
+        }
+      }
+    }
+    final long sampleSeed = rng.nextLong();
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (int statistic = 1; statistic < Accumulator.STATISTICS.length; statistic++) {
+        ImageStack first = null;
+        for (final ExecutorService ex : new ExecutorService[] {null, executor}) {
+          final Accumulator accumulator =
+              new Accumulator(width, height, slices, statistic, size, sampleSeed);
+          for (final ImageStack stack : stacks) {
+            accumulator.add(stack, ex);
+          }
+          Assertions.assertTrue(accumulator.isSample());
+          final ImageStack result = accumulator.getResult(32, ex);
+          if (first == null) {
+            first = result;
+            assertSample(stacks, size, result);
+          } else {
+            // The same seed creates the same sample
+            for (int n = 1; n <= slices; n++) {
+              Assertions.assertArrayEquals((float[]) first.getPixels(n),
+                  (float[]) result.getPixels(n));
+            }
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Assert the result is the statistic of a subset of the stacks. The same subset must be used for
+   * all voxels.
+   */
+  private static void assertSample(ImageStack[] stacks, int size, ImageStack result) {
+    // Test all subsets of the stacks
+    final int count = stacks.length;
+    final int[] subset = new int[size];
+    final double[] values = new double[size];
+    for (int mask = 0; mask < 1 << count; mask++) {
+      if (Integer.bitCount(mask) != size) {
+        continue;
+      }
+      for (int k = 0, j = 0; k < count; k++) {
+        if ((mask & (1 << k)) != 0) {
+          subset[j++] = k;
+        }
+      }
+      if (matches(stacks, subset, values, result)) {
+        return;
+      }
+    }
+    Assertions.fail("Result does not match a sample of the stacks");
+  }
+
+  private static boolean matches(ImageStack[] stacks, int[] subset, double[] values,
+      ImageStack result) {
+    for (int n = 1; n <= result.getSize(); n++) {
+      final ImageProcessor ip = result.getProcessor(n);
+      for (int i = ip.getPixelCount(); i-- > 0;) {
+        for (int j = 0; j < subset.length; j++) {
+          values[j] = stacks[subset[j]].getProcessor(n).getf(i);
+        }
+        Arrays.sort(values);
+        // Size 4: the median and inter-quartile mean are the mean of the middle 2 values
+        final double expected = (values[1] + values[2]) / 2;
+        if (Math.abs(expected - ip.getf(i)) > 1e-3) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+}